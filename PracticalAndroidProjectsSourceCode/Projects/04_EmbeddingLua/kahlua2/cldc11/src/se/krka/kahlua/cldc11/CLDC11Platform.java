@@ -21,6 +21,10 @@ public class CLDC11Platform implements Platform {
         return new KahluaTableImpl();
     }
 
+    public KahluaTable newTable(int arraySize, int hashSize) {
+        return newTable();
+    }
+
     public KahluaTable newEnvironment() {
         KahluaTable env = newTable();
 
@@ -39,4 +43,8 @@ public class CLDC11Platform implements Platform {
         return env;
     }
 
+    public PrototypeCompiler getPrototypeCompiler() {
+        return null;
+    }
+
 }
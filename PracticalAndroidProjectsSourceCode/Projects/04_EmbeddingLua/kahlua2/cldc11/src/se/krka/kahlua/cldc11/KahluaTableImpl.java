@@ -31,9 +31,14 @@ import java.util.Hashtable;
 public final class KahluaTableImpl implements KahluaTable {
     private final Hashtable delegate = new Hashtable();
 	private KahluaTable metatable;
+	private int version;
+	private int metaFlags;
+	private int metaFlagsVersion;
+	private boolean hasCells;
 
     public void setMetatable(KahluaTable metatable) {
         this.metatable = metatable;
+        version++;
     }
 
     public KahluaTable getMetatable() {
@@ -41,6 +46,16 @@ public final class KahluaTableImpl implements KahluaTable {
     }
 
     public void rawset(Object key, Object value) {
+        version++;
+        key = KahluaUtil.flatten(key);
+        value = KahluaUtil.flatten(value);
+        if (hasCells) {
+            Object old = delegate.get(key);
+            if (old instanceof GlobalCell) {
+                ((GlobalCell) old).value = value;
+                return;
+            }
+        }
         if (value == null) {
             delegate.remove(key);
             return;
@@ -49,7 +64,14 @@ public final class KahluaTableImpl implements KahluaTable {
     }
 
     public Object rawget(Object key) {
-        return delegate.get(key);
+        return unwrap(delegate.get(KahluaUtil.flatten(key)));
+    }
+
+    private Object unwrap(Object value) {
+        if (hasCells && value instanceof GlobalCell) {
+            return ((GlobalCell) value).value;
+        }
+        return value;
     }
 
     public void rawset(int key, Object value) {
@@ -78,10 +100,14 @@ public final class KahluaTableImpl implements KahluaTable {
             }
 
             public boolean advance() {
-                if (enumeration.hasMoreElements()) {
-                    curKey = enumeration.nextElement();
-                    curValue = delegate.get(curKey);
-                    return true;
+                while (enumeration.hasMoreElements()) {
+                    Object key = enumeration.nextElement();
+                    Object value = rawget(key);
+                    if (value != null) {
+                        curKey = key;
+                        curValue = value;
+                        return true;
+                    }
                 }
                 curKey = null;
                 curValue = null;
@@ -99,9 +125,39 @@ public final class KahluaTableImpl implements KahluaTable {
     }
 
 	public boolean isEmpty() {
+		if (hasCells) {
+			return !iterator().advance();
+		}
 		return delegate.isEmpty();
 	}
 
+	public int getVersion() {
+		return version;
+	}
+
+	public GlobalCell getCell(Object key) {
+		if (!(key instanceof String)) {
+			return null;
+		}
+		Object value = delegate.get(key);
+		if (value instanceof GlobalCell) {
+			return (GlobalCell) value;
+		}
+		GlobalCell cell = new GlobalCell(this, value);
+		hasCells = true;
+		delegate.put(key, cell);
+		return cell;
+	}
+
+	public int getMetaFlags() {
+		return metaFlagsVersion == version ? metaFlags : 0;
+	}
+
+	public void setMetaFlags(int version, int flags) {
+		metaFlags = flags;
+		metaFlagsVersion = version;
+	}
+
 	public String toString() {
         return "table 0x" + System.identityHashCode(this);
     }
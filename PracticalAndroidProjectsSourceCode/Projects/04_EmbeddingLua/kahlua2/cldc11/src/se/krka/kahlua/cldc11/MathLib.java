@@ -52,8 +52,10 @@ public final class MathLib implements JavaFunction {
 	private static final int SQRT = 21;
 	private static final int TAN = 22;
 	private static final int TANH = 23;
+	private static final int MAX = 24;
+	private static final int MIN = 25;
 
-	private static final int NUM_FUNCTIONS = 24;
+	private static final int NUM_FUNCTIONS = 26;
 
 	private static final String[] names;
 	private static final MathLib[] functions;
@@ -83,6 +85,8 @@ public final class MathLib implements JavaFunction {
 		names[SQRT] = "sqrt";
 		names[TAN] = "tan";
 		names[TANH] = "tanh";
+		names[MAX] = "max";
+		names[MIN] = "min";
 		functions = new MathLib[NUM_FUNCTIONS];
 		for (int i = 0; i < NUM_FUNCTIONS; i++) {
 			functions[i] = new MathLib(i);
@@ -137,6 +141,8 @@ public final class MathLib implements JavaFunction {
 			case SQRT: return sqrt(callFrame, nArguments);
 			case TAN: return tan(callFrame, nArguments);
 			case TANH: return tanh(callFrame, nArguments);
+			case MAX: return max(callFrame, nArguments);
+			case MIN: return min(callFrame, nArguments);
 			default: return 0;
 		}
 	}
@@ -149,6 +155,36 @@ public final class MathLib implements JavaFunction {
 		return 1;
 	}
 
+	private static int max(LuaCallFrame callFrame, int nArguments) {
+		Double best = KahluaUtil.getNumberArg(callFrame, 1, names[MAX]);
+		double bestValue = best.doubleValue();
+		for (int i = 2; i <= nArguments; i++) {
+			Double x = KahluaUtil.getNumberArg(callFrame, i, names[MAX]);
+			double value = x.doubleValue();
+			if (value > bestValue) {
+				best = x;
+				bestValue = value;
+			}
+		}
+		callFrame.push(best);
+		return 1;
+	}
+
+	private static int min(LuaCallFrame callFrame, int nArguments) {
+		Double best = KahluaUtil.getNumberArg(callFrame, 1, names[MIN]);
+		double bestValue = best.doubleValue();
+		for (int i = 2; i <= nArguments; i++) {
+			Double x = KahluaUtil.getNumberArg(callFrame, i, names[MIN]);
+			double value = x.doubleValue();
+			if (value < bestValue) {
+				best = x;
+				bestValue = value;
+			}
+		}
+		callFrame.push(best);
+		return 1;
+	}
+
 	private static int ceil(LuaCallFrame callFrame, int nArguments) {
 		KahluaUtil.luaAssert(nArguments >= 1, "Not enough arguments");
 		double x = KahluaUtil.getDoubleArg(callFrame,1,names[CEIL]);
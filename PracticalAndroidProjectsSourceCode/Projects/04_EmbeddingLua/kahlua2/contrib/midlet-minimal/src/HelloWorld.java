@@ -63,8 +63,16 @@ public class HelloWorld extends MIDlet implements JavaFunction, Platform {
         return new KahluaTableImpl();
     }
 
+    public KahluaTable newTable(int arraySize, int hashSize) {
+        return newTable();
+    }
+
     public KahluaTable newEnvironment() {
         KahluaTable env = newTable();
         return env;
     }
+
+    public PrototypeCompiler getPrototypeCompiler() {
+        return null;
+    }
 }
@@ -0,0 +1,43 @@
+/*
+ Copyright (c) 2010 Kristofer Karlsson <kristofer.karlsson@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+
+package se.krka.kahlua.luaj.compiler;
+
+import se.krka.kahlua.vm.Prototype;
+
+/**
+ * Remembers compiled chunks, so the same source doesn't have to be parsed again.
+ *
+ * The prototypes given to put are never run, {@link LuaCompiler} only hands out copies of them.
+ * Implementations must be thread safe if the compiler is used from more than one thread.
+ *
+ * @see LuaCompiler#setChunkCache(ChunkCache)
+ */
+public interface ChunkCache {
+	/**
+	 * @return the prototype previously compiled from this source and chunk name, or null
+	 */
+	Prototype get(String source, String name);
+
+	void put(String source, String name, Prototype prototype);
+}
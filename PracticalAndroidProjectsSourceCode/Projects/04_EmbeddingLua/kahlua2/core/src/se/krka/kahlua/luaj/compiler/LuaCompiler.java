@@ -37,6 +37,7 @@ import se.krka.kahlua.vm.KahluaUtil;
 import se.krka.kahlua.vm.LuaCallFrame;
 import se.krka.kahlua.vm.LuaClosure;
 import se.krka.kahlua.vm.KahluaTable;
+import se.krka.kahlua.vm.Prototype;
 
 public class LuaCompiler implements JavaFunction {
 
@@ -50,6 +51,8 @@ public class LuaCompiler implements JavaFunction {
 	};
 	
 	private static final LuaCompiler[] functions = new LuaCompiler[names.length];
+
+	private static ChunkCache chunkCache;
 	static {
 		for (int i = 0; i < names.length; i++) {
 			functions[i] = new LuaCompiler(i);
@@ -70,6 +73,21 @@ public class LuaCompiler implements JavaFunction {
 		*/
 	}
 	
+	/**
+	 * Sets the cache used by all loadstring and loadis calls.
+	 * With a cache, the same source with the same chunk name is only compiled once,
+	 * and each load gets a fresh copy of the cached prototype.
+	 *
+	 * @param cache the cache, or null to always compile
+	 */
+	public static void setChunkCache(ChunkCache cache) {
+		chunkCache = cache;
+	}
+
+	public static ChunkCache getChunkCache() {
+		return chunkCache;
+	}
+
 	public int call(LuaCallFrame callFrame, int nArguments) {
 		switch (index) {
 		case LOADSTRING: return loadstring(callFrame, nArguments);
@@ -122,7 +140,33 @@ public class LuaCompiler implements JavaFunction {
     }
 
 	private static LuaClosure loadis(Reader reader, String name, String source, KahluaTable environment) throws IOException {
-		return new LuaClosure(LexState.compile(reader.read(), reader, name, source), environment);
+		ChunkCache cache = chunkCache;
+		if (cache == null) {
+			return new LuaClosure(LexState.compile(reader.read(), reader, name, source), environment);
+		}
+		String text = source;
+		if (text == null) {
+			text = readAll(reader);
+			reader = new InputStreamReader(new ByteArrayInputStream(text.getBytes("UTF-8")), "UTF-8");
+		}
+		Prototype prototype = cache.get(text, name);
+		if (prototype == null) {
+			prototype = LexState.compile(reader.read(), reader, name, source);
+			cache.put(text, name, prototype);
+		}
+		return new LuaClosure(prototype.copy(), environment);
+	}
+
+	private static String readAll(Reader reader) throws IOException {
+		StringBuffer buffer = new StringBuffer();
+		char[] chars = new char[1024];
+		while (true) {
+			int n = reader.read(chars);
+			if (n < 0) {
+				return buffer.toString();
+			}
+			buffer.append(chars, 0, n);
+		}
 	}
 
 	private static LuaClosure loadis(InputStream inputStream, String name, String source, KahluaTable environment) throws IOException {
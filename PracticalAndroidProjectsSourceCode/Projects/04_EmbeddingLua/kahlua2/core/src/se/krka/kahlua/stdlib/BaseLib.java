@@ -24,9 +24,12 @@ package se.krka.kahlua.stdlib;
 import se.krka.kahlua.vm.JavaFunction;
 import se.krka.kahlua.vm.KahluaException;
 import se.krka.kahlua.vm.KahluaTable;
+import se.krka.kahlua.vm.KahluaSlotTable;
+import se.krka.kahlua.vm.KahluaTableIterator;
 import se.krka.kahlua.vm.KahluaUtil;
 import se.krka.kahlua.vm.LuaCallFrame;
 import se.krka.kahlua.vm.LuaClosure;
+import se.krka.kahlua.vm.LuaUserdata;
 import se.krka.kahlua.vm.KahluaThread;
 import se.krka.kahlua.vm.Coroutine;
 
@@ -51,16 +54,22 @@ public final class BaseLib implements JavaFunction {
 	private static final int COLLECTGARBAGE = 15;
 	private static final int DEBUGSTACKTRACE = 16;
 	private static final int BYTECODELOADER = 17;
+	private static final int IPAIRS = 18;
+	private static final int NEXT = 19;
 
-	private static final int NUM_FUNCTIONS = 18;
+	private static final int NUM_FUNCTIONS = 20;
+
+	// Not a global, only returned by ipairs
+	private static final int IPAIRS_NEXT = 20;
 
 	private static final String[] names;
 	private static final Object DOUBLE_ONE = new Double(1.0);
+	private static final Object DOUBLE_ZERO = new Double(0.0);
 
     private static final BaseLib[] functions;
 
 	static {
-		names = new String[NUM_FUNCTIONS];
+		names = new String[NUM_FUNCTIONS + 1];
 		names[PCALL] = "pcall";
 		names[PRINT] = "print";
 		names[SELECT] = "select";
@@ -79,6 +88,9 @@ public final class BaseLib implements JavaFunction {
 		names[COLLECTGARBAGE] = "collectgarbage";
 		names[DEBUGSTACKTRACE] = "debugstacktrace";
 		names[BYTECODELOADER] = "bytecodeloader";
+		names[IPAIRS] = "ipairs";
+		names[NEXT] = "next";
+		names[IPAIRS_NEXT] = "ipairs_iterator";
 
 		functions = new BaseLib[NUM_FUNCTIONS];
 		for (int i = 0; i < NUM_FUNCTIONS; i++) {
@@ -87,6 +99,18 @@ public final class BaseLib implements JavaFunction {
 
 	}
 
+	/**
+	 * The iterator function returned by ipairs.
+	 * The interpreter recognizes it in generic for loops and runs it inline.
+	 */
+	public static final JavaFunction IPAIRS_ITERATOR = new BaseLib(IPAIRS_NEXT);
+
+	/**
+	 * The global next, which pairs returns as the iterator function for tables with slots.
+	 * The interpreter recognizes it in generic for loops and walks the table by slot.
+	 */
+	public static final JavaFunction NEXT_FUNCTION = functions[NEXT];
+
 	private final int index;
 
     public BaseLib(int index) {
@@ -124,6 +148,9 @@ public final class BaseLib implements JavaFunction {
 		case COLLECTGARBAGE: return collectgarbage(callFrame, nArguments);
 		case DEBUGSTACKTRACE: return debugstacktrace(callFrame, nArguments);
 		case BYTECODELOADER: return bytecodeloader(callFrame, nArguments);
+		case IPAIRS: return ipairs(callFrame, nArguments);
+		case IPAIRS_NEXT: return ipairsNext(callFrame, nArguments);
+		case NEXT: return next(callFrame, nArguments);
 		default:
 			// Should never happen
 			// throw new Error("Illegal function object");
@@ -131,6 +158,75 @@ public final class BaseLib implements JavaFunction {
 		}
 	}
 	
+	private static int ipairs(LuaCallFrame callFrame, int nArguments) {
+		Object t = KahluaUtil.getArg(callFrame, 1, names[IPAIRS]);
+		return callFrame.push(IPAIRS_ITERATOR, t, DOUBLE_ZERO);
+	}
+
+	private static int ipairsNext(LuaCallFrame callFrame, int nArguments) {
+		int index = (int) KahluaUtil.fromDouble(callFrame.get(1)) + 1;
+		Object value = ipairsGet(callFrame.getThread(), callFrame.get(0), index);
+		if (value == null) {
+			return 0;
+		}
+		return callFrame.push(KahluaUtil.toDouble(index), value);
+	}
+
+	/**
+	 * @return t[index] as seen by ipairs, with metamethods only if t has a metatable
+	 */
+	public static Object ipairsGet(KahluaThread thread, Object t, int index) {
+		if (t instanceof KahluaTable) {
+			KahluaTable table = (KahluaTable) t;
+			if (table.getMetatable() == null) {
+				return table.rawget(index);
+			}
+		}
+		return thread.tableGet(t, KahluaUtil.toDouble(index));
+	}
+
+	/**
+	 * next(t, k) finds k by its slot for tables that implement KahluaSlotTable.
+	 * Other tables, such as those backed by a java.util.Map, have to be walked up to k,
+	 * so a loop that calls next repeatedly on them is quadratic. Use pairs for those.
+	 */
+	private static int next(LuaCallFrame callFrame, int nArguments) {
+		Object o = KahluaUtil.getArg(callFrame, 1, names[NEXT]);
+		KahluaUtil.luaAssert(o instanceof KahluaTable, "bad argument #1 to 'next' (table expected)");
+		Object key = KahluaUtil.getOptionalArg(callFrame, 2);
+		if (o instanceof KahluaSlotTable) {
+			KahluaSlotTable t = (KahluaSlotTable) o;
+			int slot = 0;
+			if (key != null) {
+				slot = t.getSlot(key);
+				KahluaUtil.luaAssert(slot >= 0, "invalid key to 'next'");
+				slot++;
+			}
+			slot = t.nextSlot(slot);
+			if (slot < 0) {
+				return callFrame.pushNil();
+			}
+			Object nextKey = t.getSlotKey(slot);
+			if (nextKey == null) {
+				nextKey = KahluaUtil.toDouble(slot + 1);
+			}
+			return callFrame.push(nextKey, t.getSlotValue(slot));
+		}
+
+		// Without slots the only way to find the key is to walk up to it
+		KahluaTableIterator iterator = ((KahluaTable) o).iterator();
+		boolean found = key == null;
+		key = KahluaUtil.flatten(key);
+		while (iterator.advance()) {
+			if (found) {
+				return callFrame.push(iterator.getKey(), iterator.getValue());
+			}
+			found = iterator.getKey().equals(key);
+		}
+		KahluaUtil.luaAssert(found, "invalid key to 'next'");
+		return callFrame.pushNil();
+	}
+
 	private int debugstacktrace(LuaCallFrame callFrame, int nArguments) {
 		Coroutine coroutine = (Coroutine) KahluaUtil.getOptionalArg(callFrame, 1);
 		if (coroutine == null) {
@@ -239,7 +335,7 @@ public final class BaseLib implements JavaFunction {
         return 1;
 	}
 
-	private int unpack(LuaCallFrame callFrame, int nArguments) {
+	public static int unpack(LuaCallFrame callFrame, int nArguments) {
         KahluaUtil.luaAssert(nArguments >= 1, "Not enough arguments");
 
         KahluaTable t = (KahluaTable) callFrame.get(0);
@@ -282,17 +378,14 @@ public final class BaseLib implements JavaFunction {
 	private int error(LuaCallFrame callFrame, int nArguments) {
 		if (nArguments >= 1) {
 			String stacktrace = KahluaUtil.getOptionalStringArg(callFrame, 2);
-			if (stacktrace == null) {
-				stacktrace = "";
-			}
-			callFrame.coroutine.stackTrace = stacktrace;
+			callFrame.coroutine.setStackTrace(stacktrace);
 			throw new KahluaException(callFrame.get(0));
 		}
 		return 0;
 	}
 
 	public static int pcall(LuaCallFrame callFrame, int nArguments) {
-		return callFrame.getThread().pcall(nArguments - 1);
+		return callFrame.getThread().luaPcall(nArguments - 1);
 	}
 
 	private static int print(LuaCallFrame callFrame, int nArguments) {
@@ -470,6 +563,9 @@ public final class BaseLib implements JavaFunction {
 			Double bd = (Double) b;
 			return ad.doubleValue() == bd.doubleValue();
 		}
+		if (a instanceof LuaUserdata && b instanceof LuaUserdata) {
+			return a.equals(b);
+		}
 		return a == b;
 	}
 }
@@ -30,8 +30,9 @@ public class CoroutineLib implements JavaFunction {
 	private static final int YIELD = 2;
 	private static final int STATUS = 3;
 	private static final int RUNNING = 4;
+	private static final int WRAP = 5;
 
-	private static final int NUM_FUNCTIONS = 5;
+	private static final int NUM_FUNCTIONS = 6;
 	
 	
 	private static final String[] names;
@@ -46,6 +47,7 @@ public class CoroutineLib implements JavaFunction {
 		names[YIELD] = "yield";
 		names[STATUS] = "status";
 		names[RUNNING] = "running";
+		names[WRAP] = "wrap";
 	}
 
 	private final int index;
@@ -85,6 +87,7 @@ public class CoroutineLib implements JavaFunction {
 		case RESUME: return resume(callFrame, nArguments);
 		case STATUS: return status(callFrame, nArguments);
 		case RUNNING: return running(callFrame, nArguments);
+		case WRAP: return wrap(callFrame, nArguments);
 		default:
 			// Should never happen
 			// throw new Error("Illegal function object");
@@ -116,7 +119,16 @@ public class CoroutineLib implements JavaFunction {
 
 	private int resume(LuaCallFrame callFrame, int nArguments) {
 		Coroutine t = getCoroutine(callFrame, "resume");
-		
+		t.wrapped = false;
+		resume(callFrame, t, 1, nArguments);
+		return 0;
+	}
+
+	/**
+	 * Transfers control to t, passing the arguments from firstArgument and up.
+	 * The thread switches to t when the calling java function returns.
+	 */
+	private static void resume(LuaCallFrame callFrame, Coroutine t, int firstArgument, int nArguments) {
 		String status = t.getStatus();
 		// equals on strings works because they are both constants
 		if (status != "suspended") {
@@ -134,19 +146,60 @@ public class CoroutineLib implements JavaFunction {
 		}
 
 		// Copy arguments
-		for (int i = 1; i < nArguments; i++) {
+		for (int i = firstArgument; i < nArguments; i++) {
 			nextCallFrame.push(callFrame.get(i));
 		}
 		
 		// Is this the first time the coroutine is resumed?
 		if (nextCallFrame.nArguments == -1) {
-			nextCallFrame.nArguments = nArguments - 1;
+			nextCallFrame.nArguments = nArguments - firstArgument;
 			nextCallFrame.init();
 		}
 
 		callFrame.getThread().currentCoroutine = t;
-		
-		return 0;
+	}
+
+	private int wrap(LuaCallFrame callFrame, int nArguments) {
+		LuaClosure c = getFunction(callFrame, "wrap");
+
+		Coroutine coroutine = create(callFrame.getPlatform(), callFrame.getEnvironment(), c);
+		return callFrame.push(new Wrapper(coroutine));
+	}
+
+	/**
+	 * Returns a function that resumes the coroutine, like the functions from coroutine.wrap.
+	 * Unlike coroutine.resume, it can also be called from java, with {@link KahluaThread#call(int)}
+	 * or pcall, which makes it the way for the host to run a preemptible coroutine in slices.
+	 */
+	public static JavaFunction wrap(Coroutine coroutine) {
+		return new Wrapper(coroutine);
+	}
+
+	/**
+	 * The function returned by coroutine.wrap.
+	 * Unlike coroutine.resume it runs the coroutine to its next yield before returning,
+	 * so the results come back as ordinary return values and errors propagate
+	 * to the caller.
+	 */
+	private static class Wrapper implements JavaFunction {
+		private final Coroutine coroutine;
+
+		private Wrapper(Coroutine coroutine) {
+			this.coroutine = coroutine;
+		}
+
+		public int call(LuaCallFrame callFrame, int nArguments) {
+			KahluaThread thread = callFrame.getThread();
+			Coroutine parent = thread.currentCoroutine;
+			int top = callFrame.getTop();
+
+			coroutine.wrapped = true;
+			resume(callFrame, coroutine, 0, nArguments);
+			thread.runCoroutine();
+
+			KahluaUtil.luaAssert(thread.currentCoroutine == parent, "Internal error, wrapped coroutine did not return");
+			return callFrame.getTop() - top;
+		}
 	}
 
 	private static int yield(LuaCallFrame callFrame, int nArguments) {
@@ -163,12 +216,20 @@ public class CoroutineLib implements JavaFunction {
 	private int create(LuaCallFrame callFrame, int nArguments) {
 		LuaClosure c = getFunction(callFrame, "create");
 
-		Coroutine coroutine = new Coroutine(callFrame.getPlatform(), callFrame.getEnvironment());
-		coroutine.pushNewCallFrame(c, null, 0, 0, -1, true, true);
+		Coroutine coroutine = create(callFrame.getPlatform(), callFrame.getEnvironment(), c);
 		callFrame.push(coroutine);
 		return 1;
 	}
 
+	/**
+	 * Creates a suspended coroutine that runs the function, like coroutine.create.
+	 */
+	public static Coroutine create(Platform platform, KahluaTable environment, LuaClosure function) {
+		Coroutine coroutine = new Coroutine(platform, environment);
+		coroutine.pushNewCallFrame(function, null, 0, 0, -1, true, true);
+		return coroutine;
+	}
+
 	private LuaClosure getFunction(LuaCallFrame callFrame, String name) {
 		Object o = KahluaUtil.getArg(callFrame, 1, name);
 		KahluaUtil.luaAssert(o instanceof LuaClosure, "argument must be a lua function");
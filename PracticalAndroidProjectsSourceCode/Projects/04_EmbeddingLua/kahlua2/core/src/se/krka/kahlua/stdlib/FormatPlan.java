@@ -0,0 +1,274 @@
+/*
+ Copyright (c) 2010 Kristofer Karlsson <kristofer.karlsson@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+
+package se.krka.kahlua.stdlib;
+
+import java.util.Hashtable;
+
+/**
+ * A format string for string.format, parsed into literal text and conversions.
+ *
+ * Like with LuaPattern, a malformed conversion is kept in the plan as an error
+ * and only raised when formatting reaches it, after the arguments before it have been checked.
+ */
+final class FormatPlan {
+	private static final int MAX_CACHED = 256;
+	private static final Hashtable cache = new Hashtable();
+
+	private static final String INCOMPLETE = "incomplete option to 'format'";
+
+	/** literal Strings and Conversions, in order */
+	final Object[] segments;
+	/** the length of the literal text and the widths of the conversions */
+	final int estimatedLength;
+
+	private FormatPlan(Object[] segments, int estimatedLength) {
+		this.segments = segments;
+		this.estimatedLength = estimatedLength;
+	}
+
+	/**
+	 * A single %-conversion, with everything that only depends on the format string resolved.
+	 */
+	static final class Conversion {
+		char specifier;
+		boolean repr;
+		boolean zeroPadding;
+		boolean leftJustify;
+		boolean showPlus;
+		boolean spaceForSign;
+		boolean upperCase;
+		boolean hasPrecision;
+		int width;
+		int precision;
+		int base = 10;
+		String basePrepend = "";
+		char padCharacter;
+
+		/** if not null, formatting fails with this message when it reaches this conversion */
+		String error;
+	}
+
+	static FormatPlan get(String format) {
+		FormatPlan plan = (FormatPlan) cache.get(format);
+		if (plan == null) {
+			plan = parse(format);
+			if (cache.size() >= MAX_CACHED) {
+				cache.clear();
+			}
+			cache.put(format, plan);
+		}
+		return plan;
+	}
+
+	static FormatPlan parse(String f) {
+		int len = f.length();
+		Object[] segments = new Object[8];
+		int size = 0;
+		int estimatedLength = 0;
+		StringBuffer literal = new StringBuffer();
+		for (int i = 0; i < len; i++) {
+			char c = f.charAt(i);
+			if (c != '%') {
+				literal.append(c);
+				continue;
+			}
+			i++;
+			if (i < len && f.charAt(i) == '%') {
+				literal.append('%');
+				continue;
+			}
+			if (size + 2 > segments.length) {
+				Object[] newSegments = new Object[2 * segments.length];
+				System.arraycopy(segments, 0, newSegments, 0, size);
+				segments = newSegments;
+			}
+			if (literal.length() > 0) {
+				estimatedLength += literal.length();
+				segments[size++] = literal.toString();
+				literal.setLength(0);
+			}
+			Conversion conversion = new Conversion();
+			segments[size++] = conversion;
+			i = parseConversion(f, i, conversion);
+			if (conversion.error != null) {
+				break;
+			}
+			estimatedLength += conversion.width;
+		}
+		if (literal.length() > 0) {
+			estimatedLength += literal.length();
+			if (size == segments.length) {
+				Object[] newSegments = new Object[size + 1];
+				System.arraycopy(segments, 0, newSegments, 0, size);
+				segments = newSegments;
+			}
+			segments[size++] = literal.toString();
+		}
+		Object[] result = new Object[size];
+		System.arraycopy(segments, 0, result, 0, size);
+		return new FormatPlan(result, estimatedLength);
+	}
+
+	/**
+	 * @param i the index after the %
+	 * @return the index of the specifier character
+	 */
+	private static int parseConversion(String f, int i, Conversion conversion) {
+		int len = f.length();
+		if (i >= len) {
+			conversion.error = INCOMPLETE;
+			return i;
+		}
+		char c = f.charAt(i);
+
+		// Detect flags
+		flagLoop: while (true) {
+			switch (c) {
+			case '-':
+				conversion.leftJustify = true;
+				break;
+			case '+':
+				conversion.showPlus = true;
+				break;
+			case ' ':
+				conversion.spaceForSign = true;
+				break;
+			case '#':
+				conversion.repr = true;
+				break;
+			case '0':
+				conversion.zeroPadding = true;
+				break;
+			default:
+				break flagLoop;
+			}
+			i++;
+			if (i >= len) {
+				conversion.error = INCOMPLETE;
+				return i;
+			}
+			c = f.charAt(i);
+		}
+
+		// Detect width
+		int width = 0;
+		while (c >= '0' && c <= '9') {
+			width = 10 * width + c - '0';
+			i++;
+			if (i >= len) {
+				conversion.error = INCOMPLETE;
+				return i;
+			}
+			c = f.charAt(i);
+		}
+
+		// Detect precision
+		int precision = 0;
+		if (c == '.') {
+			conversion.hasPrecision = true;
+			i++;
+			if (i >= len) {
+				conversion.error = INCOMPLETE;
+				return i;
+			}
+			c = f.charAt(i);
+
+			while (c >= '0' && c <= '9') {
+				precision = 10 * precision + c - '0';
+				i++;
+				if (i >= len) {
+					conversion.error = INCOMPLETE;
+					return i;
+				}
+				c = f.charAt(i);
+			}
+		}
+
+		if (conversion.leftJustify) {
+			conversion.zeroPadding = false;
+		}
+
+		int defaultPrecision = 6; // This is the default for all float numerics
+		switch (c) {
+		// Simple character
+		case 'c':
+			conversion.zeroPadding = false;
+			break;
+		// change base
+		case 'o':
+			conversion.base = 8;
+			defaultPrecision = 1;
+			conversion.basePrepend = "0";
+			break;
+		case 'x':
+			conversion.base = 16;
+			defaultPrecision = 1;
+			conversion.basePrepend = "0x";
+			break;
+		case 'X':
+			conversion.base = 16;
+			defaultPrecision = 1;
+			conversion.upperCase = true;
+			conversion.basePrepend = "0X";
+			break;
+		// unsigned integer and signed integer
+		case 'u':
+		case 'd':
+		case 'i':
+			defaultPrecision = 1;
+			break;
+		case 'E':
+		case 'G':
+			conversion.upperCase = true;
+			break;
+		case 'e':
+		case 'g':
+		case 'f':
+			break;
+		case 's':
+			conversion.zeroPadding = false;
+			break;
+		case 'q':
+			// %q neither needs nor supports width
+			width = 0;
+			break;
+		default:
+			conversion.error = "invalid option '%" + c + "' to 'format'";
+			return i;
+		}
+		conversion.specifier = c;
+
+		// Set precision
+		if (!conversion.hasPrecision) {
+			precision = defaultPrecision;
+		}
+		if (conversion.hasPrecision && conversion.base != 10) {
+			conversion.zeroPadding = false;
+		}
+		conversion.padCharacter = conversion.zeroPadding ? '0' : ' ';
+		conversion.width = width;
+		conversion.precision = precision;
+		return i;
+	}
+}
@@ -0,0 +1,646 @@
+/*
+ Copyright (c) 2010 Kristofer Karlsson <kristofer.karlsson@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+
+package se.krka.kahlua.stdlib;
+
+import java.util.Hashtable;
+
+import se.krka.kahlua.vm.KahluaUtil;
+
+/**
+ * A Lua pattern compiled into a list of items.
+ *
+ * Compiling resolves the pattern syntax once: where each item ends, what
+ * quantifier it has and which characters a class or set matches.
+ * Matching then only walks the item list with integer positions in the source.
+ *
+ * Malformed parts of a pattern are compiled into an error item, so the error is
+ * raised when matching reaches it, just like when the pattern is interpreted.
+ */
+final class LuaPattern {
+	static final int MAXCAPTURES = 32;
+	static final int CAP_UNFINISHED = -1;
+	static final int CAP_POSITION = -2;
+
+	private static final int MAX_CACHED = 256;
+	private static final Hashtable cache = new Hashtable();
+
+	private static final char L_ESC = '%';
+
+	// Single character items
+	private static final int CHAR = 0;
+	private static final int ANY = 1;
+	private static final int SET = 2;
+	// Other items
+	private static final int OPEN = 3;
+	private static final int POSITION = 4;
+	private static final int CLOSE = 5;
+	private static final int BALANCE = 6;
+	private static final int FRONTIER = 7;
+	private static final int BACKREF = 8;
+	private static final int END_ANCHOR = 9;
+	private static final int END = 10;
+	private static final int ERROR = 11;
+
+	// Quantifiers of single character items
+	private static final int ONE = 0;
+	private static final int OPTIONAL = 1;
+	private static final int STAR = 2;
+	private static final int PLUS = 3;
+	private static final int MINUS = 4;
+
+	/** true if the pattern starts with ^ */
+	final boolean anchor;
+	/** the highest number of captures that can be open at the same time */
+	final int captures;
+
+	// Three ints per item: type, argument and quantifier or second argument
+	private final int[] items;
+	private final CharSet[] sets;
+	private final String error;
+
+	private LuaPattern(boolean anchor, int captures, int[] items, CharSet[] sets, String error) {
+		this.anchor = anchor;
+		this.captures = captures;
+		this.items = items;
+		this.sets = sets;
+		this.error = error;
+	}
+
+	/**
+	 * @return the compiled pattern, from the cache if it has been used before
+	 */
+	static LuaPattern get(String pattern) {
+		LuaPattern compiled = (LuaPattern) cache.get(pattern);
+		if (compiled == null) {
+			compiled = compile(pattern, true);
+			if (cache.size() >= MAX_CACHED) {
+				cache.clear();
+			}
+			cache.put(pattern, compiled);
+		}
+		return compiled;
+	}
+
+	/**
+	 * @param allowAnchor false if a leading ^ should match itself, as in string.gmatch
+	 */
+	static LuaPattern compile(String pattern, boolean allowAnchor) {
+		return new Compiler(pattern).compile(allowAnchor);
+	}
+
+	private static final class Compiler {
+		private final String pattern;
+		private int[] items = new int[48];
+		private int size;
+		private CharSet[] sets = new CharSet[4];
+		private int numSets;
+		private int captures;
+		private String error;
+
+		Compiler(String pattern) {
+			this.pattern = pattern;
+		}
+
+		private char charAt(int i) {
+			return i < pattern.length() ? pattern.charAt(i) : '\0';
+		}
+
+		private void add(int type, int arg1, int arg2) {
+			if (size + 3 > items.length) {
+				int[] newItems = new int[2 * items.length];
+				System.arraycopy(items, 0, newItems, 0, size);
+				items = newItems;
+			}
+			items[size++] = type;
+			items[size++] = arg1;
+			items[size++] = arg2;
+		}
+
+		private int addSet(CharSet set) {
+			if (numSets == sets.length) {
+				CharSet[] newSets = new CharSet[2 * numSets];
+				System.arraycopy(sets, 0, newSets, 0, numSets);
+				sets = newSets;
+			}
+			sets[numSets] = set;
+			return numSets++;
+		}
+
+		private boolean fail(String message) {
+			error = message;
+			add(ERROR, 0, 0);
+			return false;
+		}
+
+		LuaPattern compile(boolean allowAnchor) {
+			int p = 0;
+			boolean anchor = false;
+			if (allowAnchor && charAt(0) == '^') {
+				anchor = true;
+				p = 1;
+			}
+			while (p >= 0) {
+				p = compileItem(p);
+			}
+			int[] result = new int[size];
+			System.arraycopy(items, 0, result, 0, size);
+			CharSet[] resultSets = new CharSet[numSets];
+			System.arraycopy(sets, 0, resultSets, 0, numSets);
+			return new LuaPattern(anchor, Math.min(captures, MAXCAPTURES), result, resultSets, error);
+		}
+
+		/**
+		 * @return the start of the next item, or -1 after the last item
+		 */
+		private int compileItem(int p) {
+			switch (charAt(p)) {
+			case '(':
+				captures++;
+				if (charAt(p + 1) == ')') {
+					add(POSITION, 0, 0);
+					return p + 2;
+				}
+				add(OPEN, 0, 0);
+				return p + 1;
+			case ')':
+				add(CLOSE, 0, 0);
+				return p + 1;
+			case '\0':
+				add(END, 0, 0);
+				return -1;
+			case '$':
+				if (charAt(p + 1) == '\0') {
+					add(END_ANCHOR, 0, 0);
+					return -1;
+				}
+				break;
+			case L_ESC: {
+				char c = charAt(p + 1);
+				if (c == 'b') {
+					if (charAt(p + 2) == '\0' || charAt(p + 3) == '\0') {
+						fail("unbalanced pattern");
+						return -1;
+					}
+					add(BALANCE, charAt(p + 2), charAt(p + 3));
+					return p + 4;
+				}
+				if (c == 'f') {
+					p += 2;
+					if (charAt(p) != '[') {
+						fail("missing '[' after '%f' in pattern");
+						return -1;
+					}
+					int ep = classEnd(p);
+					if (ep < 0) {
+						return -1;
+					}
+					add(FRONTIER, addSet(CharSet.bracket(pattern, p, ep - 1)), 0);
+					return ep;
+				}
+				if (Character.isDigit(c)) {
+					add(BACKREF, c - '1', 0);
+					return p + 2;
+				}
+				break;
+			}
+			}
+
+			int ep = classEnd(p);
+			if (ep < 0) {
+				return -1;
+			}
+			int quantifier;
+			switch (charAt(ep)) {
+			case '?': quantifier = OPTIONAL; break;
+			case '*': quantifier = STAR; break;
+			case '+': quantifier = PLUS; break;
+			case '-': quantifier = MINUS; break;
+			default: quantifier = ONE;
+			}
+			char c = charAt(p);
+			if (c == '.') {
+				add(ANY, 0, quantifier);
+			} else if (c == L_ESC) {
+				char classIdentifier = charAt(p + 1);
+				if (CharSet.isClass(classIdentifier)) {
+					add(SET, addSet(CharSet.escape(classIdentifier)), quantifier);
+				} else {
+					add(CHAR, classIdentifier, quantifier);
+				}
+			} else if (c == '[') {
+				add(SET, addSet(CharSet.bracket(pattern, p, ep - 1)), quantifier);
+			} else {
+				add(CHAR, c, quantifier);
+			}
+			return quantifier == ONE ? ep : ep + 1;
+		}
+
+		/**
+		 * @return the end of the single character item at p, or -1 if it is malformed
+		 */
+		private int classEnd(int p) {
+			switch (charAt(p++)) {
+			case L_ESC:
+				if (charAt(p) == '\0') {
+					fail("malformed pattern (ends with '%')");
+					return -1;
+				}
+				return p + 1;
+			case '[':
+				if (charAt(p) == '^') {
+					p++;
+				}
+				do { // look for a `]'
+					if (charAt(p) == '\0') {
+						fail("malformed pattern (missing ']')");
+						return -1;
+					}
+					if (charAt(p++) == L_ESC && charAt(p) != '\0') {
+						p++; // skip escapes (e.g. `%]')
+					}
+				} while (charAt(p) != ']');
+				return p + 1;
+			default:
+				return p;
+			}
+		}
+	}
+
+	/**
+	 * The characters matched by a class such as %a or a set such as [^%s,].
+	 */
+	private static final class CharSet {
+		private static final String CLASSES = "acdlpsuwxz";
+
+		// Precomputed for the first 256 characters
+		private final boolean[] latin1 = new boolean[256];
+
+		private final boolean negated;
+		private final char[] singles;
+		private final char[] rangeStart;
+		private final char[] rangeEnd;
+		private final char[] classes;
+
+		private CharSet(boolean negated, char[] singles, char[] rangeStart, char[] rangeEnd, char[] classes) {
+			this.negated = negated;
+			this.singles = singles;
+			this.rangeStart = rangeStart;
+			this.rangeEnd = rangeEnd;
+			this.classes = classes;
+			for (int c = 0; c < 256; c++) {
+				latin1[c] = compute((char) c);
+			}
+		}
+
+		static boolean isClass(char classIdentifier) {
+			return CLASSES.indexOf(Character.toLowerCase(classIdentifier)) >= 0;
+		}
+
+		static CharSet escape(char classIdentifier) {
+			return new CharSet(false, new char[0], new char[0], new char[0], new char[] {classIdentifier});
+		}
+
+		/**
+		 * @param p the index of [
+		 * @param ec the index of the closing ]
+		 */
+		static CharSet bracket(String pattern, int p, int ec) {
+			boolean negated = false;
+			if (p + 1 < ec && pattern.charAt(p + 1) == '^') {
+				negated = true;
+				p++;
+			}
+			StringBuffer singles = new StringBuffer();
+			StringBuffer rangeStart = new StringBuffer();
+			StringBuffer rangeEnd = new StringBuffer();
+			StringBuffer classes = new StringBuffer();
+			while (++p < ec) {
+				char c = pattern.charAt(p);
+				if (c == L_ESC) {
+					p++;
+					classes.append(pattern.charAt(p));
+				} else if (p + 2 < ec && pattern.charAt(p + 1) == '-') {
+					rangeStart.append(c);
+					rangeEnd.append(pattern.charAt(p + 2));
+					p += 2;
+				} else {
+					singles.append(c);
+				}
+			}
+			return new CharSet(negated, toChars(singles), toChars(rangeStart), toChars(rangeEnd), toChars(classes));
+		}
+
+		private static char[] toChars(StringBuffer buffer) {
+			char[] chars = new char[buffer.length()];
+			buffer.getChars(0, chars.length, chars, 0);
+			return chars;
+		}
+
+		boolean matches(char c) {
+			if (c < 256) {
+				return latin1[c];
+			}
+			return compute(c);
+		}
+
+		private boolean compute(char c) {
+			for (int i = 0; i < classes.length; i++) {
+				if (matchClass(classes[i], c)) {
+					return !negated;
+				}
+			}
+			for (int i = 0; i < rangeStart.length; i++) {
+				if (rangeStart[i] <= c && c <= rangeEnd[i]) {
+					return !negated;
+				}
+			}
+			for (int i = 0; i < singles.length; i++) {
+				if (singles[i] == c) {
+					return !negated;
+				}
+			}
+			return negated;
+		}
+
+		private static boolean matchClass(char classIdentifier, char c) {
+			boolean res;
+			char lowerClassIdentifier = Character.toLowerCase(classIdentifier);
+			switch (lowerClassIdentifier) {
+			case 'a': res = Character.isLowerCase(c) || Character.isUpperCase(c); break;
+			case 'c': res = isControl(c); break;
+			case 'd': res = Character.isDigit(c); break;
+			case 'l': res = Character.isLowerCase(c); break;
+			case 'p': res = isPunct(c); break;
+			case 's': res = isSpace(c); break;
+			case 'u': res = Character.isUpperCase(c); break;
+			case 'w': res = Character.isLowerCase(c) || Character.isUpperCase(c) || Character.isDigit(c); break;
+			case 'x': res = isHex(c); break;
+			case 'z': res = (c == 0); break;
+			default: return (classIdentifier == c);
+			}
+			return (lowerClassIdentifier == classIdentifier) == res;
+		}
+
+		private static boolean isPunct(char c) {
+			return ( c >= 0x21 && c <= 0x2F ) ||
+			( c >= 0x3a && c <= 0x40 ) ||
+			( c >= 0x5B && c <= 0x60 ) ||
+			( c >= 0x7B && c <= 0x7E );
+		}
+
+		private static boolean isSpace(char c) {
+			return ( c >= 0x09 && c <= 0x0D ) || c == 0x20 ;
+		}
+
+		private static boolean isControl(char c) {
+			return ( c >= 0x00 && c <= 0x1f ) || c == 0x7f;
+		}
+
+		private static boolean isHex(char c) {
+			return ( c >= '0' && c <= '9' ) || ( c >= 'a' && c <= 'f' ) || ( c >= 'A' && c <= 'F' );
+		}
+	}
+
+	/**
+	 * Matches a pattern against one source string. Not thread safe,
+	 * but it can be reused for several matches against the same source.
+	 */
+	static final class Matcher {
+		private final LuaPattern pattern;
+		private final int[] items;
+		final String source;
+		final int end;
+
+		/** the number of captures, finished or unfinished */
+		int level;
+		final int[] captureStart;
+		final int[] captureLen;
+
+		Matcher(LuaPattern pattern, String source) {
+			this.pattern = pattern;
+			this.items = pattern.items;
+			this.source = source;
+			this.end = source.length();
+			captureStart = new int[pattern.captures];
+			captureLen = new int[pattern.captures];
+		}
+
+		/**
+		 * @return the end of the match starting at s, or -1 if there is no match there
+		 */
+		int match(int s) {
+			level = 0;
+			return match(s, 0);
+		}
+
+		private int match(int s, int i) {
+			int[] items = this.items;
+			while (true) {
+				int type = items[i];
+				switch (type) {
+				case OPEN:
+					return startCapture(s, i + 3, CAP_UNFINISHED);
+				case POSITION:
+					return startCapture(s, i + 3, CAP_POSITION);
+				case CLOSE:
+					return endCapture(s, i + 3);
+				case BALANCE:
+					s = matchBalance(s, (char) items[i + 1], (char) items[i + 2]);
+					if (s < 0) {
+						return -1;
+					}
+					i += 3;
+					continue;
+				case FRONTIER: {
+					CharSet set = pattern.sets[items[i + 1]];
+					char previous = s == 0 ? '\0' : source.charAt(s - 1);
+					char current = s < end ? source.charAt(s) : '\0';
+					if (set.matches(previous) || !set.matches(current)) {
+						return -1;
+					}
+					i += 3;
+					continue;
+				}
+				case BACKREF:
+					s = matchCapture(s, items[i + 1]);
+					if (s < 0) {
+						return -1;
+					}
+					i += 3;
+					continue;
+				case END_ANCHOR:
+					return s == end ? s : -1;
+				case END:
+					return s;
+				case ERROR:
+					KahluaUtil.fail(pattern.error);
+					return -1;
+				}
+
+				boolean m = s < end && singleMatch(source.charAt(s), i);
+				switch (items[i + 2]) {
+				case OPTIONAL:
+					if (m) {
+						int res = match(s + 1, i + 3);
+						if (res >= 0) {
+							return res;
+						}
+					}
+					i += 3;
+					continue;
+				case STAR:
+					return maxExpand(s, i);
+				case PLUS:
+					return m ? maxExpand(s + 1, i) : -1;
+				case MINUS:
+					return minExpand(s, i);
+				default:
+					if (!m) {
+						return -1;
+					}
+					s++;
+					i += 3;
+				}
+			}
+		}
+
+		private boolean singleMatch(char c, int i) {
+			switch (items[i]) {
+			case CHAR:
+				return items[i + 1] == c;
+			case ANY:
+				return true;
+			default:
+				return pattern.sets[items[i + 1]].matches(c);
+			}
+		}
+
+		private int maxExpand(int s, int i) {
+			int n = 0; // counts maximum expand for item
+			while (s + n < end && singleMatch(source.charAt(s + n), i)) {
+				n++;
+			}
+			// keeps trying to match with the maximum repetitions
+			while (n >= 0) {
+				int res = match(s + n, i + 3);
+				if (res >= 0) {
+					return res;
+				}
+				n--; // else didn't match; reduce 1 repetition to try again
+			}
+			return -1;
+		}
+
+		private int minExpand(int s, int i) {
+			while (true) {
+				int res = match(s, i + 3);
+				if (res >= 0) {
+					return res;
+				} else if (s < end && singleMatch(source.charAt(s), i)) {
+					s++; // try with one more repetition
+				} else {
+					return -1;
+				}
+			}
+		}
+
+		private int startCapture(int s, int i, int what) {
+			int l = level;
+			KahluaUtil.luaAssert(l < MAXCAPTURES, "too many captures");
+			captureStart[l] = s;
+			captureLen[l] = what;
+			level = l + 1;
+			int res = match(s, i);
+			if (res < 0) {
+				level--; // undo capture
+			}
+			return res;
+		}
+
+		private int endCapture(int s, int i) {
+			int l = captureToClose();
+			captureLen[l] = s - captureStart[l]; // close capture
+			int res = match(s, i);
+			if (res < 0) {
+				captureLen[l] = CAP_UNFINISHED; // undo capture
+			}
+			return res;
+		}
+
+		private int captureToClose() {
+			for (int l = level - 1; l >= 0; l--) {
+				if (captureLen[l] == CAP_UNFINISHED) {
+					return l;
+				}
+			}
+			KahluaUtil.fail("invalid pattern capture");
+			return 0;
+		}
+
+		private int matchBalance(int s, char b, char e) {
+			if (s >= end || source.charAt(s) != b) {
+				return -1;
+			}
+			int cont = 1;
+			while (++s < end) {
+				char c = source.charAt(s);
+				if (c == e) {
+					if (--cont == 0) {
+						return s + 1;
+					}
+				} else if (c == b) {
+					cont++;
+				}
+			}
+			return -1; // string ends out of balance
+		}
+
+		private int matchCapture(int s, int l) {
+			KahluaUtil.luaAssert(l >= 0 && l < level && captureLen[l] != CAP_UNFINISHED, "invalid capture index");
+			int len = captureLen[l];
+			if (end - s >= len && source.regionMatches(false, captureStart[l], source, s, len)) {
+				return s + len;
+			}
+			return -1;
+		}
+
+		/**
+		 * @return capture i of the last match as a string or a position,
+		 * or the whole match from s to e if the pattern has no captures
+		 */
+		Object getCapture(int i, int s, int e) {
+			if (i >= level) {
+				KahluaUtil.luaAssert(i == 0, "invalid capture index");
+				return source.substring(s, e);
+			}
+			int l = captureLen[i];
+			KahluaUtil.luaAssert(l != CAP_UNFINISHED, "unfinished capture");
+			if (l == CAP_POSITION) {
+				return KahluaUtil.toDouble(captureStart[i] + 1);
+			}
+			int start = captureStart[i];
+			return source.substring(start, start + l);
+		}
+	}
+}
@@ -32,7 +32,11 @@ public final class TableLib implements JavaFunction {
 	private static final int NEWARRAY = 3;
     private static final int PAIRS = 4;
 	private static final int ISEMPTY = 5;
-	private static final int NUM_FUNCTIONS = 6;
+	private static final int SORT = 6;
+	private static final int MOVE = 7;
+	private static final int UNPACK = 8;
+	private static final int FREEZE = 9;
+	private static final int NUM_FUNCTIONS = 10;
 
 	private static final String[] names;
 	private static final TableLib[] functions;
@@ -45,6 +49,10 @@ public final class TableLib implements JavaFunction {
 		names[NEWARRAY] = "newarray";
 		names[PAIRS] = "pairs";
         names[ISEMPTY] = "isempty";
+		names[SORT] = "sort";
+		names[MOVE] = "move";
+		names[UNPACK] = "unpack";
+		names[FREEZE] = "freeze";
 		functions = new TableLib[NUM_FUNCTIONS];
 		for (int i = 0; i < NUM_FUNCTIONS; i++) {
 			functions[i] = new TableLib(i);
@@ -87,6 +95,14 @@ public final class TableLib implements JavaFunction {
                 return pairs(callFrame, nArguments);
 			case ISEMPTY:
 				return isempty(callFrame, nArguments);
+			case SORT:
+				return sort(callFrame, nArguments);
+			case MOVE:
+				return move(callFrame, nArguments);
+			case UNPACK:
+				return BaseLib.unpack(callFrame, nArguments);
+			case FREEZE:
+				return freeze(callFrame, nArguments);
 			default:
 				return 0;
 		}
@@ -97,6 +113,11 @@ public final class TableLib implements JavaFunction {
 		return callFrame.push(KahluaUtil.toBoolean(table.isEmpty()));
 	}
 
+	private int freeze(LuaCallFrame callFrame, int nArguments) {
+		KahluaTable table = getTable(callFrame, nArguments);
+		return callFrame.push(FrozenTable.freeze(table));
+	}
+
 	private int pairs(LuaCallFrame callFrame, int nArguments) {
         KahluaUtil.luaAssert(nArguments >= 1, "Not enough arguments");
         Object o = callFrame.get(0);
@@ -173,6 +194,9 @@ public final class TableLib implements JavaFunction {
 	}
 
 	public static void insert(KahluaThread state, KahluaTable table, int position, Object element) {
+		if (table.getMetatable() == null && arrayInsert(table, position, element)) {
+			return;
+		}
 		int len = table.len();
 		for (int i = len; i >= position; i--) {
 			state.tableSet(table, KahluaUtil.toDouble(i+1), state.tableGet(table, KahluaUtil.toDouble(i)));
@@ -181,6 +205,9 @@ public final class TableLib implements JavaFunction {
 	}
 
 	public static void rawinsert(KahluaTable table, int position, Object element) {
+		if (arrayInsert(table, position, element)) {
+			return;
+		}
 		int len = table.len();
 		if (position <= len) {
 			Double dest = KahluaUtil.toDouble(len + 1);
@@ -215,6 +242,12 @@ public final class TableLib implements JavaFunction {
 	}
 	
 	public static Object remove (KahluaThread thread, KahluaTable table, int position) {
+		if (table.getMetatable() == null && table instanceof KahluaHybridTable) {
+			Object ret = table.rawget(position);
+			if (((KahluaHybridTable) table).arrayRemove(position)) {
+				return ret;
+			}
+		}
 		Object ret = thread.tableGet(table, KahluaUtil.toDouble(position));
 		int len = table.len();
 		for (int i = position; i < len; i++) {
@@ -234,6 +267,230 @@ public final class TableLib implements JavaFunction {
 		return 1;
 	}
 
+	private static boolean arrayInsert(KahluaTable table, int position, Object element) {
+		return table instanceof KahluaHybridTable && ((KahluaHybridTable) table).arrayInsert(position, element);
+	}
+
+	/**
+	 * table.move(a1, f, e, t [,a2]) copies a1[f..e] to a2[t..], and returns a2.
+	 */
+	private static int move(LuaCallFrame callFrame, int nArguments) {
+		KahluaTable source = getTable(callFrame, nArguments);
+		int first = KahluaUtil.getNumberArg(callFrame, 2, names[MOVE]).intValue();
+		int last = KahluaUtil.getNumberArg(callFrame, 3, names[MOVE]).intValue();
+		int target = KahluaUtil.getNumberArg(callFrame, 4, names[MOVE]).intValue();
+		KahluaTable dest = source;
+		Object destArg = KahluaUtil.getOptionalArg(callFrame, 5);
+		if (destArg != null) {
+			KahluaUtil.luaAssert(destArg instanceof KahluaTable, "bad argument #5 to 'move' (table expected)");
+			dest = (KahluaTable) destArg;
+		}
+		if (last >= first) {
+			KahluaThread thread = callFrame.getThread();
+			int n = last - first;
+			if (target > last || target <= first || source != dest) {
+				for (int i = 0; i <= n; i++) {
+					thread.tableSet(dest, KahluaUtil.toDouble(target + i), thread.tableGet(source, KahluaUtil.toDouble(first + i)));
+				}
+			} else {
+				// Overlapping, copy backwards
+				for (int i = n; i >= 0; i--) {
+					thread.tableSet(dest, KahluaUtil.toDouble(target + i), thread.tableGet(source, KahluaUtil.toDouble(first + i)));
+				}
+			}
+		}
+		return callFrame.push(dest);
+	}
+
+	private static int sort(LuaCallFrame callFrame, int nArguments) {
+		KahluaTable table = getTable(callFrame, nArguments);
+		Object comparator = KahluaUtil.getOptionalArg(callFrame, 2);
+		sort(callFrame.getThread(), table, comparator);
+		return 0;
+	}
+
+	/**
+	 * Sorts table[1..len()] with the comparator, or with &lt; if it is null.
+	 * The values are read and written without metamethods, as in Lua 5.1.
+	 */
+	public static void sort(KahluaThread thread, KahluaTable table, Object comparator) {
+		int n = table.len();
+		if (n < 2) {
+			return;
+		}
+		Object[] values = new Object[n];
+		boolean allNumbers = true;
+		boolean allStrings = true;
+		for (int i = 0; i < n; i++) {
+			Object value = table.rawget(i + 1);
+			values[i] = value;
+			allNumbers &= value instanceof Double;
+			allStrings &= value instanceof String;
+		}
+		int mode;
+		if (comparator != null) {
+			mode = Sorter.FUNCTION;
+		} else if (allNumbers) {
+			mode = Sorter.NUMBERS;
+		} else if (allStrings) {
+			mode = Sorter.STRINGS;
+		} else {
+			mode = Sorter.GENERIC;
+		}
+		new Sorter(thread, comparator, mode).sort(values);
+		for (int i = 0; i < n; i++) {
+			table.rawset(i + 1, values[i]);
+		}
+	}
+
+	/**
+	 * Introsort: quicksort with median of three pivots, that falls back to heapsort
+	 * when the recursion gets too deep, and insertion sort for short ranges.
+	 *
+	 * The indices never leave the range being sorted, even if the comparator is inconsistent.
+	 */
+	private static final class Sorter {
+		static final int FUNCTION = 0;
+		static final int NUMBERS = 1;
+		static final int STRINGS = 2;
+		static final int GENERIC = 3;
+
+		private static final int INSERTION_SORT_LIMIT = 12;
+
+		private final KahluaThread thread;
+		private final Object comparator;
+		private final int mode;
+
+		Sorter(KahluaThread thread, Object comparator, int mode) {
+			this.thread = thread;
+			this.comparator = comparator;
+			this.mode = mode;
+		}
+
+		void sort(Object[] a) {
+			int depth = 0;
+			for (int n = a.length; n > 1; n >>= 1) {
+				depth += 2;
+			}
+			introsort(a, 0, a.length, depth);
+		}
+
+		private boolean less(Object a, Object b) {
+			switch (mode) {
+			case NUMBERS:
+				return ((Double) a).doubleValue() < ((Double) b).doubleValue();
+			case STRINGS:
+				return ((String) a).compareTo((String) b) < 0;
+			case GENERIC:
+				return thread.lessThan(a, b);
+			default:
+				return KahluaUtil.boolEval(thread.call(comparator, a, b));
+			}
+		}
+
+		// Sorts a[lo..hi - 1]
+		private void introsort(Object[] a, int lo, int hi, int depth) {
+			while (hi - lo > INSERTION_SORT_LIMIT) {
+				if (depth == 0) {
+					heapsort(a, lo, hi);
+					return;
+				}
+				depth--;
+				int p = partition(a, lo, hi);
+				// Recurse into the smaller part, loop on the larger
+				if (p - lo < hi - p) {
+					introsort(a, lo, p, depth);
+					lo = p + 1;
+				} else {
+					introsort(a, p + 1, hi, depth);
+					hi = p;
+				}
+			}
+			insertionSort(a, lo, hi);
+		}
+
+		private int partition(Object[] a, int lo, int hi) {
+			int mid = lo + ((hi - lo) >> 1);
+			int last = hi - 1;
+			// Order a[lo], a[mid], a[last] and use the median as pivot
+			if (less(a[mid], a[lo])) {
+				swap(a, mid, lo);
+			}
+			if (less(a[last], a[mid])) {
+				swap(a, last, mid);
+				if (less(a[mid], a[lo])) {
+					swap(a, mid, lo);
+				}
+			}
+			swap(a, lo, mid);
+			Object pivot = a[lo];
+			int i = lo + 1;
+			int j = last;
+			while (true) {
+				while (i <= j && less(a[i], pivot)) {
+					i++;
+				}
+				while (i <= j && less(pivot, a[j])) {
+					j--;
+				}
+				if (i >= j) {
+					break;
+				}
+				swap(a, i++, j--);
+			}
+			swap(a, lo, j);
+			return j;
+		}
+
+		private void insertionSort(Object[] a, int lo, int hi) {
+			for (int i = lo + 1; i < hi; i++) {
+				Object x = a[i];
+				int j = i - 1;
+				while (j >= lo && less(x, a[j])) {
+					a[j + 1] = a[j];
+					j--;
+				}
+				a[j + 1] = x;
+			}
+		}
+
+		private void heapsort(Object[] a, int lo, int hi) {
+			int n = hi - lo;
+			for (int i = (n >> 1) - 1; i >= 0; i--) {
+				siftDown(a, lo, i, n);
+			}
+			for (int end = n - 1; end > 0; end--) {
+				swap(a, lo, lo + end);
+				siftDown(a, lo, 0, end);
+			}
+		}
+
+		private void siftDown(Object[] a, int lo, int i, int n) {
+			Object x = a[lo + i];
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= n) {
+					break;
+				}
+				if (child + 1 < n && less(a[lo + child], a[lo + child + 1])) {
+					child++;
+				}
+				if (!less(x, a[lo + child])) {
+					break;
+				}
+				a[lo + i] = a[lo + child];
+				i = child;
+			}
+			a[lo + i] = x;
+		}
+
+		private static void swap(Object[] a, int i, int j) {
+			Object tmp = a[i];
+			a[i] = a[j];
+			a[j] = tmp;
+		}
+	}
+
 	private static KahluaTable getTable(LuaCallFrame callFrame, int nArguments) {
 		KahluaUtil.luaAssert(nArguments >= 1, "expected table, got no arguments");
 		KahluaTable t = (KahluaTable)callFrame.get(0);
@@ -0,0 +1,257 @@
+/*
+ Copyright (c) 2010 Kristofer Karlsson <kristofer.karlsson@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package se.krka.kahlua.vm;
+
+/**
+ * Base class for code produced by a {@link PrototypeCompiler}.
+ *
+ * Compiled code runs in the same call frame as the interpreter would, and may
+ * keep registers in its own variables while it runs. Whenever it hits something
+ * it does not handle, such as a yield or an unexpected type, it writes all
+ * registers back to the frame and returns, and the interpreter continues
+ * from the instruction it stopped at.
+ *
+ * The static methods are the parts of the interpreter that compiled code needs.
+ * @exclude
+ */
+public abstract class CompiledPrototype {
+	/** The call returned normally, the results are in the frame */
+	protected static final int CALL_DONE = 0;
+	/** The call changed the running coroutine, the compiled code must return */
+	protected static final int CALL_SWITCHED = 1;
+	/** Nothing was called, the interpreter has to run the instruction */
+	protected static final int CALL_INTERPRET = 2;
+
+	// Each compiled call uses a few Java stack frames,
+	// so deep recursion is left to the interpreter
+	private static final int MAX_CALL_DEPTH = 100;
+
+	private final int[] entryPoints;
+
+	protected CompiledPrototype(int[] entryPoints) {
+		this.entryPoints = entryPoints;
+	}
+
+	/**
+	 * @return the instructions where the compiled code can be entered
+	 */
+	public final int[] getEntryPoints() {
+		return entryPoints;
+	}
+
+	/**
+	 * Runs the prototype from the instruction at callFrame.pc.
+	 *
+	 * @return false if the code could not be entered, and nothing was done.
+	 * true if the code ran, in which case all registers are written back and
+	 * callFrame.pc is the next instruction to interpret.
+	 * The running coroutine may have changed.
+	 */
+	public abstract boolean run(KahluaThread thread, LuaCallFrame callFrame);
+
+	protected static final boolean isNumber(LuaCallFrame callFrame, int index) {
+		return callFrame.isNumber(index);
+	}
+
+	protected static final double getNumber(LuaCallFrame callFrame, int index) {
+		return callFrame.getNumber(index);
+	}
+
+	protected static final void setNumber(LuaCallFrame callFrame, int index, double value) {
+		callFrame.setNumber(index, value);
+	}
+
+	protected static final Object getUpvalue(LuaClosure closure, int index) {
+		return closure.upvalues[index].getValue();
+	}
+
+	protected static final void setUpvalue(LuaClosure closure, int index, Object value) {
+		closure.upvalues[index].setValue(value);
+	}
+
+	protected static final Object getGlobal(KahluaThread thread, LuaClosure closure, int constantIndex) {
+		GlobalCell cell = KahluaThread.getGlobalCell(closure, constantIndex);
+		Object res = cell != null ? cell.value : null;
+		if (res == null) {
+			res = thread.tableGet(closure.env, closure.prototype.constants[constantIndex]);
+		}
+		return res;
+	}
+
+	protected static final void setGlobal(KahluaThread thread, LuaClosure closure, int constantIndex, Object value) {
+		KahluaTable env = closure.env;
+		Object key = closure.prototype.constants[constantIndex];
+		if (env.getMetatable() == null) {
+			env.rawset(key, value);
+		} else {
+			thread.tableSet(env, key, value);
+		}
+	}
+
+	protected static final Object getTable(KahluaThread thread, Prototype prototype, int pc, Object table, Object key, int keyIndex) {
+		if (table instanceof KahluaTable) {
+			return thread.tableGetCached(prototype, pc, (KahluaTable) table, key, keyIndex);
+		}
+		return thread.tableGet(table, key);
+	}
+
+	protected static final Object getTable(KahluaThread thread, Prototype prototype, int pc, Object table, double key) {
+		int index = (int) key;
+		if (index == key && index > 0 && table instanceof KahluaTable) {
+			KahluaTable t = (KahluaTable) table;
+			Object res = t.rawget(index);
+			if (res != null || t.getMetatable() == null) {
+				return res;
+			}
+		}
+		return thread.tableGet(table, KahluaUtil.toDouble(key));
+	}
+
+	protected static final void setTable(KahluaThread thread, Prototype prototype, int pc, Object table, Object key, Object value) {
+		if (table instanceof KahluaTable) {
+			thread.tableSetCached(prototype, pc, (KahluaTable) table, key, value);
+		} else {
+			thread.tableSet(table, key, value);
+		}
+	}
+
+	protected static final void setTable(KahluaThread thread, Prototype prototype, int pc, Object table, double key, Object value) {
+		int index = (int) key;
+		if (index == key && index > 0 && table instanceof KahluaTable) {
+			KahluaTable t = (KahluaTable) table;
+			if (t.getMetatable() == null) {
+				t.rawset(index, value);
+				return;
+			}
+		}
+		setTable(thread, prototype, pc, table, KahluaUtil.toDouble(key), value);
+	}
+
+	protected static final KahluaTable newTable(KahluaThread thread, int arraySize, int hashSize) {
+		return thread.getPlatform().newTable(arraySize, hashSize);
+	}
+
+	/**
+	 * Arithmetic on operands that are not both numbers.
+	 */
+	protected static final Object arith(KahluaThread thread, int opcode, Object b, Object c) {
+		Double bd = KahluaUtil.rawTonumber(b);
+		Double cd = KahluaUtil.rawTonumber(c);
+		if (bd == null || cd == null) {
+			return thread.metaArith(opcode, b, c);
+		}
+		return KahluaUtil.toDouble(thread.primitiveMath(bd.doubleValue(), cd.doubleValue(), opcode));
+	}
+
+	protected static final double mod(double x, double y) {
+		if (y == 0) {
+			return Double.NaN;
+		}
+		int ipart = (int) (x / y);
+		return x - ipart * y;
+	}
+
+	protected static final double pow(KahluaThread thread, double x, double y) {
+		return thread.getPlatform().pow(x, y);
+	}
+
+	protected static final Object unm(KahluaThread thread, Object o) {
+		Double d = KahluaUtil.rawTonumber(o);
+		if (d != null) {
+			return KahluaUtil.toDouble(-d.doubleValue());
+		}
+		Object metafun = thread.getMetaOp(o, "__unm");
+		return thread.call(metafun, o, null, null);
+	}
+
+	protected static final Object len(KahluaThread thread, Object o) {
+		if (o instanceof KahluaTable) {
+			return KahluaUtil.toDouble(((KahluaTable) o).len());
+		}
+		if (o instanceof String) {
+			return KahluaUtil.toDouble(((String) o).length());
+		}
+		if (o instanceof LuaRope) {
+			return KahluaUtil.toDouble(((LuaRope) o).length());
+		}
+		Object f = thread.getMetaOp(o, "__len");
+		KahluaUtil.luaAssert(f != null, "__len not defined for operand");
+		return thread.call(f, o, null, null);
+	}
+
+	/**
+	 * Concatenates the registers first to last, which must be written to the frame.
+	 */
+	protected static final Object concat(KahluaThread thread, LuaCallFrame callFrame, int first, int last) {
+		return thread.concat(callFrame, first, last);
+	}
+
+	protected static final boolean compare(KahluaThread thread, int opcode, Object b, Object c) {
+		return thread.compare(opcode, b, c);
+	}
+
+	/**
+	 * Calls the function in register a with a fixed number of arguments,
+	 * the function and arguments must be written to the frame.
+	 * The results are left in the frame from register a and up.
+	 *
+	 * @return one of CALL_DONE, CALL_SWITCHED or CALL_INTERPRET
+	 */
+	protected static final int call(KahluaThread thread, LuaCallFrame callFrame, int a, int nArguments) {
+		Object fun = callFrame.get(a);
+		if (fun instanceof JavaFunction) {
+			Coroutine coroutine = thread.currentCoroutine;
+			callFrame.setTop(a + nArguments + 1);
+			callFrame.restoreTop = true;
+			int base = callFrame.localBase;
+			thread.callJava((JavaFunction) fun, base + a + 1, base + a, nArguments);
+			if (thread.currentCoroutine != coroutine || coroutine.currentCallFrame() != callFrame) {
+				return CALL_SWITCHED;
+			}
+		} else if (fun instanceof LuaClosure && !callFrame.canYield && thread.compiledCallDepth < MAX_CALL_DEPTH) {
+			// The interpreter would not let the callee yield either, so it is safe to run it nested
+			callFrame.setTop(a + nArguments + 1);
+			thread.compiledCallDepth++;
+			try {
+				thread.call(nArguments);
+			} finally {
+				thread.compiledCallDepth--;
+			}
+		} else {
+			return CALL_INTERPRET;
+		}
+		callFrame.setTop(callFrame.closure.prototype.maxStacksize);
+		return CALL_DONE;
+	}
+
+	/**
+	 * Runs the iterator call of a generic for loop,
+	 * the registers a to a + 2 must be written to the frame,
+	 * and the control register a + 2 read back afterwards.
+	 *
+	 * @return true if the loop continues
+	 */
+	protected static final boolean iterate(KahluaThread thread, LuaCallFrame callFrame, int a, int nResults) {
+		return thread.forStep(callFrame, a, nResults);
+	}
+}
@@ -0,0 +1,279 @@
+/*
+ Copyright (c) 2010 Kristofer Karlsson <kristofer.karlsson@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+
+package se.krka.kahlua.vm;
+
+import java.util.Hashtable;
+
+/**
+ * A table that reads through to a shared source table until it is first written to,
+ * and then copies the source into a private table of its own.
+ *
+ * Tables read from a copy-on-write table, as keys or as values, are wrapped in
+ * copy-on-write tables too, so a whole tree of library tables can be shared by many
+ * environments, and only the tables a script actually modifies are ever copied.
+ * Every source table gets a single wrapper per fork, so identities are
+ * preserved within the fork, and looking up a wrapper finds the entry of its source.
+ *
+ * Lua functions whose environment is a wrapped table are rebound to the wrapper,
+ * so globals they set end up in the fork. Their upvalues are still shared with
+ * the source though: a function that updates a local of its enclosing chunk
+ * updates it for every fork. Keep such state in tables instead.
+ *
+ * Frozen tables are immutable, so they are shared as they are.
+ *
+ * The source tables must not be modified while forks of them are in use.
+ */
+public final class CopyOnWriteTable implements KahluaTable {
+	private final Fork fork;
+	private final KahluaTable source;
+	private KahluaTable copy;
+	private int version;
+	private int metaFlags;
+	private int metaFlagsVersion;
+
+	private CopyOnWriteTable(Fork fork, KahluaTable source) {
+		this.fork = fork;
+		this.source = source;
+	}
+
+	/**
+	 * Creates a new environment with the same globals as env.
+	 * The environment itself is copied, but the tables in it are
+	 * shared with env until they are written to.
+	 * _G in the new environment refers to the new environment.
+	 */
+	public static KahluaTable fork(Platform platform, KahluaTable env) {
+		Fork fork = new Fork(platform);
+		KahluaTable child = platform.newTable();
+		fork.wrappers.put(env, child);
+		fork.sources.put(child, env);
+		fork.copyInto(env, child);
+		return child;
+	}
+
+	private KahluaTable copy() {
+		KahluaTable copy = this.copy;
+		if (copy == null) {
+			copy = fork.platform.newTable();
+			fork.copyInto(source, copy);
+			version = source.getVersion() + 1;
+			this.copy = copy;
+		}
+		return copy;
+	}
+
+	public void setMetatable(KahluaTable metatable) {
+		copy().setMetatable(metatable);
+		version++;
+	}
+
+	public KahluaTable getMetatable() {
+		if (copy != null) {
+			return copy.getMetatable();
+		}
+		return (KahluaTable) fork.wrap(source.getMetatable());
+	}
+
+	public void rawset(Object key, Object value) {
+		copy().rawset(key, value);
+		version++;
+	}
+
+	public Object rawget(Object key) {
+		if (copy != null) {
+			return copy.rawget(key);
+		}
+		return fork.wrap(source.rawget(fork.unwrap(key)));
+	}
+
+	public void rawset(int key, Object value) {
+		copy().rawset(key, value);
+		version++;
+	}
+
+	public Object rawget(int key) {
+		if (copy != null) {
+			return copy.rawget(key);
+		}
+		return fork.wrap(source.rawget(key));
+	}
+
+	public int len() {
+		if (copy != null) {
+			return copy.len();
+		}
+		return source.len();
+	}
+
+	public KahluaTableIterator iterator() {
+		if (copy != null) {
+			return copy.iterator();
+		}
+		final KahluaTableIterator iterator = source.iterator();
+		return new KahluaTableIterator() {
+			private Object curKey;
+			private Object curValue;
+
+			public int call(LuaCallFrame callFrame, int nArguments) {
+				if (advance()) {
+					return callFrame.push(getKey(), getValue());
+				}
+				return 0;
+			}
+
+			public boolean advance() {
+				while (iterator.advance()) {
+					Object key = fork.wrap(iterator.getKey());
+					Object value;
+					KahluaTable copy = CopyOnWriteTable.this.copy;
+					if (copy == null) {
+						value = fork.wrap(iterator.getValue());
+					} else {
+						// Written to during the traversal, the source no longer has the current values
+						value = copy.rawget(key);
+						if (value == null) {
+							continue;
+						}
+					}
+					curKey = key;
+					curValue = value;
+					return true;
+				}
+				curKey = null;
+				curValue = null;
+				return false;
+			}
+
+			public Object getKey() {
+				return curKey;
+			}
+
+			public Object getValue() {
+				return curValue;
+			}
+		};
+	}
+
+	public boolean isEmpty() {
+		if (copy != null) {
+			return copy.isEmpty();
+		}
+		return source.isEmpty();
+	}
+
+	public int getVersion() {
+		if (copy != null) {
+			return version;
+		}
+		return source.getVersion();
+	}
+
+	public GlobalCell getCell(Object key) {
+		return null;
+	}
+
+	public int getMetaFlags() {
+		return metaFlagsVersion == getVersion() ? metaFlags : 0;
+	}
+
+	public void setMetaFlags(int version, int flags) {
+		metaFlags = flags;
+		metaFlagsVersion = version;
+	}
+
+	/**
+	 * @return true if the table has been written to, and no longer reads from its source
+	 */
+	public boolean isCopied() {
+		return copy != null;
+	}
+
+	public String toString() {
+		return "table 0x" + System.identityHashCode(this);
+	}
+
+	private static final class Fork {
+		private final Platform platform;
+		// source -> wrapper, and wrapper -> source
+		private final Hashtable wrappers = new Hashtable();
+		private final Hashtable sources = new Hashtable();
+
+		private Fork(Platform platform) {
+			this.platform = platform;
+		}
+
+		private Object wrap(Object value) {
+			if (value instanceof LuaClosure) {
+				return wrapClosure((LuaClosure) value);
+			}
+			if (!(value instanceof KahluaTable) || value instanceof FrozenTable) {
+				return value;
+			}
+			Object wrapper = wrappers.get(value);
+			if (wrapper == null) {
+				wrapper = new CopyOnWriteTable(this, (KahluaTable) value);
+				wrappers.put(value, wrapper);
+				sources.put(wrapper, value);
+			}
+			return wrapper;
+		}
+
+		private Object wrapClosure(LuaClosure closure) {
+			Object wrapper = wrappers.get(closure);
+			if (wrapper == null) {
+				KahluaTable env = (KahluaTable) wrap(closure.env);
+				if (env == closure.env) {
+					return closure;
+				}
+				LuaClosure rebound = new LuaClosure(closure.prototype, env);
+				System.arraycopy(closure.upvalues, 0, rebound.upvalues, 0, closure.upvalues.length);
+				wrappers.put(closure, rebound);
+				sources.put(rebound, closure);
+				wrapper = rebound;
+			}
+			return wrapper;
+		}
+
+		/**
+		 * @return the source of a wrapper from this fork, or key if it is not one
+		 */
+		private Object unwrap(Object key) {
+			if (key instanceof KahluaTable || key instanceof LuaClosure) {
+				Object source = sources.get(key);
+				if (source != null) {
+					return source;
+				}
+			}
+			return key;
+		}
+
+		private void copyInto(KahluaTable source, KahluaTable target) {
+			KahluaTableIterator iterator = source.iterator();
+			while (iterator.advance()) {
+				target.rawset(wrap(iterator.getKey()), wrap(iterator.getValue()));
+			}
+			target.setMetatable((KahluaTable) wrap(source.getMetatable()));
+		}
+	}
+}
@@ -21,8 +21,6 @@ THE SOFTWARE.
 */
 package se.krka.kahlua.vm;
 
-import java.util.Vector;
-
 public class Coroutine {
 	private final Platform platform;
 
@@ -31,9 +29,29 @@ public class Coroutine {
 
 	public KahluaTable environment;
 
-	public String stackTrace = "";
+	/**
+	 * The trace of the error that is unwinding this coroutine, or null.
+	 */
+	LuaStackTrace stackTrace;
+
+	/**
+	 * True if the coroutine was last resumed by a function from coroutine.wrap.
+	 * Its results are then passed on without the leading true, and errors are
+	 * raised in the resumer instead of being returned.
+	 */
+	public boolean wrapped;
+
+	/**
+	 * True if the coroutine should be suspended when the instruction budget of its thread
+	 * runs out, instead of failing. See {@link KahluaThread#setInstructionBudget(int)}.
+	 */
+	public boolean preemptible;
 
-	private final Vector liveUpvalues = new Vector();
+	/**
+	 * The open upvalues of this coroutine, linked through UpValue.next
+	 * and sorted by decreasing stack index.
+	 */
+	private UpValue openUpvalues;
 
 	private static final int MAX_STACK_SIZE = 1000;
 	private static final int INITIAL_STACK_SIZE = 10;
@@ -44,6 +62,20 @@ public class Coroutine {
 	public Object[] objectStack;
 	private int top;
 
+	/**
+	 * Marks a slot in objectStack that holds an unboxed number.
+	 * The actual value is found at the same index in numberStack.
+	 * It must never be visible outside of the stack, use stackGet to read slots.
+	 */
+	static final Object UNBOXED = new Object();
+
+	/**
+	 * Marks the hidden control register of a generic for loop over pairs.
+	 * The next slot of the table is found at the same index in numberStack.
+	 */
+	static final Object SLOT_CURSOR = new Object();
+	double[] numberStack;
+
 	private LuaCallFrame[] callFrameStack;
 	private int callFrameTop;
 
@@ -56,6 +88,7 @@ public class Coroutine {
 		this.environment = environment;
 		this.thread = thread;
 		objectStack = new Object[INITIAL_STACK_SIZE];
+		numberStack = new double[INITIAL_STACK_SIZE];
 		callFrameStack = new LuaCallFrame[INITIAL_CALL_FRAME_STACK_SIZE];
 	}
 
@@ -131,6 +164,10 @@ public class Coroutine {
 			Object[] newStack = new Object[newSize];
 			System.arraycopy(objectStack, 0, newStack, 0, oldSize);
 			objectStack = newStack;
+
+			double[] newNumberStack = new double[newSize];
+			System.arraycopy(numberStack, 0, newNumberStack, 0, oldSize);
+			numberStack = newNumberStack;
 		}
 	}
 
@@ -146,6 +183,32 @@ public class Coroutine {
 	public final void stackCopy(int startIndex, int destIndex, int len) {
 		if (len > 0 && startIndex != destIndex) {
 			System.arraycopy(objectStack, startIndex, objectStack, destIndex, len);
+			System.arraycopy(numberStack, startIndex, numberStack, destIndex, len);
+		}
+	}
+
+	/**
+	 * Reads a stack slot, boxing it first if it holds an unboxed number.
+	 */
+	public final Object stackGet(int index) {
+		Object o = objectStack[index];
+		if (o == UNBOXED) {
+			o = KahluaUtil.toDouble(numberStack[index]);
+			objectStack[index] = o;
+		}
+		return o;
+	}
+
+	/**
+	 * Turns ropes into strings before the values are seen by java code.
+	 */
+	final void flattenRopes(int startIndex, int len) {
+		Object[] stack = objectStack;
+		for (int i = startIndex + len - 1; i >= startIndex; i--) {
+			Object o = stack[i];
+			if (o instanceof LuaRope) {
+				stack[i] = o.toString();
+			}
 		}
 	}
 
@@ -160,36 +223,41 @@ public class Coroutine {
 	 */
 
 	public final void closeUpvalues(int closeIndex) {
-		// close all open upvalues
-		
-		int loopIndex = liveUpvalues.size();
-		while (--loopIndex >= 0) {
-			UpValue uv = (UpValue) liveUpvalues.elementAt(loopIndex);
-			if (uv.getIndex() < closeIndex) {
-				return;
-			}
-            uv.close();
-			liveUpvalues.removeElementAt(loopIndex);
+		// close all open upvalues at or above closeIndex, they are all at the head of the list
+		UpValue uv = openUpvalues;
+		while (uv != null && uv.getIndex() >= closeIndex) {
+			UpValue next = uv.next;
+			uv.next = null;
+			uv.close();
+			uv = next;
 		}
+		openUpvalues = uv;
 	}
-	
+
 	public final UpValue findUpvalue(int scanIndex) {
-		// TODO: use binary search instead?
-		int loopIndex = liveUpvalues.size();
-		while (--loopIndex >= 0) {
-			UpValue uv = (UpValue) liveUpvalues.elementAt(loopIndex);
-            int index = uv.getIndex();
+		// Closures are usually created near the top of the stack,
+		// so the search rarely goes far from the head.
+		UpValue prev = null;
+		UpValue uv = openUpvalues;
+		while (uv != null) {
+			int index = uv.getIndex();
 			if (index == scanIndex) {
 				return uv;
 			}
 			if (index < scanIndex) {
 				break;
 			}
+			prev = uv;
+			uv = uv.next;
+		}
+		UpValue created = new UpValue(this, scanIndex);
+		created.next = uv;
+		if (prev == null) {
+			openUpvalues = created;
+		} else {
+			prev.next = created;
 		}
-		UpValue uv = new UpValue(this, scanIndex);
-		
-		liveUpvalues.insertElementAt(uv, loopIndex + 1);
-		return uv;				
+		return created;
 	}
 
 	public final LuaCallFrame currentCallFrame() {
@@ -227,7 +295,7 @@ public class Coroutine {
 			if (count-- <= 0) {
 				break;
 			}
-			buffer.append(getStackTrace(callFrameStack[i]));
+			appendStackTrace(buffer, callFrameStack[i]);
 		}
 		return buffer.toString();
 	}
@@ -245,22 +313,50 @@ public class Coroutine {
 	}
 
 	public void addStackTrace(LuaCallFrame frame) {
-		stackTrace += getStackTrace(frame); 
+		if (stackTrace == null) {
+			stackTrace = new LuaStackTrace(null);
+		}
+		stackTrace.add(frame);
+	}
+
+	/**
+	 * Starts the trace of a new error with text from an earlier trace.
+	 */
+	public void setStackTrace(String prefix) {
+		if (prefix == null || prefix.length() == 0) {
+			stackTrace = null;
+		} else {
+			stackTrace = new LuaStackTrace(prefix);
+		}
 	}
 
-	private String getStackTrace(LuaCallFrame frame) {
+	/**
+	 * @return the trace of the error that is unwinding this coroutine, or "" if there is none
+	 */
+	public String getStackTrace() {
+		LuaStackTrace trace = stackTrace;
+		return trace == null ? "" : trace.toString();
+	}
+
+	/**
+	 * Hands out the trace of the last error and clears it.
+	 * @return the trace as a Lua string, which is only built if it is used
+	 */
+	Object takeStackTrace() {
+		LuaStackTrace trace = stackTrace;
+		stackTrace = null;
+		if (trace == null) {
+			return "";
+		}
+		return LuaRope.lazy(trace);
+	}
+
+	private static void appendStackTrace(StringBuffer buffer, LuaCallFrame frame) {
 		if (frame.isLua()) {
-			int[] lines = frame.closure.prototype.lines;
-			if (lines != null) {
-				int pc = frame.pc - 1;
-				if (pc >= 0 && pc < lines.length) {
-					return "at " + frame.closure.prototype + ":" + lines[pc] + "\n";
-				}
-			}
+			LuaStackTrace.appendFrame(buffer, frame.closure.prototype, frame.pc - 1);
 		} else {
-			return "at " + frame.javaFunction + "\n";
+			LuaStackTrace.appendFrame(buffer, frame.javaFunction, 0);
 		}
-		return "";
 	}
 
 	public boolean isDead() {
@@ -288,7 +384,7 @@ public class Coroutine {
 				String s2 = "java";
 				if (callFrame.isLua()) {
 					int pc = callFrame.pc - 1;
-					int[] lines = callFrame.closure.prototype.lines;
+					int[] lines = callFrame.closure.prototype.getLines();
 					s2 = callFrame.closure.prototype.name + ":";
 					if (pc >= 0 && pc < lines.length) {
 						s2 = s2 + lines[pc];
@@ -389,13 +485,16 @@ public class Coroutine {
         LuaCallFrame nextCallFrame = parent.currentCallFrame();
 
 		if (nextCallFrame == null) {
-			parent.setTop(nArguments + 1);
+			int offset = coroutine.wrapped ? 0 : 1;
+			parent.setTop(nArguments + offset);
 			parent.objectStack[0] = Boolean.TRUE;
 			for (int i = 0; i < nArguments; i++) {
-				parent.objectStack[i + 1] = argsCallFrame.get(i);
+				parent.objectStack[i + offset] = argsCallFrame.get(i);
 			}
 		} else {
-			nextCallFrame.push(Boolean.TRUE);
+			if (!coroutine.wrapped) {
+				nextCallFrame.push(Boolean.TRUE);
+			}
 			// Copy arguments
 			for (int i = 0; i < nArguments; i++) {
 				Object value = argsCallFrame.get(i);
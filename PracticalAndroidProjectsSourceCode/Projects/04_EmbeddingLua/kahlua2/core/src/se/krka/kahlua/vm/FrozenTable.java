@@ -0,0 +1,335 @@
+/*
+ Copyright (c) 2010 Kristofer Karlsson <kristofer.karlsson@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+
+package se.krka.kahlua.vm;
+
+import java.util.Hashtable;
+
+/**
+ * An immutable table, created by freezing an ordinary table with {@link #freeze(KahluaTable)}.
+ *
+ * The keys 1..n are stored in a dense array and all other keys in a read-only
+ * open addressing hash, sized once for the final number of entries.
+ * All writes, including setting the metatable, raise a Lua error.
+ *
+ * Since nothing in a frozen table ever changes, it can be read by any number of
+ * KahluaThreads at the same time without locking, once it has been published to them,
+ * for instance through a final or volatile field or a concurrent collection.
+ *
+ * Slots 0 .. n - 1 are the array part, followed by the slots of the hash part.
+ */
+public final class FrozenTable implements KahluaSlotTable {
+	private static final Object[] EMPTY = new Object[0];
+
+	// Index i is stored at arrayPart[i - 1], all of them are non-nil
+	private final Object[] arrayPart;
+	private final Object[] keys;
+	private final Object[] values;
+	private final int hashSize;
+
+	// Only assigned while freezing
+	private KahluaTable metatable;
+
+	// All threads compute the same flags for an immutable metatable, so racing writes are harmless
+	private int metaFlags;
+
+	private FrozenTable(int arraySize, int hashSize) {
+		arrayPart = arraySize > 0 ? new Object[arraySize] : EMPTY;
+		this.hashSize = hashSize;
+		if (hashSize > 0) {
+			int capacity = 4;
+			while (capacity - (capacity >> 2) < hashSize) {
+				capacity <<= 1;
+			}
+			keys = new Object[capacity];
+			values = new Object[capacity];
+		} else {
+			keys = EMPTY;
+			values = EMPTY;
+		}
+	}
+
+	/**
+	 * Returns a frozen copy of the table, and of all tables reachable from it
+	 * through keys, values and metatables. The table itself is left unchanged.
+	 * Tables that are already frozen are returned as they are.
+	 *
+	 * Lua functions and coroutines belong to the thread they were created in,
+	 * so tables containing them can not be frozen.
+	 */
+	public static FrozenTable freeze(KahluaTable table) {
+		if (table instanceof FrozenTable) {
+			return (FrozenTable) table;
+		}
+		return new Freezer().freeze(table);
+	}
+
+	private static void failFrozen() {
+		KahluaUtil.fail("attempt to modify a frozen table");
+	}
+
+	public void setMetatable(KahluaTable metatable) {
+		failFrozen();
+	}
+
+	public KahluaTable getMetatable() {
+		return metatable;
+	}
+
+	public void rawset(Object key, Object value) {
+		failFrozen();
+	}
+
+	public void rawset(int key, Object value) {
+		failFrozen();
+	}
+
+	public Object rawget(int index) {
+		if (index >= 1 && index <= arrayPart.length) {
+			return arrayPart[index - 1];
+		}
+		if (hashSize == 0) {
+			return null;
+		}
+		return hashGet(KahluaUtil.toDouble(index));
+	}
+
+	public Object rawget(Object key) {
+		if (key instanceof Double) {
+			int index = arrayIndex((Double) key, arrayPart.length);
+			if (index > 0) {
+				return arrayPart[index - 1];
+			}
+		} else if (key == null) {
+			return null;
+		}
+		if (hashSize == 0) {
+			return null;
+		}
+		return hashGet(KahluaUtil.flatten(key));
+	}
+
+	public int len() {
+		// The array part ends at the first nil, so its length is a border
+		return arrayPart.length;
+	}
+
+	public KahluaTableIterator iterator() {
+		return new SlotTableIterator(this);
+	}
+
+	public int nextSlot(int slot) {
+		int arrayLength = arrayPart.length;
+		if (slot < arrayLength) {
+			return slot;
+		}
+		Object[] hashValues = values;
+		int end = arrayLength + hashValues.length;
+		while (slot < end) {
+			if (hashValues[slot - arrayLength] != null) {
+				return slot;
+			}
+			slot++;
+		}
+		return -1;
+	}
+
+	public Object getSlotKey(int slot) {
+		int hashIndex = slot - arrayPart.length;
+		if (hashIndex < 0) {
+			return null;
+		}
+		return keys[hashIndex];
+	}
+
+	public Object getSlotValue(int slot) {
+		Object[] array = arrayPart;
+		if (slot < array.length) {
+			return array[slot];
+		}
+		return values[slot - array.length];
+	}
+
+	public int getSlot(Object key) {
+		if (key instanceof Double) {
+			int index = arrayIndex((Double) key, arrayPart.length);
+			if (index > 0) {
+				return index - 1;
+			}
+		} else if (key == null) {
+			return -1;
+		}
+		if (hashSize == 0) {
+			return -1;
+		}
+		int slot = findSlot(KahluaUtil.flatten(key));
+		if (slot < 0) {
+			return -1;
+		}
+		return arrayPart.length + slot;
+	}
+
+	public boolean isEmpty() {
+		return arrayPart.length == 0 && hashSize == 0;
+	}
+
+	public int getVersion() {
+		return 0;
+	}
+
+	public GlobalCell getCell(Object key) {
+		return null;
+	}
+
+	public int getMetaFlags() {
+		return metaFlags;
+	}
+
+	public void setMetaFlags(int version, int flags) {
+		metaFlags = flags;
+	}
+
+	public String toString() {
+		return "table 0x" + System.identityHashCode(this);
+	}
+
+	/**
+	 * @return the key as an index into an array part of the given length, or -1 if it isn't one
+	 */
+	private static int arrayIndex(Double key, int length) {
+		double d = key.doubleValue();
+		int index = (int) d;
+		if (index == d && index >= 1 && index <= length) {
+			return index;
+		}
+		return -1;
+	}
+
+	private static int hash(Object key) {
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private int findSlot(Object key) {
+		Object[] hashKeys = keys;
+		int mask = hashKeys.length - 1;
+		int i = hash(key) & mask;
+		while (true) {
+			Object k = hashKeys[i];
+			if (k == null) {
+				return -1;
+			}
+			if (k == key || k.equals(key)) {
+				return i;
+			}
+			i = (i + 1) & mask;
+		}
+	}
+
+	private Object hashGet(Object key) {
+		int slot = findSlot(key);
+		if (slot < 0) {
+			return null;
+		}
+		return values[slot];
+	}
+
+	private void insertNew(Object key, Object value) {
+		Object[] hashKeys = keys;
+		int mask = hashKeys.length - 1;
+		int i = hash(key) & mask;
+		while (hashKeys[i] != null) {
+			i = (i + 1) & mask;
+		}
+		hashKeys[i] = key;
+		values[i] = value;
+	}
+
+	/**
+	 * Freezes a graph of tables. Every table is registered before its contents are frozen,
+	 * so shared and cyclic references end up pointing to the same frozen table.
+	 */
+	private static final class Freezer {
+		private final Hashtable frozen = new Hashtable();
+
+		private FrozenTable freeze(KahluaTable table) {
+			FrozenTable result = (FrozenTable) frozen.get(table);
+			if (result != null) {
+				return result;
+			}
+			int arraySize = 0;
+			while (table.rawget(arraySize + 1) != null) {
+				arraySize++;
+			}
+			int hashSize = 0;
+			KahluaTableIterator iterator = table.iterator();
+			while (iterator.advance()) {
+				if (!isArrayKey(iterator.getKey(), arraySize)) {
+					hashSize++;
+				}
+			}
+
+			result = new FrozenTable(arraySize, hashSize);
+			frozen.put(table, result);
+
+			Object[] array = result.arrayPart;
+			for (int i = 0; i < arraySize; i++) {
+				array[i] = freezeValue(table.rawget(i + 1));
+			}
+			iterator = table.iterator();
+			while (iterator.advance()) {
+				Object key = iterator.getKey();
+				if (!isArrayKey(key, arraySize)) {
+					result.insertNew(freezeValue(key), freezeValue(iterator.getValue()));
+				}
+			}
+			KahluaTable metatable = table.getMetatable();
+			if (metatable != null) {
+				result.metatable = freeze(metatable);
+			}
+			return result;
+		}
+
+		private static boolean isArrayKey(Object key, int arraySize) {
+			return key instanceof Double && arrayIndex((Double) key, arraySize) > 0;
+		}
+
+		private Object freezeValue(Object value) {
+			if (value instanceof FrozenTable) {
+				return value;
+			}
+			if (value instanceof KahluaTable) {
+				return freeze((KahluaTable) value);
+			}
+			if (value instanceof LuaClosure || value instanceof Coroutine) {
+				KahluaUtil.fail("can not freeze a table containing a " + KahluaUtil.type(value));
+			}
+			return KahluaUtil.flatten(value);
+		}
+	}
+}
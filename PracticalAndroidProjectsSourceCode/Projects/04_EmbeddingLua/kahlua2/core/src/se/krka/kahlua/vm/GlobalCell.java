@@ -0,0 +1,46 @@
+/*
+ Copyright (c) 2010 Kristofer Karlsson <kristofer.karlsson@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package se.krka.kahlua.vm;
+
+/**
+ * A mutable slot for a single key in a table.
+ *
+ * Once a cell has been handed out by {@link KahluaTable#getCell(Object)}, the table
+ * stores the value for that key in the cell, even when it is set to nil.
+ * The interpreter binds global variables to cells of the environment,
+ * so reading a global is a field load instead of a table lookup.
+ *
+ * Only the owning table may write to the cell.
+ * The value is volatile, since tables that may be shared between java threads
+ * hand out cells too, and a write must become visible to a loop that reads the cell.
+ * @exclude
+ */
+public final class GlobalCell {
+	public final KahluaTable owner;
+	public volatile Object value;
+
+	public GlobalCell(KahluaTable owner, Object value) {
+		this.owner = owner;
+		this.value = value;
+	}
+}
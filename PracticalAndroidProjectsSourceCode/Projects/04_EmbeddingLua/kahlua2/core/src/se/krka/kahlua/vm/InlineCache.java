@@ -0,0 +1,117 @@
+/*
+ Copyright (c) 2010 Kristofer Karlsson <kristofer.karlsson@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package se.krka.kahlua.vm;
+
+/**
+ * The cached result of an __index or __newindex lookup for a single instruction.
+ *
+ * The cache starts at the metatable of the indexed table and records every table
+ * that was visited along with its version. As long as none of them have been
+ * modified, the lookup would give the same result.
+ *
+ * Entries are immutable, so they can be shared by prototypes running in several threads.
+ */
+final class InlineCache {
+	private final KahluaTable[] tables;
+	private final int[] versions;
+
+	final Object value;
+
+	private InlineCache(KahluaTable[] tables, int size, Object value) {
+		this.tables = new KahluaTable[size];
+		this.versions = new int[size];
+		for (int i = 0; i < size; i++) {
+			KahluaTable t = tables[i];
+			this.tables[i] = t;
+			this.versions[i] = t.getVersion();
+		}
+		this.value = value;
+	}
+
+	boolean isValid(KahluaTable metatable) {
+		KahluaTable[] tables = this.tables;
+		if (tables[0] != metatable) {
+			return false;
+		}
+		int[] versions = this.versions;
+		for (int i = tables.length - 1; i >= 0; i--) {
+			if (tables[i].getVersion() != versions[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Walks the __index chain starting at metatable, for a key that was not present
+	 * in the indexed table itself.
+	 *
+	 * @return the cache entry, or null if the chain contains functions or non-table objects
+	 */
+	static InlineCache index(KahluaTable metatable, Object key, int maxDepth) {
+		KahluaTable[] visited = new KahluaTable[4];
+		int size = 0;
+		KahluaTable meta = metatable;
+		for (int i = maxDepth; i > 0; i--) {
+			visited = add(visited, size++, meta);
+			Object index = meta.rawget("__index");
+			if (index == null) {
+				return new InlineCache(visited, size, null);
+			}
+			if (!(index instanceof KahluaTable)) {
+				return null;
+			}
+			KahluaTable t = (KahluaTable) index;
+			visited = add(visited, size++, t);
+			Object value = t.rawget(key);
+			if (value != null) {
+				return new InlineCache(visited, size, value);
+			}
+			meta = t.getMetatable();
+			if (meta == null) {
+				return new InlineCache(visited, size, null);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the cache entry if metatable has no __newindex, otherwise null
+	 */
+	static InlineCache newIndex(KahluaTable metatable) {
+		if (metatable.rawget("__newindex") != null) {
+			return null;
+		}
+		return new InlineCache(new KahluaTable[] {metatable}, 1, null);
+	}
+
+	private static KahluaTable[] add(KahluaTable[] tables, int index, KahluaTable t) {
+		if (index == tables.length) {
+			KahluaTable[] newTables = new KahluaTable[2 * index];
+			System.arraycopy(tables, 0, newTables, 0, index);
+			tables = newTables;
+		}
+		tables[index] = t;
+		return tables;
+	}
+}
@@ -1,8 +1,11 @@
 package se.krka.kahlua.vm;
 
-public class KahluaArray implements KahluaTable {
+public class KahluaArray implements KahluaSlotTable {
 
 	private KahluaTable metatable;
+	private int version;
+	private int metaFlags;
+	private int metaFlagsVersion;
 	
 	private Object[] data;
 	private int len;
@@ -31,42 +34,41 @@ public class KahluaArray implements KahluaTable {
 	}
 
     public KahluaTableIterator iterator() {
-        return new KahluaTableIterator() {
-            private Double curKey;
-            private Object curValue;
-            private int index = 1;
-            public int call(LuaCallFrame callFrame, int nArguments) {
-                if (advance()) {
-                    return callFrame.push(getKey(), getValue());
-                }
-                return 0;
-            }
+        return new SlotTableIterator(this);
+    }
 
-            public boolean advance() {
-                while (true) {
-                    if (index > len()) {
-                        return false;
-                    }
-                    Object value = rawget(index);
-                    if (value != null) {
-                        int localIndex = index;
-                        index++;
-                        curKey = KahluaUtil.toDouble(localIndex);
-                        curValue = value;
-                        return true;
-                    }
-                    index++;
-                }
+    public int nextSlot(int slot) {
+        int n = len();
+        Object[] data = this.data;
+        while (slot < n) {
+            if (data[slot] != null) {
+                return slot;
             }
+            slot++;
+        }
+        return -1;
+    }
 
-            public Object getKey() {
-                return curKey;
-            }
+    public Object getSlotKey(int slot) {
+        return null;
+    }
+
+    public Object getSlotValue(int slot) {
+        if (slot < 0 || slot >= len) {
+            return null;
+        }
+        return data[slot];
+    }
 
-            public Object getValue() {
-                return curValue;
+    public int getSlot(Object key) {
+        if (key instanceof Double) {
+            double d = ((Double) key).doubleValue();
+            int index = (int) d;
+            if (index == d && index >= 1 && index <= len) {
+                return index - 1;
             }
-        };
+        }
+        return -1;
     }
 
 	public boolean isEmpty() {
@@ -81,6 +83,8 @@ public class KahluaArray implements KahluaTable {
     }
 
     public void rawset(int index, Object value) {
+        version++;
+        value = KahluaUtil.flatten(value);
         if (index <= 0) {
             KahluaUtil.fail("Index out of range: " + index);
         }
@@ -151,5 +155,23 @@ public class KahluaArray implements KahluaTable {
 
 	public void setMetatable(KahluaTable metatable) {
 		this.metatable = metatable;
+		version++;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public GlobalCell getCell(Object key) {
+		return null;
+	}
+
+	public int getMetaFlags() {
+		return metaFlagsVersion == version ? metaFlags : 0;
+	}
+
+	public void setMetaFlags(int version, int flags) {
+		metaFlags = flags;
+		metaFlagsVersion = version;
 	}
 }
@@ -21,6 +21,13 @@ THE SOFTWARE.
 */
 package se.krka.kahlua.vm;
 
+/**
+ * A Lua error.
+ *
+ * The java stack trace says nothing about where the error happened in the script,
+ * the Lua stack trace is recorded separately while the error unwinds the interpreter.
+ * It is therefore not filled in, which makes errors caught by pcall cheap.
+ */
 public class KahluaException extends RuntimeException {
 	/**
 	 *
@@ -33,6 +40,10 @@ public class KahluaException extends RuntimeException {
 		this.errorMessage = errorMessage;
 	}
 
+	public Throwable fillInStackTrace() {
+		return this;
+	}
+
 	public String getMessage() {
 		if (errorMessage == null) {
 			return "nil";
@@ -0,0 +1,561 @@
+/*
+ Copyright (c) 2010 Kristofer Karlsson <kristofer.karlsson@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package se.krka.kahlua.vm;
+
+/**
+ * A table with a dense array part for the keys 1..n and an open addressing
+ * hash part for everything else, much like the tables in the reference implementation.
+ *
+ * The border of the array part is tracked on every write, so len() is usually
+ * a field read. The sizes of the two parts are recalculated when the hash part runs full.
+ *
+ * Slots 0 .. n - 1 are the array part, followed by the slots of the hash part.
+ *
+ * This table is not thread safe.
+ */
+public final class KahluaHybridTable implements KahluaSlotTable {
+	private static final Object[] EMPTY = new Object[0];
+
+	private static final int MAX_BITS = 26;
+	private static final int MAX_ARRAY_SIZE = 1 << MAX_BITS;
+
+	private KahluaTable metatable;
+
+	// Index i is stored at arrayPart[i - 1]
+	private Object[] arrayPart;
+
+	// arrayPart[0 .. border - 1] are all non-nil, and arrayPart[border] is nil (or out of bounds)
+	private int border;
+
+	private Object[] keys;
+	private Object[] values;
+
+	// Number of used key slots, including keys that have been set to nil
+	private int hashUsed;
+
+	private int version;
+	private int metaFlags;
+	private int metaFlagsVersion;
+
+	// True once a GlobalCell has been handed out, some values may then be wrapped in cells
+	private boolean hasCells;
+
+	public KahluaHybridTable() {
+		this(0, 0);
+	}
+
+	public KahluaHybridTable(int arraySize, int hashSize) {
+		arrayPart = arraySize > 0 ? new Object[Math.min(arraySize, MAX_ARRAY_SIZE)] : EMPTY;
+		allocateHash(hashSize);
+	}
+
+	public void setMetatable(KahluaTable metatable) {
+		this.metatable = metatable;
+		version++;
+	}
+
+	public KahluaTable getMetatable() {
+		return metatable;
+	}
+
+	public Object rawget(int index) {
+		if (index >= 1 && index <= arrayPart.length) {
+			return arrayPart[index - 1];
+		}
+		if (hashUsed == 0) {
+			return null;
+		}
+		return hashGet(KahluaUtil.toDouble(index));
+	}
+
+	public void rawset(int index, Object value) {
+		version++;
+		value = KahluaUtil.flatten(value);
+		Object[] array = arrayPart;
+		if (index >= 1 && index <= array.length) {
+			setArray(array, index, value);
+			return;
+		}
+		if (index == array.length + 1 && hashUsed == 0 && value != null && index <= MAX_ARRAY_SIZE) {
+			// Appending to a pure array, no need to look at the hash part
+			resizeArray(Math.max(4, 2 * array.length));
+			setArray(arrayPart, index, value);
+			return;
+		}
+		hashSet(KahluaUtil.toDouble(index), value);
+	}
+
+	public Object rawget(Object key) {
+		if (key instanceof Double) {
+			int index = arrayIndex((Double) key);
+			if (index >= 1 && index <= arrayPart.length) {
+				return arrayPart[index - 1];
+			}
+		} else if (key == null) {
+			return null;
+		}
+		if (hashUsed == 0) {
+			return null;
+		}
+		return hashGet(KahluaUtil.flatten(key));
+	}
+
+	public void rawset(Object key, Object value) {
+		version++;
+		if (key instanceof Double) {
+			int index = arrayIndex((Double) key);
+			if (index > 0) {
+				rawset(index, value);
+				return;
+			}
+		} else if (key == null) {
+			KahluaUtil.fail("table index is nil");
+		}
+		hashSet(KahluaUtil.flatten(key), KahluaUtil.flatten(value));
+	}
+
+	public int len() {
+		int n = arrayPart.length;
+		if (border < n || hashUsed == 0) {
+			return border;
+		}
+
+		// The array part is full, the sequence may continue in the hash part
+		if (rawget(n + 1) == null) {
+			return n;
+		}
+		int low = n + 1;
+		int high = 2 * low;
+		while (rawget(high) != null) {
+			low = high;
+			if (high > MAX_ARRAY_SIZE) {
+				break;
+			}
+			high *= 2;
+		}
+		return KahluaUtil.len(this, low, high);
+	}
+
+	/**
+	 * Inserts value at index, moving the values from index to len() up one step,
+	 * if all of them are in the array part.
+	 * @return false if the table was left unchanged, and the insert has to be done element by element
+	 */
+	public boolean arrayInsert(int index, Object value) {
+		int n = border;
+		if (value == null || index < 1 || index > n + 1 || n >= MAX_ARRAY_SIZE) {
+			return false;
+		}
+		if (n == arrayPart.length) {
+			if (hashUsed > 0) {
+				// The sequence may continue in the hash part
+				return false;
+			}
+			resizeArray(Math.max(4, 2 * n));
+		}
+		version++;
+		Object[] array = arrayPart;
+		System.arraycopy(array, index - 1, array, index, n - index + 1);
+		array[index - 1] = KahluaUtil.flatten(value);
+		int b = n + 1;
+		while (b < array.length && array[b] != null) {
+			b++;
+		}
+		border = b;
+		return true;
+	}
+
+	/**
+	 * Removes the value at index, moving the values after it down to len() one step,
+	 * if all of them are in the array part.
+	 * @return false if the table was left unchanged, and the remove has to be done element by element
+	 */
+	public boolean arrayRemove(int index) {
+		int n = border;
+		if (index < 1 || index > n || (n == arrayPart.length && hashUsed > 0)) {
+			return false;
+		}
+		version++;
+		Object[] array = arrayPart;
+		System.arraycopy(array, index, array, index - 1, n - index);
+		array[n - 1] = null;
+		border = n - 1;
+		return true;
+	}
+
+	public KahluaTableIterator iterator() {
+		return new SlotTableIterator(this);
+	}
+
+	public int nextSlot(int slot) {
+		Object[] array = arrayPart;
+		int arrayLength = array.length;
+		while (slot < arrayLength) {
+			if (array[slot] != null) {
+				return slot;
+			}
+			slot++;
+		}
+		Object[] hashValues = values;
+		int end = arrayLength + hashValues.length;
+		while (slot < end) {
+			if (unwrap(hashValues[slot - arrayLength]) != null) {
+				return slot;
+			}
+			slot++;
+		}
+		return -1;
+	}
+
+	public Object getSlotKey(int slot) {
+		int hashIndex = slot - arrayPart.length;
+		if (hashIndex < 0) {
+			return null;
+		}
+		return keys[hashIndex];
+	}
+
+	public Object getSlotValue(int slot) {
+		Object[] array = arrayPart;
+		if (slot < array.length) {
+			return array[slot];
+		}
+		return unwrap(values[slot - array.length]);
+	}
+
+	public int getSlot(Object key) {
+		if (key instanceof Double) {
+			int index = arrayIndex((Double) key);
+			if (index >= 1 && index <= arrayPart.length) {
+				return index - 1;
+			}
+		} else if (key == null) {
+			return -1;
+		}
+		if (hashUsed == 0) {
+			return -1;
+		}
+		int slot = findSlot(KahluaUtil.flatten(key));
+		if (slot < 0) {
+			return -1;
+		}
+		return arrayPart.length + slot;
+	}
+
+	public boolean isEmpty() {
+		if (border > 0) {
+			return false;
+		}
+		Object[] array = arrayPart;
+		for (int i = array.length - 1; i >= 0; i--) {
+			if (array[i] != null) {
+				return false;
+			}
+		}
+		Object[] hashValues = values;
+		for (int i = hashValues.length - 1; i >= 0; i--) {
+			if (unwrap(hashValues[i]) != null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public GlobalCell getCell(Object key) {
+		if (!(key instanceof String)) {
+			return null;
+		}
+		if (hashUsed > 0) {
+			int slot = findSlot(key);
+			if (slot >= 0) {
+				Object value = values[slot];
+				if (value instanceof GlobalCell) {
+					return (GlobalCell) value;
+				}
+				GlobalCell cell = new GlobalCell(this, value);
+				values[slot] = cell;
+				hasCells = true;
+				return cell;
+			}
+		}
+		int capacity = keys.length;
+		if (hashUsed >= capacity - (capacity >> 2)) {
+			rehash(key);
+		}
+		GlobalCell cell = new GlobalCell(this, null);
+		insertNew(key, cell);
+		hasCells = true;
+		return cell;
+	}
+
+	public int getMetaFlags() {
+		return metaFlagsVersion == version ? metaFlags : 0;
+	}
+
+	public void setMetaFlags(int version, int flags) {
+		metaFlags = flags;
+		metaFlagsVersion = version;
+	}
+
+	public String toString() {
+		return "table 0x" + System.identityHashCode(this);
+	}
+
+	/**
+	 * @return the key as a positive array index, or -1 if the key can never live in the array part
+	 */
+	private static int arrayIndex(Double key) {
+		double d = key.doubleValue();
+		int index = (int) d;
+		if (index == d && index >= 1 && index <= MAX_ARRAY_SIZE) {
+			return index;
+		}
+		return -1;
+	}
+
+	private void setArray(Object[] array, int index, Object value) {
+		array[index - 1] = value;
+		if (value != null) {
+			if (index == border + 1) {
+				int length = array.length;
+				int b = index;
+				while (b < length && array[b] != null) {
+					b++;
+				}
+				border = b;
+			}
+		} else if (index <= border) {
+			border = index - 1;
+		}
+	}
+
+	private void resizeArray(int size) {
+		Object[] newArray = new Object[size];
+		System.arraycopy(arrayPart, 0, newArray, 0, Math.min(size, arrayPart.length));
+		arrayPart = newArray;
+		if (border > size) {
+			border = size;
+		}
+	}
+
+	private Object unwrap(Object value) {
+		if (hasCells && value instanceof GlobalCell) {
+			return ((GlobalCell) value).value;
+		}
+		return value;
+	}
+
+	private static int hash(Object key) {
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private int findSlot(Object key) {
+		Object[] hashKeys = keys;
+		int mask = hashKeys.length - 1;
+		int i = hash(key) & mask;
+		while (true) {
+			Object k = hashKeys[i];
+			if (k == null) {
+				return -1;
+			}
+			if (k == key || k.equals(key)) {
+				return i;
+			}
+			i = (i + 1) & mask;
+		}
+	}
+
+	private Object hashGet(Object key) {
+		int slot = findSlot(key);
+		if (slot < 0) {
+			return null;
+		}
+		return unwrap(values[slot]);
+	}
+
+	private void hashSet(Object key, Object value) {
+		if (hashUsed > 0) {
+			int slot = findSlot(key);
+			if (slot >= 0) {
+				Object old = values[slot];
+				if (hasCells && old instanceof GlobalCell) {
+					((GlobalCell) old).value = value;
+				} else {
+					values[slot] = value;
+				}
+				return;
+			}
+		}
+		if (value == null) {
+			return;
+		}
+		int capacity = keys.length;
+		if (hashUsed >= capacity - (capacity >> 2)) {
+			rehash(key);
+			rawset(key, value);
+			return;
+		}
+		insertNew(key, value);
+	}
+
+	private void insertNew(Object key, Object value) {
+		Object[] hashKeys = keys;
+		int mask = hashKeys.length - 1;
+		int i = hash(key) & mask;
+		while (hashKeys[i] != null) {
+			i = (i + 1) & mask;
+		}
+		hashKeys[i] = key;
+		values[i] = value;
+		hashUsed++;
+	}
+
+	private void allocateHash(int size) {
+		if (size <= 0) {
+			keys = EMPTY;
+			values = EMPTY;
+		} else {
+			int capacity = 4;
+			while (capacity - (capacity >> 2) < size) {
+				capacity <<= 1;
+			}
+			keys = new Object[capacity];
+			values = new Object[capacity];
+		}
+		hashUsed = 0;
+	}
+
+	private static int ceilLog2(int x) {
+		int log = 0;
+		x--;
+		while (x > 0) {
+			x >>= 1;
+			log++;
+		}
+		return log;
+	}
+
+	private static int countIntegerKey(Object key, int[] nums) {
+		if (key instanceof Double) {
+			int index = arrayIndex((Double) key);
+			if (index > 0) {
+				nums[ceilLog2(index)]++;
+				return 1;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Picks new sizes for both parts, so that the array part is the largest
+	 * power of two that would be more than half full.
+	 */
+	private void rehash(Object extraKey) {
+		int[] nums = new int[MAX_BITS + 1];
+		int totalIntegerKeys = 0;
+		int total = 0;
+
+		Object[] array = arrayPart;
+		int length = array.length;
+		for (int i = 0; i < length; i++) {
+			if (array[i] != null) {
+				nums[ceilLog2(i + 1)]++;
+				totalIntegerKeys++;
+			}
+		}
+		total += totalIntegerKeys;
+
+		Object[] hashKeys = keys;
+		Object[] hashValues = values;
+		for (int i = hashKeys.length - 1; i >= 0; i--) {
+			if (hashValues[i] != null) {
+				totalIntegerKeys += countIntegerKey(hashKeys[i], nums);
+				total++;
+			}
+		}
+		totalIntegerKeys += countIntegerKey(extraKey, nums);
+		total++;
+
+		int accumulated = 0;
+		int inArray = 0;
+		int arraySize = 0;
+		for (int i = 0, twoToI = 1; i <= MAX_BITS && (twoToI >> 1) < totalIntegerKeys; i++, twoToI <<= 1) {
+			if (nums[i] > 0) {
+				accumulated += nums[i];
+				if (accumulated > (twoToI >> 1)) {
+					arraySize = twoToI;
+					inArray = accumulated;
+				}
+			}
+		}
+		resize(arraySize, total - inArray);
+	}
+
+	private void resize(int arraySize, int hashSize) {
+		Object[] oldArray = arrayPart;
+		Object[] oldKeys = keys;
+		Object[] oldValues = values;
+
+		if (arraySize != oldArray.length) {
+			arrayPart = arraySize > 0 ? new Object[arraySize] : EMPTY;
+			System.arraycopy(oldArray, 0, arrayPart, 0, Math.min(arraySize, oldArray.length));
+		}
+		allocateHash(hashSize);
+
+		border = 0;
+		Object[] array = arrayPart;
+		while (border < array.length && array[border] != null) {
+			border++;
+		}
+
+		// The array part shrunk, move the tail into the hash part
+		for (int i = arraySize; i < oldArray.length; i++) {
+			Object value = oldArray[i];
+			if (value != null) {
+				insertNew(KahluaUtil.toDouble(i + 1), value);
+			}
+		}
+		for (int i = oldKeys.length - 1; i >= 0; i--) {
+			Object value = oldValues[i];
+			if (value != null) {
+				Object key = oldKeys[i];
+				int index = key instanceof Double ? arrayIndex((Double) key) : -1;
+				if (index > 0 && index <= array.length) {
+					setArray(array, index, value);
+				} else {
+					insertNew(key, value);
+				}
+			}
+		}
+	}
+}
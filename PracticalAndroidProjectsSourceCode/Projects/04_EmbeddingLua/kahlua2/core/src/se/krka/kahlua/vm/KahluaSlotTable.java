@@ -0,0 +1,51 @@
+/*
+ Copyright (c) 2010 Kristofer Karlsson <kristofer.karlsson@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+
+package se.krka.kahlua.vm;
+
+/**
+ * A table whose entries can be walked by slot number, without an iterator object.
+ *
+ * Slots are numbered from 0 and keep their entries as long as no new keys are added.
+ * The interpreter keeps the slot of the current entry in the hidden control register
+ * of a generic for loop over pairs, so the loop allocates nothing per step.
+ */
+public interface KahluaSlotTable extends KahluaTable {
+	/**
+	 * @return the first slot at or after slot that holds a non-nil value, or -1 if there is none
+	 */
+	int nextSlot(int slot);
+
+	/**
+	 * @return the key in the slot, or null if the key is the number slot + 1,
+	 * which lets the caller skip boxing it
+	 */
+	Object getSlotKey(int slot);
+
+	Object getSlotValue(int slot);
+
+	/**
+	 * @return the slot of key, or -1 if the table has no slot for it
+	 */
+	int getSlot(Object key);
+}
@@ -37,4 +37,29 @@ public interface KahluaTable {
     KahluaTableIterator iterator();
 
 	boolean isEmpty();
+
+	/**
+	 * A modification counter that must change whenever a value or the metatable is set.
+	 * It is used by the interpreter to validate cached lookups.
+	 */
+	int getVersion();
+
+	/**
+	 * Returns the cell that holds the value for key, creating it if needed.
+	 * Tables that don't support cells, or keys that can't be stored in one, return null.
+	 */
+	GlobalCell getCell(Object key);
+
+	/**
+	 * Returns the flags last stored with setMetaFlags, or 0 if the table has changed since then.
+	 * The interpreter uses them to remember which metamethods a metatable lacks.
+	 */
+	int getMetaFlags();
+
+	/**
+	 * Stores flags that are only valid as long as the table still has the given version.
+	 * The version must be read before the table contents the flags were derived from,
+	 * so that a concurrent write makes the flags stale instead of hiding the new value.
+	 */
+	void setMetaFlags(int version, int flags);
 }
@@ -65,6 +65,25 @@ public class KahluaThread {
 	private static final int OP_CLOSE = 35;
 	private static final int OP_CLOSURE = 36;
 	private static final int OP_VARARG = 37;
+
+	// Specialized instructions, only present in Prototype.quickCode
+	private static final int FIRST_QUICK_OPCODE = 38;
+	private static final int OP_ADD_RR = 38;
+	private static final int OP_SUB_RR = 39;
+	private static final int OP_MUL_RR = 40;
+	private static final int OP_DIV_RR = 41;
+	private static final int OP_ADD_RN = 42;
+	private static final int OP_SUB_RN = 43;
+	private static final int OP_MUL_RN = 44;
+	private static final int OP_DIV_RN = 45;
+	private static final int OP_EQ_RS = 46;
+	private static final int OP_LT_RR = 47;
+	private static final int OP_LE_RR = 48;
+	private static final int OP_MOVE_CALL = 49;
+	// Patched in where compiled code can be entered
+	private static final int OP_JIT_ENTER = 50;
+
+	private static final int QUICKEN_THRESHOLD = 20;
     private static final int MAX_INDEX_RECURSION = 100;
 
     private static final String meta_ops[];
@@ -82,6 +101,35 @@ public class KahluaThread {
         meta_ops[OP_LE] = "__le";
     }
 
+	/**
+	 * Metamethods whose absence is remembered in the metatable flags,
+	 * the flag of each is 1 shifted by its position.
+	 */
+	private static final String[] META_EVENTS = {
+		"__index", "__newindex", "__call", "__add", "__sub", "__mul", "__div", "__mod", "__pow",
+		"__unm", "__len", "__eq", "__lt", "__le", "__concat", "__tostring", "__metatable"
+	};
+	private static final int META_INDEX = metaFlag("__index");
+	private static final int META_NEWINDEX = metaFlag("__newindex");
+	private static final int META_CALL = metaFlag("__call");
+	private static final int META_UNM = metaFlag("__unm");
+	private static final int META_LEN = metaFlag("__len");
+	private static final int META_LT = metaFlag("__lt");
+	private static final int META_CONCAT = metaFlag("__concat");
+	private static final int META_METATABLE = metaFlag("__metatable");
+
+	private static final Class STRING_CLASS = "".getClass();
+
+	private static final int meta_flags[];
+	static {
+		meta_flags = new int[meta_ops.length];
+		for (int i = 0; i < meta_ops.length; i++) {
+			if (meta_ops[i] != null) {
+				meta_flags[i] = metaFlag(meta_ops[i]);
+			}
+		}
+	}
+
 	private final Coroutine rootCoroutine;
 	/** @exclude */
 	public Coroutine currentCoroutine;
@@ -89,6 +137,29 @@ public class KahluaThread {
     private final PrintStream out;
     private final Platform platform;
 
+	// The class metatables table of the last environment, and the metatable of the last class looked up in it
+	private KahluaTable classMetatablesEnv;
+	private int classMetatablesEnvVersion;
+	private KahluaTable classMetatables;
+	private Class lastClass;
+	private int lastClassVersion;
+	private KahluaTable lastClassMetatable;
+
+	private final PrototypeCompiler compiler;
+	private final int invocationThreshold;
+	private final int backEdgeThreshold;
+
+	// Lua calls made by compiled code that are running on the Java stack
+	int compiledCallDepth;
+
+	// Backward jumps and Lua calls allowed per outermost call, or 0 for no limit
+	private int instructionBudget;
+	// Counted down on every backward jump and Lua call, the budget is checked when it goes negative
+	private int budgetLeft = Integer.MAX_VALUE;
+
+	private static final int MAX_KEPT_BUFFER = 4096;
+	private StringBuffer stringBuffer;
+
     public KahluaThread(Platform platform, KahluaTable environment) {
 		this(System.out, platform, environment);
 	}
@@ -98,6 +169,14 @@ public class KahluaThread {
 		out = stream;
 		rootCoroutine = new Coroutine(platform, environment, this);
 		currentCoroutine = rootCoroutine;
+		compiler = platform.getPrototypeCompiler();
+		if (compiler != null) {
+			invocationThreshold = compiler.getInvocationThreshold();
+			backEdgeThreshold = compiler.getBackEdgeThreshold();
+		} else {
+			invocationThreshold = 0;
+			backEdgeThreshold = 0;
+		}
 	}
 
     // For debugging purposes only
@@ -113,10 +192,15 @@ public class KahluaThread {
     public int call(int nArguments) {
 		int top = currentCoroutine.getTop();
 		int base = top - nArguments - 1;
-		Object o = currentCoroutine.objectStack[base];
+		Object o = currentCoroutine.stackGet(base);
 
 		if (o == null) {
-			throw new RuntimeException("tried to call nil");
+			throw new KahluaException("tried to call nil");
+		}
+
+		if (currentCoroutine == rootCoroutine && rootCoroutine.getCallframeTop() == 0) {
+			// Called by the host, not from inside a running function
+			resetBudget();
 		}
 
 		if (o instanceof JavaFunction) {
@@ -124,26 +208,29 @@ public class KahluaThread {
 		}
 
 		if (!(o instanceof LuaClosure)) {
-			throw new RuntimeException("tried to call a non-function");
+			throw new KahluaException("tried to call a non-function");
 		}
 
 		LuaCallFrame callFrame = currentCoroutine.pushNewCallFrame((LuaClosure) o, null,
 				base + 1, base, nArguments, false, false);
 		callFrame.init();
+		countInvocation(callFrame.closure.prototype);
 
 		luaMainloop();
 
 		int nReturnValues = currentCoroutine.getTop() - base;
+		currentCoroutine.flattenRopes(base, nReturnValues);
 
-		currentCoroutine.stackTrace = "";
+		currentCoroutine.stackTrace = null;
 
 		return nReturnValues;
 	}
 
-	private int callJava(JavaFunction f, int localBase, int returnBase,
+	int callJava(JavaFunction f, int localBase, int returnBase,
 			int nArguments) {
 		Coroutine coroutine = currentCoroutine;
 
+		coroutine.flattenRopes(localBase, nArguments);
 		LuaCallFrame callFrame = coroutine.pushNewCallFrame(null, f, localBase,
 				returnBase, nArguments, false, false);
 
@@ -162,12 +249,153 @@ public class KahluaThread {
 		return nReturnValues;
 	}
 
+	private static final int STEP_CALL = -1;
+	private static final int STEP_DONE = 0;
+	private static final int STEP_CONTINUE = 1;
+
+	/**
+	 * Runs a step of a generic for loop, storing the results from a + 3
+	 * and the new control value, if the iterator uses one, in a + 2.
+	 * Loops over ipairs, pairs and next don't call the iterator.
+	 * @return true if the loop continues
+	 */
+	final boolean forStep(LuaCallFrame callFrame, int a, int nResults) {
+		Object iterator = callFrame.get(a);
+		int step = STEP_CALL;
+		if (iterator instanceof SlotTableIterator) {
+			step = slotIteratorStep(callFrame, a, nResults, (SlotTableIterator) iterator);
+		} else if (iterator instanceof KahluaTableIterator) {
+			step = tableIteratorStep(callFrame, a, nResults, (KahluaTableIterator) iterator);
+		} else if (iterator == BaseLib.NEXT_FUNCTION) {
+			step = pairsStep(callFrame, a, nResults);
+		} else if (iterator == BaseLib.IPAIRS_ITERATOR) {
+			step = ipairsStep(callFrame, a, nResults);
+		}
+		if (step != STEP_CALL) {
+			return step == STEP_CONTINUE;
+		}
+
+		callFrame.setTop(a + 6);
+		callFrame.stackCopy(a, a + 3, 3);
+		call(2);
+		callFrame.clearFromIndex(a + 3 + nResults);
+		callFrame.setPrototypeStacksize();
+		if (callFrame.isNil(a + 3)) {
+			return false;
+		}
+		callFrame.move(a + 3, a + 2);
+		return true;
+	}
+
+	/**
+	 * Walks a table by slot. The control register holds the next slot
+	 * instead of the last key, it is hidden so the loop body can't tell.
+	 */
+	private int pairsStep(LuaCallFrame callFrame, int a, int nResults) {
+		Object state = callFrame.get(a + 1);
+		if (!(state instanceof KahluaSlotTable)) {
+			return STEP_CALL;
+		}
+		int slot = callFrame.getSlotCursor(a + 2);
+		if (slot < 0) {
+			// Started from a key, such as in "for k, v in next, t, k0"
+			return STEP_CALL;
+		}
+		KahluaSlotTable table = (KahluaSlotTable) state;
+		slot = table.nextSlot(slot);
+		if (slot < 0) {
+			return STEP_DONE;
+		}
+		callFrame.setSlotCursor(a + 2, slot + 1);
+		setSlotResults(callFrame, a, nResults, table, slot);
+		return STEP_CONTINUE;
+	}
+
+	/**
+	 * Steps the iterator returned by pairs for a table with slots.
+	 * The iterator keeps its own position, so the control register is not used.
+	 */
+	private int slotIteratorStep(LuaCallFrame callFrame, int a, int nResults, SlotTableIterator iterator) {
+		if (!iterator.advance()) {
+			return STEP_DONE;
+		}
+		setSlotResults(callFrame, a, nResults, iterator.getTable(), iterator.getSlot());
+		return STEP_CONTINUE;
+	}
+
+	private int tableIteratorStep(LuaCallFrame callFrame, int a, int nResults, KahluaTableIterator iterator) {
+		if (!iterator.advance()) {
+			return STEP_DONE;
+		}
+		callFrame.set(a + 3, iterator.getKey());
+		if (nResults >= 2) {
+			callFrame.set(a + 4, iterator.getValue());
+		}
+		for (int i = 2; i < nResults; i++) {
+			callFrame.set(a + 3 + i, null);
+		}
+		return STEP_CONTINUE;
+	}
+
+	private static void setSlotResults(LuaCallFrame callFrame, int a, int nResults, KahluaSlotTable table, int slot) {
+		Object key = table.getSlotKey(slot);
+		if (key == null) {
+			callFrame.setNumber(a + 3, slot + 1);
+		} else {
+			callFrame.set(a + 3, key);
+		}
+		if (nResults >= 2) {
+			callFrame.set(a + 4, table.getSlotValue(slot));
+		}
+		for (int i = 2; i < nResults; i++) {
+			callFrame.set(a + 3 + i, null);
+		}
+	}
+
+	private int ipairsStep(LuaCallFrame callFrame, int a, int nResults) {
+		if (!callFrame.isNumber(a + 2)) {
+			return STEP_CALL;
+		}
+		double d = callFrame.getNumber(a + 2);
+		int index = (int) d;
+		if (index != d) {
+			return STEP_CALL;
+		}
+		index++;
+		Object value = BaseLib.ipairsGet(this, callFrame.get(a + 1), index);
+		if (value == null) {
+			return STEP_DONE;
+		}
+		callFrame.setNumber(a + 3, index);
+		if (nResults >= 2) {
+			callFrame.set(a + 4, value);
+		}
+		for (int i = 2; i < nResults; i++) {
+			callFrame.set(a + 3 + i, null);
+		}
+		callFrame.move(a + 3, a + 2);
+		return STEP_CONTINUE;
+	}
+
+	/**
+	 * Runs the current coroutine, which has just been resumed by a java function,
+	 * until it yields, returns or fails.
+	 * @exclude
+	 */
+	public void runCoroutine() {
+		LuaCallFrame callFrame = currentCoroutine.currentCallFrame();
+		if (callFrame.restoreTop) {
+			callFrame.setTop(callFrame.closure.prototype.maxStacksize);
+		}
+		luaMainloop();
+	}
+
 	private final Object prepareMetatableCall(Object o) {
 		if (o instanceof JavaFunction || o instanceof LuaClosure) {
 			return o;
 		}
 
-		Object f = getMetaOp(o, "__call");
+		Object f = getMetaOp(o, "__call", META_CALL);
 
 		return f;
 	}
@@ -176,7 +404,7 @@ public class KahluaThread {
 		LuaCallFrame callFrame = currentCoroutine.currentCallFrame();
 		LuaClosure closure = callFrame.closure;
 		Prototype prototype = closure.prototype;
-		int[] opcodes = prototype.code;
+		int[] opcodes = getOpcodes(prototype);
 
 		int returnBase = callFrame.returnBase;
 		
@@ -187,11 +415,125 @@ public class KahluaThread {
 				int op = opcodes[callFrame.pc++];
 				int opcode = op & 63;
 
+				if (opcode >= FIRST_QUICK_OPCODE) {
+					a = getA8(op);
+					b = getB9(op);
+					c = getC9(op);
+					switch (opcode) {
+					case OP_ADD_RR:
+					case OP_SUB_RR:
+					case OP_MUL_RR:
+					case OP_DIV_RR: {
+						if (callFrame.isNumber(b) && callFrame.isNumber(c)) {
+							double x = callFrame.getNumber(b);
+							double y = callFrame.getNumber(c);
+							double res;
+							if (opcode == OP_ADD_RR) {
+								res = x + y;
+							} else if (opcode == OP_SUB_RR) {
+								res = x - y;
+							} else if (opcode == OP_MUL_RR) {
+								res = x * y;
+							} else {
+								res = x / y;
+							}
+							callFrame.setNumber(a, res);
+							continue;
+						}
+						break;
+					}
+					case OP_ADD_RN:
+					case OP_SUB_RN:
+					case OP_MUL_RN:
+					case OP_DIV_RN: {
+						if (callFrame.isNumber(b)) {
+							double x = callFrame.getNumber(b);
+							double y = ((Double) prototype.constants[c - 256]).doubleValue();
+							double res;
+							if (opcode == OP_ADD_RN) {
+								res = x + y;
+							} else if (opcode == OP_SUB_RN) {
+								res = x - y;
+							} else if (opcode == OP_MUL_RN) {
+								res = x * y;
+							} else {
+								res = x / y;
+							}
+							callFrame.setNumber(a, res);
+							continue;
+						}
+						break;
+					}
+					case OP_EQ_RS: {
+						Object bObj = callFrame.get(b);
+						if (bObj == null || bObj instanceof String) {
+							if (prototype.constants[c - 256].equals(bObj) == (a == 0)) {
+								callFrame.pc++;
+							}
+							continue;
+						}
+						break;
+					}
+					case OP_LT_RR:
+					case OP_LE_RR: {
+						if (callFrame.isNumber(b) && callFrame.isNumber(c)) {
+							double x = callFrame.getNumber(b);
+							double y = callFrame.getNumber(c);
+							boolean res = opcode == OP_LT_RR ? x < y : x <= y;
+							if (res == (a == 0)) {
+								callFrame.pc++;
+							}
+							continue;
+						}
+						break;
+					}
+					case OP_MOVE_CALL: {
+						callFrame.move(b, a);
+						op = prototype.code[callFrame.pc++];
+						break;
+					}
+					case OP_JIT_ENTER: {
+						CompiledPrototype compiled = prototype.compiled;
+						callFrame.pc--;
+						// Compiled code doesn't count against the budget, so it is only used without one
+						if (compiled != null && instructionBudget == 0 && compiled.run(this, callFrame)) {
+							LuaCallFrame previous = callFrame;
+							callFrame = currentCoroutine.currentCallFrame();
+							if (callFrame == null || callFrame.isJava()) {
+								return;
+							}
+							closure = callFrame.closure;
+							prototype = closure.prototype;
+							opcodes = getOpcodes(prototype);
+							returnBase = callFrame.returnBase;
+							if (callFrame.restoreTop) {
+								callFrame.setTop(prototype.maxStacksize);
+							}
+							if (callFrame != previous) {
+								continue;
+							}
+							// The compiled code stopped at an instruction it could not run,
+							// which may be one of its own entry points
+						}
+						callFrame.pc++;
+						break;
+					}
+					default: {
+						// unreachable for proper bytecode
+					}
+					}
+					if (opcode != OP_MOVE_CALL) {
+						// Not the specialized case, run the original instruction
+						op = prototype.code[callFrame.pc - 1];
+					}
+					opcode = op & 63;
+				}
+
 				switch (opcode) {
 				case OP_MOVE: {
 					a = getA8(op);
 					b = getB9(op);
-					callFrame.set(a, callFrame.get(b));
+					callFrame.move(b, a);
 					break;
 				}
 				case OP_LOADK: {
@@ -227,7 +569,11 @@ public class KahluaThread {
 				case OP_GETGLOBAL: {
 					a = getA8(op);
 					b = getBx(op);
-					Object res = tableGet(closure.env, prototype.constants[b]);
+					GlobalCell cell = getGlobalCell(closure, b);
+					Object res = cell != null ? cell.value : null;
+					if (res == null) {
+						res = tableGet(closure.env, prototype.constants[b]);
+					}
 					callFrame.set(a, res);
 					break;
 				}
@@ -238,9 +584,24 @@ public class KahluaThread {
 
 					Object bObj = callFrame.get(b);
 
+					int index = getRegisterIntegerKey(callFrame, c);
+					if (index > 0 && bObj instanceof KahluaTable) {
+						KahluaTable t = (KahluaTable) bObj;
+						Object res = t.rawget(index);
+						if (res != null || t.getMetatable() == null) {
+							callFrame.set(a, res);
+							break;
+						}
+					}
+
 					Object key = getRegisterOrConstant(callFrame, c, prototype);
 
-					Object res = tableGet(bObj, key);
+					Object res;
+					if (bObj instanceof KahluaTable) {
+						res = tableGetCached(prototype, callFrame.pc - 1, (KahluaTable) bObj, key, c);
+					} else {
+						res = tableGet(bObj, key);
+					}
 					callFrame.set(a, res);
 					break;
 				}
@@ -250,7 +611,12 @@ public class KahluaThread {
 					Object value = callFrame.get(a);
 					Object key = prototype.constants[b];
 
-					tableSet(closure.env, key, value);
+					KahluaTable env = closure.env;
+					if (env.getMetatable() == null) {
+						env.rawset(key, value);
+					} else {
+						tableSet(env, key, value);
+					}
 
 					break;
 				}
@@ -270,22 +636,32 @@ public class KahluaThread {
 
 					Object aObj = callFrame.get(a);
 
+					int index = getRegisterIntegerKey(callFrame, b);
+					if (index > 0 && aObj instanceof KahluaTable) {
+						KahluaTable t = (KahluaTable) aObj;
+						if (t.getMetatable() == null) {
+							t.rawset(index, getRegisterOrConstant(callFrame, c, prototype));
+							break;
+						}
+					}
+
 					Object key = getRegisterOrConstant(callFrame, b, prototype);
 					Object value = getRegisterOrConstant(callFrame, c, prototype);
 
-					tableSet(aObj, key, value);
+					if (aObj instanceof KahluaTable) {
+						tableSetCached(prototype, callFrame.pc - 1, (KahluaTable) aObj, key, value);
+					} else {
+						tableSet(aObj, key, value);
+					}
 
 					break;
 				}
 				case OP_NEWTABLE: {
 					a = getA8(op);
+					b = getB9(op);
+					c = getC9(op);
 
-					// Used to set up initial array and hash size - not
-					// implemented
-					// b = getB9(op);
-					// c = getC9(op);
-
-					KahluaTable t = platform.newTable();
+					KahluaTable t = platform.newTable(KahluaUtil.fb2int(b), KahluaUtil.fb2int(c));
 					callFrame.set(a, t);
 					break;
 				}
@@ -297,7 +673,12 @@ public class KahluaThread {
 					Object key = getRegisterOrConstant(callFrame, c, prototype);
 					Object bObj = callFrame.get(b);
 
-					Object fun = tableGet(bObj, key);
+					Object fun;
+					if (bObj instanceof KahluaTable) {
+						fun = tableGetCached(prototype, callFrame.pc - 1, (KahluaTable) bObj, key, c);
+					} else {
+						fun = tableGet(bObj, key);
+					}
 
 					callFrame.set(a, fun);
 					callFrame.set(a + 1, bObj);
@@ -313,29 +694,35 @@ public class KahluaThread {
 					b = getB9(op);
 					c = getC9(op);
 
+					if (isRegisterOrConstantNumber(callFrame, b, prototype)
+							&& isRegisterOrConstantNumber(callFrame, c, prototype)) {
+						double res = primitiveMath(
+								getRegisterOrConstantNumber(callFrame, b, prototype),
+								getRegisterOrConstantNumber(callFrame, c, prototype),
+								opcode);
+						callFrame.setNumber(a, res);
+						break;
+					}
+
 					Object bo = getRegisterOrConstant(callFrame, b, prototype);
 					Object co = getRegisterOrConstant(callFrame, c, prototype);
 
 					Double bd = null, cd = null;
-					Object res = null;
 					if ((bd = KahluaUtil.rawTonumber(bo)) == null
 							|| (cd = KahluaUtil.rawTonumber(co)) == null) {
-						String meta_op = meta_ops[opcode];
-
-						Object metafun = getBinMetaOp(bo, co, meta_op);
-						if (metafun == null) {
-							KahluaUtil.fail((meta_op + " not defined for operands"));
-						}
-						res = call(metafun, bo, co, null);
+						callFrame.set(a, metaArith(opcode, bo, co));
 					} else {
-						res = primitiveMath(bd, cd, opcode);
+						callFrame.setNumber(a, primitiveMath(bd.doubleValue(), cd.doubleValue(), opcode));
 					}
-					callFrame.set(a, res);
 					break;
 				}
 				case OP_UNM: {
 					a = getA8(op);
 					b = getB9(op);
+					if (callFrame.isNumber(b)) {
+						callFrame.setNumber(a, -callFrame.getNumber(b));
+						break;
+					}
 					Object aObj = callFrame.get(b);
 
 					Double aDouble = KahluaUtil.rawTonumber(aObj);
@@ -343,7 +730,7 @@ public class KahluaThread {
 					if (aDouble != null) {
 						res = KahluaUtil.toDouble(-KahluaUtil.fromDouble(aDouble));
 					} else {
-						Object metafun = getMetaOp(aObj, "__unm");
+						Object metafun = getMetaOp(aObj, "__unm", META_UNM);
 						//BaseLib.luaAssert(metafun != null, "__unm not defined for operand");
 						res = call(metafun, aObj, null, null);
 					}
@@ -362,19 +749,19 @@ public class KahluaThread {
 					b = getB9(op);
 
 					Object o = callFrame.get(b);
-					Object res;
 					if (o instanceof KahluaTable) {
 						KahluaTable t = (KahluaTable) o;
-						res = KahluaUtil.toDouble(t.len());
+						callFrame.setNumber(a, t.len());
 					} else if (o instanceof String) {
 						String s = (String) o;
-						res = KahluaUtil.toDouble(s.length());
+						callFrame.setNumber(a, s.length());
+					} else if (o instanceof LuaRope) {
+						callFrame.setNumber(a, ((LuaRope) o).length());
 					} else {
-						Object f = getMetaOp(o, "__len");
+						Object f = getMetaOp(o, "__len", META_LEN);
 						KahluaUtil.luaAssert(f != null, "__len not defined for operand");
-						res = call(f, o, null, null);
+						callFrame.set(a, call(f, o, null, null));
 					}
-					callFrame.set(a, res);
 					break;
 				}
 				case OP_CONCAT: {
@@ -382,62 +769,21 @@ public class KahluaThread {
 					b = getB9(op);
 					c = getC9(op);
 
-					int first = b;
-					int last = c;
-
-					Object res = callFrame.get(last);
-					last--;
-					while (first <= last) {
-						// Optimize for multi string concats
-						{
-							String resStr = KahluaUtil.rawTostring(res);
-							if (resStr != null) {
-
-								int nStrings = 0;
-								int pos = last;
-								while (first <= pos) {
-									Object o = callFrame.get(pos);
-									pos--;
-									if (KahluaUtil.rawTostring(o) == null) {
-										break;
-									}
-									nStrings++;
-								}
-								if (nStrings > 0) {
-									StringBuffer concatBuffer = new StringBuffer();
-
-									int firstString = last - nStrings + 1;
-									while (firstString <= last) {
-										concatBuffer.append(KahluaUtil
-												.rawTostring(callFrame
-														.get(firstString)));
-										firstString++;
-									}
-									concatBuffer.append(resStr);
-
-									res = concatBuffer.toString();
-
-									last = last - nStrings;
-								}
-							}
-						}
-						if (first <= last) {
-							Object leftConcat = callFrame.get(last);
-
-							Object metafun = getBinMetaOp(leftConcat, res,
-									"__concat");
-							if (metafun == null) {
-								KahluaUtil.fail(("__concat not defined for operands: " + leftConcat + " and " + res));
-							}
-							res = call(metafun, leftConcat, res, null);
-							last--;
-						}
-					}
-					callFrame.set(a, res);
+					callFrame.set(a, concat(callFrame, b, c));
 					break;
 				}
 				case OP_JMP: {
-					callFrame.pc += getSBx(op);
+					b = getSBx(op);
+					callFrame.pc += b;
+					if (b < 0) {
+						countBackEdge(prototype);
+						if (--budgetLeft < 0 && budgetExhausted(callFrame)) {
+							return;
+						}
+						if (opcodes == prototype.code) {
+							opcodes = getOpcodes(prototype);
+						}
+					}
 					break;
 				}
 				case OP_EQ:
@@ -447,12 +793,10 @@ public class KahluaThread {
 					b = getB9(op);
 					c = getC9(op);
 
-					Object bo = getRegisterOrConstant(callFrame, b, prototype);
-					Object co = getRegisterOrConstant(callFrame, c, prototype);
-
-					if (bo instanceof Double && co instanceof Double) {
-						double bd_primitive = KahluaUtil.fromDouble(bo);
-						double cd_primitive = KahluaUtil.fromDouble(co);
+					if (isRegisterOrConstantNumber(callFrame, b, prototype)
+							&& isRegisterOrConstantNumber(callFrame, c, prototype)) {
+						double bd_primitive = getRegisterOrConstantNumber(callFrame, b, prototype);
+						double cd_primitive = getRegisterOrConstantNumber(callFrame, c, prototype);
 
 						if (opcode == OP_EQ) {
 							if ((bd_primitive == cd_primitive) == (a == 0)) {
@@ -469,70 +813,13 @@ public class KahluaThread {
 								}
 							}
 						}
-					} else if (bo instanceof String && co instanceof String) {
-						if (opcode == OP_EQ) {
-							if ((bo.equals(co)) == (a == 0)) {
-								callFrame.pc++;
-							}
-						} else {
-							String bs = (String) bo;
-							String cs = (String) co;
-							int cmp = bs.compareTo(cs);
-
-							if (opcode == OP_LT) {
-								if ((cmp < 0) == (a == 0)) {
-									callFrame.pc++;
-								}
-							} else { // opcode must be OP_LE
-								if ((cmp <= 0) == (a == 0)) {
-									callFrame.pc++;
-								}
-							}
-						}
-					} else {
-						boolean resBool;
-						if (bo == co) {
-							resBool = true;
-						} else {
-							boolean invert = false;
-
-							String meta_op = meta_ops[opcode];
-
-							Object metafun = getCompMetaOp(bo, co, meta_op);
-
-							/*
-							 * Special case: OP_LE uses OP_LT if __le is not
-							 * defined. a <= b is then translated to not (b < a)
-							 */
-							if (metafun == null && opcode == OP_LE) {
-								metafun = getCompMetaOp(bo, co, "__lt");
-
-								// Swap the objects
-								Object tmp = bo;
-								bo = co;
-								co = tmp;
-
-								// Invert a (i.e. add the "not"
-								invert = true;
-							}
-
-							if (metafun == null && opcode == OP_EQ) {
-								resBool = BaseLib.luaEquals(bo, co);
-							} else {
-								if (metafun == null) {
-									KahluaUtil.fail((meta_op + " not defined for operand"));
-								}
-								Object res = call(metafun, bo, co, null);
-								resBool = KahluaUtil.boolEval(res);
-							}
+						break;
+					}
 
-							if (invert) {
-								resBool = !resBool;
-							}
-						}
-						if (resBool == (a == 0)) {
-							callFrame.pc++;
-						}
+					Object bo = getRegisterOrConstant(callFrame, b, prototype);
+					Object co = getRegisterOrConstant(callFrame, c, prototype);
+					if (compare(opcode, bo, co) == (a == 0)) {
+						callFrame.pc++;
 					}
 					break;
 				}
@@ -604,7 +891,11 @@ public class KahluaThread {
 						callFrame = newCallFrame;
 						closure = newCallFrame.closure;
 						prototype = closure.prototype;
-						opcodes = prototype.code;
+						countInvocation(prototype);
+						if (--budgetLeft < 0 && budgetExhausted(callFrame)) {
+							return;
+						}
+						opcodes = getOpcodes(prototype);
 						returnBase = callFrame.returnBase;
 					} else if (fun instanceof JavaFunction) {
 						callJava((JavaFunction) fun, localBase2, returnBase2,
@@ -620,14 +911,14 @@ public class KahluaThread {
 
 						closure = callFrame.closure;
 						prototype = closure.prototype;
-						opcodes = prototype.code;
+						opcodes = getOpcodes(prototype);
 						returnBase = callFrame.returnBase;
 
 						if (callFrame.restoreTop) {
 							callFrame.setTop(prototype.maxStacksize);
 						}
 					} else {
-						throw new RuntimeException(
+						throw new KahluaException(
 								"Tried to call a non-function: " + fun);
 					}
 
@@ -672,6 +963,10 @@ public class KahluaThread {
 						callFrame.nArguments = nArguments2;
 						callFrame.closure = (LuaClosure) fun;
 						callFrame.init();
+						countInvocation(callFrame.closure.prototype);
+						if (--budgetLeft < 0 && budgetExhausted(callFrame)) {
+							return;
+						}
 					} else {
 						if (!(fun instanceof JavaFunction)) {
 							KahluaUtil.fail(("Tried to call a non-function: " + fun));
@@ -693,8 +988,10 @@ public class KahluaThread {
 
 									// This is an implicit yield, so push a TRUE
 									// to the parent
-									currentCoroutine.getParent().currentCallFrame()
-											.push(Boolean.TRUE);
+									if (!oldCoroutine.wrapped) {
+										currentCoroutine.getParent().currentCallFrame()
+												.push(Boolean.TRUE);
+									}
 								}
 							}
 
@@ -717,7 +1014,7 @@ public class KahluaThread {
 
 					closure = callFrame.closure;
 					prototype = closure.prototype;
-					opcodes = prototype.code;
+					opcodes = getOpcodes(prototype);
 					returnBase = callFrame.returnBase;
 
 					break;
@@ -758,7 +1055,7 @@ public class KahluaThread {
 
 						closure = callFrame.closure;
 						prototype = closure.prototype;
-						opcodes = prototype.code;
+						opcodes = getOpcodes(prototype);
 						returnBase = callFrame.returnBase;
 
 						if (callFrame.restoreTop) {
@@ -774,26 +1071,32 @@ public class KahluaThread {
 					a = getA8(op);
 					b = getSBx(op);
 
-					double iter = KahluaUtil.fromDouble(callFrame.get(a));
-					double step = KahluaUtil.fromDouble(callFrame.get(a + 2));
-					callFrame.set(a, KahluaUtil.toDouble(iter - step));
+					double iter = callFrame.getNumber(a);
+					double step = callFrame.getNumber(a + 2);
+					callFrame.setNumber(a, iter - step);
 					callFrame.pc += b;
 					break;
 				}
 				case OP_FORLOOP: {
 					a = getA8(op);
 
-					double iter = KahluaUtil.fromDouble(callFrame.get(a));
-					double end = KahluaUtil.fromDouble(callFrame.get(a + 1));
-					double step = KahluaUtil.fromDouble(callFrame.get(a + 2));
+					double iter = callFrame.getNumber(a);
+					double end = callFrame.getNumber(a + 1);
+					double step = callFrame.getNumber(a + 2);
 					iter += step;
-					Double iterDouble = KahluaUtil.toDouble(iter);
-					callFrame.set(a, iterDouble);
+					callFrame.setNumber(a, iter);
 
 					if ((step > 0) ? iter <= end : iter >= end) {
 						b = getSBx(op);
 						callFrame.pc += b;
-						callFrame.set(a + 3, iterDouble);
+						callFrame.setNumber(a + 3, iter);
+						countBackEdge(prototype);
+						if (--budgetLeft < 0 && budgetExhausted(callFrame)) {
+							return;
+						}
+						if (opcodes == prototype.code) {
+							opcodes = getOpcodes(prototype);
+						}
 					} else {
 						callFrame.clearFromIndex(a);
 					}
@@ -803,16 +1106,7 @@ public class KahluaThread {
 					a = getA8(op);
 					c = getC9(op);
 
-					callFrame.setTop(a + 6);
-					callFrame.stackCopy(a, a + 3, 3);
-					call(2);
-					callFrame.clearFromIndex(a + 3 + c);
-					callFrame.setPrototypeStacksize();
-
-					Object aObj3 = callFrame.get(a + 3);
-					if (aObj3 != null) {
-						callFrame.set(a + 2, aObj3);
-					} else {
+					if (!forStep(callFrame, a, c)) {
 						callFrame.pc++;
 					}
 					break;
@@ -834,9 +1128,8 @@ public class KahluaThread {
 
 					KahluaTable t = (KahluaTable) callFrame.get(a);
 					for (int i = 1; i <= b; i++) {
-						Object key = KahluaUtil.toDouble(offset + i);
 						Object value = callFrame.get(a + i);
-						t.rawset(key, value);
+						t.rawset(offset + i, value);
 					}
 					break;
 				}
@@ -902,6 +1195,14 @@ public class KahluaThread {
 					callFrame = currentCoroutine.currentCallFrame();
 					if (callFrame == null) {
 						Coroutine parent = currentCoroutine.getParent();
+						if (parent != null && currentCoroutine.wrapped) {
+							// coroutine.wrap raises the error in the resumer,
+							// which is running the wrapper in a nested call
+							parent.stackTrace = currentCoroutine.stackTrace;
+							currentCoroutine.destroy();
+							currentCoroutine = parent;
+							throw e;
+						}
 						if (parent != null) {
 
 							// Copy arguments
@@ -910,7 +1211,7 @@ public class KahluaThread {
 
 							nextCallFrame.push(Boolean.FALSE);
 							nextCallFrame.push(e.getMessage());
-							nextCallFrame.push(currentCoroutine.stackTrace);
+							nextCallFrame.push(currentCoroutine.takeStackTrace());
 
 							// Yield and fail
 							currentCoroutine.destroy();
@@ -919,7 +1220,7 @@ public class KahluaThread {
 							callFrame = currentCoroutine.currentCallFrame();
 							closure = callFrame.closure;
 							prototype = closure.prototype;
-							opcodes = prototype.code;
+							opcodes = getOpcodes(prototype);
 							returnBase = callFrame.returnBase;
 
 							rethrow = false;
@@ -945,28 +1246,216 @@ public class KahluaThread {
 	}
 
 	protected Object getMetaOp(Object o, String meta_op) {
+		return getMetaOp(o, meta_op, metaFlag(meta_op));
+	}
+
+	final Object getMetaOp(Object o, String meta_op, int flag) {
 		KahluaTable meta = (KahluaTable) getmetatable(o, true);
 		if (meta == null) {
 			return null;
 		}
-		return meta.rawget(meta_op);
+		return getMetaField(meta, meta_op, flag);
+	}
+
+	/**
+	 * Same as meta.rawget(meta_op), but a miss is remembered in the metatable flags
+	 * so the next lookup of the same metamethod is a bit test.
+	 */
+	private static Object getMetaField(KahluaTable meta, String meta_op, int flag) {
+		if (flag == 0) {
+			return meta.rawget(meta_op);
+		}
+		int version = meta.getVersion();
+		int flags = meta.getMetaFlags();
+		if ((flags & flag) != 0) {
+			return null;
+		}
+		Object res = meta.rawget(meta_op);
+		if (res == null) {
+			meta.setMetaFlags(version, flags | flag);
+		}
+		return res;
+	}
+
+	private static int metaFlag(String meta_op) {
+		for (int i = 0; i < META_EVENTS.length; i++) {
+			if (META_EVENTS[i] == meta_op) {
+				return 1 << i;
+			}
+		}
+		return 0;
 	}
 
-	private final Object getCompMetaOp(Object a, Object b, String meta_op) {
+	private final Object getCompMetaOp(Object a, Object b, String meta_op, int flag) {
 		KahluaTable meta1 = (KahluaTable) getmetatable(a, true);
 		KahluaTable meta2 = (KahluaTable) getmetatable(b, true);
 		if (meta1 != meta2 || meta1 == null) {
 			return null;
 		}
-		return meta1.rawget(meta_op);
+		return getMetaField(meta1, meta_op, flag);
 	}
 
-	private final Object getBinMetaOp(Object a, Object b, String meta_op) {
-		Object op = getMetaOp(a, meta_op);
+	private final Object getBinMetaOp(Object a, Object b, String meta_op, int flag) {
+		Object op = getMetaOp(a, meta_op, flag);
 		if (op != null) {
 			return op;
 		}
-		return getMetaOp(b, meta_op);
+		return getMetaOp(b, meta_op, flag);
+	}
+
+	final Object metaArith(int opcode, Object bo, Object co) {
+		String meta_op = meta_ops[opcode];
+
+		Object metafun = getBinMetaOp(bo, co, meta_op, meta_flags[opcode]);
+		if (metafun == null) {
+			KahluaUtil.fail((meta_op + " not defined for operands"));
+		}
+		return call(metafun, bo, co, null);
+	}
+
+	/**
+	 * Evaluates a < b like the Lua operator, using the __lt metamethod if needed.
+	 */
+	public boolean lessThan(Object a, Object b) {
+		if (a instanceof Double && b instanceof Double) {
+			return ((Double) a).doubleValue() < ((Double) b).doubleValue();
+		}
+		return compare(OP_LT, a, b);
+	}
+
+	/**
+	 * Compares two values that are not both numbers, using metamethods if needed.
+	 */
+	final boolean compare(int opcode, Object bo, Object co) {
+		if (bo instanceof LuaRope) {
+			bo = bo.toString();
+		}
+		if (co instanceof LuaRope) {
+			co = co.toString();
+		}
+		if (bo instanceof String && co instanceof String) {
+			if (opcode == OP_EQ) {
+				return bo.equals(co);
+			}
+			String bs = (String) bo;
+			String cs = (String) co;
+			int cmp = bs.compareTo(cs);
+
+			if (opcode == OP_LT) {
+				return cmp < 0;
+			}
+			// opcode must be OP_LE
+			return cmp <= 0;
+		}
+		if (bo == co) {
+			return true;
+		}
+		boolean invert = false;
+
+		String meta_op = meta_ops[opcode];
+
+		Object metafun = getCompMetaOp(bo, co, meta_op, meta_flags[opcode]);
+
+		/*
+		 * Special case: OP_LE uses OP_LT if __le is not
+		 * defined. a <= b is then translated to not (b < a)
+		 */
+		if (metafun == null && opcode == OP_LE) {
+			metafun = getCompMetaOp(bo, co, "__lt", META_LT);
+
+			// Swap the objects
+			Object tmp = bo;
+			bo = co;
+			co = tmp;
+
+			// Invert a (i.e. add the "not"
+			invert = true;
+		}
+
+		boolean resBool;
+		if (metafun == null && opcode == OP_EQ) {
+			resBool = BaseLib.luaEquals(bo, co);
+		} else {
+			if (metafun == null) {
+				KahluaUtil.fail((meta_op + " not defined for operand"));
+			}
+			Object res = call(metafun, bo, co, null);
+			resBool = KahluaUtil.boolEval(res);
+		}
+
+		if (invert) {
+			resBool = !resBool;
+		}
+		return resBool;
+	}
+
+	/**
+	 * Concatenates the registers first to last, using __concat for
+	 * anything that is not a string or a number.
+	 */
+	final Object concat(LuaCallFrame callFrame, int first, int last) {
+		Object res = callFrame.get(last);
+		last--;
+		while (first <= last) {
+			// Optimize for multi string concats
+			{
+				String resStr = KahluaUtil.rawTostring(res);
+				if (resStr != null) {
+
+					int nStrings = 0;
+					int pos = last;
+					while (first <= pos) {
+						Object o = callFrame.get(pos);
+						pos--;
+						if (!(o instanceof LuaRope) && KahluaUtil.rawTostring(o) == null) {
+							break;
+						}
+						nStrings++;
+					}
+					if (nStrings > 0) {
+						int firstString = last - nStrings + 1;
+						Object head = callFrame.get(firstString);
+						if (head instanceof LuaRope) {
+							// Typically s = s .. piece, extend the rope instead of copying it
+							String tail = resStr;
+							if (firstString < last) {
+								StringBuffer tailBuffer = new StringBuffer();
+								for (int i = firstString + 1; i <= last; i++) {
+									tailBuffer.append(KahluaUtil.rawTostring(callFrame.get(i)));
+								}
+								tailBuffer.append(resStr);
+								tail = tailBuffer.toString();
+							}
+							res = ((LuaRope) head).append(tail);
+						} else {
+							StringBuffer concatBuffer = new StringBuffer();
+							while (firstString <= last) {
+								concatBuffer.append(KahluaUtil
+										.rawTostring(callFrame
+												.get(firstString)));
+								firstString++;
+							}
+							concatBuffer.append(resStr);
+
+							res = LuaRope.wrap(concatBuffer);
+						}
+
+						last = last - nStrings;
+					}
+				}
+			}
+			if (first <= last) {
+				Object leftConcat = callFrame.get(last);
+
+				Object metafun = getBinMetaOp(leftConcat, res, "__concat", META_CONCAT);
+				if (metafun == null) {
+					KahluaUtil.fail(("__concat not defined for operands: " + leftConcat + " and " + res));
+				}
+				res = call(metafun, leftConcat, res, null);
+				last--;
+			}
+		}
+		return res;
 	}
 
 	private final Object getRegisterOrConstant(LuaCallFrame callFrame, int index, Prototype prototype) {
@@ -978,6 +1467,42 @@ public class KahluaThread {
 		}
 	}
 
+	/**
+	 * Integral loop counters and indices are usually unboxed, reading them as
+	 * an int avoids boxing them just to index a table.
+	 *
+	 * @return the register as a positive integer, or 0 if it is anything else
+	 */
+	private static final int getRegisterIntegerKey(LuaCallFrame callFrame, int index) {
+		if (index >= 256 || !callFrame.isNumber(index)) {
+			return 0;
+		}
+		double d = callFrame.getNumber(index);
+		int i = (int) d;
+		if (i == d && i > 0) {
+			return i;
+		}
+		return 0;
+	}
+
+	private static final boolean isRegisterOrConstantNumber(LuaCallFrame callFrame, int index, Prototype prototype) {
+		int cindex = index - 256;
+		if (cindex < 0) {
+			return callFrame.isNumber(index);
+		} else {
+			return prototype.constants[cindex] instanceof Double;
+		}
+	}
+
+	private static final double getRegisterOrConstantNumber(LuaCallFrame callFrame, int index, Prototype prototype) {
+		int cindex = index - 256;
+		if (cindex < 0) {
+			return callFrame.getNumber(index);
+		} else {
+			return ((Double) prototype.constants[cindex]).doubleValue();
+		}
+	}
+
 	/*
 	 * private static final int getA24(int op) { return (op >>> 6); }
 	 */
@@ -1002,9 +1527,205 @@ public class KahluaThread {
 		return (op >>> 14) - 131071;
 	}
 
-	private Double primitiveMath(Double x, Double y, int opcode) {
-		double v1 = KahluaUtil.fromDouble(x);
-		double v2 = KahluaUtil.fromDouble(y);
+	/**
+	 * Returns the instructions to run for the prototype, counting
+	 * how often it is used until it is hot enough to quicken.
+	 */
+	private static final int[] getOpcodes(Prototype prototype) {
+		int[] quickCode = prototype.quickCode;
+		if (quickCode != null) {
+			return quickCode;
+		}
+		if (++prototype.hotness < QUICKEN_THRESHOLD) {
+			return prototype.code;
+		}
+		quickCode = quicken(prototype);
+		prototype.quickCode = quickCode;
+		return quickCode;
+	}
+
+	/**
+	 * Called when the budget counter runs out on a backward jump or a Lua call.
+	 * Suspends the current coroutine if it is preemptible and was resumed from java,
+	 * and fails otherwise. The counter is left negative after a failure,
+	 * so a pcall in Lua can't keep the script running.
+	 * @return true if the coroutine was suspended, and control is back in a java function
+	 */
+	private final boolean budgetExhausted(LuaCallFrame callFrame) {
+		int budget = instructionBudget;
+		if (budget == 0) {
+			budgetLeft = Integer.MAX_VALUE;
+			return false;
+		}
+		Coroutine coroutine = currentCoroutine;
+		Coroutine parent = coroutine.getParent();
+		if (coroutine.preemptible && callFrame.canYield && parent != null) {
+			LuaCallFrame resumer = parent.currentCallFrame();
+			if (resumer == null || resumer.isJava()) {
+				budgetLeft = budget;
+				// Nothing is passed back in when the coroutine is resumed, so just restore the registers
+				callFrame.restoreTop = true;
+				Coroutine.yieldHelper(callFrame, callFrame, 0);
+				return true;
+			}
+		}
+		throw new KahluaException("instruction budget exceeded");
+	}
+
+	private final void resetBudget() {
+		int budget = instructionBudget;
+		budgetLeft = budget == 0 ? Integer.MAX_VALUE : budget;
+	}
+
+	/**
+	 * Limits the number of backward jumps and Lua function calls that a call from the host,
+	 * through call or pcall, may make. Straight line code in between is not counted,
+	 * so this bounds the running time without slowing down the interpreter.
+	 *
+	 * When the budget runs out, the call fails with "instruction budget exceeded",
+	 * unless it happens in a coroutine that is marked as {@link Coroutine#preemptible}
+	 * and was resumed from java, typically through {@link se.krka.kahlua.stdlib.CoroutineLib#wrap(Coroutine)}.
+	 * Such a coroutine is suspended instead, as if it had yielded with no values,
+	 * and continues where it left off when it is resumed again with a new budget.
+	 *
+	 * Compiled prototypes are not used while a budget is set.
+	 *
+	 * @param budget the budget, or 0 for no limit
+	 */
+	public void setInstructionBudget(int budget) {
+		if (budget < 0) {
+			throw new IllegalArgumentException("budget must not be negative: " + budget);
+		}
+		instructionBudget = budget;
+		resetBudget();
+	}
+
+	public int getInstructionBudget() {
+		return instructionBudget;
+	}
+
+	private final void countInvocation(Prototype prototype) {
+		if (compiler != null && !prototype.compileAttempted
+				&& ++prototype.invocations >= invocationThreshold) {
+			compile(prototype);
+		}
+	}
+
+	private final void countBackEdge(Prototype prototype) {
+		if (compiler != null && !prototype.compileAttempted
+				&& ++prototype.backEdges >= backEdgeThreshold) {
+			compile(prototype);
+		}
+	}
+
+	/**
+	 * Compiles a hot prototype and patches OP_JIT_ENTER into the quickened code
+	 * wherever the compiled code can be entered. The original instruction is still
+	 * in prototype.code, and is run if the compiled code declines to run.
+	 */
+	private final void compile(Prototype prototype) {
+		prototype.compileAttempted = true;
+		CompiledPrototype compiled = compiler.compile(prototype);
+		if (compiled == null) {
+			return;
+		}
+		// Other threads may be running the published code, so patch a new copy
+		int[] quickCode = prototype.quickCode;
+		if (quickCode == null) {
+			quickCode = quicken(prototype);
+		} else {
+			int[] patched = new int[quickCode.length];
+			System.arraycopy(quickCode, 0, patched, 0, quickCode.length);
+			quickCode = patched;
+		}
+		int[] entryPoints = compiled.getEntryPoints();
+		for (int i = 0; i < entryPoints.length; i++) {
+			int pc = entryPoints[i];
+			quickCode[pc] = withOpcode(quickCode[pc], OP_JIT_ENTER);
+		}
+		prototype.compiled = compiled;
+		prototype.quickCode = quickCode;
+	}
+
+	/**
+	 * Rewrites common instruction patterns into specialized instructions.
+	 * Instructions are never moved, so the program counter, line info and
+	 * jump offsets are the same for both versions of the code.
+	 * The specialized instructions fall back to the original instruction
+	 * when their operands are of an unexpected type.
+	 */
+	private static final int[] quicken(Prototype prototype) {
+		int[] code = prototype.code;
+		Object[] constants = prototype.constants;
+		int length = code.length;
+		int[] quickCode = new int[length];
+		System.arraycopy(code, 0, quickCode, 0, length);
+		for (int pc = 0; pc < length; pc++) {
+			int op = code[pc];
+			int opcode = op & 63;
+			int b = getB9(op);
+			int c = getC9(op);
+			switch (opcode) {
+			case OP_ADD:
+			case OP_SUB:
+			case OP_MUL:
+			case OP_DIV: {
+				if (b < 256) {
+					if (c < 256) {
+						quickCode[pc] = withOpcode(op, OP_ADD_RR + opcode - OP_ADD);
+					} else if (constants[c - 256] instanceof Double) {
+						quickCode[pc] = withOpcode(op, OP_ADD_RN + opcode - OP_ADD);
+					}
+				}
+				break;
+			}
+			case OP_EQ: {
+				if (b < 256 && c >= 256 && constants[c - 256] instanceof String) {
+					quickCode[pc] = withOpcode(op, OP_EQ_RS);
+				} else if (c < 256 && b >= 256 && constants[b - 256] instanceof String) {
+					// Equality is symmetric, so put the register in B
+					int swapped = (op & 0x3fff) | (b << 14) | (c << 23);
+					quickCode[pc] = withOpcode(swapped, OP_EQ_RS);
+				}
+				break;
+			}
+			case OP_LT:
+			case OP_LE: {
+				if (b < 256 && c < 256) {
+					quickCode[pc] = withOpcode(op, opcode == OP_LT ? OP_LT_RR : OP_LE_RR);
+				}
+				break;
+			}
+			case OP_MOVE: {
+				if (pc + 1 < length && (code[pc + 1] & 63) == OP_CALL) {
+					quickCode[pc] = withOpcode(op, OP_MOVE_CALL);
+				}
+				break;
+			}
+			case OP_CLOSURE: {
+				// Skip the pseudo instructions that describe the upvalues
+				pc += prototype.prototypes[getBx(op)].numUpvalues;
+				break;
+			}
+			case OP_SETLIST: {
+				if (c == 0) {
+					// The next instruction is the block number
+					pc++;
+				}
+				break;
+			}
+			default: {
+			}
+			}
+		}
+		return quickCode;
+	}
+
+	private static final int withOpcode(int op, int opcode) {
+		return (op & ~63) | opcode;
+	}
+
+	final double primitiveMath(double v1, double v2, int opcode) {
 		double res = 0;
 		switch (opcode) {
 		case OP_ADD:
@@ -1034,7 +1755,26 @@ public class KahluaThread {
 		default:
 			// this should be unreachable
 		}
-		return KahluaUtil.toDouble(res);
+		return res;
+	}
+
+	public Object call(Object fun, Object arg1, Object arg2) {
+		int oldTop = currentCoroutine.getTop();
+		final int argslen = 2;
+		currentCoroutine.setTop(oldTop + 1 + argslen);
+		currentCoroutine.objectStack[oldTop] = fun;
+
+		currentCoroutine.objectStack[oldTop + 1] = arg1;
+		currentCoroutine.objectStack[oldTop + 2] = arg2;
+
+		int nReturnValues = call(argslen);
+
+		Object ret = null;
+		if (nReturnValues >= 1) {
+			ret = currentCoroutine.stackGet(oldTop);
+		}
+		currentCoroutine.setTop(oldTop);
+		return ret;
 	}
 
 	public Object call(Object fun, Object arg1, Object arg2, Object arg3) {
@@ -1051,7 +1791,7 @@ public class KahluaThread {
 
 		Object ret = null;
 		if (nReturnValues >= 1) {
-			ret = currentCoroutine.objectStack[oldTop];
+			ret = currentCoroutine.stackGet(oldTop);
 		}
 		currentCoroutine.setTop(oldTop);
 		return ret;
@@ -1070,12 +1810,97 @@ public class KahluaThread {
 
 		Object ret = null;
 		if (nReturnValues >= 1) {
-			ret = currentCoroutine.objectStack[oldTop];
+			ret = currentCoroutine.stackGet(oldTop);
 		}
 		currentCoroutine.setTop(oldTop);
 		return ret;
 	}
 
+	/**
+	 * Binds a global name used by the closure to a cell in its environment.
+	 * The binding is kept in the prototype and is redone if the closure has another environment.
+	 *
+	 * @return the cell, or null if the environment doesn't support cells
+	 */
+	static final GlobalCell getGlobalCell(LuaClosure closure, int constantIndex) {
+		KahluaTable env = closure.env;
+		Prototype prototype = closure.prototype;
+		GlobalCell[] cells = prototype.globalCells;
+		if (cells != null) {
+			GlobalCell cell = cells[constantIndex];
+			if (cell != null && cell.owner == env) {
+				return cell;
+			}
+		} else {
+			cells = new GlobalCell[prototype.constants.length];
+			prototype.globalCells = cells;
+		}
+		GlobalCell cell = env.getCell(prototype.constants[constantIndex]);
+		cells[constantIndex] = cell;
+		return cell;
+	}
+
+	private static final InlineCache[] getInlineCaches(Prototype prototype) {
+		InlineCache[] caches = prototype.inlineCaches;
+		if (caches == null) {
+			caches = new InlineCache[prototype.code.length];
+			prototype.inlineCaches = caches;
+		}
+		return caches;
+	}
+
+	/**
+	 * Same as tableGet, but remembers where constant string keys were found
+	 * in the __index chain, so the next lookup only has to verify the chain versions.
+	 */
+	final Object tableGetCached(Prototype prototype, int pc, KahluaTable table, Object key, int keyIndex) {
+		Object res = table.rawget(key);
+		if (res != null) {
+			return res;
+		}
+		KahluaTable meta = table.getMetatable();
+		if (meta == null) {
+			return null;
+		}
+		if (keyIndex < 256 || !(key instanceof String)) {
+			return tableGet(table, key);
+		}
+		InlineCache[] caches = getInlineCaches(prototype);
+		InlineCache cache = caches[pc];
+		if (cache != null && cache.isValid(meta)) {
+			return cache.value;
+		}
+		cache = InlineCache.index(meta, key, MAX_INDEX_RECURSION);
+		if (cache == null) {
+			return tableGet(table, key);
+		}
+		caches[pc] = cache;
+		return cache.value;
+	}
+
+	/**
+	 * Same as tableSet, but skips the __newindex lookup when the metatable
+	 * is unchanged since it was last seen without one.
+	 */
+	final void tableSetCached(Prototype prototype, int pc, KahluaTable table, Object key, Object value) {
+		KahluaTable meta = table.getMetatable();
+		if (meta == null) {
+			table.rawset(key, value);
+			return;
+		}
+		InlineCache[] caches = getInlineCaches(prototype);
+		InlineCache cache = caches[pc];
+		if (cache == null || !cache.isValid(meta)) {
+			cache = InlineCache.newIndex(meta);
+			if (cache == null) {
+				tableSet(table, key, value);
+				return;
+			}
+			caches[pc] = cache;
+		}
+		table.rawset(key, value);
+	}
+
 	public Object tableGet(Object table, Object key) {
 		Object curObj = table;
 		for (int i = KahluaThread.MAX_INDEX_RECURSION; i > 0; i--) {
@@ -1087,12 +1912,12 @@ public class KahluaThread {
 					return res;
 				}
 			}
-			Object metaOp = getMetaOp(curObj, "__index");
+			Object metaOp = getMetaOp(curObj, "__index", META_INDEX);
 			if (metaOp == null) {
 				if (isTable) {
 					return null;
 				}
-				throw new RuntimeException("attempted index of non-table: "
+				throw new KahluaException("attempted index of non-table: "
 						+ curObj);
 			}
 			if (metaOp instanceof JavaFunction || metaOp instanceof LuaClosure) {
@@ -1102,7 +1927,7 @@ public class KahluaThread {
 				curObj = metaOp;
 			}
 		}
-		throw new RuntimeException("loop in gettable");
+		throw new KahluaException("loop in gettable");
 	}
 
 	public void tableSet(Object table, Object key, Object value) {
@@ -1117,13 +1942,13 @@ public class KahluaThread {
 					return;
 				}
 
-				metaOp = getMetaOp(curObj, "__newindex");
+				metaOp = getMetaOp(curObj, "__newindex", META_NEWINDEX);
 				if (metaOp == null) {
 					t.rawset(key, value);
 					return;
 				}
 			} else {
-				metaOp = getMetaOp(curObj, "__newindex");
+				metaOp = getMetaOp(curObj, "__newindex", META_NEWINDEX);
 				KahluaUtil.luaAssert(metaOp != null,	"attempted index of non-table");
 			}
 			if (metaOp instanceof JavaFunction || metaOp instanceof LuaClosure) {
@@ -1133,7 +1958,7 @@ public class KahluaThread {
 				curObj = metaOp;
 			}
 		}
-		throw new RuntimeException("loop in settable");
+		throw new KahluaException("loop in settable");
 	}
 
 	public void setmetatable(Object o, KahluaTable metatable) {
@@ -1141,6 +1966,8 @@ public class KahluaThread {
         if (o instanceof KahluaTable) {
             KahluaTable t = (KahluaTable) o;
             t.setMetatable(metatable);
+        } else if (o instanceof LuaUserdata) {
+            ((LuaUserdata) o).setMetatable(metatable);
         } else {
             KahluaUtil.fail("Could not set metatable for object");
         }
@@ -1154,13 +1981,16 @@ public class KahluaThread {
 		if (o instanceof KahluaTable) {
 			KahluaTable t = (KahluaTable) o;
 			metatable = t.getMetatable();
-		} else if (metatable == null) {
-            KahluaTable metatables = KahluaUtil.getClassMetatables(platform, getEnvironment());
-			metatable = (KahluaTable) tableGet(metatables, o.getClass());
-        }
+		} else if (o instanceof LuaUserdata) {
+			metatable = ((LuaUserdata) o).getMetatable();
+		} else if (o instanceof LuaRope) {
+			metatable = getClassMetatable(STRING_CLASS);
+		} else {
+			metatable = getClassMetatable(o.getClass());
+		}
 
 		if (!raw && metatable != null) {
-			Object meta2 = metatable.rawget("__metatable");
+			Object meta2 = getMetaField(metatable, "__metatable", META_METATABLE);
 			if (meta2 != null) {
 				return meta2;
 			}
@@ -1168,6 +1998,32 @@ public class KahluaThread {
 		return metatable;
 	}
 
+	/**
+	 * Looks up the metatable for a class in the class metatables of the environment.
+	 * Remembers the last class, since it is usually the same as the previous one.
+	 */
+	private KahluaTable getClassMetatable(Class c) {
+		KahluaTable env = getEnvironment();
+		KahluaTable metatables = classMetatables;
+		if (env != classMetatablesEnv || env.getVersion() != classMetatablesEnvVersion) {
+			metatables = KahluaUtil.getClassMetatables(platform, env);
+			classMetatables = metatables;
+			classMetatablesEnv = env;
+			classMetatablesEnvVersion = env.getVersion();
+			lastClass = null;
+		}
+		if (c == lastClass && metatables.getVersion() == lastClassVersion) {
+			return lastClassMetatable;
+		}
+		KahluaTable metatable = (KahluaTable) tableGet(metatables, c);
+		if (metatables.getMetatable() == null) {
+			lastClass = c;
+			lastClassVersion = metatables.getVersion();
+			lastClassMetatable = metatable;
+		}
+		return metatable;
+	}
+
 	public Object[] pcall(Object fun, Object[] args) {
 		int nArgs = args == null ? 0 : args.length;
 
@@ -1183,7 +2039,9 @@ public class KahluaThread {
 		int nRet = pcall(nArgs);
 		KahluaUtil.luaAssert(coroutine == currentCoroutine, "Internal Kahlua error - coroutine changed in pcall");
 		Object[] ret = new Object[nRet];
-		System.arraycopy(coroutine.objectStack, oldTop, ret, 0, nRet);
+		for (int i = 0; i < nRet; i++) {
+			ret[i] = KahluaUtil.flatten(coroutine.stackGet(oldTop + i));
+		}
 		coroutine.setTop(oldTop);
 		return ret;
 	}
@@ -1192,10 +2050,30 @@ public class KahluaThread {
 		return pcall(fun, null);
 	}
 
+	/**
+	 * Calls the function below the arguments on the stack, and replaces it with
+	 * true and the results, or with false, the error message, the stack trace and the exception.
+	 * @return the number of values left on the stack
+	 */
 	public int pcall(int nArguments) {
+		Coroutine coroutine = currentCoroutine;
+		int oldBase = coroutine.getTop() - nArguments - 1;
+		int nRet = luaPcall(nArguments);
+		if (coroutine.objectStack[oldBase] == Boolean.FALSE) {
+			coroutine.objectStack[oldBase + 2] = KahluaUtil.flatten(coroutine.objectStack[oldBase + 2]);
+		}
+		return nRet;
+	}
+
+	/**
+	 * Same as pcall(int), but the stack trace of an error is left as a Lua string
+	 * that is only built if it is used. For the pcall of the Lua standard library.
+	 * @exclude
+	 */
+	public int luaPcall(int nArguments) {
 		Coroutine coroutine = currentCoroutine;
 		LuaCallFrame currentCallFrame = coroutine.currentCallFrame();
-		coroutine.stackTrace = "";
+		coroutine.stackTrace = null;
 		int oldBase = coroutine.getTop() - nArguments - 1;
 
 		Object errorMessage;
@@ -1229,9 +2107,8 @@ public class KahluaThread {
 		coroutine.setTop(oldBase + 4);
 		coroutine.objectStack[oldBase] = Boolean.FALSE;
 		coroutine.objectStack[oldBase + 1] = errorMessage;
-		coroutine.objectStack[oldBase + 2] = coroutine.stackTrace;
+		coroutine.objectStack[oldBase + 2] = coroutine.takeStackTrace();
 		coroutine.objectStack[oldBase + 3] = exception;
-		coroutine.stackTrace = "";
 
 		return 4;
 	}
@@ -1240,6 +2117,23 @@ public class KahluaThread {
 		return currentCoroutine.environment;
 	}
 
+	/**
+	 * Gets an empty buffer that is reused by this thread, for java functions
+	 * that build a string without calling back into Lua while doing so.
+	 * @param capacity the expected length of the string
+	 * @exclude
+	 */
+	public StringBuffer getStringBuffer(int capacity) {
+		StringBuffer buffer = stringBuffer;
+		if (buffer == null || buffer.capacity() > MAX_KEPT_BUFFER) {
+			buffer = new StringBuffer(Math.max(capacity, 16));
+			stringBuffer = buffer;
+		} else {
+			buffer.setLength(0);
+		}
+		return buffer;
+	}
+
 	public PrintStream getOut() {
         return out;
     }
@@ -2,10 +2,14 @@ package se.krka.kahlua.vm;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Hashtable;
 
 public class KahluaUtil {
 	/** @exclude */
     private static final Object WORKER_THREAD_KEY = new Object();
+
+    // Loaded libraries, never run directly, only copied
+    private static final Hashtable libraries = new Hashtable();
 	/** @exclude */
     private static final String TYPE_NIL = "nil";
 	/** @exclude */
@@ -62,7 +66,7 @@ public class KahluaUtil {
 	}
 
 	public static void fail(String msg) {
-		throw new RuntimeException(msg);
+		throw new KahluaException(msg);
 	}
 
     /**
@@ -133,12 +137,22 @@ public class KahluaUtil {
         return (KahluaTable) t;
     }
 
+    /**
+     * Loads and runs a precompiled library, such as /stdlib.
+     * The bytecode is only read the first time a library is set up,
+     * after that a copy of the loaded prototype is used.
+     */
     public static void setupLibrary(KahluaTable env, KahluaThread workerThread, String library) {
-        LuaClosure closure = loadByteCodeFromResource(library, env);
-        if (closure == null) {
-            fail("Could not load " + library + ".lbc");
+        Prototype prototype = (Prototype) libraries.get(library);
+        if (prototype == null) {
+            LuaClosure closure = loadByteCodeFromResource(library, env);
+            if (closure == null) {
+                fail("Could not load " + library + ".lbc");
+            }
+            prototype = closure.prototype;
+            libraries.put(library, prototype);
         }
-        workerThread.call(closure, null, null, null);
+        workerThread.call(new LuaClosure(prototype.copy(), env), null, null, null);
     }
 
     public static String numberToString(Double num) {
@@ -162,7 +176,7 @@ public class KahluaUtil {
         if (o == null) {
             return TYPE_NIL;
         }
-        if (o instanceof String) {
+        if (o instanceof String || o instanceof LuaRope) {
             return TYPE_STRING;
         }
         if (o instanceof Double) {
@@ -190,7 +204,7 @@ public class KahluaUtil {
         if (o instanceof String) {
             return (String) o;
         }
-        if (o instanceof Double) {
+        if (o instanceof Double || o instanceof LuaRope) {
             return rawTostring(o);
         }
         if (o instanceof Boolean) {
@@ -220,7 +234,7 @@ public class KahluaUtil {
 
     public static Double tonumber(String s, int radix)  {
         if (radix < 2 || radix > 36) {
-            throw new RuntimeException("base out of range");
+            throw new KahluaException("base out of range");
         }
 
         try {
@@ -251,6 +265,9 @@ public class KahluaUtil {
         if (o instanceof Double) {
             return numberToString((Double) o);
         }
+        if (o instanceof LuaRope) {
+            return o.toString();
+        }
         return null;
     }
 
@@ -261,9 +278,23 @@ public class KahluaUtil {
         if (o instanceof String) {
             return tonumber((String) o);
         }
+        if (o instanceof LuaRope) {
+            return tonumber(o.toString());
+        }
         return null;
     }
 
+    /**
+     * @return the value, or the string of a {@link LuaRope}.
+     * Tables use this for keys and values, so ropes never end up in a table.
+     */
+    public static Object flatten(Object o) {
+        if (o instanceof LuaRope) {
+            return o.toString();
+        }
+        return o;
+    }
+
 	public static String getStringArg(LuaCallFrame callFrame, int n, String function) {
 		Object o = getArg(callFrame, n, function);
 		String res = rawTostring(o);
@@ -293,7 +324,7 @@ public class KahluaUtil {
 	}
 
 	private static void fail(int n, String function, String wantedType, String gotten) {
-		throw new RuntimeException("bad argument #" + n + " to '" + function +
+		throw new KahluaException("bad argument #" + n + " to '" + function +
 				"' (" + wantedType + " expected, got " + gotten + ")");
 	}
 
@@ -315,11 +346,23 @@ public class KahluaUtil {
 	public static Object getArg(LuaCallFrame callFrame, int n, String function) {
 		Object res = getOptionalArg(callFrame, n);
 		if (res == null) {
-			throw new RuntimeException("missing argument #" + n + "to '" + function + "'");
+			throw new KahluaException("missing argument #" + n + "to '" + function + "'");
 		}
 		return res;
 	}
 
+	/**
+	 * Decodes a "floating point byte" as used by the table size hints of OP_NEWTABLE.
+	 * @exclude
+	 */
+	public static int fb2int(int x) {
+		int e = (x >>> 3) & 31;
+		if (e == 0) {
+			return x;
+		}
+		return ((x & 7) + 8) << (e - 1);
+	}
+
     public static int len(KahluaTable kahluaTable, int low, int high) {
         while (low < high) {
             int middle = (high + low + 1) >> 1;
@@ -60,7 +60,65 @@ public class LuaCallFrame {
 			throw new KahluaException("Tried to access index outside of stack, top: " + getTop() + ", index: " + index);
 		}
 		*/
-		return coroutine.objectStack[localBase + index];
+		return coroutine.stackGet(localBase + index);
+	}
+
+	final void setNumber(int index, double value) {
+		int i = localBase + index;
+		coroutine.numberStack[i] = value;
+		coroutine.objectStack[i] = Coroutine.UNBOXED;
+	}
+
+	final boolean isNumber(int index) {
+		Object o = coroutine.objectStack[localBase + index];
+		return o == Coroutine.UNBOXED || o instanceof Double;
+	}
+
+	final boolean isNil(int index) {
+		return coroutine.objectStack[localBase + index] == null;
+	}
+
+	/**
+	 * Stores the next table slot of a pairs loop in its hidden control register.
+	 */
+	final void setSlotCursor(int index, int slot) {
+		int i = localBase + index;
+		coroutine.numberStack[i] = slot;
+		coroutine.objectStack[i] = Coroutine.SLOT_CURSOR;
+	}
+
+	/**
+	 * @return the slot stored by setSlotCursor, 0 if the register is nil, or -1 for any other value
+	 */
+	final int getSlotCursor(int index) {
+		int i = localBase + index;
+		Object o = coroutine.objectStack[i];
+		if (o == Coroutine.SLOT_CURSOR) {
+			return (int) coroutine.numberStack[i];
+		}
+		return o == null ? 0 : -1;
+	}
+
+	/**
+	 * Reads a slot known to hold a number, without boxing it.
+	 */
+	final double getNumber(int index) {
+		int i = localBase + index;
+		Object o = coroutine.objectStack[i];
+		if (o == Coroutine.UNBOXED) {
+			return coroutine.numberStack[i];
+		}
+		return ((Double) o).doubleValue();
+	}
+
+	/**
+	 * Copies a slot to another slot, without boxing it.
+	 */
+	final void move(int from, int to) {
+		Coroutine coroutine = this.coroutine;
+		int localBase = this.localBase;
+		coroutine.objectStack[localBase + to] = coroutine.objectStack[localBase + from];
+		coroutine.numberStack[localBase + to] = coroutine.numberStack[localBase + from];
 	}
 
 	public int push(Object x) {
@@ -77,6 +135,15 @@ public class LuaCallFrame {
 		set(top + 1, y);
 		return 2; // returns how much we pushed onto the stack for return value purposes
 	}
+
+	public int push(Object x, Object y, Object z) {
+		int top = getTop();
+		setTop(top + 3);
+		set(top, x);
+		set(top + 1, y);
+		set(top + 2, z);
+		return 3; // returns how much we pushed onto the stack for return value purposes
+	}
 	
 	public int pushNil() {
 		return push(null);
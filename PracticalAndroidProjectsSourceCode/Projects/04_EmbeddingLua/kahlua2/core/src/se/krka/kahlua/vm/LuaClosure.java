@@ -29,14 +29,16 @@ public final class LuaClosure {
 	public UpValue[] upvalues;
 	
 	public LuaClosure(Prototype prototype, KahluaTable env) {
+		prototype.load();
 		this.prototype = prototype;
 		this.env = env;
 		upvalues = new UpValue[prototype.numUpvalues];
 	}
 	
 	public String toString() {
-		if (prototype.lines.length > 0) {
-			return "function " + prototype.toString() + ":" + prototype.lines[0];
+		int[] lines = prototype.getLines();
+		if (lines.length > 0) {
+			return "function " + prototype.toString() + ":" + lines[0];
 		}
 		return "function[" + Integer.toString(hashCode(), 36) + "]";
 	}
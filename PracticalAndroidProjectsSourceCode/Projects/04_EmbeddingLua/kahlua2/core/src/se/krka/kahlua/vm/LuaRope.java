@@ -0,0 +1,120 @@
+/*
+ Copyright (c) 2010 Kristofer Karlsson <kristofer.karlsson@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+
+package se.krka.kahlua.vm;
+
+/**
+ * A string built by concatenation, which is only turned into a java.lang.String
+ * when its contents are needed.
+ *
+ * Ropes share one growing buffer. A rope that is the last one appended to the buffer
+ * can be extended in place, so <code>s = s .. piece</code> in a loop costs time
+ * proportional to the piece instead of the whole string.
+ *
+ * Ropes are created by the concat instruction, and for stack traces that are built on demand.
+ * They only live in Lua registers and upvalues.
+ * They are turned into strings when passed to java functions, returned to java,
+ * or stored in a table, so java code never sees them.
+ * @exclude
+ */
+public final class LuaRope {
+	/** Shorter concatenations are plain strings */
+	static final int MIN_LENGTH = 128;
+
+	private final StringBuffer buffer;
+	private int length;
+	private String string;
+
+	// Gives the contents of a rope without a buffer
+	private Object source;
+
+	private LuaRope(StringBuffer buffer, int length) {
+		this.buffer = buffer;
+		this.length = length;
+	}
+
+	/**
+	 * @return a rope with the contents of source.toString(), which is called when they are first needed
+	 */
+	static LuaRope lazy(Object source) {
+		LuaRope rope = new LuaRope(null, -1);
+		rope.source = source;
+		return rope;
+	}
+
+	/**
+	 * @return a rope with the contents of the buffer if it is long enough, otherwise a string
+	 */
+	static Object wrap(StringBuffer buffer) {
+		int length = buffer.length();
+		if (length < MIN_LENGTH) {
+			return buffer.toString();
+		}
+		return new LuaRope(buffer, length);
+	}
+
+	/**
+	 * @return a new rope with the contents of this rope followed by tail
+	 */
+	LuaRope append(String tail) {
+		StringBuffer b = buffer;
+		if (b != null) {
+			synchronized (b) {
+				if (b.length() == length) {
+					b.append(tail);
+					return new LuaRope(b, b.length());
+				}
+			}
+		}
+		// Something else has already been appended to this rope
+		b = new StringBuffer(2 * (length() + tail.length()));
+		b.append(toString());
+		b.append(tail);
+		return new LuaRope(b, b.length());
+	}
+
+	public int length() {
+		if (length < 0) {
+			length = toString().length();
+		}
+		return length;
+	}
+
+	public String toString() {
+		String s = string;
+		if (s == null) {
+			if (buffer == null) {
+				s = source.toString();
+				string = s;
+				return s;
+			}
+			char[] chars = new char[length];
+			synchronized (buffer) {
+				buffer.getChars(0, length, chars, 0);
+			}
+			s = new String(chars);
+			string = s;
+		}
+		return s;
+	}
+}
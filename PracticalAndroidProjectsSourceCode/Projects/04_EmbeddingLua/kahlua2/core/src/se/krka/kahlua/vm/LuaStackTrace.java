@@ -0,0 +1,100 @@
+/*
+ Copyright (c) 2010 Kristofer Karlsson <kristofer.karlsson@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+
+package se.krka.kahlua.vm;
+
+/**
+ * The call frames that an error has passed through.
+ *
+ * Frames are recorded as (function, pc) pairs while the error unwinds the stack,
+ * and the text is only built when the trace is looked at,
+ * so errors that are caught and ignored don't pay for it.
+ * @exclude
+ */
+public final class LuaStackTrace {
+	private final String prefix;
+
+	// A Prototype for Lua frames, a JavaFunction for java frames
+	private Object[] functions;
+	private int[] pcs;
+	private int size;
+
+	private String text;
+
+	/**
+	 * @param prefix text to put before the frames, such as a trace given to error()
+	 */
+	public LuaStackTrace(String prefix) {
+		this.prefix = prefix;
+	}
+
+	void add(LuaCallFrame frame) {
+		if (functions == null) {
+			functions = new Object[8];
+			pcs = new int[8];
+		} else if (size == functions.length) {
+			Object[] newFunctions = new Object[2 * size];
+			int[] newPcs = new int[2 * size];
+			System.arraycopy(functions, 0, newFunctions, 0, size);
+			System.arraycopy(pcs, 0, newPcs, 0, size);
+			functions = newFunctions;
+			pcs = newPcs;
+		}
+		if (frame.isLua()) {
+			functions[size] = frame.closure.prototype;
+			pcs[size] = frame.pc - 1;
+		} else {
+			functions[size] = frame.javaFunction;
+		}
+		size++;
+		text = null;
+	}
+
+	public String toString() {
+		String s = text;
+		if (s == null) {
+			StringBuffer buffer = new StringBuffer();
+			if (prefix != null) {
+				buffer.append(prefix);
+			}
+			for (int i = 0; i < size; i++) {
+				appendFrame(buffer, functions[i], pcs[i]);
+			}
+			s = buffer.toString();
+			text = s;
+		}
+		return s;
+	}
+
+	static void appendFrame(StringBuffer buffer, Object function, int pc) {
+		if (function instanceof Prototype) {
+			Prototype prototype = (Prototype) function;
+			int[] lines = prototype.getLines();
+			if (lines != null && pc >= 0 && pc < lines.length) {
+				buffer.append("at ").append(prototype).append(":").append(lines[pc]).append("\n");
+			}
+		} else {
+			buffer.append("at ").append(function).append("\n");
+		}
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ Copyright (c) 2010 Kristofer Karlsson <kristofer.karlsson@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package se.krka.kahlua.vm;
+
+/**
+ * A Java object as seen from Lua, together with its own metatable and environment.
+ *
+ * Metamethod lookups on userdata read the metatable directly instead of
+ * looking up the class of the object in the class metatables.
+ * Two userdata are equal if they wrap the same object.
+ *
+ * Several userdata for the same object can share their metatable and environment,
+ * so a wrapper can be created each time the object is passed to Lua
+ * without losing a metatable that was set on an earlier wrapper.
+ */
+public final class LuaUserdata {
+	private static final int METATABLE = 0;
+	private static final int ENVIRONMENT = 1;
+
+	private final Object object;
+	private final KahluaTable[] state;
+
+	public LuaUserdata(Object object, KahluaTable metatable) {
+		this(object, newState(metatable));
+	}
+
+	/**
+	 * Creates a userdata that shares its metatable and environment with every
+	 * userdata created from the same state.
+	 *
+	 * @param state an array from {@link #newState(KahluaTable)}
+	 */
+	public LuaUserdata(Object object, KahluaTable[] state) {
+		if (object == null) {
+			throw new IllegalArgumentException("userdata must wrap an object");
+		}
+		this.object = object;
+		this.state = state;
+	}
+
+	/**
+	 * @return the metatable and environment of a userdata, to be shared by wrappers of the same object
+	 */
+	public static KahluaTable[] newState(KahluaTable metatable) {
+		KahluaTable[] state = new KahluaTable[2];
+		state[METATABLE] = metatable;
+		return state;
+	}
+
+	public Object getObject() {
+		return object;
+	}
+
+	public KahluaTable getMetatable() {
+		return state[METATABLE];
+	}
+
+	public void setMetatable(KahluaTable metatable) {
+		state[METATABLE] = metatable;
+	}
+
+	public KahluaTable getEnvironment() {
+		return state[ENVIRONMENT];
+	}
+
+	public void setEnvironment(KahluaTable environment) {
+		state[ENVIRONMENT] = environment;
+	}
+
+	public boolean equals(Object o) {
+		return o instanceof LuaUserdata && ((LuaUserdata) o).object == object;
+	}
+
+	public int hashCode() {
+		return System.identityHashCode(object);
+	}
+
+	public String toString() {
+		return object.toString();
+	}
+}
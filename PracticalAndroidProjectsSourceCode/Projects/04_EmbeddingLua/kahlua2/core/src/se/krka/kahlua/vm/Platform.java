@@ -6,5 +6,17 @@ public interface Platform {
 
     KahluaTable newTable();
 
+    /**
+     * Creates a new table, presized for the given number of array and hash entries.
+     * The sizes are only hints, and may be ignored.
+     */
+    KahluaTable newTable(int arraySize, int hashSize);
+
     KahluaTable newEnvironment();
+
+    /**
+     * @return the compiler used for hot prototypes, or null to only interpret them.
+     * It is read once when a KahluaThread is created.
+     */
+    PrototypeCompiler getPrototypeCompiler();
 }
@@ -30,6 +30,11 @@ import java.io.InputStream;
 import java.io.OutputStream;
 
 /**
+ * The code of a Lua function.
+ *
+ * A prototype may be shared by closures running in several threads at once.
+ * The state the interpreter attaches to it while running, such as quickened code,
+ * caches and compiled code, is either immutable once published or only used as a hint.
  * @exclude
  */
 public final class Prototype {
@@ -45,15 +50,80 @@ public final class Prototype {
 
     // debug info
     public String name;
-    public int[] lines;
+	// volatile since getLines may decode it lazily while other threads read it
+    public volatile int[] lines;
 
 	public int numUpvalues;
 
 	public int maxStacksize;
+
+	// Lazily created, one slot per instruction
+	InlineCache[] inlineCaches;
+
+	// Lazily created, one slot per constant used as a global name.
+	// Only the cells of the last environment are kept, so a prototype that runs in
+	// several environments keeps looking its globals up again. Cells are written
+	// without locking; a thread that misses another thread's cell just looks it up.
+	GlobalCell[] globalCells;
+
+	// A rewritten copy of code, created by the interpreter once the prototype is hot.
+	// code itself is never modified, so it can still be dumped.
+	// Threads running the same prototype may share it, so a new array is always
+	// filled in completely before it is published, and is never modified afterwards.
+	volatile int[] quickCode;
+	int hotness;
+
+	// Used when the platform has a PrototypeCompiler.
+	// The counters are not synchronized, a lost update only delays compilation.
+	int invocations;
+	int backEdges;
+	boolean compileAttempted;
+	volatile CompiledPrototype compiled;
+
+	// Set until the code and the lines have been decoded, see PrototypeLoader
+	private volatile PrototypeLoader loader;
+	private PrototypeLoader linesLoader;
 	
 	public Prototype() {
 	}
 
+	public Prototype(PrototypeLoader loader) {
+		this.loader = loader;
+		this.linesLoader = loader;
+	}
+
+	/**
+	 * Makes sure that code, constants and prototypes are set.
+	 * This only does something for prototypes created with a {@link PrototypeLoader}.
+	 */
+	public void load() {
+		if (loader != null) {
+			synchronized (this) {
+				PrototypeLoader l = loader;
+				if (l != null) {
+					l.load(this);
+					loader = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the line number of each instruction, decoded first if needed
+	 */
+	public int[] getLines() {
+		int[] l = lines;
+		if (l == null && linesLoader != null) {
+			synchronized (this) {
+				if (lines == null) {
+					lines = linesLoader.loadLines(this);
+				}
+				l = lines;
+			}
+		}
+		return l;
+	}
+
 	public Prototype(DataInputStream in, boolean littleEndian, String parentName, int size_t) throws IOException {
 		int tmp;
 
@@ -142,6 +212,37 @@ public final class Prototype {
 		}
 	}
 
+	/**
+	 * Creates a copy that shares code, constants and debug info with this prototype,
+	 * but has its own caches and counters. Nested prototypes are copied too.
+	 * This lets a loaded prototype be kept as a template and instantiated for
+	 * many environments without running the loader again.
+	 */
+	public Prototype copy() {
+		Prototype copy = new Prototype();
+		copy.numParams = numParams;
+		copy.isVararg = isVararg;
+		copy.name = name;
+		copy.numUpvalues = numUpvalues;
+		copy.maxStacksize = maxStacksize;
+		copy.lines = lines;
+		copy.linesLoader = linesLoader;
+		PrototypeLoader l = loader;
+		if (l != null) {
+			// Not decoded yet, let the copy decode its own
+			copy.loader = l;
+			return copy;
+		}
+		copy.code = code;
+		copy.constants = constants;
+		int n = prototypes.length;
+		copy.prototypes = new Prototype[n];
+		for (int i = 0; i < n; i++) {
+			copy.prototypes[i] = prototypes[i].copy();
+		}
+		return copy;
+	}
+
 	public String toString() {
 		return name;
 	}
@@ -326,6 +427,7 @@ public final class Prototype {
 	}
 	
 	private void dumpPrototype(DataOutputStream dos) throws IOException {
+		load();
 		dumpString(name, dos);
 
 		// Commented out since they are not used
@@ -374,6 +476,7 @@ public final class Prototype {
 		// DEBUGGING INFORMATION
 
 		// read lines
+		int[] lines = getLines();
 		int linesLen = lines.length;
 		dos.writeInt(linesLen);
 		for (int i = 0; i < linesLen; i++) {
@@ -0,0 +1,46 @@
+/*
+ Copyright (c) 2010 Kristofer Karlsson <kristofer.karlsson@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package se.krka.kahlua.vm;
+
+/**
+ * Translates prototypes into a faster representation, such as JVM bytecode.
+ *
+ * The interpreter counts how often a prototype is called and how often its loops
+ * jump backwards. When either counter reaches its threshold, the prototype is
+ * compiled once, and the interpreter switches to the compiled code on the next
+ * call, or the next iteration of the loop.
+ *
+ * @see Platform#getPrototypeCompiler()
+ * @exclude
+ */
+public interface PrototypeCompiler {
+	int getInvocationThreshold();
+
+	int getBackEdgeThreshold();
+
+	/**
+	 * @return the compiled prototype, or null if it can not be compiled.
+	 * The prototype will not be offered again in that case.
+	 */
+	CompiledPrototype compile(Prototype prototype);
+}
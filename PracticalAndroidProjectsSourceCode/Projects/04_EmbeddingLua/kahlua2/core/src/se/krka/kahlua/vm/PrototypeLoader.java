@@ -0,0 +1,44 @@
+/*
+ Copyright (c) 2010 Kristofer Karlsson <kristofer.karlsson@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+
+package se.krka.kahlua.vm;
+
+/**
+ * Decodes the parts of a prototype that are not needed until it runs.
+ *
+ * A prototype created with a loader only has its name, parameter count, upvalue count,
+ * vararg flag and stack size set. Code, constants and nested prototypes are decoded by
+ * {@link #load(Prototype)} when the first closure of the prototype is created,
+ * and the line numbers by {@link #loadLines(Prototype)} when they are first asked for.
+ *
+ * Both methods may be called for copies of the prototype the loader was created for.
+ * @exclude
+ */
+public interface PrototypeLoader {
+	/**
+	 * Sets code, constants and prototypes of the given prototype.
+	 */
+	void load(Prototype prototype);
+
+	int[] loadLines(Prototype prototype);
+}
@@ -0,0 +1,83 @@
+/*
+ Copyright (c) 2010 Kristofer Karlsson <kristofer.karlsson@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+
+package se.krka.kahlua.vm;
+
+/**
+ * The iterator returned by pairs, and handed out to java code, for tables that implement {@link KahluaSlotTable}.
+ *
+ * It only remembers the current slot, the key and the value are read from the table when asked for.
+ * Generic for loops don't call it, the interpreter steps it with {@link #advance()} and
+ * reads the slot directly so array keys are never boxed.
+ */
+final class SlotTableIterator implements KahluaTableIterator {
+	private final KahluaSlotTable table;
+	private int nextSlot;
+	private int slot = -1;
+
+	SlotTableIterator(KahluaSlotTable table) {
+		this.table = table;
+	}
+
+	public int call(LuaCallFrame callFrame, int nArguments) {
+		if (advance()) {
+			return callFrame.push(getKey(), getValue());
+		}
+		return 0;
+	}
+
+	public boolean advance() {
+		if (nextSlot < 0) {
+			return false;
+		}
+		slot = table.nextSlot(nextSlot);
+		nextSlot = slot < 0 ? -1 : slot + 1;
+		return slot >= 0;
+	}
+
+	public Object getKey() {
+		if (slot < 0) {
+			return null;
+		}
+		Object key = table.getSlotKey(slot);
+		return key != null ? key : KahluaUtil.toDouble(slot + 1);
+	}
+
+	public Object getValue() {
+		if (slot < 0) {
+			return null;
+		}
+		return table.getSlotValue(slot);
+	}
+
+	KahluaSlotTable getTable() {
+		return table;
+	}
+
+	/**
+	 * @return the slot of the current entry, or -1 if the iterator is not on an entry
+	 */
+	int getSlot() {
+		return slot;
+	}
+}
@@ -34,6 +34,9 @@ public final class UpValue {
 	// For closed upvalues
 	private Object value;
 
+	// The next open upvalue of the coroutine, at a lower stack index
+	UpValue next;
+
     public UpValue(Coroutine coroutine, int index) {
         this.coroutine = coroutine;
         this.index = index;
@@ -47,7 +50,7 @@ public final class UpValue {
 		if (coroutine == null) {
 			return value;
 		}
-		return coroutine.objectStack[index];
+		return coroutine.stackGet(index);
 	}
 
 
@@ -60,7 +63,7 @@ public final class UpValue {
 	}
 
     public void close() {
-        value = coroutine.objectStack[index];
+        value = coroutine.stackGet(index);
         coroutine = null;
     }
 }
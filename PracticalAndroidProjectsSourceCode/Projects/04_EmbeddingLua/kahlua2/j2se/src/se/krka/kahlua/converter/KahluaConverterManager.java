@@ -22,6 +22,8 @@
 
 package se.krka.kahlua.converter;
 
+import se.krka.kahlua.vm.LuaUserdata;
+
 import java.util.HashMap;
 import java.util.Map;
 
@@ -122,6 +124,10 @@ public class KahluaConverterManager {
 		if (luaObject == null) {
 			return null;
 		}
+
+		if (luaObject instanceof LuaUserdata && javaClass != LuaUserdata.class) {
+			luaObject = ((LuaUserdata) luaObject).getObject();
+		}
 		
 		if (javaClass.isPrimitive()) {
 			javaClass = PRIMITIVE_CLASS.get(javaClass);
@@ -22,6 +22,8 @@
 
 package se.krka.kahlua.integration;
 
+import se.krka.kahlua.vm.LuaUserdata;
+
 import java.util.AbstractList;
 
 public abstract class LuaReturn extends AbstractList<Object> {
@@ -61,7 +63,11 @@ public abstract class LuaReturn extends AbstractList<Object> {
 			throw new IndexOutOfBoundsException("The index " + index + " is outside the bounds [" + 0 
 					+ ", " + n + ")");
 		}
-		return returnValues[index + 1];
+		Object value = returnValues[index + 1];
+		if (value instanceof LuaUserdata) {
+			return ((LuaUserdata) value).getObject();
+		}
+		return value;
 	}
 
 	@Override
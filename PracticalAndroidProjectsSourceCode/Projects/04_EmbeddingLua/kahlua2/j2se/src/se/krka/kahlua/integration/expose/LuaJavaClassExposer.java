@@ -22,6 +22,7 @@
 
 package se.krka.kahlua.integration.expose;
 
+import se.krka.kahlua.converter.JavaToLuaConverter;
 import se.krka.kahlua.converter.KahluaConverterManager;
 import se.krka.kahlua.integration.annotations.Desc;
 import se.krka.kahlua.integration.annotations.LuaConstructor;
@@ -54,6 +55,7 @@ public class LuaJavaClassExposer {
     private final Set<Type> visitedTypes = new HashSet<Type>();
 	private final KahluaTable autoExposeBase;
 	private final Map<Class<?>, Boolean> shouldExposeCache = new HashMap<Class<?>, Boolean>();
+	private final UserdataCache userdataCache = new UserdataCache();
 
 	public LuaJavaClassExposer(KahluaConverterManager manager, Platform platform, KahluaTable environment) {
 		this(manager, platform, environment, null);
@@ -89,8 +91,42 @@ public class LuaJavaClassExposer {
 			});
 			classMetatables.setMetatable(mt);
 		}
+
+		manager.addJavaConverter(new JavaToLuaConverter<Object>() {
+			public Object fromJavaToLua(Object javaObject) {
+				return toUserdata(javaObject);
+			}
+
+			public Class<Object> getJavaType() {
+				return Object.class;
+			}
+		});
     }
 
+	/**
+	 * Wraps objects of exposed classes in a LuaUserdata that points directly at the class metatable,
+	 * so method calls on them don't have to look up the class.
+	 * The userdata for an object share their metatable and environment, so a metatable
+	 * set on it from Lua is kept when the object is passed to java and back.
+	 *
+	 * @return the userdata, or null if the object should be passed to Lua as it is
+	 */
+	public Object toUserdata(Object javaObject) {
+		if (javaObject instanceof LuaUserdata || !"userdata".equals(KahluaUtil.type(javaObject))) {
+			return null;
+		}
+		Class<?> clazz = javaObject.getClass();
+		KahluaTable metatable = getMetaTable(clazz);
+		if (metatable == null && shouldExpose(clazz)) {
+			exposeClass(clazz);
+			metatable = getMetaTable(clazz);
+		}
+		if (metatable == null) {
+			return null;
+		}
+		return userdataCache.get(javaObject, metatable);
+	}
+
 	public Map<Class<?>, ClassDebugInformation> getClassDebugInformation() {
         Object classMap = environment.rawget(DEBUGINFO_KEY);
         if (classMap == null || !(classMap instanceof Map)) {
@@ -29,6 +29,7 @@ import se.krka.kahlua.converter.KahluaConverterManager;
 import se.krka.kahlua.integration.expose.caller.Caller;
 import se.krka.kahlua.vm.JavaFunction;
 import se.krka.kahlua.vm.LuaCallFrame;
+import se.krka.kahlua.vm.LuaUserdata;
 
 /**
  * This is a JavaFunction that is an adapter for Java methods.
@@ -96,6 +97,9 @@ public class LuaJavaInvoker implements JavaFunction {
         int selfDecr = toInt(hasSelf);
         if (hasSelf) {
             Object self = nArguments <= 0 ? null : callFrame.get(0);
+            if (self instanceof LuaUserdata) {
+                self = ((LuaUserdata) self).getObject();
+            }
             if (self == null || !clazz.isInstance(self)) {
                 methodArguments.fail(syntaxErrorMessage("Expected a method call but got a function call."));
                 return methodArguments;
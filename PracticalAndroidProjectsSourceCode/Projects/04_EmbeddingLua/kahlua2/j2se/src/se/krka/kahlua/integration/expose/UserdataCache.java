@@ -0,0 +1,92 @@
+/*
+ Copyright (c) 2010 Kristofer Karlsson <kristofer.karlsson@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package se.krka.kahlua.integration.expose;
+
+import se.krka.kahlua.vm.KahluaTable;
+import se.krka.kahlua.vm.LuaUserdata;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers the metatable and environment of the userdata for each java object,
+ * so an object keeps the metatable set on it from Lua every time it is passed to Lua.
+ *
+ * Objects are compared by identity and held weakly, the state is held strongly
+ * for as long as the object is alive. A metatable that refers back to its object
+ * keeps the object alive.
+ */
+class UserdataCache {
+	private final Map<IdentityKey, KahluaTable[]> map = new HashMap<IdentityKey, KahluaTable[]>();
+	private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+
+	/**
+	 * @return a userdata for object, sharing its state with all earlier userdata for it,
+	 * or with a new state that uses metatable
+	 */
+	public synchronized LuaUserdata get(Object object, KahluaTable metatable) {
+		expunge();
+		KahluaTable[] state = map.get(new IdentityKey(object, null));
+		if (state == null) {
+			state = LuaUserdata.newState(metatable);
+			map.put(new IdentityKey(object, queue), state);
+		}
+		return new LuaUserdata(object, state);
+	}
+
+	private void expunge() {
+		Reference<?> ref;
+		while ((ref = queue.poll()) != null) {
+			map.remove(ref);
+		}
+	}
+
+	private static class IdentityKey extends WeakReference<Object> {
+		private final int hash;
+
+		IdentityKey(Object object, ReferenceQueue<Object> queue) {
+			super(object, queue);
+			hash = System.identityHashCode(object);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o == this) {
+				return true;
+			}
+			if (!(o instanceof IdentityKey)) {
+				return false;
+			}
+			Object referent = get();
+			return referent != null && referent == ((IdentityKey) o).get();
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+}
@@ -7,7 +7,6 @@ import se.krka.kahlua.test.UserdataArray;
 import se.krka.kahlua.threading.BlockingKahluaThread;
 import se.krka.kahlua.vm.*;
 
-import java.io.IOException;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class J2SEPlatform implements Platform {
@@ -15,7 +14,23 @@ public class J2SEPlatform implements Platform {
 	public static J2SEPlatform getInstance() {
 		return INSTANCE;
 	}
-	
+
+    private final boolean hybridTables;
+    private PrototypeCompiler prototypeCompiler;
+
+    public J2SEPlatform() {
+        this(false);
+    }
+
+    /**
+     * @param hybridTables if true, tables are created as {@link KahluaHybridTable},
+     * which are faster but not thread safe.
+     * Otherwise tables are backed by a ConcurrentHashMap.
+     */
+    public J2SEPlatform(boolean hybridTables) {
+        this.hybridTables = hybridTables;
+    }
+
     @Override
     public double pow(double x, double y) {
         return Math.pow(x, y);
@@ -23,9 +38,20 @@ public class J2SEPlatform implements Platform {
 
     @Override
     public KahluaTable newTable() {
+        if (hybridTables) {
+            return new KahluaHybridTable();
+        }
         return new KahluaTableImpl(new ConcurrentHashMap<Object, Object>());
     }
 
+    @Override
+    public KahluaTable newTable(int arraySize, int hashSize) {
+        if (hybridTables) {
+            return new KahluaHybridTable(arraySize, hashSize);
+        }
+        return newTable();
+    }
+
     @Override
     public KahluaTable newEnvironment() {
         KahluaTable env = newTable();
@@ -45,16 +71,25 @@ public class J2SEPlatform implements Platform {
 
         KahluaThread workerThread = setupWorkerThread(env);
         KahluaUtil.setupLibrary(env, workerThread, "/stdlib");
+        KahluaUtil.setupLibrary(env, workerThread, "/serialize");
 
-        try {
-            LuaClosure closure = LuaCompiler.loadis(getClass().getResourceAsStream("/serialize.lua"), "serialize.lua", env);
-            workerThread.call(closure, null, null, null);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        return env;
+    }
 
+    @Override
+    public PrototypeCompiler getPrototypeCompiler() {
+        return prototypeCompiler;
+    }
 
-        return env;
+    /**
+     * Sets the compiler used for hot prototypes, such as the bytecode compiler
+     * in the jit module. Only threads created after this call will use it,
+     * so set it before calling {@link #newEnvironment()}.
+     *
+     * @param prototypeCompiler the compiler, or null to only interpret
+     */
+    public void setPrototypeCompiler(PrototypeCompiler prototypeCompiler) {
+        this.prototypeCompiler = prototypeCompiler;
     }
 
     private KahluaThread setupWorkerThread(KahluaTable env) {
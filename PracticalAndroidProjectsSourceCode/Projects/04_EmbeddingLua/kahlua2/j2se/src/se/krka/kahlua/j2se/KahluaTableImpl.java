@@ -26,18 +26,39 @@ import se.krka.kahlua.vm.*;
 
 import java.util.Iterator;
 import java.util.Map;
-
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A table backed by a java.util.Map.
+ *
+ * If the map is a ConcurrentMap, the table may be used from several java threads at once.
+ * Values are then swapped with the atomic map operations, so a GlobalCell that has been
+ * handed out is never replaced by a plain value, and the version always changes after a write.
+ */
 public class KahluaTableImpl implements KahluaTable {
     private final Map<Object, Object> delegate;
-    private KahluaTable metatable;
+    // The same map as delegate, or null if it isn't concurrent
+    private final ConcurrentMap<Object, Object> concurrent;
+    private volatile KahluaTable metatable;
+    private final AtomicInteger version = new AtomicInteger();
+    // The version in the high bits and the flags in the low bits, so they are always read together
+    private volatile long metaFlags;
+    private volatile boolean hasCells;
 
     public KahluaTableImpl(Map<Object, Object> delegate) {
         this.delegate = delegate;
+        if (delegate instanceof ConcurrentMap) {
+            concurrent = (ConcurrentMap<Object, Object>) delegate;
+        } else {
+            concurrent = null;
+        }
     }
 
     @Override
     public void setMetatable(KahluaTable metatable) {
         this.metatable = metatable;
+        version.incrementAndGet();
     }
 
     @Override
@@ -47,11 +68,47 @@ public class KahluaTableImpl implements KahluaTable {
 
     @Override
     public void rawset(Object key, Object value) {
-        if (value == null) {
-            delegate.remove(key);
-            return;
+        key = KahluaUtil.flatten(key);
+        value = KahluaUtil.flatten(value);
+        if (concurrent != null) {
+            concurrentSet(key, value);
+        } else {
+            if (hasCells) {
+                Object old = delegate.get(key);
+                if (old instanceof GlobalCell) {
+                    ((GlobalCell) old).value = value;
+                    version.incrementAndGet();
+                    return;
+                }
+            }
+            if (value == null) {
+                delegate.remove(key);
+            } else {
+                delegate.put(key, value);
+            }
+        }
+        version.incrementAndGet();
+    }
+
+    private void concurrentSet(Object key, Object value) {
+        while (true) {
+            Object old = concurrent.get(key);
+            if (old instanceof GlobalCell) {
+                ((GlobalCell) old).value = value;
+                return;
+            }
+            if (value == null) {
+                if (old == null || concurrent.remove(key, old)) {
+                    return;
+                }
+            } else if (old == null) {
+                if (concurrent.putIfAbsent(key, value) == null) {
+                    return;
+                }
+            } else if (concurrent.replace(key, old, value)) {
+                return;
+            }
         }
-        delegate.put(key, value);
     }
 
     @Override
@@ -59,7 +116,14 @@ public class KahluaTableImpl implements KahluaTable {
         if (key == null) {
             return null;
         }
-        return delegate.get(key);
+        return unwrap(delegate.get(KahluaUtil.flatten(key)));
+    }
+
+    private Object unwrap(Object value) {
+        if (hasCells && value instanceof GlobalCell) {
+            return ((GlobalCell) value).value;
+        }
+        return value;
     }
 
     @Override
@@ -79,7 +143,8 @@ public class KahluaTableImpl implements KahluaTable {
 
     @Override
     public KahluaTableIterator iterator() {
-        final Iterator<Map.Entry<Object,Object>> iterator = delegate.entrySet().iterator();
+        // Walking the keys doesn't allocate an entry per step, unlike entrySet of a ConcurrentHashMap
+        final Iterator<Object> iterator = delegate.keySet().iterator();
         return new KahluaTableIterator() {
             private Object curKey;
             private Object curValue;
@@ -94,11 +159,14 @@ public class KahluaTableImpl implements KahluaTable {
 
             @Override
             public boolean advance() {
-                if (iterator.hasNext()) {
-                    Map.Entry<Object, Object> value = iterator.next();
-                    curKey = value.getKey();
-                    curValue = value.getValue();
-                    return true;
+                while (iterator.hasNext()) {
+                    Object key = iterator.next();
+                    Object value = unwrap(delegate.get(key));
+                    if (value != null) {
+                        curKey = key;
+                        curValue = value;
+                        return true;
+                    }
                 }
                 curKey = null;
                 curValue = null;
@@ -121,9 +189,63 @@ public class KahluaTableImpl implements KahluaTable {
 
 	@Override
 	public boolean isEmpty() {
+		if (hasCells) {
+			return !iterator().advance();
+		}
 		return delegate.isEmpty();
 	}
 
+	@Override
+	public int getVersion() {
+		return version.get();
+	}
+
+	@Override
+	public GlobalCell getCell(Object key) {
+		if (!(key instanceof String)) {
+			return null;
+		}
+		Object value = delegate.get(key);
+		if (value instanceof GlobalCell) {
+			return (GlobalCell) value;
+		}
+		// Set before the cell is published, so readers never see a cell they don't unwrap
+		hasCells = true;
+		if (concurrent == null) {
+			GlobalCell cell = new GlobalCell(this, value);
+			delegate.put(key, cell);
+			return cell;
+		}
+		while (true) {
+			GlobalCell cell = new GlobalCell(this, value);
+			if (value == null) {
+				Object old = concurrent.putIfAbsent(key, cell);
+				if (old == null) {
+					return cell;
+				}
+				value = old;
+			} else if (concurrent.replace(key, value, cell)) {
+				return cell;
+			} else {
+				value = concurrent.get(key);
+			}
+			if (value instanceof GlobalCell) {
+				return (GlobalCell) value;
+			}
+		}
+	}
+
+	@Override
+	public int getMetaFlags() {
+		long packed = metaFlags;
+		return (int) (packed >>> 32) == version.get() ? (int) packed : 0;
+	}
+
+	@Override
+	public void setMetaFlags(int version, int flags) {
+		metaFlags = ((long) version << 32) | (flags & 0xffffffffL);
+	}
+
 	@Override
     public String toString() {
         return "table 0x" + System.identityHashCode(this);
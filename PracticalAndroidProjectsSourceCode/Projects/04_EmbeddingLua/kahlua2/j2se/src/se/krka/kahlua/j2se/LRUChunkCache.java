@@ -0,0 +1,210 @@
+/*
+ Copyright (c) 2010 Kristofer Karlsson <kristofer.karlsson@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+
+package se.krka.kahlua.j2se;
+
+import se.krka.kahlua.luaj.compiler.ChunkCache;
+import se.krka.kahlua.vm.Prototype;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded {@link ChunkCache} that keys compiled chunks by a SHA-1 hash of the chunk name and source.
+ *
+ * The least recently used chunk is evicted when the cache is full.
+ * If a directory is given, compiled chunks are also written there as bytecode,
+ * so they survive a restart of the JVM. Failing to read or write that directory
+ * is not an error, the chunk is simply compiled again.
+ *
+ * Usage: <code>LuaCompiler.setChunkCache(new LRUChunkCache(500, new File("luacache")));</code>
+ */
+public class LRUChunkCache implements ChunkCache {
+    private final Map<String, Prototype> chunks;
+    private final File directory;
+
+    private long hits;
+    private long diskHits;
+    private long misses;
+
+    public LRUChunkCache(int capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * @param capacity the maximum number of chunks to keep in memory
+     * @param directory where to store compiled chunks, or null to only keep them in memory
+     */
+    public LRUChunkCache(final int capacity, File directory) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.directory = directory;
+        chunks = new LinkedHashMap<String, Prototype>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Prototype> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    @Override
+    public Prototype get(String source, String name) {
+        String key = key(source, name);
+        synchronized (this) {
+            Prototype prototype = chunks.get(key);
+            if (prototype != null) {
+                hits++;
+                return prototype;
+            }
+        }
+        Prototype prototype = readFromDisk(key);
+        synchronized (this) {
+            if (prototype == null) {
+                misses++;
+                return null;
+            }
+            diskHits++;
+            chunks.put(key, prototype);
+            return prototype;
+        }
+    }
+
+    @Override
+    public void put(String source, String name, Prototype prototype) {
+        String key = key(source, name);
+        synchronized (this) {
+            chunks.put(key, prototype);
+        }
+        writeToDisk(key, prototype);
+    }
+
+    private Prototype readFromDisk(String key) {
+        if (directory == null) {
+            return null;
+        }
+        File file = new File(directory, key + ".lbc");
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+            try {
+                return Prototype.loadByteCode(in, null).prototype;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            file.delete();
+            return null;
+        }
+    }
+
+    private void writeToDisk(String key, Prototype prototype) {
+        if (directory == null) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            return;
+        }
+        File file = new File(directory, key + ".lbc");
+        try {
+            // Write to a temporary file first, so other processes never see a partial chunk
+            File tmp = File.createTempFile(key, ".tmp", directory);
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+            try {
+                prototype.dump(out);
+                out.flush();
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            // The chunk stays cached in memory
+        }
+    }
+
+    private static String key(String source, String name) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            if (name != null) {
+                digest.update(name.getBytes("UTF-8"));
+            }
+            digest.update((byte) 0);
+            digest.update(source.getBytes("UTF-8"));
+            byte[] hash = digest.digest();
+            StringBuilder key = new StringBuilder(2 * hash.length);
+            for (byte b : hash) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16));
+                key.append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public synchronized int size() {
+        return chunks.size();
+    }
+
+    public synchronized void clear() {
+        chunks.clear();
+    }
+
+    /**
+     * @return the number of lookups that were found in memory
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of lookups that were found in the directory
+     */
+    public synchronized long getDiskHits() {
+        return diskHits;
+    }
+
+    /**
+     * @return the number of lookups that had to be compiled
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ Copyright (c) 2010 Kristofer Karlsson <kristofer.karlsson@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+
+package se.krka.kahlua.j2se;
+
+import se.krka.kahlua.vm.KahluaTable;
+import se.krka.kahlua.vm.KahluaUtil;
+import se.krka.kahlua.vm.LuaClosure;
+import se.krka.kahlua.vm.Prototype;
+import se.krka.kahlua.vm.PrototypeLoader;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Loads Lua 5.1 bytecode, such as files written by {@link Prototype#dump(java.io.OutputStream)},
+ * by memory mapping the file instead of reading it.
+ *
+ * Only the main function is decoded up front. A nested function is decoded when
+ * the first closure for it is created, and its line numbers when an error or a
+ * stack trace needs them. Functions that never run are never decoded.
+ *
+ * The file must not be modified while closures loaded from it are in use.
+ */
+public class MappedBytecodeLoader {
+    private static final int HEADER_SIZE = 12;
+
+    private final ByteBuffer buffer;
+    private final int sizeT;
+
+    private MappedBytecodeLoader(ByteBuffer buffer, int sizeT) {
+        this.buffer = buffer;
+        this.sizeT = sizeT;
+    }
+
+    public static LuaClosure load(File file, KahluaTable environment) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return load(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), environment);
+        } finally {
+            raf.close();
+        }
+    }
+
+    public static LuaClosure load(ByteBuffer buffer, KahluaTable environment) throws IOException {
+        check(buffer.limit() >= HEADER_SIZE, "Header");
+        check(buffer.get(0) == 27, "Signature 1");
+        check(buffer.get(1) == 'L', "Signature 2");
+        check(buffer.get(2) == 'u', "Signature 3");
+        check(buffer.get(3) == 'a', "Signature 4");
+        check(buffer.get(4) == 0x51, "Version");
+        check(buffer.get(5) == 0, "Format");
+        ByteOrder order = buffer.get(6) == 1 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        check(buffer.get(7) == 4, "Size int");
+        int sizeT = buffer.get(8);
+        check(sizeT == 4 || sizeT == 8, "Size t");
+        check(buffer.get(9) == 4, "Size instr");
+        check(buffer.get(10) == 8, "Size number");
+        check(buffer.get(11) == 0, "Integral");
+
+        buffer = buffer.duplicate().order(order);
+        MappedBytecodeLoader loader = new MappedBytecodeLoader(buffer, sizeT);
+        try {
+            return new LuaClosure(loader.readHeader(new int[] {HEADER_SIZE}, null), environment);
+        } catch (RuntimeException e) {
+            throw new IOException("Could not load bytecode:" + e);
+        }
+    }
+
+    private static void check(boolean c, String message) throws IOException {
+        if (!c) {
+            throw new IOException("Could not load bytecode:" + message);
+        }
+    }
+
+    /**
+     * Reads everything up to the code of a function, and creates a prototype
+     * that decodes the rest on demand. pos[0] is the read position, and is
+     * left at the start of the code.
+     */
+    private Prototype readHeader(int[] pos, String parentName) {
+        String name = readString(pos);
+        if (name == null) {
+            name = parentName;
+        }
+        int p = pos[0] + 8; // line defined and last line defined are not used
+        Prototype prototype = new Prototype(new Body(p + 4, name));
+        prototype.name = name;
+        prototype.numUpvalues = buffer.get(p) & 0xff;
+        prototype.numParams = buffer.get(p + 1) & 0xff;
+        prototype.isVararg = (buffer.get(p + 2) & 2) != 0;
+        prototype.maxStacksize = buffer.get(p + 3) & 0xff;
+        pos[0] = p + 4;
+        return prototype;
+    }
+
+    private void skipFunction(int[] pos) {
+        skipString(pos);
+        pos[0] += 12;
+        skipCode(pos);
+        skipDebugInfo(pos);
+    }
+
+    /**
+     * Skips code, constants and nested functions.
+     */
+    private void skipCode(int[] pos) {
+        pos[0] += 4 + 4 * readInt(pos[0]);
+        int constants = readInt(pos[0]);
+        pos[0] += 4;
+        for (int i = 0; i < constants; i++) {
+            int type = buffer.get(pos[0]++);
+            switch (type) {
+            case 0:
+                break;
+            case 1:
+                pos[0]++;
+                break;
+            case 3:
+                pos[0] += 8;
+                break;
+            case 4:
+                skipString(pos);
+                break;
+            default:
+                throw new IllegalStateException("unknown constant type: " + type);
+            }
+        }
+        int prototypes = readInt(pos[0]);
+        pos[0] += 4;
+        for (int i = 0; i < prototypes; i++) {
+            skipFunction(pos);
+        }
+    }
+
+    private void skipDebugInfo(int[] pos) {
+        pos[0] += 4 + 4 * readInt(pos[0]);
+        int locals = readInt(pos[0]);
+        pos[0] += 4;
+        for (int i = 0; i < locals; i++) {
+            skipString(pos);
+            pos[0] += 8;
+        }
+        int upvalues = readInt(pos[0]);
+        pos[0] += 4;
+        for (int i = 0; i < upvalues; i++) {
+            skipString(pos);
+        }
+    }
+
+    private int readInt(int p) {
+        return buffer.getInt(p);
+    }
+
+    private int readSize(int[] pos) {
+        long len;
+        if (sizeT == 4) {
+            len = buffer.getInt(pos[0]);
+        } else {
+            len = buffer.getLong(pos[0]);
+        }
+        pos[0] += sizeT;
+        if (len < 0 || len > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Bad string size: " + len);
+        }
+        return (int) len;
+    }
+
+    private void skipString(int[] pos) {
+        int len = readSize(pos);
+        pos[0] += len;
+    }
+
+    private String readString(int[] pos) {
+        int len = readSize(pos);
+        if (len == 0) {
+            return null;
+        }
+        len = len - 1;
+        if (len >= 0x10000) {
+            throw new IllegalStateException("Too long string:" + len);
+        }
+        // Decode the same way as Prototype does, as modified UTF-8
+        byte[] stringData = new byte[2 + len];
+        stringData[0] = (byte) ((len >> 8) & 0xff);
+        stringData[1] = (byte) (len & 0xff);
+        for (int i = 0; i < len; i++) {
+            stringData[2 + i] = buffer.get(pos[0] + i);
+        }
+        pos[0] += len + 1;
+        try {
+            return new DataInputStream(new ByteArrayInputStream(stringData)).readUTF();
+        } catch (IOException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    /**
+     * The undecoded part of one function. Reads only use absolute positions,
+     * so bodies can be decoded from several threads at once.
+     */
+    private class Body implements PrototypeLoader {
+        private final int codeStart;
+        private final String name;
+        private volatile int debugStart = -1;
+
+        private Body(int codeStart, String name) {
+            this.codeStart = codeStart;
+            this.name = name;
+        }
+
+        @Override
+        public void load(Prototype prototype) {
+            int[] pos = {codeStart};
+            int codeLen = readInt(pos[0]);
+            pos[0] += 4;
+            int[] code = new int[codeLen];
+            for (int i = 0; i < codeLen; i++) {
+                code[i] = readInt(pos[0]);
+                pos[0] += 4;
+            }
+
+            int constantsLen = readInt(pos[0]);
+            pos[0] += 4;
+            Object[] constants = new Object[constantsLen];
+            for (int i = 0; i < constantsLen; i++) {
+                int type = buffer.get(pos[0]++);
+                switch (type) {
+                case 0:
+                    break;
+                case 1:
+                    constants[i] = buffer.get(pos[0]++) == 0 ? Boolean.FALSE : Boolean.TRUE;
+                    break;
+                case 3:
+                    constants[i] = KahluaUtil.toDouble(buffer.getDouble(pos[0]));
+                    pos[0] += 8;
+                    break;
+                case 4:
+                    constants[i] = readString(pos);
+                    break;
+                default:
+                    throw new IllegalStateException("unknown constant type: " + type);
+                }
+            }
+
+            int prototypesLen = readInt(pos[0]);
+            pos[0] += 4;
+            Prototype[] prototypes = new Prototype[prototypesLen];
+            for (int i = 0; i < prototypesLen; i++) {
+                prototypes[i] = readHeader(pos, name);
+                skipCode(pos);
+                skipDebugInfo(pos);
+            }
+            debugStart = pos[0];
+
+            prototype.code = code;
+            prototype.constants = constants;
+            prototype.prototypes = prototypes;
+        }
+
+        @Override
+        public int[] loadLines(Prototype prototype) {
+            int p = debugStart;
+            if (p < 0) {
+                int[] pos = {codeStart};
+                skipCode(pos);
+                p = pos[0];
+                debugStart = p;
+            }
+            int linesLen = readInt(p);
+            int[] lines = new int[linesLen];
+            for (int i = 0; i < linesLen; i++) {
+                lines[i] = readInt(p + 4 + 4 * i);
+            }
+            return lines;
+        }
+    }
+}
@@ -13,8 +13,9 @@ public class LuaStacktraceElement implements StacktraceElement {
 	}
 
 	public int getLine() {
-		if (pc >= 0 && pc < prototype.lines.length) {
-			return prototype.lines[pc];
+		int[] lines = prototype.getLines();
+		if (pc >= 0 && pc < lines.length) {
+			return lines[pc];
 		}
 		return 0;
 	}
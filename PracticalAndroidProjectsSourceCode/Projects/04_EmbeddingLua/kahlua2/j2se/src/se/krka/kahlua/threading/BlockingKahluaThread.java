@@ -29,7 +29,6 @@ import se.krka.kahlua.vm.*;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -40,145 +39,216 @@ import java.util.concurrent.locks.ReentrantLock;
  * it will in fact just ensure that they do NOT run at the same time, in order to avoid a broken
  * KahluaThread.
  *
- * You MUST lock the thread before doing any operation on it, and unlock it when you're done.
- * Calling pcall will grab the lock implicitly.
+ * A java thread becomes the owner of the KahluaThread when it enters call or pcall,
+ * waiting for any other owner to leave first, and stays the owner until the outermost call returns.
+ * Nested calls and the operations the interpreter uses while running, such as getMetaOp and tableGet,
+ * only compare the owner field with the current thread.
+ * Those operations still take ownership for the duration of the operation if they are
+ * called from another thread.
  */
 public class BlockingKahluaThread extends KahluaThread {
-	private final Lock lock = new ReentrantLock();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final boolean failIfOwned;
 
-    public BlockingKahluaThread(Platform platform, KahluaTable environment) {
-        super(platform, environment);
-    }
+	// Only written by the owner, so a thread reading its own Thread here can trust it without synchronization
+	private Thread owner;
+	private int depth;
 
-    public BlockingKahluaThread(PrintStream stream, Platform platform, KahluaTable environment) {
-        super(stream, platform, environment);
-    }
+	public BlockingKahluaThread(Platform platform, KahluaTable environment) {
+		this(System.out, platform, environment);
+	}
 
-    private void lock() {
-		lock.lock();
+	public BlockingKahluaThread(PrintStream stream, Platform platform, KahluaTable environment) {
+		this(stream, platform, environment, false);
 	}
-	
-	private void unlock() {
-		lock.unlock();
+
+	/**
+	 * @param failIfOwned if true, entering the thread while another java thread owns it
+	 * throws an IllegalStateException instead of waiting.
+	 */
+	protected BlockingKahluaThread(PrintStream stream, Platform platform, KahluaTable environment, boolean failIfOwned) {
+		super(stream, platform, environment);
+		this.failIfOwned = failIfOwned;
+	}
+
+	private void enter() {
+		Thread current = Thread.currentThread();
+		if (owner == current) {
+			depth++;
+			return;
+		}
+		if (failIfOwned) {
+			if (!lock.tryLock()) {
+				throw new IllegalStateException("Multiple threads may not access the same lua thread");
+			}
+		} else {
+			lock.lock();
+		}
+		owner = current;
+		depth = 1;
+	}
+
+	private void exit() {
+		if (--depth == 0) {
+			owner = null;
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true if the current java thread owns this thread
+	 */
+	public boolean isHeldByCurrentThread() {
+		return owner == Thread.currentThread();
 	}
 
 	@Override
 	public int call(int arguments) {
-		lock();
+		enter();
 		try {
 			return super.call(arguments);
 		} finally {
-			unlock();
+			exit();
 		}
 	}
 
 	@Override
 	public int pcall(int arguments) {
-		lock();
+		enter();
 		try {
 			return super.pcall(arguments);
 		} finally {
-			unlock();
+			exit();
 		}
 	}
 
 	@Override
 	public Object[] pcall(Object fun) {
-		lock();
+		enter();
 		try {
 			return super.pcall(fun);
 		} finally {
-			unlock();
+			exit();
 		}
 	}
 
 	@Override
 	public final Object[] pcall(Object fun, Object[] args) {
-		lock();
+		enter();
 		try {
 			return super.pcall(fun, args);
 		} finally {
-			unlock();
-		}		
+			exit();
+		}
 	}
 	
+	@Override
+	public Object call(Object fun, Object arg1, Object arg2) {
+		enter();
+		try {
+			return super.call(fun, arg1, arg2);
+		} finally {
+			exit();
+		}
+	}
+
 	@Override
 	public Object call(Object fun, Object arg1, Object arg2, Object arg3) {
-		lock();
+		enter();
 		try {
 			return super.call(fun, arg1, arg2, arg3);
 		} finally {
-			unlock();
+			exit();
 		}
 	}
 
 	@Override
 	public Object call(Object fun, Object[] args) {
-		lock();
+		enter();
 		try {
 			return super.call(fun, args);
 		} finally {
-			unlock();
+			exit();
 		}
 	}
 
 	@Override
 	public KahluaTable getEnvironment() {
-		lock();
+		if (isHeldByCurrentThread()) {
+			return super.getEnvironment();
+		}
+		enter();
 		try {
 			return super.getEnvironment();
 		} finally {
-			unlock();
+			exit();
 		}
 	}
 
 	@Override
 	public Object getMetaOp(Object o, String meta_op) {
-		lock();
+		if (isHeldByCurrentThread()) {
+			return super.getMetaOp(o, meta_op);
+		}
+		enter();
 		try {
 			return super.getMetaOp(o, meta_op);
 		} finally {
-			unlock();
+			exit();
 		}
 	}
 
 	@Override
 	public Object getmetatable(Object o, boolean raw) {
-		lock();
+		if (isHeldByCurrentThread()) {
+			return super.getmetatable(o, raw);
+		}
+		enter();
 		try {
 			return super.getmetatable(o, raw);
 		} finally {
-			unlock();
+			exit();
 		}
 	}
 
-    @Override
-    public void setmetatable(Object o, KahluaTable metatable) {
-        lock();
-        try {
-            super.setmetatable(o, metatable);
-        } finally {
-            unlock();
-        }
-    }
+	@Override
+	public void setmetatable(Object o, KahluaTable metatable) {
+		if (isHeldByCurrentThread()) {
+			super.setmetatable(o, metatable);
+			return;
+		}
+		enter();
+		try {
+			super.setmetatable(o, metatable);
+		} finally {
+			exit();
+		}
+	}
 
 	@Override
 	public Object tableGet(Object table, Object key) {
-		lock();
+		if (isHeldByCurrentThread()) {
+			return super.tableGet(table, key);
+		}
+		enter();
 		try {
 			return super.tableGet(table, key);
 		} finally {
-			unlock();
+			exit();
 		}
 	}
 
 	@Override
 	public void tableSet(Object table, Object key, Object value) {
-		lock();
+		if (isHeldByCurrentThread()) {
+			super.tableSet(table, key, value);
+			return;
+		}
+		enter();
 		try {
 			super.tableSet(table, key, value);
 		} finally {
-			unlock();
+			exit();
 		}
 	}
 
@@ -0,0 +1,246 @@
+/*
+ Copyright (c) 2010 Kristofer Karlsson <kristofer.karlsson@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+
+package se.krka.kahlua.threading;
+
+import se.krka.kahlua.converter.KahluaConverterManager;
+import se.krka.kahlua.converter.KahluaNumberConverter;
+import se.krka.kahlua.integration.LuaCaller;
+import se.krka.kahlua.integration.LuaReturn;
+import se.krka.kahlua.vm.*;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A fixed number of independent KahluaThreads, each running in its own java thread,
+ * for running scripts on several cores at once.
+ *
+ * Every VM gets its own environment, set up by running the same scripts in it.
+ * The scripts are given as prototypes, and each VM runs its own {@link Prototype#copy()},
+ * so the bytecode is only loaded once but the VMs share no mutable state.
+ *
+ * Functions can't be shared between VMs, so a call names a global function,
+ * which is looked up in the environment of the VM that picks up the call.
+ * Calls are queued and picked up by the first idle VM.
+ * The values returned by a call belong to that VM, and tables among them
+ * must not be modified while the pool is running.
+ */
+public class KahluaThreadPool {
+	// Queued once per worker by shutdown, so idle workers wake up and stop
+	private static final Runnable STOP = new Runnable() {
+		public void run() {
+		}
+	};
+
+	private final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>();
+	private final Worker[] workers;
+	private final LuaCaller caller;
+	private final long startTime;
+	private volatile boolean shutdown;
+
+	/**
+	 * Creates a pool that converts java numbers to and from Lua numbers.
+	 */
+	public KahluaThreadPool(Platform platform, int size, Prototype... scripts) {
+		this(platform, numberConverterManager(), size, scripts);
+	}
+
+	private static KahluaConverterManager numberConverterManager() {
+		KahluaConverterManager manager = new KahluaConverterManager();
+		KahluaNumberConverter.install(manager);
+		return manager;
+	}
+
+	/**
+	 * Creates the VMs and runs the scripts in each of them, in this thread.
+	 * @throws RuntimeException if a script fails
+	 */
+	public KahluaThreadPool(Platform platform, KahluaConverterManager converterManager, int size, Prototype... scripts) {
+		if (size <= 0) {
+			throw new IllegalArgumentException("size must be positive: " + size);
+		}
+		caller = new LuaCaller(converterManager);
+		workers = new Worker[size];
+		for (int i = 0; i < size; i++) {
+			KahluaTable env = platform.newEnvironment();
+			KahluaThread thread = new KahluaThread(platform, env);
+			for (Prototype script : scripts) {
+				LuaReturn ret = LuaReturn.createReturn(thread.pcall(new LuaClosure(script.copy(), env)));
+				if (!ret.isSuccess()) {
+					throw new RuntimeException("Script " + script + " failed: " + ret.getErrorString()
+							+ "\n" + ret.getLuaStackTrace());
+				}
+			}
+			workers[i] = new Worker(i, thread);
+		}
+		startTime = System.nanoTime();
+		for (Worker worker : workers) {
+			worker.start();
+		}
+	}
+
+	/**
+	 * Queues a call to the global function with the given name.
+	 * The arguments are converted like in {@link LuaCaller}.
+	 */
+	public Future<LuaReturn> submit(final String function, final Object... args) {
+		FutureTask<LuaReturn> task = new FutureTask<LuaReturn>(new Callable<LuaReturn>() {
+			public LuaReturn call() {
+				return ((Worker) Thread.currentThread()).call(function, args);
+			}
+		});
+		if (shutdown) {
+			throw new RejectedExecutionException("The pool has been shut down");
+		}
+		queue.add(task);
+		// shutdown may have drained the queue between the check and the add,
+		// in which case nothing would ever run the task
+		if (shutdown && queue.remove(task)) {
+			throw new RejectedExecutionException("The pool has been shut down");
+		}
+		return task;
+	}
+
+	/**
+	 * Calls the global function with the given name in the first idle VM, and waits for the result.
+	 */
+	public LuaReturn call(String function, Object... args) throws InterruptedException {
+		try {
+			return submit(function, args).get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+
+	public int getSize() {
+		return workers.length;
+	}
+
+	/**
+	 * @return the number of calls waiting for an idle VM
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * @return the fraction of the time since the pool was started that the VM has been running calls
+	 */
+	public double getUtilization(int vm) {
+		long elapsed = System.nanoTime() - startTime;
+		if (elapsed <= 0) {
+			return 0;
+		}
+		return Math.min(1.0, (double) workers[vm].getBusyTime() / elapsed);
+	}
+
+	/**
+	 * @return the number of calls the VM has finished
+	 */
+	public long getCallCount(int vm) {
+		return workers[vm].callCount;
+	}
+
+	/**
+	 * Stops the VMs once their current calls are done. Calls still in the queue are cancelled.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		Runnable task;
+		while ((task = queue.poll()) != null) {
+			if (task != STOP) {
+				((Future<?>) task).cancel(false);
+			}
+		}
+		// Busy workers see the flag when their call is done, they are not interrupted
+		// since that would abort whatever java code the script is running
+		for (int i = 0; i < workers.length; i++) {
+			queue.add(STOP);
+		}
+	}
+
+	private class Worker extends Thread {
+		private final KahluaThread thread;
+		private volatile long busyTime;
+		private volatile long callStart;
+		private volatile long callCount;
+
+		private Worker(int index, KahluaThread thread) {
+			super("KahluaThreadPool-" + index);
+			this.thread = thread;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (!shutdown) {
+				Runnable task;
+				try {
+					task = queue.take();
+				} catch (InterruptedException e) {
+					break;
+				}
+				if (task == STOP) {
+					break;
+				}
+				task.run();
+			}
+		}
+
+		LuaReturn call(String function, Object[] args) {
+			// Accounted for before the result is handed over, so the statistics include every finished call
+			long start = System.nanoTime();
+			callStart = start;
+			try {
+				Object functionObject = thread.tableGet(thread.getEnvironment(), function);
+				if (functionObject == null) {
+					throw new IllegalArgumentException("No such function: " + function);
+				}
+				return caller.protectedCall(thread, functionObject, args);
+			} finally {
+				callStart = 0;
+				busyTime += System.nanoTime() - start;
+				callCount++;
+			}
+		}
+
+		long getBusyTime() {
+			long start = callStart;
+			long busy = busyTime;
+			if (start != 0) {
+				busy += System.nanoTime() - start;
+			}
+			return busy;
+		}
+	}
+}
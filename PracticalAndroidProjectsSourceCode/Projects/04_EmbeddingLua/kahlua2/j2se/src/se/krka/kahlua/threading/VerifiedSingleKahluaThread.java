@@ -23,154 +23,21 @@
 package se.krka.kahlua.threading;
 
 import se.krka.kahlua.vm.KahluaTable;
-import se.krka.kahlua.vm.KahluaThread;
 import se.krka.kahlua.vm.Platform;
 
 import java.io.PrintStream;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * A specialized KahluaThread that verifies that a KahluaThread is not used by multiple threads.
+ * A debug variant of {@link BlockingKahluaThread} that verifies that a KahluaThread is not used by multiple threads.
+ * Instead of waiting for the owner to leave, entering the thread from another java thread
+ * throws an IllegalStateException.
  */
-public class VerifiedSingleKahluaThread extends KahluaThread {
-    private final Lock lock = new ReentrantLock();
-
+public class VerifiedSingleKahluaThread extends BlockingKahluaThread {
     public VerifiedSingleKahluaThread(Platform platform, KahluaTable environment) {
-        super(platform, environment);
+        this(System.out, platform, environment);
     }
 
     public VerifiedSingleKahluaThread(PrintStream stream, Platform platform, KahluaTable environment) {
-        super(stream, platform, environment);
-    }
-
-    private void lock() {
-        if (!lock.tryLock()) {
-            throw new IllegalStateException("Multiple threads may not access the same lua thread");
-        }
-    }
-
-    private void unlock() {
-        lock.unlock();
-    }
-
-    @Override
-    public int call(int arguments) {
-        lock();
-        try {
-            return super.call(arguments);
-        } finally {
-            unlock();
-        }
-    }
-
-    @Override
-    public int pcall(int arguments) {
-        lock();
-        try {
-            return super.pcall(arguments);
-        } finally {
-            unlock();
-        }
-    }
-
-    @Override
-    public Object[] pcall(Object fun) {
-        lock();
-        try {
-            return super.pcall(fun);
-        } finally {
-            unlock();
-        }
-    }
-
-    @Override
-    public final Object[] pcall(Object fun, Object[] args) {
-        lock();
-        try {
-            return super.pcall(fun, args);
-        } finally {
-            unlock();
-        }
-    }
-
-    @Override
-    public void setmetatable(Object o, KahluaTable metatable) {
-        lock();
-        try {
-            super.setmetatable(o, metatable);
-        } finally {
-            unlock();
-        }
-    }
-
-    @Override
-    public Object call(Object fun, Object arg1, Object arg2, Object arg3) {
-        lock();
-        try {
-            return super.call(fun, arg1, arg2, arg3);
-        } finally {
-            unlock();
-        }
-    }
-
-    @Override
-    public Object call(Object fun, Object[] args) {
-        lock();
-        try {
-            return super.call(fun, args);
-        } finally {
-            unlock();
-        }
-    }
-
-    @Override
-    public KahluaTable getEnvironment() {
-        lock();
-        try {
-            return super.getEnvironment();
-        } finally {
-            unlock();
-        }
-    }
-
-    @Override
-    public Object getMetaOp(Object o, String meta_op) {
-        lock();
-        try {
-            return super.getMetaOp(o, meta_op);
-        } finally {
-            unlock();
-        }
-    }
-
-    @Override
-    public Object getmetatable(Object o, boolean raw) {
-        lock();
-        try {
-            return super.getmetatable(o, raw);
-        } finally {
-            unlock();
-        }
-    }
-
-    @Override
-    public Object tableGet(Object table, Object key) {
-        lock();
-        try {
-            return super.tableGet(table, key);
-        } finally {
-            unlock();
-        }
-    }
-
-    @Override
-    public void tableSet(Object table, Object key, Object value) {
-        lock();
-        try {
-            super.tableSet(table, key, value);
-        } finally {
-            unlock();
-        }
+        super(stream, platform, environment, true);
     }
-}
\ No newline at end of file
+}
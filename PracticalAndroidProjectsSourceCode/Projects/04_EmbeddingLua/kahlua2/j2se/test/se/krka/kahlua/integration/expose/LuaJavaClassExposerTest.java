@@ -34,6 +34,8 @@ import se.krka.kahlua.vm.*;
 import java.io.IOException;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 public class LuaJavaClassExposerTest {
 	@Test
@@ -72,6 +74,94 @@ public class LuaJavaClassExposerTest {
 
 	}
 
+	@Test
+	public void testUserdata() throws IOException {
+		Platform platform = J2SEPlatform.getInstance();
+		KahluaTable env = platform.newEnvironment();
+		KahluaConverterManager manager = new KahluaConverterManager();
+
+		LuaJavaClassExposer exposer = new LuaJavaClassExposer(manager, platform, env);
+		exposer.exposeClass(MyClass.class);
+
+		MyClass obj = new MyClass();
+		LuaClosure closure = LuaCompiler.loadstring(
+				"local a, b = ...; " +
+				"local t = {[a] = 1}; " +
+				"return type(a), a == b, t[b], a:same(b), a:foo(), a", null, env);
+		KahluaThread t = KahluaUtil.getWorkerThread(platform, env);
+		LuaCaller caller = new LuaCaller(manager);
+		LuaReturn res = caller.protectedCall(t, closure, obj, obj);
+		assertEquals(true, res.isSuccess());
+		assertEquals("userdata", res.get(0));
+		assertEquals(true, res.get(1));
+		assertEquals(1.0, res.get(2));
+		assertEquals(true, res.get(3));
+		assertEquals("Hello world", res.get(4));
+		assertSame(obj, res.get(5));
+	}
+
+	@Test
+	public void testUserdataMetatable() throws IOException {
+		Platform platform = J2SEPlatform.getInstance();
+		KahluaTable env = platform.newEnvironment();
+		KahluaConverterManager manager = new KahluaConverterManager();
+
+		LuaJavaClassExposer exposer = new LuaJavaClassExposer(manager, platform, env);
+		exposer.exposeClass(MyClass.class);
+
+		LuaUserdata plain = (LuaUserdata) exposer.toUserdata(new MyClass());
+		LuaUserdata special = (LuaUserdata) exposer.toUserdata(new MyClass());
+		KahluaTable metatable = platform.newTable();
+		KahluaTable index = platform.newTable();
+		index.rawset("foo", new JavaFunction() {
+			public int call(LuaCallFrame callFrame, int nArguments) {
+				return callFrame.push("special");
+			}
+		});
+		metatable.rawset("__index", index);
+		special.setMetatable(metatable);
+
+		LuaClosure closure = LuaCompiler.loadstring("local a, b = ...; return a:foo(), b:foo()", null, env);
+		KahluaThread t = KahluaUtil.getWorkerThread(platform, env);
+		Object[] res = t.pcall(closure, new Object[] {plain, special});
+		assertEquals(Boolean.TRUE, res[0]);
+		assertEquals("Hello world", res[1]);
+		assertEquals("special", res[2]);
+	}
+
+	@Test
+	public void testUserdataMetatableRoundTrip() throws IOException {
+		Platform platform = J2SEPlatform.getInstance();
+		KahluaTable env = platform.newEnvironment();
+		KahluaConverterManager manager = new KahluaConverterManager();
+
+		LuaJavaClassExposer exposer = new LuaJavaClassExposer(manager, platform, env);
+		exposer.exposeClass(MyClass.class);
+
+		KahluaThread t = KahluaUtil.getWorkerThread(platform, env);
+		LuaCaller caller = new LuaCaller(manager);
+
+		LuaClosure setup = LuaCompiler.loadstring(
+				"local obj = ...; " +
+				"setmetatable(obj, {__index = {foo = function() return 'special' end}}); " +
+				"return obj", null, env);
+		LuaReturn res = caller.protectedCall(t, setup, new MyClass());
+		assertEquals(true, res.isSuccess());
+		Object obj = res.get(0);
+		assertTrue(obj instanceof MyClass);
+
+		// Lua no longer refers to the userdata, only the java code holds the object
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+
+		LuaClosure use = LuaCompiler.loadstring("local obj = ...; return obj:foo()", null, env);
+		res = caller.protectedCall(t, use, obj);
+		assertEquals(true, res.isSuccess());
+		assertEquals("special", res.get(0));
+		assertEquals(exposer.toUserdata(obj), exposer.toUserdata(obj));
+	}
+
 	static interface MyInterface {
 		@LuaMethod
 		String foo();
@@ -83,5 +173,10 @@ public class LuaJavaClassExposerTest {
 		public String foo() {
 			return "Hello world";
 		}
+
+		@LuaMethod
+		public boolean same(MyClass other) {
+			return other == this;
+		}
 	}
 }
@@ -0,0 +1,56 @@
+package se.krka.kahlua.j2se;
+
+import org.junit.Test;
+import se.krka.kahlua.vm.GlobalCell;
+import se.krka.kahlua.vm.KahluaUtil;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class KahluaTableImplTest {
+
+    @Test
+    public void testCellsSurviveConcurrentWrites() throws InterruptedException {
+        for (int round = 0; round < 20; round++) {
+            final KahluaTableImpl table = new KahluaTableImpl(new ConcurrentHashMap<Object, Object>());
+            final String key = "key" + round;
+            Thread[] writers = new Thread[4];
+            for (int i = 0; i < writers.length; i++) {
+                writers[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        for (int j = 0; j < 1000; j++) {
+                            table.rawset(key, j % 3 == 0 ? null : KahluaUtil.toDouble(j));
+                        }
+                    }
+                };
+                writers[i].start();
+            }
+            GlobalCell cell = table.getCell(key);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            assertSame(cell, table.getCell(key));
+            table.rawset(key, "last");
+            assertEquals("last", cell.value);
+            assertEquals("last", table.rawget(key));
+        }
+    }
+
+    @Test
+    public void testVersionAndMetaFlags() {
+        KahluaTableImpl table = new KahluaTableImpl(new ConcurrentHashMap<Object, Object>());
+        int version = table.getVersion();
+        table.setMetaFlags(version, 5);
+        assertEquals(5, table.getMetaFlags());
+        table.rawset("a", "b");
+        assertEquals(version + 1, table.getVersion());
+        assertEquals(0, table.getMetaFlags());
+
+        // Flags derived from contents read before a write must not be trusted after it
+        table.setMetaFlags(version, 5);
+        assertEquals(0, table.getMetaFlags());
+    }
+}
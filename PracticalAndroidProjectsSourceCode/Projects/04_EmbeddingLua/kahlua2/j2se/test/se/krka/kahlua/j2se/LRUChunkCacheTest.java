@@ -0,0 +1,106 @@
+package se.krka.kahlua.j2se;
+
+import org.junit.After;
+import org.junit.Test;
+import se.krka.kahlua.luaj.compiler.LuaCompiler;
+import se.krka.kahlua.vm.KahluaTable;
+import se.krka.kahlua.vm.KahluaThread;
+import se.krka.kahlua.vm.LuaClosure;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class LRUChunkCacheTest {
+
+    @After
+    public void tearDown() {
+        LuaCompiler.setChunkCache(null);
+    }
+
+    @Test
+    public void testHitsAndMisses() throws IOException {
+        LRUChunkCache cache = new LRUChunkCache(10);
+        LuaCompiler.setChunkCache(cache);
+        J2SEPlatform platform = new J2SEPlatform();
+        KahluaTable env1 = platform.newEnvironment();
+        KahluaTable env2 = platform.newEnvironment();
+
+        String source = "x = (x or 0) + 1; return x";
+        LuaClosure c1 = LuaCompiler.loadstring(source, "chunk", env1);
+        LuaClosure c2 = LuaCompiler.loadstring(source, "chunk", env2);
+        LuaClosure c3 = LuaCompiler.loadis(new ByteArrayInputStream(source.getBytes("UTF-8")), "chunk", env1);
+        LuaCompiler.loadstring(source, "other", env1);
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(2, cache.size());
+
+        assertNotSame(c1.prototype, c2.prototype);
+        assertSame(c1.prototype.code, c2.prototype.code);
+        assertSame(env1, c1.env);
+        assertSame(env2, c2.env);
+        assertEquals(1.0, call(platform, c1));
+        assertEquals(1.0, call(platform, c2));
+        assertEquals(2.0, call(platform, c3));
+    }
+
+    @Test
+    public void testEviction() throws IOException {
+        LRUChunkCache cache = new LRUChunkCache(2);
+        LuaCompiler.setChunkCache(cache);
+        KahluaTable env = new J2SEPlatform().newEnvironment();
+        LuaCompiler.loadstring("return 1", null, env);
+        LuaCompiler.loadstring("return 2", null, env);
+        LuaCompiler.loadstring("return 1", null, env);
+        LuaCompiler.loadstring("return 3", null, env);
+        assertEquals(2, cache.size());
+        LuaCompiler.loadstring("return 1", null, env);
+        assertEquals(2, cache.getHits());
+        LuaCompiler.loadstring("return 2", null, env);
+        assertEquals(2, cache.getHits());
+        assertEquals(4, cache.getMisses());
+    }
+
+    @Test
+    public void testDirectory() throws IOException {
+        File directory = File.createTempFile("chunks", "");
+        directory.delete();
+        try {
+            J2SEPlatform platform = new J2SEPlatform();
+            KahluaTable env = platform.newEnvironment();
+            String source = "local function f(n) if n < 2 then return n end return f(n - 1) + f(n - 2) end return f(10)";
+
+            LRUChunkCache cache = new LRUChunkCache(10, directory);
+            LuaCompiler.setChunkCache(cache);
+            assertEquals(55.0, call(platform, LuaCompiler.loadstring(source, "fib", env)));
+            assertEquals(1, cache.getMisses());
+            assertEquals(1, directory.listFiles().length);
+
+            cache = new LRUChunkCache(10, directory);
+            LuaCompiler.setChunkCache(cache);
+            assertEquals(55.0, call(platform, LuaCompiler.loadstring(source, "fib", env)));
+            assertEquals(0, cache.getMisses());
+            assertEquals(1, cache.getDiskHits());
+            assertEquals(55.0, call(platform, LuaCompiler.loadstring(source, "fib", env)));
+            assertEquals(1, cache.getHits());
+        } finally {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    private Object call(J2SEPlatform platform, LuaClosure closure) {
+        Object[] res = new KahluaThread(platform, closure.env).pcall(closure);
+        assertEquals(Boolean.TRUE, res[0]);
+        return res[1];
+    }
+}
@@ -0,0 +1,82 @@
+package se.krka.kahlua.j2se;
+
+import org.junit.Test;
+import se.krka.kahlua.luaj.compiler.LuaCompiler;
+import se.krka.kahlua.vm.KahluaTable;
+import se.krka.kahlua.vm.KahluaThread;
+import se.krka.kahlua.vm.LuaClosure;
+import se.krka.kahlua.vm.Prototype;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MappedBytecodeLoaderTest {
+    private static final String SOURCE =
+            "local function unused(x)\n" +
+            "    return function() return x end\n" +
+            "end\n" +
+            "local function fib(n)\n" +
+            "    if n < 2 then return n end\n" +
+            "    return fib(n - 1) + fib(n - 2)\n" +
+            "end\n" +
+            "local function fail()\n" +
+            "    error(\"boom\")\n" +
+            "end\n" +
+            "local s = \"caf\\195\\169\" .. 1.5 .. tostring(true)\n" +
+            "return fib(15), s, pcall(fail)\n";
+
+    @Test
+    public void testLazyLoading() throws IOException {
+        J2SEPlatform platform = new J2SEPlatform();
+        KahluaTable env = platform.newEnvironment();
+        LuaClosure compiled = LuaCompiler.loadstring(SOURCE, "bundle", env);
+
+        File file = File.createTempFile("bundle", ".lbc");
+        try {
+            OutputStream out = new FileOutputStream(file);
+            compiled.prototype.dump(out);
+            out.close();
+
+            LuaClosure closure = MappedBytecodeLoader.load(file, env);
+            Prototype main = closure.prototype;
+            assertEquals(3, main.prototypes.length);
+            for (Prototype prototype : main.prototypes) {
+                assertNull(prototype.code);
+                assertNull(prototype.lines);
+            }
+            assertTrue(Arrays.equals(compiled.prototype.code, main.code));
+            assertTrue(Arrays.equals(compiled.prototype.constants, main.constants));
+
+            Object[] res = new KahluaThread(platform, env).pcall(closure);
+            assertEquals(Boolean.TRUE, res[0]);
+            assertEquals(610.0, res[1]);
+            assertEquals(compiled.prototype.constants.length, main.constants.length);
+            assertEquals(Boolean.FALSE, res[3]);
+            assertEquals("caf\u00e91.5true", res[2]);
+            assertEquals("boom", res[4]);
+
+            // A closure was created for unused, but never called
+            Prototype unused = main.prototypes[0];
+            assertNotNull(unused.code);
+            assertNull(unused.lines);
+            assertEquals(1, unused.prototypes.length);
+            Prototype inner = unused.prototypes[0];
+            assertNull(inner.code);
+            assertTrue(Arrays.equals(compiled.prototype.prototypes[0].prototypes[0].getLines(), inner.getLines()));
+            assertNull(inner.code);
+            inner.load();
+            assertTrue(Arrays.equals(compiled.prototype.prototypes[0].prototypes[0].code, inner.code));
+            assertTrue(Arrays.equals(compiled.prototype.prototypes[2].getLines(), main.prototypes[2].getLines()));
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -38,14 +38,19 @@ import java.util.List;
 
 public class StringFormatTest {
 	static interface Runner {
-		String run(String format, Double x, Double y);
+		String run(String format, Object x, Object y);
 		String name();
 	}
 
 	static class JavaRunner implements Runner {
 
 		@Override
-		public String run(String format, Double x, Double y) {
+		public String run(String format, Object x, Object y) {
+			// java wants integers for integer conversions
+			if (format.matches(".*%[-0-9.]*[dxX].*")) {
+				x = ((Double) x).longValue();
+				y = ((Double) y).longValue();
+			}
 			return String.format(format, x, y);
 		}
 
@@ -65,7 +70,7 @@ public class StringFormatTest {
 		}
 
 		@Override
-		public String run(String format, Double x, Double y) {
+		public String run(String format, Object x, Object y) {
 			return (String) thread.call(closure, format, x, y);
 		}
 
@@ -75,14 +80,18 @@ public class StringFormatTest {
 		}
 	}
 
+	private static final String[] FORMATS = {
+			"Hello %3.2f world %13.2f",
+			"%d items, %d left",
+			"[%-10s] [%10s]",
+			"%08x:%X",
+			"%g %e",
+			"no conversions at all",
+	};
+
 	@Test
 	@Ignore
 	public void testFormat() throws IOException {
-		String format = "Hello %3.2f world %13.2f";
-		Double x = 123.0;
-		Double y = 456.0;
-
-
 		Platform platform = new J2SEPlatform();
 		KahluaTable env = platform.newEnvironment();
 		KahluaThread thread = new KahluaThread(platform, env);
@@ -96,31 +105,64 @@ public class StringFormatTest {
 		Runner luaRunner = new LuaRunner(thread, closure);
 		Runner javaRunner = new JavaRunner();
 
-		List<Runner> list = new ArrayList<Runner>();
-		for (int i = 0; i < 20; i++) {
-			list.add(luaRunner);
-			list.add(javaRunner);
+		// warm up both runners on all formats before measuring anything
+		for (String format : FORMATS) {
+			measure(luaRunner, format, 200);
+			measure(javaRunner, format, 200);
 		}
-		Collections.shuffle(list);
-
-		for (Runner runner : list) {
-			int count = 0;
-			long t1 = System.currentTimeMillis();
-			long t2;
 
-			while (true) {
-				t2 = System.currentTimeMillis();
-				if (t2 - t1 > 1000) {
-					break;
+		for (String format : FORMATS) {
+			List<Runner> list = new ArrayList<Runner>();
+			for (int i = 0; i < 5; i++) {
+				list.add(luaRunner);
+				list.add(javaRunner);
+			}
+			Collections.shuffle(list);
+
+			double luaBest = 0;
+			double javaBest = 0;
+			for (Runner runner : list) {
+				double performance = measure(runner, format, 500);
+				if (runner == luaRunner) {
+					luaBest = Math.max(luaBest, performance);
+				} else {
+					javaBest = Math.max(javaBest, performance);
 				}
-				runner.run(format, x, y);
-				count++;
 			}
-			double performance = (double) count / (t2 - t1);
 			System.out.println(String.format(
-					"%30s %10.2f invocations/ms",
-					runner.name(),
-					performance));
+					"%-30s %30s %10.2f invocations/ms",
+					format,
+					luaRunner.name(),
+					luaBest));
+			System.out.println(String.format(
+					"%-30s %30s %10.2f invocations/ms",
+					format,
+					javaRunner.name(),
+					javaBest));
+		}
+	}
+
+	private static double measure(Runner runner, String format, long millis) {
+		if (format.contains("%s")) {
+			return measure(runner, format, millis, "left", "right");
+		}
+		return measure(runner, format, millis, 123.0, 456.0);
+	}
+
+	private static double measure(Runner runner, String format, long millis, Object x, Object y) {
+		int count = 0;
+		long t1 = System.currentTimeMillis();
+		long t2;
+		while (true) {
+			t2 = System.currentTimeMillis();
+			if (t2 - t1 > millis) {
+				break;
+			}
+			for (int i = 0; i < 100; i++) {
+				runner.run(format, x, y);
+			}
+			count += 100;
 		}
+		return (double) count / (t2 - t1);
 	}
 }
@@ -0,0 +1,96 @@
+package se.krka.kahlua.threading;
+
+import org.junit.Test;
+import se.krka.kahlua.j2se.J2SEPlatform;
+import se.krka.kahlua.luaj.compiler.LuaCompiler;
+import se.krka.kahlua.vm.*;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BlockingKahluaThreadTest {
+
+    @Test
+    public void testCallsFromManyThreads() throws Exception {
+        Platform platform = new J2SEPlatform();
+        KahluaTable env = platform.newEnvironment();
+        final BlockingKahluaThread thread = new BlockingKahluaThread(platform, env);
+        final LuaClosure closure = LuaCompiler.loadstring("x = (x or 0) + 1", "inc", env);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        thread.pcall(closure);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(8000.0, thread.tableGet(env, "x"));
+        assertFalse(thread.isHeldByCurrentThread());
+    }
+
+    @Test
+    public void testOwnedDuringCall() throws Exception {
+        Platform platform = new J2SEPlatform();
+        KahluaTable env = platform.newEnvironment();
+        final BlockingKahluaThread thread = new BlockingKahluaThread(platform, env);
+        env.rawset("isOwner", new JavaFunction() {
+            public int call(LuaCallFrame callFrame, int nArguments) {
+                return callFrame.push(thread.isHeldByCurrentThread());
+            }
+        });
+        Object[] res = thread.pcall(LuaCompiler.loadstring(
+                "return pcall(function() return isOwner() end)", "owner", env));
+        assertEquals(Boolean.TRUE, res[1]);
+        assertEquals(Boolean.TRUE, res[2]);
+        assertFalse(thread.isHeldByCurrentThread());
+    }
+
+    @Test
+    public void testVerifiedFailsWhenShared() throws Exception {
+        Platform platform = new J2SEPlatform();
+        KahluaTable env = platform.newEnvironment();
+        final VerifiedSingleKahluaThread thread = new VerifiedSingleKahluaThread(platform, env);
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        env.rawset("block", new JavaFunction() {
+            public int call(LuaCallFrame callFrame, int nArguments) {
+                entered.countDown();
+                try {
+                    done.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return 0;
+            }
+        });
+        final LuaClosure closure = LuaCompiler.loadstring("block()", "block", env);
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                thread.pcall(closure);
+            }
+        };
+        other.start();
+        entered.await();
+        boolean failed = false;
+        try {
+            thread.tableGet(env, "x");
+        } catch (IllegalStateException e) {
+            failed = true;
+        }
+        done.countDown();
+        other.join();
+        assertTrue(failed);
+        assertEquals(null, thread.tableGet(env, "x"));
+    }
+}
@@ -0,0 +1,160 @@
+package se.krka.kahlua.threading;
+
+import org.junit.Test;
+import se.krka.kahlua.integration.LuaReturn;
+import se.krka.kahlua.j2se.J2SEPlatform;
+import se.krka.kahlua.luaj.compiler.LuaCompiler;
+import se.krka.kahlua.vm.JavaFunction;
+import se.krka.kahlua.vm.LuaCallFrame;
+import se.krka.kahlua.vm.Prototype;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class KahluaThreadPoolTest {
+    private static final String SCRIPT =
+            "calls = 0\n" +
+            "function square(x) calls = calls + 1; return x * x end\n" +
+            "function getCalls() return calls end\n" +
+            "function fail() error('failed') end\n" +
+            "function callJava(f) return f() end\n";
+
+    private static Prototype compile(J2SEPlatform platform) throws IOException {
+        return LuaCompiler.loadstring(SCRIPT, "pool", platform.newEnvironment()).prototype;
+    }
+
+    @Test
+    public void testCalls() throws Exception {
+        J2SEPlatform platform = new J2SEPlatform();
+        KahluaThreadPool pool = new KahluaThreadPool(platform, 4, compile(platform));
+        try {
+            assertEquals(4, pool.getSize());
+            List<Future<LuaReturn>> futures = new ArrayList<Future<LuaReturn>>();
+            for (int i = 0; i < 200; i++) {
+                futures.add(pool.submit("square", i));
+            }
+            for (int i = 0; i < 200; i++) {
+                LuaReturn ret = futures.get(i).get();
+                assertTrue(ret.isSuccess());
+                assertEquals((double) (i * i), ret.getFirst());
+            }
+            assertEquals(0, pool.getQueueDepth());
+
+            long total = 0;
+            for (int vm = 0; vm < pool.getSize(); vm++) {
+                total += pool.getCallCount(vm);
+                double utilization = pool.getUtilization(vm);
+                assertTrue(utilization >= 0 && utilization <= 1);
+            }
+            assertEquals(200, total);
+
+            LuaReturn ret = pool.call("fail");
+            assertFalse(ret.isSuccess());
+            assertTrue(ret.getErrorString().contains("failed"));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testEnvironmentsAreIndependent() throws Exception {
+        J2SEPlatform platform = new J2SEPlatform();
+        KahluaThreadPool pool = new KahluaThreadPool(platform, 1, compile(platform));
+        KahluaThreadPool other = new KahluaThreadPool(platform, 1, compile(platform));
+        try {
+            for (int i = 0; i < 5; i++) {
+                pool.call("square", i);
+            }
+            assertEquals(5.0, pool.call("getCalls").getFirst());
+            assertEquals(0.0, other.call("getCalls").getFirst());
+        } finally {
+            pool.shutdown();
+            other.shutdown();
+        }
+    }
+
+    @Test
+    public void testShutdown() throws Exception {
+        J2SEPlatform platform = new J2SEPlatform();
+        KahluaThreadPool pool = new KahluaThreadPool(platform, 2, compile(platform));
+        pool.shutdown();
+        try {
+            pool.submit("square", 1);
+            fail();
+        } catch (RejectedExecutionException e) {
+        }
+    }
+
+    @Test
+    public void testShutdownLetsRunningCallsFinish() throws Exception {
+        J2SEPlatform platform = new J2SEPlatform();
+        KahluaThreadPool pool = new KahluaThreadPool(platform, 2, compile(platform));
+        final CountDownLatch started = new CountDownLatch(1);
+        JavaFunction sleep = new JavaFunction() {
+            public int call(LuaCallFrame callFrame, int nArguments) {
+                started.countDown();
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException("interrupted");
+                }
+                return callFrame.push("slept");
+            }
+        };
+        Future<LuaReturn> future = pool.submit("callJava", sleep);
+        started.await();
+        pool.shutdown();
+        LuaReturn ret = future.get(5, TimeUnit.SECONDS);
+        assertTrue(ret.isSuccess());
+        assertEquals("slept", ret.getFirst());
+    }
+
+    @Test
+    public void testSubmitRacingShutdown() throws Exception {
+        J2SEPlatform platform = new J2SEPlatform();
+        for (int round = 0; round < 20; round++) {
+            final KahluaThreadPool pool = new KahluaThreadPool(platform, 2, compile(platform));
+            final List<Future<LuaReturn>> futures = new ArrayList<Future<LuaReturn>>();
+            Thread submitter = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            futures.add(pool.submit("square", 2));
+                        }
+                    } catch (RejectedExecutionException e) {
+                    }
+                }
+            };
+            submitter.start();
+            Thread.sleep(1);
+            pool.shutdown();
+            submitter.join();
+            // Every accepted call must either run or be cancelled, never stay pending
+            for (Future<LuaReturn> future : futures) {
+                try {
+                    future.get(5, TimeUnit.SECONDS);
+                } catch (CancellationException e) {
+                }
+            }
+        }
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testFailingScript() throws Exception {
+        J2SEPlatform platform = new J2SEPlatform();
+        Prototype broken = LuaCompiler.loadstring("error('broken')", "broken", platform.newEnvironment()).prototype;
+        new KahluaThreadPool(platform, 2, broken);
+    }
+}
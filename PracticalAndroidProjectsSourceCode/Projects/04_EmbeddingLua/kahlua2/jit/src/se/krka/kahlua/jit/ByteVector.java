@@ -0,0 +1,124 @@
+/*
+ Copyright (c) 2010 Kristofer Karlsson <kristofer.karlsson@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package se.krka.kahlua.jit;
+
+/**
+ * A growable byte array with big endian writes, as used by class files.
+ */
+final class ByteVector {
+    private byte[] data;
+    private int length;
+
+    ByteVector(int initialSize) {
+        data = new byte[initialSize];
+    }
+
+    int length() {
+        return length;
+    }
+
+    void putByte(int b) {
+        ensure(1);
+        data[length++] = (byte) b;
+    }
+
+    void putShort(int s) {
+        ensure(2);
+        data[length++] = (byte) (s >>> 8);
+        data[length++] = (byte) s;
+    }
+
+    void putInt(int i) {
+        ensure(4);
+        data[length++] = (byte) (i >>> 24);
+        data[length++] = (byte) (i >>> 16);
+        data[length++] = (byte) (i >>> 8);
+        data[length++] = (byte) i;
+    }
+
+    void putLong(long l) {
+        putInt((int) (l >>> 32));
+        putInt((int) l);
+    }
+
+    void putBytes(byte[] bytes, int offset, int len) {
+        ensure(len);
+        System.arraycopy(bytes, offset, data, length, len);
+        length += len;
+    }
+
+    void putVector(ByteVector other) {
+        putBytes(other.data, 0, other.length);
+    }
+
+    /**
+     * Writes a string in the modified UTF-8 format of the constant pool.
+     */
+    void putUTF8(String s) {
+        ByteVector encoded = new ByteVector(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 1 && c <= 0x7f) {
+                encoded.putByte(c);
+            } else if (c <= 0x7ff) {
+                encoded.putByte(0xc0 | (c >> 6));
+                encoded.putByte(0x80 | (c & 0x3f));
+            } else {
+                encoded.putByte(0xe0 | (c >> 12));
+                encoded.putByte(0x80 | ((c >> 6) & 0x3f));
+                encoded.putByte(0x80 | (c & 0x3f));
+            }
+        }
+        if (encoded.length > 0xffff) {
+            throw new IllegalArgumentException("String too long for the constant pool");
+        }
+        putShort(encoded.length);
+        putVector(encoded);
+    }
+
+    void setShort(int position, int s) {
+        data[position] = (byte) (s >>> 8);
+        data[position + 1] = (byte) s;
+    }
+
+    void setInt(int position, int i) {
+        data[position] = (byte) (i >>> 24);
+        data[position + 1] = (byte) (i >>> 16);
+        data[position + 2] = (byte) (i >>> 8);
+        data[position + 3] = (byte) i;
+    }
+
+    byte[] toByteArray() {
+        byte[] res = new byte[length];
+        System.arraycopy(data, 0, res, 0, length);
+        return res;
+    }
+
+    private void ensure(int extra) {
+        if (length + extra > data.length) {
+            byte[] newData = new byte[Math.max(2 * data.length, length + extra)];
+            System.arraycopy(data, 0, newData, 0, length);
+            data = newData;
+        }
+    }
+}
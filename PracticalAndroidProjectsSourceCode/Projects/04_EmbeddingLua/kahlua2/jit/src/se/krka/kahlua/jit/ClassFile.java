@@ -0,0 +1,207 @@
+/*
+ Copyright (c) 2010 Kristofer Karlsson <kristofer.karlsson@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package se.krka.kahlua.jit;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes a class file with a constant pool and a list of methods.
+ *
+ * Classes are written as version 49 (Java 5), which is the newest version
+ * that does not require stack map frames, so the code never has to describe
+ * the types of its locals.
+ */
+final class ClassFile {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private static final int MAJOR_VERSION = 49;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private final ByteVector pool = new ByteVector(1024);
+    private final Map<String, Integer> poolIndex = new HashMap<String, Integer>();
+    private int poolCount = 1;
+
+    private final ByteVector methods = new ByteVector(4096);
+    private int methodCount;
+
+    private final String name;
+    private final String superName;
+
+    /**
+     * @param name the internal name of the class, such as "a/b/C"
+     * @param superName the internal name of the super class
+     */
+    ClassFile(String name, String superName) {
+        this.name = name;
+        this.superName = superName;
+    }
+
+    int utf8(String s) {
+        String key = "U" + s;
+        Integer index = poolIndex.get(key);
+        if (index != null) {
+            return index.intValue();
+        }
+        pool.putByte(CONSTANT_UTF8);
+        pool.putUTF8(s);
+        return add(key, 1);
+    }
+
+    int classRef(String internalName) {
+        String key = "C" + internalName;
+        Integer index = poolIndex.get(key);
+        if (index != null) {
+            return index.intValue();
+        }
+        int nameIndex = utf8(internalName);
+        pool.putByte(CONSTANT_CLASS);
+        pool.putShort(nameIndex);
+        return add(key, 1);
+    }
+
+    int integer(int value) {
+        String key = "I" + value;
+        Integer index = poolIndex.get(key);
+        if (index != null) {
+            return index.intValue();
+        }
+        pool.putByte(CONSTANT_INTEGER);
+        pool.putInt(value);
+        return add(key, 1);
+    }
+
+    int doubleConstant(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        String key = "D" + bits;
+        Integer index = poolIndex.get(key);
+        if (index != null) {
+            return index.intValue();
+        }
+        pool.putByte(CONSTANT_DOUBLE);
+        pool.putLong(bits);
+        // Doubles take two entries in the constant pool
+        return add(key, 2);
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_FIELDREF, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_METHODREF, owner, name, descriptor);
+    }
+
+    int interfaceMethodRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_INTERFACE_METHODREF, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        String key = tag + owner + "." + name + descriptor;
+        Integer index = poolIndex.get(key);
+        if (index != null) {
+            return index.intValue();
+        }
+        int classIndex = classRef(owner);
+        int nameAndType = nameAndType(name, descriptor);
+        pool.putByte(tag);
+        pool.putShort(classIndex);
+        pool.putShort(nameAndType);
+        return add(key, 1);
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        String key = "N" + name + descriptor;
+        Integer index = poolIndex.get(key);
+        if (index != null) {
+            return index.intValue();
+        }
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        pool.putByte(CONSTANT_NAME_AND_TYPE);
+        pool.putShort(nameIndex);
+        pool.putShort(descriptorIndex);
+        return add(key, 1);
+    }
+
+    private int add(String key, int size) {
+        int index = poolCount;
+        poolCount += size;
+        if (poolCount > 0xffff) {
+            throw new IllegalStateException("Constant pool is full");
+        }
+        poolIndex.put(key, Integer.valueOf(index));
+        return index;
+    }
+
+    void addMethod(int access, String name, String descriptor, Code code) {
+        byte[] bytecode = code.toByteArray();
+        methods.putShort(access);
+        methods.putShort(utf8(name));
+        methods.putShort(utf8(descriptor));
+        methods.putShort(1);
+        methods.putShort(utf8("Code"));
+        methods.putInt(12 + bytecode.length);
+        methods.putShort(code.getMaxStack());
+        methods.putShort(code.getMaxLocals());
+        methods.putInt(bytecode.length);
+        methods.putBytes(bytecode, 0, bytecode.length);
+        // No exception table and no attributes
+        methods.putShort(0);
+        methods.putShort(0);
+        methodCount++;
+    }
+
+    byte[] toByteArray() {
+        int thisIndex = classRef(name);
+        int superIndex = classRef(superName);
+
+        ByteVector out = new ByteVector(pool.length() + methods.length() + 32);
+        out.putInt(0xcafebabe);
+        out.putShort(0);
+        out.putShort(MAJOR_VERSION);
+        out.putShort(poolCount);
+        out.putVector(pool);
+        out.putShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+        out.putShort(thisIndex);
+        out.putShort(superIndex);
+        // interfaces and fields
+        out.putShort(0);
+        out.putShort(0);
+        out.putShort(methodCount);
+        out.putVector(methods);
+        // attributes
+        out.putShort(0);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,426 @@
+/*
+ Copyright (c) 2010 Kristofer Karlsson <kristofer.karlsson@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package se.krka.kahlua.jit;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Assembles the bytecode of a single method.
+ *
+ * Keeps track of the operand stack depth and the number of locals,
+ * and resolves jumps to labels once the method is complete.
+ */
+final class Code {
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int DCONST_0 = 0x0e;
+    static final int DCONST_1 = 0x0f;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC = 0x12;
+    static final int LDC_W = 0x13;
+    static final int LDC2_W = 0x14;
+    static final int ILOAD = 0x15;
+    static final int DLOAD = 0x18;
+    static final int ALOAD = 0x19;
+    static final int AALOAD = 0x32;
+    static final int ISTORE = 0x36;
+    static final int DSTORE = 0x39;
+    static final int ASTORE = 0x3a;
+    static final int POP = 0x57;
+    static final int DUP = 0x59;
+    static final int DADD = 0x63;
+    static final int DSUB = 0x67;
+    static final int DMUL = 0x6b;
+    static final int DDIV = 0x6f;
+    static final int DNEG = 0x77;
+    static final int IXOR = 0x82;
+    static final int I2D = 0x87;
+    static final int DCMPL = 0x97;
+    static final int DCMPG = 0x98;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGE = 0x9c;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int IF_ICMPEQ = 0x9f;
+    static final int IF_ICMPNE = 0xa0;
+    static final int IF_ACMPEQ = 0xa5;
+    static final int IF_ACMPNE = 0xa6;
+    static final int GOTO = 0xa7;
+    static final int LOOKUPSWITCH = 0xab;
+    static final int IRETURN = 0xac;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int PUTSTATIC = 0xb3;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int INVOKEINTERFACE = 0xb9;
+    static final int CHECKCAST = 0xc0;
+    static final int INSTANCEOF = 0xc1;
+    static final int WIDE = 0xc4;
+    static final int IFNULL = 0xc6;
+    static final int IFNONNULL = 0xc7;
+
+    /**
+     * A position in the code. Jumps may refer to a label before it is marked.
+     */
+    static final class Label {
+        private int position = -1;
+        private int stack = -1;
+
+        boolean isMarked() {
+            return position >= 0;
+        }
+    }
+
+    private static final class Fixup {
+        final int instruction;
+        final int patch;
+        final Label label;
+        final boolean wide;
+
+        Fixup(int instruction, int patch, Label label, boolean wide) {
+            this.instruction = instruction;
+            this.patch = patch;
+            this.label = label;
+            this.wide = wide;
+        }
+    }
+
+    private final ClassFile classFile;
+    private final ByteVector code = new ByteVector(1024);
+    private final List<Fixup> fixups = new ArrayList<Fixup>();
+
+    private int stack;
+    private int maxStack;
+    private int maxLocals;
+
+    Code(ClassFile classFile, int argumentSlots) {
+        this.classFile = classFile;
+        this.maxLocals = argumentSlots;
+    }
+
+    int length() {
+        return code.length();
+    }
+
+    int getMaxStack() {
+        return maxStack;
+    }
+
+    int getMaxLocals() {
+        return maxLocals;
+    }
+
+    void insn(int opcode) {
+        code.putByte(opcode);
+        switch (opcode) {
+        case ACONST_NULL:
+        case DUP:
+        case I2D:
+            push(1);
+            break;
+        case DCONST_0:
+        case DCONST_1:
+            push(2);
+            break;
+        case AALOAD:
+        case POP:
+        case IXOR:
+            push(-1);
+            break;
+        case DADD:
+        case DSUB:
+        case DMUL:
+        case DDIV:
+            push(-2);
+            break;
+        case DCMPL:
+        case DCMPG:
+            push(-3);
+            break;
+        case DNEG:
+            break;
+        case IRETURN:
+        case RETURN:
+            // Nothing follows in this block
+            stack = 0;
+            break;
+        default:
+            throw new IllegalArgumentException("Unsupported opcode: " + opcode);
+        }
+    }
+
+    void iconst(int value) {
+        if (value >= -1 && value <= 5) {
+            code.putByte(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            code.putByte(BIPUSH);
+            code.putByte(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            code.putByte(SIPUSH);
+            code.putShort(value);
+        } else {
+            ldc(classFile.integer(value));
+        }
+        push(1);
+    }
+
+    void dconst(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        if (bits == Double.doubleToRawLongBits(0.0)) {
+            code.putByte(DCONST_0);
+        } else if (bits == Double.doubleToRawLongBits(1.0)) {
+            code.putByte(DCONST_1);
+        } else {
+            code.putByte(LDC2_W);
+            code.putShort(classFile.doubleConstant(value));
+        }
+        push(2);
+    }
+
+    private void ldc(int index) {
+        if (index < 256) {
+            code.putByte(LDC);
+            code.putByte(index);
+        } else {
+            code.putByte(LDC_W);
+            code.putShort(index);
+        }
+    }
+
+    void aload(int local) {
+        local(ALOAD, local, 1);
+        push(1);
+    }
+
+    void astore(int local) {
+        local(ASTORE, local, 1);
+        push(-1);
+    }
+
+    void iload(int local) {
+        local(ILOAD, local, 1);
+        push(1);
+    }
+
+    void istore(int local) {
+        local(ISTORE, local, 1);
+        push(-1);
+    }
+
+    void dload(int local) {
+        local(DLOAD, local, 2);
+        push(2);
+    }
+
+    void dstore(int local) {
+        local(DSTORE, local, 2);
+        push(-2);
+    }
+
+    private void local(int opcode, int local, int size) {
+        if (local > 255) {
+            code.putByte(WIDE);
+            code.putByte(opcode);
+            code.putShort(local);
+        } else {
+            code.putByte(opcode);
+            code.putByte(local);
+        }
+        maxLocals = Math.max(maxLocals, local + size);
+    }
+
+    void jump(int opcode, Label label) {
+        switch (opcode) {
+        case GOTO:
+            break;
+        case IF_ICMPEQ:
+        case IF_ICMPNE:
+        case IF_ACMPEQ:
+        case IF_ACMPNE:
+            push(-2);
+            break;
+        default:
+            push(-1);
+        }
+        int position = code.length();
+        code.putByte(opcode);
+        fixups.add(new Fixup(position, code.length(), label, false));
+        code.putShort(0);
+        setStack(label);
+        if (opcode == GOTO) {
+            stack = 0;
+        }
+    }
+
+    void mark(Label label) {
+        if (label.isMarked()) {
+            throw new IllegalStateException("Label is already marked");
+        }
+        label.position = code.length();
+        if (label.stack >= 0) {
+            stack = label.stack;
+        }
+    }
+
+    private void setStack(Label label) {
+        if (label.stack < 0) {
+            label.stack = stack;
+        } else if (label.stack != stack) {
+            throw new IllegalStateException("Inconsistent stack depth at label");
+        }
+    }
+
+    void typeInsn(int opcode, String internalName) {
+        code.putByte(opcode);
+        code.putShort(classFile.classRef(internalName));
+    }
+
+    void fieldInsn(int opcode, String owner, String name, String descriptor) {
+        code.putByte(opcode);
+        code.putShort(classFile.fieldRef(owner, name, descriptor));
+        int size = typeSize(descriptor, 0);
+        switch (opcode) {
+        case GETSTATIC:
+            push(size);
+            break;
+        case PUTSTATIC:
+            push(-size);
+            break;
+        case GETFIELD:
+            push(size - 1);
+            break;
+        case PUTFIELD:
+            push(-size - 1);
+            break;
+        default:
+            throw new IllegalArgumentException("Not a field instruction: " + opcode);
+        }
+    }
+
+    void methodInsn(int opcode, String owner, String name, String descriptor) {
+        int argumentSize = argumentSize(descriptor);
+        int returnSize = typeSize(descriptor, descriptor.indexOf(')') + 1);
+        if (opcode != INVOKESTATIC) {
+            argumentSize++;
+        }
+        code.putByte(opcode);
+        if (opcode == INVOKEINTERFACE) {
+            code.putShort(classFile.interfaceMethodRef(owner, name, descriptor));
+            code.putByte(argumentSize);
+            code.putByte(0);
+        } else {
+            code.putShort(classFile.methodRef(owner, name, descriptor));
+        }
+        push(returnSize - argumentSize);
+    }
+
+    /**
+     * @param keys the keys, in increasing order
+     */
+    void lookupSwitch(int[] keys, Label[] labels, Label defaultLabel) {
+        push(-1);
+        int position = code.length();
+        code.putByte(LOOKUPSWITCH);
+        while ((code.length() & 3) != 0) {
+            code.putByte(0);
+        }
+        fixups.add(new Fixup(position, code.length(), defaultLabel, true));
+        code.putInt(0);
+        setStack(defaultLabel);
+        code.putInt(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            code.putInt(keys[i]);
+            fixups.add(new Fixup(position, code.length(), labels[i], true));
+            code.putInt(0);
+            setStack(labels[i]);
+        }
+        stack = 0;
+    }
+
+    byte[] toByteArray() {
+        for (int i = 0; i < fixups.size(); i++) {
+            Fixup fixup = fixups.get(i);
+            if (!fixup.label.isMarked()) {
+                throw new IllegalStateException("Jump to a label that was never marked");
+            }
+            int offset = fixup.label.position - fixup.instruction;
+            if (fixup.wide) {
+                code.setInt(fixup.patch, offset);
+            } else {
+                if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                    throw new IllegalStateException("Jump offset too large");
+                }
+                code.setShort(fixup.patch, offset);
+            }
+        }
+        return code.toByteArray();
+    }
+
+    private void push(int n) {
+        stack += n;
+        if (stack < 0) {
+            throw new IllegalStateException("Operand stack underflow");
+        }
+        maxStack = Math.max(maxStack, stack);
+    }
+
+    private static int argumentSize(String descriptor) {
+        int size = 0;
+        int i = 1;
+        while (descriptor.charAt(i) != ')') {
+            size += typeSize(descriptor, i);
+            i = nextType(descriptor, i);
+        }
+        return size;
+    }
+
+    private static int nextType(String descriptor, int i) {
+        while (descriptor.charAt(i) == '[') {
+            i++;
+        }
+        if (descriptor.charAt(i) == 'L') {
+            return descriptor.indexOf(';', i) + 1;
+        }
+        return i + 1;
+    }
+
+    private static int typeSize(String descriptor, int i) {
+        switch (descriptor.charAt(i)) {
+        case 'V':
+            return 0;
+        case 'D':
+        case 'J':
+            return 2;
+        default:
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ Copyright (c) 2010 Kristofer Karlsson <kristofer.karlsson@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package se.krka.kahlua.jit;
+
+import se.krka.kahlua.vm.CompiledPrototype;
+import se.krka.kahlua.vm.Prototype;
+import se.krka.kahlua.vm.PrototypeCompiler;
+
+import java.lang.reflect.Constructor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compiles hot prototypes to JVM bytecode.
+ *
+ * Usage:
+ * <pre>
+ * J2SEPlatform platform = new J2SEPlatform();
+ * platform.setPrototypeCompiler(new JitCompiler());
+ * KahluaTable env = platform.newEnvironment();
+ * </pre>
+ *
+ * A prototype is compiled when it has been called invocationThreshold times,
+ * or when its loops have jumped back backEdgeThreshold times.
+ * The compiled code hands control back to the interpreter when a
+ * coroutine yields, when it calls something that may yield, and for
+ * instructions it does not handle itself, such as returning and tail calls.
+ * Functions that create closures are never compiled.
+ */
+public class JitCompiler implements PrototypeCompiler {
+    public static final int DEFAULT_INVOCATION_THRESHOLD = 1000;
+    public static final int DEFAULT_BACK_EDGE_THRESHOLD = 10000;
+
+    private static final String PACKAGE = "se.krka.kahlua.jit.generated.";
+
+    private final int invocationThreshold;
+    private final int backEdgeThreshold;
+
+    private final AtomicInteger classCounter = new AtomicInteger();
+    private final AtomicInteger compiledCount = new AtomicInteger();
+    private final AtomicInteger failedCount = new AtomicInteger();
+
+    public JitCompiler() {
+        this(DEFAULT_INVOCATION_THRESHOLD, DEFAULT_BACK_EDGE_THRESHOLD);
+    }
+
+    public JitCompiler(int invocationThreshold, int backEdgeThreshold) {
+        if (invocationThreshold < 1 || backEdgeThreshold < 1) {
+            throw new IllegalArgumentException("Thresholds must be positive");
+        }
+        this.invocationThreshold = invocationThreshold;
+        this.backEdgeThreshold = backEdgeThreshold;
+    }
+
+    @Override
+    public int getInvocationThreshold() {
+        return invocationThreshold;
+    }
+
+    @Override
+    public int getBackEdgeThreshold() {
+        return backEdgeThreshold;
+    }
+
+    @Override
+    public CompiledPrototype compile(Prototype prototype) {
+        if (!TypeAnalysis.isSupported(prototype)) {
+            failedCount.incrementAndGet();
+            return null;
+        }
+        try {
+            TypeAnalysis analysis = new TypeAnalysis(prototype);
+            analysis.run();
+            int[] entryPoints = analysis.getEntryPoints();
+            if (entryPoints.length == 0) {
+                failedCount.incrementAndGet();
+                return null;
+            }
+
+            String name = PACKAGE + "Prototype" + classCounter.incrementAndGet();
+            byte[] bytes = new PrototypeTranslator(prototype, analysis).translate(name.replace('.', '/'), entryPoints);
+            if (bytes == null) {
+                failedCount.incrementAndGet();
+                return null;
+            }
+
+            JitClassLoader loader = new JitClassLoader(CompiledPrototype.class.getClassLoader());
+            Class<?> generated = loader.define(name, bytes);
+            Constructor<?> constructor = generated.getConstructor(int[].class);
+            CompiledPrototype compiled = (CompiledPrototype) constructor.newInstance(new Object[] {entryPoints});
+            compiledCount.incrementAndGet();
+            return compiled;
+        } catch (RuntimeException e) {
+            failedCount.incrementAndGet();
+            return null;
+        } catch (LinkageError e) {
+            // Typically a VerifyError, the prototype stays interpreted
+            failedCount.incrementAndGet();
+            return null;
+        } catch (Exception e) {
+            failedCount.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * @return the number of prototypes that were compiled
+     */
+    public int getCompiledCount() {
+        return compiledCount.get();
+    }
+
+    /**
+     * @return the number of prototypes that could not be compiled
+     */
+    public int getFailedCount() {
+        return failedCount.get();
+    }
+}
@@ -0,0 +1,944 @@
+/*
+ Copyright (c) 2010 Kristofer Karlsson <kristofer.karlsson@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package se.krka.kahlua.jit;
+
+import se.krka.kahlua.jit.Code.Label;
+import se.krka.kahlua.vm.KahluaUtil;
+import se.krka.kahlua.vm.Prototype;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static se.krka.kahlua.jit.TypeAnalysis.*;
+
+/**
+ * Translates a single prototype into a subclass of CompiledPrototype.
+ *
+ * Every Lua register gets two Java locals, an Object and a double.
+ * Which of them holds the value at a given instruction is decided by {@link TypeAnalysis},
+ * so arithmetic on numbers never boxes. Whenever the generated code leaves for the
+ * interpreter, it writes the registers back to the call frame.
+ */
+final class PrototypeTranslator {
+    /**
+     * HotSpot does not compile methods larger than this,
+     * and interpreted bytecode is slower than the Kahlua interpreter.
+     */
+    static final int MAX_CODE_SIZE = 8000;
+
+    private static final String VM = "se/krka/kahlua/vm/";
+    private static final String COMPILED = VM + "CompiledPrototype";
+    private static final String THREAD = VM + "KahluaThread";
+    private static final String FRAME = VM + "LuaCallFrame";
+    private static final String CLOSURE = VM + "LuaClosure";
+    private static final String PROTOTYPE = VM + "Prototype";
+    private static final String TABLE = VM + "KahluaTable";
+    private static final String UTIL = VM + "KahluaUtil";
+    private static final String DOUBLE = "java/lang/Double";
+    private static final String BOOLEAN = "java/lang/Boolean";
+
+    private static final String OBJECT_DESC = "Ljava/lang/Object;";
+    private static final String THREAD_DESC = "L" + THREAD + ";";
+    private static final String FRAME_DESC = "L" + FRAME + ";";
+    private static final String CLOSURE_DESC = "L" + CLOSURE + ";";
+    private static final String PROTOTYPE_DESC = "L" + PROTOTYPE + ";";
+    private static final String TABLE_DESC = "L" + TABLE + ";";
+
+    private static final String GET_TABLE_DESC =
+            "(" + THREAD_DESC + PROTOTYPE_DESC + "I" + OBJECT_DESC + OBJECT_DESC + "I)" + OBJECT_DESC;
+    private static final String GET_TABLE_NUMBER_DESC =
+            "(" + THREAD_DESC + PROTOTYPE_DESC + "I" + OBJECT_DESC + "D)" + OBJECT_DESC;
+    private static final String SET_TABLE_DESC =
+            "(" + THREAD_DESC + PROTOTYPE_DESC + "I" + OBJECT_DESC + OBJECT_DESC + OBJECT_DESC + ")V";
+    private static final String SET_TABLE_NUMBER_DESC =
+            "(" + THREAD_DESC + PROTOTYPE_DESC + "I" + OBJECT_DESC + "D" + OBJECT_DESC + ")V";
+
+    // Call status, see CompiledPrototype
+    private static final int CALL_DONE = 0;
+    private static final int CALL_SWITCHED = 1;
+
+    private static final int FIELDS_PER_FLUSH = 50;
+
+    // Locals of the run method
+    private static final int L_THREAD = 1;
+    private static final int L_FRAME = 2;
+    private static final int L_CLOSURE = 3;
+    private static final int L_PROTOTYPE = 4;
+    private static final int L_CONSTANTS = 5;
+    private static final int L_TMP = 6;
+    private static final int L_REGISTERS = 7;
+
+    private final Prototype prototype;
+    private final TypeAnalysis analysis;
+    private final int[] code;
+    private final Object[] constants;
+    private final int registers;
+
+    private ClassFile classFile;
+    private Code c;
+    private Label[] labels;
+
+    private final List<Object[]> pendingEdges = new ArrayList<Object[]>();
+    private final Map<String, Label> edgeLabels = new HashMap<String, Label>();
+    private final List<Object[]> pendingExits = new ArrayList<Object[]>();
+    private final Map<String, Label> exitLabels = new HashMap<String, Label>();
+    private final List<byte[]> pendingSpills = new ArrayList<byte[]>();
+    private final Map<String, Label> spillLabels = new HashMap<String, Label>();
+
+    PrototypeTranslator(Prototype prototype, TypeAnalysis analysis) {
+        this.prototype = prototype;
+        this.analysis = analysis;
+        this.code = prototype.code;
+        this.constants = prototype.constants;
+        this.registers = prototype.maxStacksize;
+    }
+
+    /**
+     * @return the class file, or null if the generated code would be too large
+     */
+    byte[] translate(String className, int[] entryPoints) {
+        classFile = new ClassFile(className, COMPILED);
+
+        Code init = new Code(classFile, 2);
+        init.aload(0);
+        init.aload(1);
+        init.methodInsn(Code.INVOKESPECIAL, COMPILED, "<init>", "([I)V");
+        init.insn(Code.RETURN);
+        classFile.addMethod(ClassFile.ACC_PUBLIC, "<init>", "([I)V", init);
+
+        c = new Code(classFile, 3);
+        labels = new Label[code.length];
+        for (int pc = 0; pc < code.length; pc++) {
+            labels[pc] = new Label();
+        }
+
+        c.aload(L_FRAME);
+        c.fieldInsn(Code.GETFIELD, FRAME, "closure", CLOSURE_DESC);
+        c.insn(Code.DUP);
+        c.astore(L_CLOSURE);
+        c.fieldInsn(Code.GETFIELD, CLOSURE, "prototype", PROTOTYPE_DESC);
+        c.insn(Code.DUP);
+        c.astore(L_PROTOTYPE);
+        c.fieldInsn(Code.GETFIELD, PROTOTYPE, "constants", "[" + OBJECT_DESC);
+        c.astore(L_CONSTANTS);
+
+        Label decline = new Label();
+        Label[] entryLabels = new Label[entryPoints.length];
+        for (int i = 0; i < entryPoints.length; i++) {
+            entryLabels[i] = new Label();
+        }
+        c.aload(L_FRAME);
+        c.fieldInsn(Code.GETFIELD, FRAME, "pc", "I");
+        c.lookupSwitch(entryPoints, entryLabels, decline);
+
+        for (int pc = 0; pc < code.length; pc++) {
+            if (analysis.getState(pc) != null) {
+                c.mark(labels[pc]);
+                translateInstruction(pc);
+            }
+            if (c.length() > MAX_CODE_SIZE) {
+                return null;
+            }
+        }
+
+        for (int i = 0; i < entryPoints.length; i++) {
+            c.mark(entryLabels[i]);
+            enter(entryPoints[i], decline);
+        }
+        c.mark(decline);
+        c.iconst(0);
+        c.insn(Code.IRETURN);
+
+        for (int i = 0; i < pendingEdges.size(); i++) {
+            Object[] edge = pendingEdges.get(i);
+            c.mark((Label) edge[0]);
+            jumpTo((byte[]) edge[1], ((Integer) edge[2]).intValue(), -1);
+        }
+        for (int i = 0; i < pendingExits.size(); i++) {
+            Object[] exit = pendingExits.get(i);
+            c.mark((Label) exit[0]);
+            c.iconst(((Integer) exit[2]).intValue());
+            c.istore(L_TMP);
+            c.jump(Code.GOTO, spill((byte[]) exit[1]));
+        }
+        for (int i = 0; i < pendingSpills.size(); i++) {
+            byte[] state = pendingSpills.get(i);
+            c.mark(spillLabels.get(key(state)));
+            for (int r = 0; r < registers; r++) {
+                storeRegister(r, state[r]);
+            }
+            c.aload(L_FRAME);
+            c.iload(L_TMP);
+            c.fieldInsn(Code.PUTFIELD, FRAME, "pc", "I");
+            c.iconst(1);
+            c.insn(Code.IRETURN);
+        }
+        if (c.length() > MAX_CODE_SIZE) {
+            return null;
+        }
+
+        classFile.addMethod(ClassFile.ACC_PUBLIC, "run", "(" + THREAD_DESC + FRAME_DESC + ")Z", c);
+        return classFile.toByteArray();
+    }
+
+    /**
+     * Loads the registers from the frame, or declines if a register
+     * that the code expects to be a number is not.
+     */
+    private void enter(int pc, Label decline) {
+        byte[] state = analysis.getState(pc);
+        for (int r = 0; r < registers; r++) {
+            c.aload(L_FRAME);
+            c.iconst(r);
+            if (state[r] == NUM) {
+                c.methodInsn(Code.INVOKESTATIC, COMPILED, "isNumber", "(" + FRAME_DESC + "I)Z");
+                c.jump(Code.IFEQ, decline);
+                c.aload(L_FRAME);
+                c.iconst(r);
+                c.methodInsn(Code.INVOKESTATIC, COMPILED, "getNumber", "(" + FRAME_DESC + "I)D");
+                c.dstore(num(r));
+            } else {
+                c.methodInsn(Code.INVOKEVIRTUAL, FRAME, "get", "(I)" + OBJECT_DESC);
+                c.astore(obj(r));
+            }
+        }
+        c.jump(Code.GOTO, labels[pc]);
+    }
+
+    private void translateInstruction(int pc) {
+        byte[] in = analysis.getState(pc);
+        int op = code[pc];
+        int opcode = op & 63;
+        int a = getA8(op);
+        int b = getB9(op);
+        int cc = getC9(op);
+
+        if (analysis.isExit(pc)) {
+            byte[] state = in;
+            if (opcode == OP_RETURN && b != 0) {
+                // Only the returned values are needed
+                state = new byte[registers];
+                for (int r = a; r < a + b - 1; r++) {
+                    state[r] = in[r];
+                }
+            }
+            c.jump(Code.GOTO, exit(state, pc));
+            return;
+        }
+
+        switch (opcode) {
+        case OP_MOVE: {
+            if (in[b] == NUM) {
+                c.dload(num(b));
+                c.dstore(num(a));
+            } else {
+                c.aload(obj(b));
+                c.astore(obj(a));
+            }
+            break;
+        }
+        case OP_LOADK: {
+            int bx = getBx(op);
+            Object constant = constants[bx];
+            if (constant instanceof Double) {
+                c.dconst(((Double) constant).doubleValue());
+                c.dstore(num(a));
+            } else {
+                loadConstant(bx);
+                c.astore(obj(a));
+            }
+            break;
+        }
+        case OP_LOADBOOL: {
+            c.fieldInsn(Code.GETSTATIC, BOOLEAN, b == 0 ? "FALSE" : "TRUE", "L" + BOOLEAN + ";");
+            c.astore(obj(a));
+            if (cc != 0) {
+                jumpTo(analysis.transfer(pc, pc + 2), pc + 2, pc);
+                return;
+            }
+            break;
+        }
+        case OP_LOADNIL: {
+            for (int r = a; r <= b; r++) {
+                c.insn(Code.ACONST_NULL);
+                c.astore(obj(r));
+            }
+            break;
+        }
+        case OP_GETUPVAL: {
+            c.aload(L_CLOSURE);
+            c.iconst(b);
+            c.methodInsn(Code.INVOKESTATIC, COMPILED, "getUpvalue", "(" + CLOSURE_DESC + "I)" + OBJECT_DESC);
+            c.astore(obj(a));
+            break;
+        }
+        case OP_SETUPVAL: {
+            c.aload(L_CLOSURE);
+            c.iconst(b);
+            loadObject(a, in);
+            c.methodInsn(Code.INVOKESTATIC, COMPILED, "setUpvalue", "(" + CLOSURE_DESC + "I" + OBJECT_DESC + ")V");
+            break;
+        }
+        case OP_GETGLOBAL: {
+            setPc(pc + 1);
+            c.aload(L_THREAD);
+            c.aload(L_CLOSURE);
+            c.iconst(getBx(op));
+            c.methodInsn(Code.INVOKESTATIC, COMPILED, "getGlobal", "(" + THREAD_DESC + CLOSURE_DESC + "I)" + OBJECT_DESC);
+            c.astore(obj(a));
+            break;
+        }
+        case OP_SETGLOBAL: {
+            setPc(pc + 1);
+            c.aload(L_THREAD);
+            c.aload(L_CLOSURE);
+            c.iconst(getBx(op));
+            loadObject(a, in);
+            c.methodInsn(Code.INVOKESTATIC, COMPILED, "setGlobal", "(" + THREAD_DESC + CLOSURE_DESC + "I" + OBJECT_DESC + ")V");
+            break;
+        }
+        case OP_GETTABLE: {
+            setPc(pc + 1);
+            c.aload(L_THREAD);
+            c.aload(L_PROTOTYPE);
+            c.iconst(pc);
+            loadObject(b, in);
+            if (isNumber(cc, in)) {
+                loadNumber(cc, in);
+                c.methodInsn(Code.INVOKESTATIC, COMPILED, "getTable", GET_TABLE_NUMBER_DESC);
+            } else {
+                loadObject(cc, in);
+                c.iconst(cc);
+                c.methodInsn(Code.INVOKESTATIC, COMPILED, "getTable", GET_TABLE_DESC);
+            }
+            c.astore(obj(a));
+            break;
+        }
+        case OP_SETTABLE: {
+            setPc(pc + 1);
+            c.aload(L_THREAD);
+            c.aload(L_PROTOTYPE);
+            c.iconst(pc);
+            loadObject(a, in);
+            if (isNumber(b, in)) {
+                loadNumber(b, in);
+                loadObject(cc, in);
+                c.methodInsn(Code.INVOKESTATIC, COMPILED, "setTable", SET_TABLE_NUMBER_DESC);
+            } else {
+                loadObject(b, in);
+                loadObject(cc, in);
+                c.methodInsn(Code.INVOKESTATIC, COMPILED, "setTable", SET_TABLE_DESC);
+            }
+            break;
+        }
+        case OP_NEWTABLE: {
+            c.aload(L_THREAD);
+            c.iconst(KahluaUtil.fb2int(b));
+            c.iconst(KahluaUtil.fb2int(cc));
+            c.methodInsn(Code.INVOKESTATIC, COMPILED, "newTable", "(" + THREAD_DESC + "II)" + TABLE_DESC);
+            c.astore(obj(a));
+            break;
+        }
+        case OP_SELF: {
+            setPc(pc + 1);
+            c.aload(L_THREAD);
+            c.aload(L_PROTOTYPE);
+            c.iconst(pc);
+            loadObject(b, in);
+            loadObject(cc, in);
+            c.iconst(cc);
+            c.methodInsn(Code.INVOKESTATIC, COMPILED, "getTable", GET_TABLE_DESC);
+            loadObject(b, in);
+            c.astore(obj(a + 1));
+            c.astore(obj(a));
+            break;
+        }
+        case OP_ADD:
+        case OP_SUB:
+        case OP_MUL:
+        case OP_DIV:
+        case OP_MOD:
+        case OP_POW: {
+            arith(pc, opcode, a, b, cc, in);
+            break;
+        }
+        case OP_UNM: {
+            if (in[b] == NUM) {
+                c.dload(num(b));
+                c.insn(Code.DNEG);
+                c.dstore(num(a));
+                break;
+            }
+            Label slow = new Label();
+            Label done = new Label();
+            guardNumber(b, in, slow);
+            loadNumber(b, in);
+            c.insn(Code.DNEG);
+            c.dstore(num(a));
+            c.jump(Code.GOTO, done);
+            c.mark(slow);
+            setPc(pc + 1);
+            c.aload(L_THREAD);
+            loadObject(b, in);
+            c.methodInsn(Code.INVOKESTATIC, COMPILED, "unm", "(" + THREAD_DESC + OBJECT_DESC + ")" + OBJECT_DESC);
+            storeNumberResult(pc, a, in);
+            c.mark(done);
+            break;
+        }
+        case OP_NOT: {
+            loadObject(b, in);
+            c.methodInsn(Code.INVOKESTATIC, UTIL, "boolEval", "(" + OBJECT_DESC + ")Z");
+            c.iconst(1);
+            c.insn(Code.IXOR);
+            c.methodInsn(Code.INVOKESTATIC, UTIL, "toBoolean", "(Z)L" + BOOLEAN + ";");
+            c.astore(obj(a));
+            break;
+        }
+        case OP_LEN: {
+            Label slow = new Label();
+            Label done = new Label();
+            if (in[b] != NUM) {
+                c.aload(obj(b));
+                c.typeInsn(Code.INSTANCEOF, TABLE);
+                c.jump(Code.IFEQ, slow);
+                c.aload(obj(b));
+                c.typeInsn(Code.CHECKCAST, TABLE);
+                c.methodInsn(Code.INVOKEINTERFACE, TABLE, "len", "()I");
+                c.insn(Code.I2D);
+                c.dstore(num(a));
+                c.jump(Code.GOTO, done);
+                c.mark(slow);
+            }
+            setPc(pc + 1);
+            c.aload(L_THREAD);
+            loadObject(b, in);
+            c.methodInsn(Code.INVOKESTATIC, COMPILED, "len", "(" + THREAD_DESC + OBJECT_DESC + ")" + OBJECT_DESC);
+            storeNumberResult(pc, a, in);
+            if (in[b] != NUM) {
+                c.mark(done);
+            }
+            break;
+        }
+        case OP_CONCAT: {
+            for (int r = b; r <= cc; r++) {
+                storeRegister(r, in[r]);
+            }
+            setPc(pc + 1);
+            c.aload(L_THREAD);
+            c.aload(L_FRAME);
+            c.iconst(b);
+            c.iconst(cc);
+            c.methodInsn(Code.INVOKESTATIC, COMPILED, "concat", "(" + THREAD_DESC + FRAME_DESC + "II)" + OBJECT_DESC);
+            c.astore(obj(a));
+            break;
+        }
+        case OP_JMP: {
+            int target = pc + 1 + getSBx(op);
+            jumpTo(analysis.transfer(pc, target), target, pc);
+            return;
+        }
+        case OP_EQ:
+        case OP_LT:
+        case OP_LE: {
+            compare(pc, opcode, a, b, cc, in);
+            return;
+        }
+        case OP_TEST: {
+            // skip the next instruction if the value matches c
+            int matched = cc == 0 ? pc + 2 : pc + 1;
+            int other = cc == 0 ? pc + 1 : pc + 2;
+            if (in[a] == NUM) {
+                jumpTo(in, matched, pc);
+                return;
+            }
+            c.aload(obj(a));
+            c.methodInsn(Code.INVOKESTATIC, UTIL, "boolEval", "(" + OBJECT_DESC + ")Z");
+            c.jump(Code.IFNE, edge(pc, matched));
+            jumpTo(analysis.transfer(pc, other), other, pc);
+            return;
+        }
+        case OP_TESTSET: {
+            if (in[b] != NUM) {
+                c.aload(obj(b));
+                c.methodInsn(Code.INVOKESTATIC, UTIL, "boolEval", "(" + OBJECT_DESC + ")Z");
+                c.jump(cc != 0 ? Code.IFEQ : Code.IFNE, edge(pc, pc + 2));
+            } else if (cc == 0) {
+                // numbers are always true
+                jumpTo(analysis.transfer(pc, pc + 2), pc + 2, pc);
+                return;
+            }
+            if (in[b] == NUM) {
+                c.dload(num(b));
+                c.dstore(num(a));
+            } else {
+                c.aload(obj(b));
+                c.astore(obj(a));
+            }
+            jumpTo(analysis.transfer(pc, pc + 1), pc + 1, pc);
+            return;
+        }
+        case OP_CALL: {
+            call(pc, a, b, cc, in);
+            break;
+        }
+        case OP_FORPREP: {
+            unboxLoop(pc, a, in);
+            c.dload(num(a));
+            c.dload(num(a + 2));
+            c.insn(Code.DSUB);
+            c.dstore(num(a));
+            int target = pc + 1 + getSBx(op);
+            jumpTo(analysis.transfer(pc, target), target, pc);
+            return;
+        }
+        case OP_FORLOOP: {
+            forLoop(pc, a, pc + 1 + getSBx(op), in);
+            return;
+        }
+        case OP_TFORLOOP: {
+            for (int r = a; r < a + 3; r++) {
+                storeRegister(r, in[r]);
+            }
+            setPc(pc + 1);
+            c.aload(L_THREAD);
+            c.aload(L_FRAME);
+            c.iconst(a);
+            c.iconst(cc);
+            c.methodInsn(Code.INVOKESTATIC, COMPILED, "iterate", "(" + THREAD_DESC + FRAME_DESC + "II)Z");
+            c.istore(L_TMP);
+            loadResults(a + 3, a + 3 + cc);
+            c.iload(L_TMP);
+            c.jump(Code.IFEQ, edge(pc, pc + 2));
+            // The control value is not always the first result, see KahluaThread.forStep
+            c.aload(L_FRAME);
+            c.iconst(a + 2);
+            c.methodInsn(Code.INVOKEVIRTUAL, FRAME, "get", "(I)" + OBJECT_DESC);
+            c.astore(obj(a + 2));
+            jumpTo(analysis.transfer(pc, pc + 1), pc + 1, pc);
+            return;
+        }
+        case OP_SETLIST: {
+            if (in[a] != ANY) {
+                c.jump(Code.GOTO, exit(in, pc));
+                return;
+            }
+            int offset = (cc - 1) * FIELDS_PER_FLUSH;
+            for (int i = 1; i <= b; i++) {
+                c.aload(obj(a));
+                c.typeInsn(Code.CHECKCAST, TABLE);
+                c.iconst(offset + i);
+                loadObject(a + i, in);
+                c.methodInsn(Code.INVOKEINTERFACE, TABLE, "rawset", "(I" + OBJECT_DESC + ")V");
+            }
+            break;
+        }
+        default:
+            throw new IllegalStateException("Unexpected opcode " + opcode);
+        }
+        jumpTo(analysis.transfer(pc, pc + 1), pc + 1, pc);
+    }
+
+    private void arith(int pc, int opcode, int a, int b, int cc, byte[] in) {
+        Label slow = new Label();
+        Label done = new Label();
+        if (canBeNumber(b, in) && canBeNumber(cc, in)) {
+            boolean guarded = guardNumber(b, in, slow);
+            guarded |= guardNumber(cc, in, slow);
+            if (opcode == OP_POW) {
+                c.aload(L_THREAD);
+            }
+            loadNumber(b, in);
+            loadNumber(cc, in);
+            switch (opcode) {
+            case OP_ADD:
+                c.insn(Code.DADD);
+                break;
+            case OP_SUB:
+                c.insn(Code.DSUB);
+                break;
+            case OP_MUL:
+                c.insn(Code.DMUL);
+                break;
+            case OP_DIV:
+                c.insn(Code.DDIV);
+                break;
+            case OP_MOD:
+                c.methodInsn(Code.INVOKESTATIC, COMPILED, "mod", "(DD)D");
+                break;
+            default:
+                c.methodInsn(Code.INVOKESTATIC, COMPILED, "pow", "(" + THREAD_DESC + "DD)D");
+            }
+            c.dstore(num(a));
+            if (!guarded) {
+                return;
+            }
+            c.jump(Code.GOTO, done);
+            c.mark(slow);
+        }
+        setPc(pc + 1);
+        c.aload(L_THREAD);
+        c.iconst(opcode);
+        loadObject(b, in);
+        loadObject(cc, in);
+        c.methodInsn(Code.INVOKESTATIC, COMPILED, "arith", "(" + THREAD_DESC + "I" + OBJECT_DESC + OBJECT_DESC + ")" + OBJECT_DESC);
+        storeNumberResult(pc, a, in);
+        if (slow.isMarked()) {
+            c.mark(done);
+        }
+    }
+
+    /**
+     * Stores the boxed result of a slow path in a register that is expected to be a number.
+     * If it isn't, the register is left as an object and the code exits after the instruction.
+     */
+    private void storeNumberResult(int pc, int a, byte[] in) {
+        c.astore(obj(a));
+        c.aload(obj(a));
+        c.typeInsn(Code.INSTANCEOF, DOUBLE);
+        byte[] state = copy(in);
+        state[a] = ANY;
+        c.jump(Code.IFEQ, exit(state, pc + 1));
+        c.aload(obj(a));
+        c.typeInsn(Code.CHECKCAST, DOUBLE);
+        c.methodInsn(Code.INVOKEVIRTUAL, DOUBLE, "doubleValue", "()D");
+        c.dstore(num(a));
+    }
+
+    private void compare(int pc, int opcode, int a, int b, int cc, byte[] in) {
+        // The next instruction is skipped if the result matches a
+        int matched = a == 0 ? pc + 2 : pc + 1;
+        int other = a == 0 ? pc + 1 : pc + 2;
+        Label slow = new Label();
+        if (canBeNumber(b, in) && canBeNumber(cc, in)) {
+            boolean guarded = guardNumber(b, in, slow);
+            guarded |= guardNumber(cc, in, slow);
+            loadNumber(b, in);
+            loadNumber(cc, in);
+            if (opcode == OP_EQ) {
+                c.insn(Code.DCMPL);
+                c.jump(Code.IFEQ, edge(pc, matched));
+            } else {
+                // NaN compares as greater, so it is never less
+                c.insn(Code.DCMPG);
+                c.jump(opcode == OP_LT ? Code.IFLT : Code.IFLE, edge(pc, matched));
+            }
+            c.jump(Code.GOTO, edge(pc, other));
+            if (!guarded) {
+                return;
+            }
+            c.mark(slow);
+        }
+        setPc(pc + 1);
+        c.aload(L_THREAD);
+        c.iconst(opcode);
+        loadObject(b, in);
+        loadObject(cc, in);
+        c.methodInsn(Code.INVOKESTATIC, COMPILED, "compare", "(" + THREAD_DESC + "I" + OBJECT_DESC + OBJECT_DESC + ")Z");
+        c.jump(Code.IFNE, edge(pc, matched));
+        c.jump(Code.GOTO, edge(pc, other));
+    }
+
+    private void call(int pc, int a, int b, int cc, byte[] in) {
+        for (int r = a; r < a + b; r++) {
+            storeRegister(r, in[r]);
+        }
+        setPc(pc + 1);
+        c.aload(L_THREAD);
+        c.aload(L_FRAME);
+        c.iconst(a);
+        c.iconst(b - 1);
+        c.methodInsn(Code.INVOKESTATIC, COMPILED, "call", "(" + THREAD_DESC + FRAME_DESC + "II)I");
+        c.istore(L_TMP);
+
+        Label done = new Label();
+        c.iload(L_TMP);
+        c.jump(Code.IFEQ, done);
+
+        // Another coroutine is running now, so the call will return to the interpreter.
+        // Everything from register a and up belongs to the call.
+        byte[] switched = new byte[registers];
+        System.arraycopy(in, 0, switched, 0, a);
+        c.iload(L_TMP);
+        c.iconst(CALL_SWITCHED);
+        c.jump(Code.IF_ICMPEQ, exit(switched, pc + 1));
+        c.jump(Code.GOTO, exit(in, pc));
+
+        c.mark(done);
+        loadResults(a, a + cc - 1);
+    }
+
+    /**
+     * Reads the registers from to to - 1 from the frame, and clears the rest.
+     */
+    private void loadResults(int from, int to) {
+        for (int r = from; r < registers; r++) {
+            if (r < to) {
+                c.aload(L_FRAME);
+                c.iconst(r);
+                c.methodInsn(Code.INVOKEVIRTUAL, FRAME, "get", "(I)" + OBJECT_DESC);
+            } else {
+                c.insn(Code.ACONST_NULL);
+            }
+            c.astore(obj(r));
+        }
+    }
+
+    /**
+     * Makes sure the three loop registers are unboxed, exiting if they are not numbers.
+     */
+    private void unboxLoop(int pc, int a, byte[] in) {
+        Label exit = null;
+        for (int r = a; r < a + 3; r++) {
+            if (in[r] != NUM) {
+                if (exit == null) {
+                    exit = exit(in, pc);
+                }
+                guardNumber(r, in, exit);
+            }
+        }
+        for (int r = a; r < a + 3; r++) {
+            if (in[r] != NUM) {
+                loadNumber(r, in);
+                c.dstore(num(r));
+            }
+        }
+    }
+
+    private void forLoop(int pc, int a, int target, byte[] in) {
+        unboxLoop(pc, a, in);
+        c.dload(num(a));
+        c.dload(num(a + 2));
+        c.insn(Code.DADD);
+        c.dstore(num(a));
+
+        Label negative = new Label();
+        Label loop = new Label();
+        Label done = new Label();
+        c.dload(num(a + 2));
+        c.dconst(0);
+        c.insn(Code.DCMPL);
+        c.jump(Code.IFLE, negative);
+        c.dload(num(a));
+        c.dload(num(a + 1));
+        c.insn(Code.DCMPG);
+        c.jump(Code.IFGT, done);
+        c.jump(Code.GOTO, loop);
+        c.mark(negative);
+        c.dload(num(a));
+        c.dload(num(a + 1));
+        c.insn(Code.DCMPL);
+        c.jump(Code.IFLT, done);
+        c.mark(loop);
+        c.dload(num(a));
+        c.dstore(num(a + 3));
+        jumpTo(analysis.transfer(pc, target), target, -1);
+
+        c.mark(done);
+        for (int r = a; r < registers; r++) {
+            c.insn(Code.ACONST_NULL);
+            c.astore(obj(r));
+        }
+        jumpTo(analysis.transfer(pc, pc + 1), pc + 1, pc);
+    }
+
+    /**
+     * Jumps to the next instruction, boxing registers that are
+     * numbers here but not known to be numbers there.
+     *
+     * @param from the current instruction, if the jump can be left out for the next one
+     */
+    private void jumpTo(byte[] out, int to, int from) {
+        byte[] target = analysis.getState(to);
+        boolean converted = false;
+        for (int r = 0; r < registers; r++) {
+            if (out[r] == NUM && target[r] == ANY) {
+                c.dload(num(r));
+                c.methodInsn(Code.INVOKESTATIC, UTIL, "toDouble", "(D)L" + DOUBLE + ";");
+                c.astore(obj(r));
+                converted = true;
+            }
+        }
+        if (converted || to != from + 1) {
+            c.jump(Code.GOTO, labels[to]);
+        }
+    }
+
+    /**
+     * @return a label for a conditional jump to the instruction to
+     */
+    private Label edge(int from, int to) {
+        byte[] out = analysis.transfer(from, to);
+        byte[] target = analysis.getState(to);
+        boolean needsConversion = false;
+        for (int r = 0; r < registers; r++) {
+            if (out[r] == NUM && target[r] == ANY) {
+                needsConversion = true;
+            }
+        }
+        if (!needsConversion) {
+            return labels[to];
+        }
+        String key = from + ":" + to;
+        Label label = edgeLabels.get(key);
+        if (label == null) {
+            label = new Label();
+            edgeLabels.put(key, label);
+            pendingEdges.add(new Object[] {label, out, Integer.valueOf(to)});
+        }
+        return label;
+    }
+
+    /**
+     * @param state the registers to write back, 0 for registers that are not needed
+     * @param pc the instruction the interpreter continues with
+     */
+    private Label exit(byte[] state, int pc) {
+        String key = key(state) + ":" + pc;
+        Label label = exitLabels.get(key);
+        if (label == null) {
+            label = new Label();
+            exitLabels.put(key, label);
+            pendingExits.add(new Object[] {label, state, Integer.valueOf(pc)});
+        }
+        return label;
+    }
+
+    private Label spill(byte[] state) {
+        String key = key(state);
+        Label label = spillLabels.get(key);
+        if (label == null) {
+            label = new Label();
+            spillLabels.put(key, label);
+            pendingSpills.add(state);
+        }
+        return label;
+    }
+
+    private static String key(byte[] state) {
+        StringBuilder sb = new StringBuilder(state.length);
+        for (int i = 0; i < state.length; i++) {
+            sb.append((char) ('0' + state[i]));
+        }
+        return sb.toString();
+    }
+
+    private void storeRegister(int r, byte type) {
+        if (type == NUM) {
+            c.aload(L_FRAME);
+            c.iconst(r);
+            c.dload(num(r));
+            c.methodInsn(Code.INVOKESTATIC, COMPILED, "setNumber", "(" + FRAME_DESC + "ID)V");
+        } else if (type == ANY) {
+            c.aload(L_FRAME);
+            c.iconst(r);
+            c.aload(obj(r));
+            c.methodInsn(Code.INVOKEVIRTUAL, FRAME, "set", "(I" + OBJECT_DESC + ")V");
+        }
+    }
+
+    private void setPc(int pc) {
+        c.aload(L_FRAME);
+        c.iconst(pc);
+        c.fieldInsn(Code.PUTFIELD, FRAME, "pc", "I");
+    }
+
+    private void loadConstant(int index) {
+        c.aload(L_CONSTANTS);
+        c.iconst(index);
+        c.insn(Code.AALOAD);
+    }
+
+    /**
+     * Pushes a register or constant as an object, boxing it if needed.
+     */
+    private void loadObject(int rk, byte[] in) {
+        if (rk >= 256) {
+            loadConstant(rk - 256);
+        } else if (in[rk] == NUM) {
+            c.dload(num(rk));
+            c.methodInsn(Code.INVOKESTATIC, UTIL, "toDouble", "(D)L" + DOUBLE + ";");
+        } else {
+            c.aload(obj(rk));
+        }
+    }
+
+    /**
+     * @return true if the register or constant is known to be a number
+     */
+    private boolean isNumber(int rk, byte[] in) {
+        if (rk >= 256) {
+            return constants[rk - 256] instanceof Double;
+        }
+        return in[rk] == NUM;
+    }
+
+    private boolean canBeNumber(int rk, byte[] in) {
+        return rk < 256 || constants[rk - 256] instanceof Double;
+    }
+
+    /**
+     * Jumps to fail unless the register or constant is a number.
+     *
+     * @return true if a check was needed
+     */
+    private boolean guardNumber(int rk, byte[] in, Label fail) {
+        if (isNumber(rk, in)) {
+            return false;
+        }
+        c.aload(obj(rk));
+        c.typeInsn(Code.INSTANCEOF, DOUBLE);
+        c.jump(Code.IFEQ, fail);
+        return true;
+    }
+
+    /**
+     * Pushes a register or constant as a double, it must be guarded first.
+     */
+    private void loadNumber(int rk, byte[] in) {
+        if (rk >= 256) {
+            c.dconst(((Double) constants[rk - 256]).doubleValue());
+        } else if (in[rk] == NUM) {
+            c.dload(num(rk));
+        } else {
+            c.aload(obj(rk));
+            c.typeInsn(Code.CHECKCAST, DOUBLE);
+            c.methodInsn(Code.INVOKEVIRTUAL, DOUBLE, "doubleValue", "()D");
+        }
+    }
+
+    private int obj(int r) {
+        return L_REGISTERS + r;
+    }
+
+    private int num(int r) {
+        return L_REGISTERS + registers + 2 * r;
+    }
+
+    private byte[] copy(byte[] state) {
+        byte[] res = new byte[state.length];
+        System.arraycopy(state, 0, res, 0, state.length);
+        return res;
+    }
+}
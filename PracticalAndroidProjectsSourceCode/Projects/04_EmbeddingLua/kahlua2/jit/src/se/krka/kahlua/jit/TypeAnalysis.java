@@ -0,0 +1,386 @@
+/*
+ Copyright (c) 2010 Kristofer Karlsson <kristofer.karlsson@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package se.krka.kahlua.jit;
+
+import se.krka.kahlua.vm.Prototype;
+
+/**
+ * Finds out which registers are known to hold numbers at every instruction.
+ *
+ * Registers that hold numbers are kept as Java doubles in the compiled code,
+ * everything else is kept as an Object. The analysis is a forward data flow
+ * over the instructions that the compiled code handles itself; instructions
+ * that exit to the interpreter have no successors.
+ */
+final class TypeAnalysis {
+    /** The register is a number */
+    static final byte NUM = 1;
+    /** The register may be anything */
+    static final byte ANY = 2;
+
+    static final int OP_MOVE = 0;
+    static final int OP_LOADK = 1;
+    static final int OP_LOADBOOL = 2;
+    static final int OP_LOADNIL = 3;
+    static final int OP_GETUPVAL = 4;
+    static final int OP_GETGLOBAL = 5;
+    static final int OP_GETTABLE = 6;
+    static final int OP_SETGLOBAL = 7;
+    static final int OP_SETUPVAL = 8;
+    static final int OP_SETTABLE = 9;
+    static final int OP_NEWTABLE = 10;
+    static final int OP_SELF = 11;
+    static final int OP_ADD = 12;
+    static final int OP_SUB = 13;
+    static final int OP_MUL = 14;
+    static final int OP_DIV = 15;
+    static final int OP_MOD = 16;
+    static final int OP_POW = 17;
+    static final int OP_UNM = 18;
+    static final int OP_NOT = 19;
+    static final int OP_LEN = 20;
+    static final int OP_CONCAT = 21;
+    static final int OP_JMP = 22;
+    static final int OP_EQ = 23;
+    static final int OP_LT = 24;
+    static final int OP_LE = 25;
+    static final int OP_TEST = 26;
+    static final int OP_TESTSET = 27;
+    static final int OP_CALL = 28;
+    static final int OP_TAILCALL = 29;
+    static final int OP_RETURN = 30;
+    static final int OP_FORLOOP = 31;
+    static final int OP_FORPREP = 32;
+    static final int OP_TFORLOOP = 33;
+    static final int OP_SETLIST = 34;
+    static final int OP_CLOSE = 35;
+    static final int OP_CLOSURE = 36;
+    static final int OP_VARARG = 37;
+
+    private final Prototype prototype;
+    private final int[] code;
+    private final int registers;
+
+    private final byte[][] states;
+    private final int[] worklist;
+    private final boolean[] queued;
+    private int worklistSize;
+
+    TypeAnalysis(Prototype prototype) {
+        this.prototype = prototype;
+        this.code = prototype.code;
+        this.registers = prototype.maxStacksize;
+        states = new byte[code.length][];
+        worklist = new int[code.length];
+        queued = new boolean[code.length];
+    }
+
+    /**
+     * Prototypes that create closures can not be compiled,
+     * since the closures need to see the registers in the frame.
+     */
+    static boolean isSupported(Prototype prototype) {
+        int[] code = prototype.code;
+        for (int pc = 0; pc < code.length; pc++) {
+            int op = code[pc];
+            int opcode = op & 63;
+            if (opcode == OP_CLOSURE || opcode == OP_CLOSE) {
+                return false;
+            }
+            if (opcode == OP_SETLIST && getC9(op) == 0) {
+                pc++;
+            }
+        }
+        return true;
+    }
+
+    void run() {
+        enter(0);
+        propagate();
+
+        // Loops that can only be reached through the interpreter
+        // can still be entered from it, with nothing known about the registers.
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int pc = 0; pc < code.length; pc++) {
+                int target = getBackEdgeTarget(pc);
+                if (target >= 0 && states[target] == null) {
+                    enter(target);
+                    propagate();
+                    changed = true;
+                }
+                if ((code[pc] & 63) == OP_SETLIST && getC9(code[pc]) == 0) {
+                    pc++;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the registers types before the instruction, or null if it is never reached
+     */
+    byte[] getState(int pc) {
+        return states[pc];
+    }
+
+    /**
+     * @return the instructions where the interpreter may switch to the compiled code:
+     * the start of the function and the targets of backward jumps.
+     */
+    int[] getEntryPoints() {
+        boolean[] isEntry = new boolean[code.length];
+        isEntry[0] = true;
+        for (int pc = 0; pc < code.length; pc++) {
+            int target = getBackEdgeTarget(pc);
+            if (target >= 0) {
+                isEntry[target] = true;
+            }
+            if ((code[pc] & 63) == OP_SETLIST && getC9(code[pc]) == 0) {
+                pc++;
+            }
+        }
+        int n = 0;
+        for (int pc = 0; pc < code.length; pc++) {
+            if (isEntry[pc] && (states[pc] == null || isExit(pc))) {
+                isEntry[pc] = false;
+            }
+            if (isEntry[pc]) {
+                n++;
+            }
+        }
+        int[] entryPoints = new int[n];
+        n = 0;
+        for (int pc = 0; pc < code.length; pc++) {
+            if (isEntry[pc]) {
+                entryPoints[n++] = pc;
+            }
+        }
+        return entryPoints;
+    }
+
+    private int getBackEdgeTarget(int pc) {
+        int op = code[pc];
+        int opcode = op & 63;
+        if (opcode == OP_JMP || opcode == OP_FORLOOP) {
+            int offset = getSBx(op);
+            int target = pc + 1 + offset;
+            if (offset < 0 && target >= 0) {
+                return target;
+            }
+        }
+        return -1;
+    }
+
+    private void enter(int pc) {
+        byte[] state = new byte[registers];
+        for (int i = 0; i < registers; i++) {
+            state[i] = ANY;
+        }
+        states[pc] = state;
+        queue(pc);
+    }
+
+    private void queue(int pc) {
+        if (!queued[pc]) {
+            queued[pc] = true;
+            worklist[worklistSize++] = pc;
+        }
+    }
+
+    private void propagate() {
+        while (worklistSize > 0) {
+            int pc = worklist[--worklistSize];
+            queued[pc] = false;
+            if (isExit(pc)) {
+                continue;
+            }
+            int[] successors = getSuccessors(pc);
+            for (int i = 0; i < successors.length; i++) {
+                int succ = successors[i];
+                merge(succ, transfer(pc, succ));
+            }
+        }
+    }
+
+    private void merge(int pc, byte[] state) {
+        byte[] old = states[pc];
+        if (old == null) {
+            states[pc] = state;
+            queue(pc);
+            return;
+        }
+        boolean changed = false;
+        for (int i = 0; i < registers; i++) {
+            if (old[i] == NUM && state[i] == ANY) {
+                old[i] = ANY;
+                changed = true;
+            }
+        }
+        if (changed) {
+            queue(pc);
+        }
+    }
+
+    /**
+     * @return true if the compiled code leaves this instruction to the interpreter
+     */
+    boolean isExit(int pc) {
+        int op = code[pc];
+        switch (op & 63) {
+        case OP_CALL:
+            return getB9(op) == 0 || getC9(op) == 0;
+        case OP_SETLIST:
+            return getB9(op) == 0 || getC9(op) == 0;
+        case OP_TAILCALL:
+        case OP_RETURN:
+        case OP_VARARG:
+        case OP_CLOSE:
+        case OP_CLOSURE:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    int[] getSuccessors(int pc) {
+        int op = code[pc];
+        switch (op & 63) {
+        case OP_LOADBOOL:
+            return new int[] {getC9(op) != 0 ? pc + 2 : pc + 1};
+        case OP_JMP:
+        case OP_FORPREP:
+            return new int[] {pc + 1 + getSBx(op)};
+        case OP_FORLOOP:
+            return new int[] {pc + 1 + getSBx(op), pc + 1};
+        case OP_EQ:
+        case OP_LT:
+        case OP_LE:
+        case OP_TEST:
+        case OP_TESTSET:
+        case OP_TFORLOOP:
+            return new int[] {pc + 1, pc + 2};
+        default:
+            return new int[] {pc + 1};
+        }
+    }
+
+    /**
+     * @return the register types after running the instruction and going to succ
+     */
+    byte[] transfer(int pc, int succ) {
+        byte[] in = states[pc];
+        byte[] out = new byte[registers];
+        System.arraycopy(in, 0, out, 0, registers);
+
+        int op = code[pc];
+        int a = getA8(op);
+        int b = getB9(op);
+        switch (op & 63) {
+        case OP_MOVE:
+            out[a] = in[b];
+            break;
+        case OP_LOADK:
+            out[a] = prototype.constants[getBx(op)] instanceof Double ? NUM : ANY;
+            break;
+        case OP_LOADNIL:
+            setRange(out, a, b + 1, ANY);
+            break;
+        case OP_LOADBOOL:
+        case OP_GETUPVAL:
+        case OP_GETGLOBAL:
+        case OP_GETTABLE:
+        case OP_NEWTABLE:
+        case OP_NOT:
+        case OP_CONCAT:
+            out[a] = ANY;
+            break;
+        case OP_SELF:
+            out[a] = ANY;
+            out[a + 1] = ANY;
+            break;
+        case OP_ADD:
+        case OP_SUB:
+        case OP_MUL:
+        case OP_DIV:
+        case OP_MOD:
+        case OP_POW:
+        case OP_UNM:
+        case OP_LEN:
+            out[a] = NUM;
+            break;
+        case OP_TESTSET:
+            if (succ == pc + 1) {
+                out[a] = in[b];
+            }
+            break;
+        case OP_CALL:
+            setRange(out, a, registers, ANY);
+            break;
+        case OP_FORPREP:
+            setRange(out, a, a + 3, NUM);
+            break;
+        case OP_FORLOOP:
+            if (succ == pc + 1) {
+                setRange(out, a, registers, ANY);
+            } else {
+                setRange(out, a, a + 4, NUM);
+            }
+            break;
+        case OP_TFORLOOP:
+            setRange(out, a + 3, registers, ANY);
+            if (succ == pc + 1) {
+                out[a + 2] = ANY;
+            }
+            break;
+        default:
+        }
+        return out;
+    }
+
+    private static void setRange(byte[] state, int from, int to, byte type) {
+        for (int i = from; i < to && i < state.length; i++) {
+            state[i] = type;
+        }
+    }
+
+    static int getA8(int op) {
+        return (op >>> 6) & 255;
+    }
+
+    static int getC9(int op) {
+        return (op >>> 14) & 511;
+    }
+
+    static int getB9(int op) {
+        return (op >>> 23) & 511;
+    }
+
+    static int getBx(int op) {
+        return (op >>> 14);
+    }
+
+    static int getSBx(int op) {
+        return (op >>> 14) - 131071;
+    }
+}
@@ -0,0 +1,97 @@
+package se.krka.kahlua.jit;
+
+import org.junit.Before;
+import org.junit.Test;
+import se.krka.kahlua.j2se.J2SEPlatform;
+import se.krka.kahlua.luaj.compiler.LuaCompiler;
+import se.krka.kahlua.vm.KahluaTable;
+import se.krka.kahlua.vm.KahluaThread;
+import se.krka.kahlua.vm.LuaClosure;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JitCompilerTest {
+    private JitCompiler compiler;
+    private KahluaThread thread;
+
+    @Before
+    public void setup() {
+        J2SEPlatform platform = new J2SEPlatform();
+        compiler = new JitCompiler(2, 10);
+        platform.setPrototypeCompiler(compiler);
+        KahluaTable env = platform.newEnvironment();
+        thread = new KahluaThread(platform, env);
+    }
+
+    private Object[] run(String source) throws IOException {
+        LuaClosure closure = LuaCompiler.loadstring(source, "test", thread.getEnvironment());
+        Object[] res = thread.pcall(closure);
+        assertEquals(res.length > 1 ? "" + res[1] : "", Boolean.TRUE, res[0]);
+        return res;
+    }
+
+    @Test
+    public void testNumericLoop() throws IOException {
+        Object[] res = run("local s = 0 for i = 1, 1000 do s = s + i * 2 end return s");
+        assertEquals(1001000.0, res[1]);
+        assertEquals(1, compiler.getCompiledCount());
+    }
+
+    @Test
+    public void testRecursion() throws IOException {
+        Object[] res = run("local function fib(n) if n < 2 then return n end return fib(n - 1) + fib(n - 2) end return fib(20)");
+        assertEquals(6765.0, res[1]);
+        assertTrue(compiler.getCompiledCount() >= 1);
+    }
+
+    @Test
+    public void testMixedTypes() throws IOException {
+        Object[] res = run(
+                "local function add(a, b) return a + b end " +
+                "local mt = {__add = function(a, b) return 'meta' end} " +
+                "local t = setmetatable({}, mt) " +
+                "local r = {} " +
+                "for i = 1, 20 do r[#r + 1] = add(i, 1) end " +
+                "return r[20], add('1', 2), add(t, 1), add(1.5, 1)");
+        assertEquals(21.0, res[1]);
+        assertEquals(3.0, res[2]);
+        assertEquals("meta", res[3]);
+        assertEquals(2.5, res[4]);
+    }
+
+    @Test
+    public void testErrorsInCompiledCode() throws IOException {
+        Object[] res = run(
+                "local function get(t, k) return t[k] end " +
+                "for i = 1, 20 do get({i}, 1) end " +
+                "local ok, err = pcall(get, nil, 1) " +
+                "return ok, get({5}, 1)");
+        assertEquals(Boolean.FALSE, res[1]);
+        assertEquals(5.0, res[2]);
+    }
+
+    @Test
+    public void testYieldFromCompiledLoop() throws IOException {
+        Object[] res = run(
+                "local co = coroutine.create(function(n) " +
+                "  local s = 0 " +
+                "  for i = 1, n do s = s + i if i % 10 == 0 then coroutine.yield(s) end end " +
+                "  return s " +
+                "end) " +
+                "local last " +
+                "local ok, v = coroutine.resume(co, 100) " +
+                "while coroutine.status(co) ~= 'dead' do last = v ok, v = coroutine.resume(co) end " +
+                "return last, v");
+        assertEquals(5050.0, res[1]);
+        assertEquals(5050.0, res[2]);
+    }
+
+    @Test
+    public void testClosuresAreNotCompiled() throws IOException {
+        run("local function f() return function() end end for i = 1, 20 do f() end");
+        assertTrue(compiler.getFailedCount() >= 1);
+    }
+}
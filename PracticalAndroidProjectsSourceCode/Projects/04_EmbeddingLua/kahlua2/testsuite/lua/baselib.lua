@@ -24,3 +24,40 @@ testAssert(select("#", unpack(t, 1, 3)) == 3)
 testAssert(select("#", unpack(t, 1, 10)) == 10)
 testAssert(select("#", unpack(t, -10, 10)) == 21)
 
+
+testCall("ipairs", function()
+	local t = {10, 20, false, 40, nil, 60}
+	local keys, values = {}, {}
+	for i, v in ipairs(t) do
+		keys[#keys + 1] = i
+		values[i] = v
+	end
+	assert(#keys == 4)
+	assert(keys[4] == 4)
+	assert(values[3] == false)
+	assert(values[4] == 40)
+
+	local f, s, var = ipairs(t)
+	assert(s == t and var == 0)
+	local i, v = f(s, var)
+	assert(i == 1 and v == 10)
+	assert(f(s, 4) == nil)
+
+	local proxy = setmetatable({}, {__index = function(_, k)
+		if k <= 3 then
+			return k * 2
+		end
+	end})
+	local sum = 0
+	for i, v in ipairs(proxy) do
+		sum = sum + v
+	end
+	assert(sum == 12)
+
+	local n = 0
+	for i in ipairs({}) do
+		n = n + 1
+	end
+	assert(n == 0)
+	assert(not pcall(ipairs))
+end)
@@ -415,3 +415,33 @@ testCall(function()
     assert(b == 2, "expected 2 but got " .. a)
 end)
 
+
+testCall("coroutine.wrap passes values both ways", function()
+	local f = coroutine.wrap(function(a, b)
+		local c = coroutine.yield(a + b, "x")
+		local d, e = coroutine.yield()
+		return c, d, e
+	end)
+	local s, x = f(1, 2)
+	assert(s == 3 and x == "x")
+	assert(select("#", f("c")) == 0)
+	local c, d, e = f("d", "e")
+	assert(c == "c" and d == "d" and e == "e")
+	local ok, err = pcall(f)
+	assert(not ok)
+	assert(err:find("dead"), err)
+end)
+
+testCall("coroutine.wrap nested", function()
+	local outer = coroutine.wrap(function()
+		local inner = coroutine.wrap(function()
+			coroutine.yield(1)
+			coroutine.yield(2)
+		end)
+		coroutine.yield(inner() + 10)
+		coroutine.yield(inner() + 10)
+	end)
+	assert(outer() == 11)
+	assert(outer() == 12)
+	assert(not pcall(coroutine.wrap, print))
+end)
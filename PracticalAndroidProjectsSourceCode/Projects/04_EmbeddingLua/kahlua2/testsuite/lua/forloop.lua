@@ -18,3 +18,55 @@ testCall(function()
 	end
 end)
 
+
+testCall(function()
+	local t = {}
+	for i = 1, 100 do
+		t[i] = i * 2
+	end
+	local sum = 0
+	for i = 1, #t do
+		sum = sum + t[i]
+	end
+	assert(sum == 10100)
+	for i = 100, 1, -3 do
+		assert(t[i] == i * 2)
+	end
+end)
+
+testCall(function()
+	local log = {}
+	local t = setmetatable({}, {
+		__index = function(t, k) return -k end,
+		__newindex = function(t, k, v) log[k] = v end,
+	})
+	for i = 1, 10 do
+		assert(t[i] == -i)
+		t[i] = i
+		assert(log[i] == i)
+		assert(rawget(t, i) == nil)
+	end
+	for i = 0.5, 3 do
+		assert(t[i] == -i)
+	end
+	local zero = 0
+	local negzero = -zero
+	assert(t[zero] == 0)
+	assert(t[negzero] == 0)
+end)
+
+testCall(function()
+	local t = {}
+	for i = 1, 3, 0.5 do
+		t[i] = i
+	end
+	assert(#t == 3)
+	assert(t[1.5] == 1.5)
+	assert(t[2] == 2)
+	local count = 0
+	for k, v in pairs(t) do
+		assert(k == v)
+		count = count + 1
+	end
+	assert(count == 5)
+end)
@@ -222,3 +222,18 @@ end
 
 verifyinvalidpatterns("%", "% ", "%.", "%..f", "%...f", "%111", "%111.111")
 
+
+-- format strings are parsed once, so reuse one with different arguments
+testCall(function()
+	for i = 1, 3 do
+		assert(string.format("%d:%5s|%-3d|", i, "ab", i) == i .. ":   ab|" .. i .. "  |")
+	end
+	assert(string.format("%x", 2^53) == "20000000000000")
+	assert(string.format("100%% %s", "done") == "100% done")
+
+	-- arguments before a broken conversion are still checked first
+	local status, err = pcall(string.format, "%d %y", "x")
+	assert(not status and not string.find(err, "invalid option"))
+	status, err = pcall(string.format, "%d %y", 1)
+	assert(not status and string.find(err, "invalid option"))
+end)
@@ -0,0 +1,73 @@
+-- Globals are bound to cells in the environment,
+-- make sure they still behave like ordinary table entries.
+
+testCall(function()
+	local function get() return someglobal end
+	assert(get() == nil)
+	someglobal = 1
+	assert(get() == 1)
+	_G.someglobal = 2
+	assert(get() == 2)
+	rawset(_G, "someglobal", 3)
+	assert(get() == 3)
+	assert(rawget(_G, "someglobal") == 3)
+	someglobal = nil
+	assert(get() == nil)
+	assert(rawget(_G, "someglobal") == nil)
+	for k, v in pairs(_G) do
+		assert(k ~= "someglobal")
+	end
+end)
+
+testCall(function()
+	local function get() return value end
+	local env1 = {value = "one"}
+	local env2 = {value = "two"}
+	for i = 1, 3 do
+		setfenv(get, env1)
+		assert(get() == "one")
+		setfenv(get, env2)
+		assert(get() == "two")
+	end
+	env1.value = "changed"
+	setfenv(get, env1)
+	assert(get() == "changed")
+end)
+
+testCall(function()
+	local log = {}
+	local parent = {inherited = "parent"}
+	local env = setmetatable({}, {
+		__index = parent,
+		__newindex = function(t, k, v) log[k] = v end,
+	})
+	local f = setfenv(function()
+		newvalue = 1
+		return inherited, newvalue
+	end, env)
+	local a, b = f()
+	assert(a == "parent")
+	assert(b == nil)
+	assert(log.newvalue == 1)
+	assert(rawget(env, "newvalue") == nil)
+	parent.inherited = "changed"
+	assert(setfenv(function() return inherited end, env)() == "changed")
+end)
+
+testCall(function()
+	local env = {}
+	local f = setfenv(function()
+		counter = 0
+		for i = 1, 10 do
+			counter = counter + 1
+		end
+		return counter
+	end, env)
+	assert(f() == 10)
+	assert(env.counter == 10)
+	local n = 0
+	for k, v in pairs(env) do
+		n = n + 1
+	end
+	assert(n == 1)
+end)
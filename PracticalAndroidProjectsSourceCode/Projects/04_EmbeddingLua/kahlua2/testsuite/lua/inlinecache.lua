@@ -0,0 +1,102 @@
+-- Field and method lookups through __index are cached per instruction,
+-- so run every lookup several times and change the chain in between.
+
+local function get(obj)
+	return obj.value
+end
+
+local function callfoo(obj)
+	return obj:foo()
+end
+
+local function set(obj, v)
+	obj.value = v
+end
+
+testCall(function()
+	local Base = {}
+	Base.__index = Base
+	function Base:foo() return "base" end
+
+	local Derived = setmetatable({}, Base)
+	Derived.__index = Derived
+
+	local obj = setmetatable({}, Derived)
+	for i = 1, 3 do
+		assert(callfoo(obj) == "base")
+	end
+
+	function Derived:foo() return "derived" end
+	for i = 1, 3 do
+		assert(callfoo(obj) == "derived")
+	end
+
+	obj.foo = function() return "own" end
+	assert(callfoo(obj) == "own")
+	obj.foo = nil
+	assert(callfoo(obj) == "derived")
+
+	Derived.foo = nil
+	assert(callfoo(obj) == "base")
+
+	function Base:foo() return "base2" end
+	assert(callfoo(obj) == "base2")
+end)
+
+testCall(function()
+	local A = {value = "a"}
+	local B = {value = "b"}
+	local mt = {__index = A}
+	local obj = setmetatable({}, mt)
+	for i = 1, 3 do
+		assert(get(obj) == "a")
+	end
+	mt.__index = B
+	assert(get(obj) == "b")
+	setmetatable(obj, {__index = A})
+	assert(get(obj) == "a")
+	A.value = nil
+	assert(get(obj) == nil)
+	getmetatable(obj).__index = function(t, k) return k end
+	assert(get(obj) == "value")
+	setmetatable(obj, nil)
+	assert(get(obj) == nil)
+end)
+
+testCall(function()
+	local A = {}
+	local B = {value = "b"}
+	local obj = setmetatable({}, {__index = A})
+	assert(get(obj) == nil)
+	setmetatable(A, {__index = B})
+	assert(get(obj) == "b")
+end)
+
+testCall(function()
+	local log = {}
+	local mt = {}
+	local obj = setmetatable({}, mt)
+	for i = 1, 3 do
+		set(obj, i)
+		assert(rawget(obj, "value") == i)
+	end
+	obj.value = nil
+	mt.__newindex = function(t, k, v) log[k] = v end
+	set(obj, 4)
+	assert(rawget(obj, "value") == nil)
+	assert(log.value == 4)
+	mt.__newindex = nil
+	set(obj, 5)
+	assert(rawget(obj, "value") == 5)
+end)
+
+testCall(function()
+	local other = {}
+	local obj = setmetatable({}, {__newindex = other})
+	set(obj, 1)
+	assert(rawget(obj, "value") == nil)
+	assert(other.value == 1)
+	set({}, 2)
+	set(setmetatable({}, {}), 3)
+	assert(other.value == 1)
+end)
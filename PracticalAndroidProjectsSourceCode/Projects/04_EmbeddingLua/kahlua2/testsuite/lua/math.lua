@@ -367,3 +367,13 @@ end
 testAssertEquals(math.pow(1.234, 10.170355), 8.48608917)
 
 
+
+testCall("max and min", function()
+	assert(math.max(3) == 3)
+	assert(math.max(1, 5, 3) == 5)
+	assert(math.min(4, -2, 8) == -2)
+	assert(math.max("10", 9) == 10)
+	assert(math.min(0.5, 1) == 0.5)
+	assert(not pcall(math.max))
+	assert(not pcall(math.min, 1, {}))
+end)
@@ -0,0 +1,68 @@
+-- Metatables remember which metamethods they lack,
+-- make sure adding one later is still noticed.
+
+testCall(function()
+	local mt = {}
+	local t = setmetatable({}, mt)
+	for i = 1, 3 do
+		assert(t.foo == nil)
+	end
+	mt.__index = function(t, k) return k .. "!" end
+	assert(t.foo == "foo!")
+	mt.__index = nil
+	assert(t.foo == nil)
+	rawset(mt, "__index", {foo = "bar"})
+	assert(t.foo == "bar")
+end)
+
+testCall(function()
+	local mt = {}
+	local a = setmetatable({}, mt)
+	local b = setmetatable({}, mt)
+	for i = 1, 3 do
+		assert(not pcall(function() return a + b end))
+		assert(not pcall(function() return -a end))
+		assert(not pcall(function() return a .. b end))
+		assert(not pcall(function() return a < b end))
+		assert(not pcall(function() return a() end))
+	end
+	mt.__add = function() return "add" end
+	mt.__unm = function() return "unm" end
+	mt.__concat = function() return "concat" end
+	mt.__lt = function() return true end
+	mt.__call = function() return "call" end
+	assert(a + b == "add")
+	assert(-a == "unm")
+	assert(a .. b == "concat")
+	assert(a < b)
+	assert(a() == "call")
+end)
+
+testCall(function()
+	local mt = {}
+	local t = setmetatable({}, mt)
+	for i = 1, 3 do
+		t["k" .. i] = i
+	end
+	local log = {}
+	mt.__newindex = function(t, k, v) log[k] = v end
+	t.x = 1
+	assert(rawget(t, "x") == nil)
+	assert(log.x == 1)
+end)
+
+testCall(function()
+	local mt = {}
+	local t = setmetatable({}, mt)
+	assert(getmetatable(t) == mt)
+	mt.__metatable = "locked"
+	assert(getmetatable(t) == "locked")
+end)
+
+testCall(function()
+	-- strings use the class metatables
+	for i = 1, 3 do
+		assert(("abc"):upper() == "ABC")
+	end
+	assert(getmetatable("abc") ~= nil)
+end)
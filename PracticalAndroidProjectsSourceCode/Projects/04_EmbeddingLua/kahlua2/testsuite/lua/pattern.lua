@@ -0,0 +1,98 @@
+-- Patterns are compiled once and cached,
+-- so use the same patterns several times and against different sources.
+
+testCall(function()
+	for i = 1, 3 do
+		assert(string.match("hello world", "(%w+) (%w+)") == "hello")
+		local a, b = string.match("key = value", "(%w+)%s*=%s*(%w+)")
+		assert(a == "key" and b == "value")
+		assert(string.match("abc", "()b()") == 2)
+		local s, e, cap = string.find("  xyz", "(%a+)")
+		assert(s == 3 and e == 5 and cap == "xyz")
+		assert(string.find("abc", "^b") == nil)
+		assert(string.find("abc", "c$") == 3)
+		assert(string.find("a$c", "$c") == 2)
+	end
+end)
+
+testCall(function()
+	assert(string.match("hello hello", "(%a+) %1") == "hello")
+	assert(string.match("hello world", "(%a+) %1") == nil)
+	assert(string.find("xaax", "(a)%1") == 2)
+	assert(not pcall(string.match, "aa", "%1"))
+	assert(not pcall(string.match, "aa", "(a%1)"))
+end)
+
+testCall(function()
+	assert(string.match("f(a(b)c)d", "%b()") == "(a(b)c)")
+	assert(string.match("f(a(bc", "%b()") == nil)
+	assert(string.match("THE (quick) fox", "%f[%a]%a+") == "THE")
+	assert(string.gsub("THE (quick) fox", "%f[%a]%a+", "x") == "x (x) x")
+	assert(string.match("[x]", "[%]]") == "]")
+	assert(string.match("a-b", "[a-]+") == "a-")
+	assert(string.match("hello", "[^l]+$") == "o")
+	assert(string.match("x1y2", "%d.?") == "1y")
+	assert(string.match("<<a>>", "<(.-)>") == "<a")
+	assert(string.match("\228\246", "[\228]") == "\228")
+end)
+
+testCall(function()
+	local words = {}
+	for w in string.gmatch("one two  three", "%a+") do
+		words[#words + 1] = w
+	end
+	assert(#words == 3 and words[1] == "one" and words[3] == "three")
+
+	local n = 0
+	for e in string.gmatch("abc", "x*") do
+		assert(e == "")
+		n = n + 1
+	end
+	assert(n == 4)
+
+	local t = {}
+	for k, v in string.gmatch("a=1, b=2", "(%w+)=(%w+)") do
+		t[k] = v
+	end
+	assert(t.a == "1" and t.b == "2")
+
+	n = 0
+	for w in string.gmatch("^a^a", "^a") do
+		n = n + 1
+	end
+	assert(n == 2)
+
+	local pos = {}
+	for p in string.gmatch("aXbX", "()X") do
+		pos[#pos + 1] = p
+	end
+	assert(pos[1] == 2 and pos[2] == 4)
+end)
+
+testCall(function()
+	assert(string.gsub("hello world", "o", "0") == "hell0 w0rld")
+	local s, n = string.gsub("hello world", "(%w+)", "<%1>")
+	assert(s == "<hello> <world>" and n == 2)
+	assert(string.gsub("abc", "%w", "%0%0") == "aabbcc")
+	assert(string.gsub("abc", "", "-") == "-a-b-c-")
+	assert(string.gsub("abc", "^a", "x") == "xbc")
+	assert(string.gsub("aaa", "a", "b", 2) == "bba")
+	assert(string.gsub("$name is $age", "%$(%w+)", {name = "bob"}) == "bob is $age")
+	assert(string.gsub("abc", "%w", {b = false}) == "abc")
+	assert(string.gsub("1 2 3", "%d", function(d) return d * 2 end) == "2 4 6")
+	assert(string.gsub("abc", "%w", function(c) end) == "abc")
+	assert(string.gsub("100%", "%%", "%%%%") == "100%%")
+end)
+
+testCall(function()
+	assert(not pcall(string.find, "abc", "[a"))
+	assert(not pcall(string.find, "abc", "%"))
+	assert(not pcall(string.find, "abc", "(a"))
+	assert(not pcall(string.match, "abc", "a)"))
+	assert(not pcall(string.find, "abc", "%b"))
+	assert(not pcall(string.find, "abc", "%fa"))
+	assert(not pcall(string.gsub, "abc", "a", true))
+	-- errors are only raised when the broken part is reached
+	assert(string.find("abc", "x[") == nil)
+	assert(not pcall(string.find, "abc", "[a"))
+end)
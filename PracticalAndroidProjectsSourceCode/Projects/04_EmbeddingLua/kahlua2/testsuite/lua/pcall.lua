@@ -15,3 +15,28 @@ testCall(function()
 	assert(type(c) == "userdata")
 end)
 
+
+testCall("stack traces are strings", function()
+	local function fail()
+		error("oops")
+	end
+	local status, err, trace = pcall(fail)
+	assert(status == false and err == "oops")
+	assert(type(trace) == "string")
+	assert(trace:find("pcall.lua:", 1, true), trace)
+	assert(#trace > 0)
+	local copy = "" .. trace
+	assert(copy == trace)
+	local t = {[trace] = true}
+	assert(t[copy])
+
+	status, err, trace = pcall(error, "again", "earlier trace\n")
+	assert(err == "again")
+	assert(trace:sub(1, 14) == "earlier trace\n", trace)
+
+	status, err, trace = pcall(function() return 1 end)
+	assert(status == true and trace == nil)
+	for i = 1, 100 do
+		assert(not pcall(fail))
+	end
+end)
@@ -0,0 +1,100 @@
+-- Hot functions are rewritten to specialized instructions,
+-- so call everything enough times and mix in operands that need the generic path.
+
+local vec = {}
+vec.__add = function(a, b) return "add" end
+vec.__sub = function(a, b) return "sub" end
+vec.__mul = function(a, b) return "mul" end
+vec.__div = function(a, b) return "div" end
+vec.__lt = function(a, b) return true end
+vec.__le = function(a, b) return false end
+local v = setmetatable({}, vec)
+local w = setmetatable({}, vec)
+
+local function arith(x, y)
+	return x + y, x - y, x * y, x / y
+end
+
+local function arithk(x)
+	return x + 2, x - 2, x * 2, x / 2
+end
+
+local function lt(x, y)
+	if x < y then
+		return true
+	end
+	return false
+end
+
+local function le(x, y)
+	if x <= y then
+		return true
+	end
+	return false
+end
+
+local function eqk(x)
+	if x == "foo" then
+		return 1
+	elseif "bar" == x then
+		return 2
+	end
+	return 3
+end
+
+local function id(x)
+	return x
+end
+
+local function movecall(x, y)
+	return id(x), id(y)
+end
+
+testCall(function()
+	for i = 1, 100 do
+		local a, b, c, d = arith(i, 4)
+		assert(a == i + 4 and b == i - 4 and c == i * 4 and d == i / 4)
+		a, b, c, d = arithk(i)
+		assert(a == i + 2 and b == i - 2 and c == i * 2 and d == i / 2)
+	end
+	local a, b, c, d = arith("10", "5")
+	assert(a == 15 and b == 5 and c == 50 and d == 2)
+	a, b, c, d = arithk("10")
+	assert(a == 12 and b == 8 and c == 20 and d == 5)
+	a, b, c, d = arith(v, 1)
+	assert(a == "add" and b == "sub" and c == "mul" and d == "div")
+	a, b, c, d = arithk(v)
+	assert(a == "add" and b == "sub" and c == "mul" and d == "div")
+	assert(not pcall(arith, {}, 1))
+end)
+
+testCall(function()
+	for i = 1, 100 do
+		assert(lt(i, 50) == (i < 50))
+		assert(le(i, 50) == (i <= 50))
+	end
+	assert(lt("a", "b") == true)
+	assert(le("b", "a") == false)
+	assert(lt(v, w) == true)
+	assert(le(v, w) == false)
+	assert(not pcall(lt, 1, "a"))
+end)
+
+testCall(function()
+	for i = 1, 100 do
+		assert(eqk("foo") == 1)
+		assert(eqk("bar") == 2)
+		assert(eqk("baz") == 3)
+		assert(eqk(i) == 3)
+		assert(eqk(nil) == 3)
+	end
+	assert(eqk(v) == 3)
+	assert(eqk(true) == 3)
+end)
+
+testCall(function()
+	for i = 1, 100 do
+		local x, y = movecall(i, "s" .. i)
+		assert(x == i and y == "s" .. i)
+	end
+end)
@@ -0,0 +1,110 @@
+-- Long concatenations are ropes that are only turned into strings when needed,
+-- make sure they behave exactly like strings.
+
+local function build(n, piece)
+	local s = ""
+	for i = 1, n do
+		s = s .. piece
+	end
+	return s
+end
+
+testCall(function()
+	local s = build(1000, "ab")
+	assert(#s == 2000)
+	assert(type(s) == "string")
+	assert(s == string.rep("ab", 1000))
+	assert(string.rep("ab", 1000) == s)
+	assert(s:sub(1, 4) == "abab")
+	assert(s:sub(-2) == "ab")
+	assert(string.len(s) == 2000)
+	assert(tostring(s) == s)
+end)
+
+testCall(function()
+	local s = build(200, "x")
+	local a = s .. "a"
+	local b = s .. "b"
+	assert(#a == 201 and #b == 201)
+	assert(a:sub(-1) == "a")
+	assert(b:sub(-1) == "b")
+	assert(a ~= b)
+	assert(a < b)
+	assert(s < a)
+	assert(not (b <= a))
+	assert(s .. "a" == a)
+end)
+
+testCall(function()
+	local s = build(100, "k")
+	local t = {}
+	t[s] = 1
+	assert(t[string.rep("k", 100)] == 1)
+	assert(t[s] == 1)
+	t.value = s
+	assert(t.value == string.rep("k", 100))
+	t[1] = s .. "1"
+	assert(t[1] == string.rep("k", 100) .. "1")
+	local n = 0
+	for k, v in pairs(t) do
+		n = n + 1
+	end
+	assert(n == 3)
+	ropeglobal = s
+	assert(ropeglobal == s)
+	assert(rawget(_G, "ropeglobal") == s)
+	ropeglobal = nil
+end)
+
+testCall(function()
+	local s = build(150, "1")
+	assert(tonumber(s) == tonumber(string.rep("1", 150)))
+	assert(s + 0 == tonumber(s))
+	local d = build(130, " ") .. "12"
+	assert(d * 2 == 24)
+	assert(string.format("%s!", s) == string.rep("1", 150) .. "!")
+	assert(s .. 5 == string.rep("1", 150) .. "5")
+	assert(select("#", s, s) == 2)
+	assert(string.upper(build(130, "a")) == string.rep("A", 130))
+end)
+
+testCall(function()
+	local s = build(130, "e")
+	local ok, err = pcall(error, s)
+	assert(not ok and err == string.rep("e", 130))
+	local co = coroutine.create(function(x)
+		local y = coroutine.yield(x .. "1")
+		return y .. "2"
+	end)
+	local ok, v = coroutine.resume(co, s)
+	assert(ok and v == s .. "1")
+	ok, v = coroutine.resume(co, s)
+	assert(ok and v == s .. "2")
+end)
+
+testCall(function()
+	local s = ""
+	local function add(piece)
+		s = s .. piece
+	end
+	for i = 1, 300 do
+		add(i % 10)
+	end
+	assert(#s == 300)
+	assert(s:sub(1, 10) == "1234567890")
+	local prefix = build(140, "p")
+	local t = build(140, "p") .. "-" .. 1 .. "-" .. prefix
+	assert(#t == 140 + 3 + 140)
+	assert(t == prefix .. "-1-" .. prefix)
+end)
+
+testCall(function()
+	local mt = {__concat = function(a, b)
+		if type(a) == "table" then return "table" .. b end
+		return a .. "table"
+	end}
+	local o = setmetatable({}, mt)
+	local s = build(130, "c")
+	assert(s .. o == s .. "table")
+	assert(o .. s == "table" .. s)
+end)
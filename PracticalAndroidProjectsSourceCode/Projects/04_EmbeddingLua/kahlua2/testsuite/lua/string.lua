@@ -382,3 +382,14 @@ testAssertEqual(ok, false)
 
 local ok, err = pcall(function() return {} .. {} end)
 testAssertEqual(ok, false)
+
+testCall("string.rep", function()
+	testAssertEqual(string.rep("ab", 3), "ababab")
+	testAssertEqual(string.rep("x", 1), "x")
+	testAssertEqual(string.rep("x", 0), "")
+	testAssertEqual(string.rep("x", -1), "")
+	testAssertEqual(string.rep("", 1000), "")
+	testAssertEqual(("abc"):rep(2), "abcabc")
+	testAssertEqual(#string.rep("abc", 1001), 3003)
+	testAssertEqual(string.rep(5, 2), "55")
+end)
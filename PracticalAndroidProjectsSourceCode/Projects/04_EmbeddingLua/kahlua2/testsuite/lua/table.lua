@@ -131,6 +131,54 @@ do
 	sortAndVerify{1000, 100, 2000, 200, 150}
 	sortAndVerify{1, 2, 3, 4, 5, 6}
 	sortAndVerify{6, 5, 4, 3, 2, 1}
+	sortAndVerify{"b", "c", "a", "ab", ""}
+
+	local big = {}
+	for i = 1, 1000 do big[i] = i end
+	sortAndVerify(big)
+	local reversed = {}
+	for i = 1, 1000 do reversed[i] = 1001 - i end
+	sortAndVerify(reversed)
+	local same = {}
+	for i = 1, 1000 do same[i] = 5 end
+	sortAndVerify(same)
+	local mixed = {}
+	for i = 1, 1000 do mixed[i] = (i * 7919) % 1009 end
+	sortAndVerify(mixed)
+
+	testCall(function()
+		local t = {}
+		for i = 1, 100 do t[i] = (i * 37) % 101 end
+		table.sort(t, function(a, b) return a > b end)
+		for i = 2, 100 do
+			assert(t[i - 1] >= t[i])
+		end
+		table.sort(t, function(...)
+			assert(select("#", ...) == 2)
+			local a, b = ...
+			return a < b
+		end)
+		assert(t[1] == 1 and t[100] == 100)
+	end)
+
+	testCall(function()
+		local mt = {__lt = function(a, b) return a.v < b.v end}
+		local t = {}
+		for i = 1, 50 do t[i] = setmetatable({v = (i * 13) % 51}, mt) end
+		table.sort(t)
+		for i = 2, 50 do
+			assert(t[i - 1].v <= t[i].v)
+		end
+	end)
+
+	testCall(function()
+		assert(not pcall(table.sort, {1, "x", 2}))
+		-- an inconsistent comparator may give any order, but must not break anything
+		local t = {}
+		for i = 1, 100 do t[i] = i end
+		table.sort(t, function(a, b) return true end)
+		assert(#t == 100)
+	end)
 end
 
 do
@@ -164,3 +212,150 @@ testAssert(not table.isempty(t))
 t["asd"] = nil
 testAssert(table.isempty(t))
 
+testCall(function()
+	local t = {}
+	for i = 1, 100 do
+		table.insert(t, 1, i)
+	end
+	assert(#t == 100 and t[1] == 100 and t[100] == 1)
+	for i = 1, 50 do
+		assert(table.remove(t, 1) == 101 - i)
+	end
+	assert(#t == 50 and t[1] == 50 and t[50] == 1)
+	assert(table.remove(t) == 1)
+	assert(#t == 49)
+end)
+
+testCall(function()
+	local log = {}
+	local t = setmetatable({}, {__newindex = function(t, k, v) log[#log + 1] = k; rawset(t, k, v) end})
+	table.insert(t, "a")
+	table.insert(t, 1, "b")
+	assert(t[1] == "b" and t[2] == "a")
+	assert(#log >= 2)
+end)
+
+testCall(function()
+	local t = {1, 2, 3, 4, 5}
+	assert(table.move(t, 2, 4, 1) == t)
+	assert(t[1] == 2 and t[2] == 3 and t[3] == 4 and t[4] == 4 and t[5] == 5)
+	t = {1, 2, 3, 4, 5}
+	table.move(t, 1, 3, 3)
+	assert(t[1] == 1 and t[2] == 2 and t[3] == 1 and t[4] == 2 and t[5] == 3)
+	local dest = table.move({1, 2, 3}, 1, 3, 2, {})
+	assert(dest[1] == nil and dest[2] == 1 and dest[4] == 3)
+	assert(table.move(t, 3, 1, 1) == t)
+	assert(table.move(t, 1, 1, 1, nil) == t)
+	local ok, err = pcall(table.move, t, 1, 2, 1, "x")
+	assert(not ok and string.find(err, "bad argument #5 to 'move'", 1, true))
+end)
+
+testCall(function()
+	local a, b, c = table.unpack({1, 2, 3})
+	assert(a == 1 and b == 2 and c == 3)
+	assert(select("#", table.unpack({1, 2, 3}, 2)) == 2)
+end)
+
+testCall("pairs and next", function()
+	local t = {10, 20, 30, x = "a", y = "b"}
+	local seen, n = {}, 0
+	for k, v in pairs(t) do
+		assert(t[k] == v)
+		assert(not seen[k])
+		seen[k] = true
+		n = n + 1
+	end
+	assert(n == 5)
+
+	-- Clearing fields while walking the table is allowed
+	for k in pairs(t) do
+		t[k] = nil
+	end
+	assert(next(t) == nil)
+
+	t = {1, 2, 3, a = 1}
+	n = 0
+	local k, v = next(t)
+	while k ~= nil do
+		assert(t[k] == v)
+		n = n + 1
+		k, v = next(t, k)
+	end
+	assert(n == 4)
+
+	local first = next(t)
+	n = 0
+	for k in next, t, first do
+		assert(k ~= first)
+		n = n + 1
+	end
+	assert(n == 3)
+
+	for k, v, extra in pairs(t) do
+		assert(extra == nil)
+	end
+	assert(not pcall(next, t, "missing"))
+	assert(not pcall(next))
+
+	-- The iterator from pairs keeps its own position
+	local it = pairs(t)
+	n = 0
+	while it() ~= nil do
+		n = n + 1
+	end
+	assert(n == 4)
+	assert(it() == nil)
+end)
+
+testCall("frozen tables", function()
+	local shared = {x = 1}
+	local mt = {__index = {missing = "default"}}
+	local t = setmetatable({10, 20, 30, name = "config", nested = {shared, shared}, [shared] = true}, mt)
+	local f = table.freeze(t)
+	assert(f ~= t)
+	assert(table.freeze(f) == f)
+	assert(#f == 3 and f[1] == 10 and f[3] == 30 and f[4] == nil)
+	assert(f.name == "config")
+	assert(f.nested[1] == f.nested[2])
+	assert(f.nested[1].x == 1)
+	assert(f[f.nested[1]] == true)
+	assert(f[shared] == nil)
+	assert(getmetatable(f) ~= mt)
+	assert(f.missing == "default")
+
+	local n = 0
+	for k, v in pairs(f) do
+		assert(f[k] == v)
+		n = n + 1
+	end
+	assert(n == 6)
+	n = 0
+	for i, v in ipairs(f) do
+		n = n + v
+	end
+	assert(n == 60)
+
+	assert(not pcall(function() f.name = "changed" end))
+	assert(not pcall(function() f[4] = 40 end))
+	assert(not pcall(function() f.nested[1].x = 2 end))
+	assert(not pcall(rawset, f, "a", 1))
+	assert(not pcall(setmetatable, f, nil))
+	assert(not pcall(table.insert, f, 1))
+	assert(not pcall(table.remove, f))
+	assert(f.name == "config" and #f == 3)
+
+	t.name = "changed"
+	shared.x = 2
+	assert(f.name == "config" and f.nested[1].x == 1)
+
+	local cycle = {}
+	cycle.self = cycle
+	local frozenCycle = table.freeze(cycle)
+	assert(frozenCycle.self == frozenCycle)
+	assert(next(table.freeze({})) == nil)
+
+	-- Functions belong to a single thread
+	assert(not pcall(table.freeze, {f = function() end}))
+	assert(not pcall(table.freeze, {co = coroutine.create(function() end)}))
+	assert(table.freeze({f = print}).f == print)
+end)
@@ -0,0 +1,90 @@
+-- Arithmetic results are kept unboxed in the registers,
+-- these tests make sure they are still visible wherever they escape to.
+
+testCall(function()
+	local x = 1
+	local function get() return x end
+	x = x + 41
+	assert(get() == 42)
+	assert(type(get()) == "number")
+end)
+
+testCall(function()
+	local x = 0
+	local function inc() x = x + 1 end
+	for i = 1, 10 do
+		inc()
+		x = x * 1
+	end
+	assert(x == 10)
+end)
+
+testCall(function()
+	local t = {}
+	local a, b = 3, 4
+	t[1] = a * b
+	t.x = a - b
+	t[a + b] = "seven"
+	assert(t[1] == 12)
+	assert(t.x == -1)
+	assert(t[7] == "seven")
+	assert(rawget(t, 7) == "seven")
+end)
+
+testCall(function()
+	local function f(a, b) return a + b, a * b, -a end
+	local x, y, z = f(2, 5)
+	assert(x == 7 and y == 10 and z == -2)
+	assert(select("#", f(1, 1)) == 3)
+	assert(tostring(x + y) == "17")
+	assert(("value: " .. x * 2) == "value: 14")
+end)
+
+testCall(function()
+	local function sum(...)
+		local s = 0
+		for i = 1, select("#", ...) do
+			s = s + select(i, ...)
+		end
+		return s
+	end
+	local a = 10
+	assert(sum(a / 2, a * 2, #"abc") == 28)
+end)
+
+testCall(function()
+	local co = coroutine.create(function(a)
+		local b = coroutine.yield(a + 1)
+		return b * 2
+	end)
+	local ok, v = coroutine.resume(co, 1)
+	assert(ok and v == 2)
+	ok, v = coroutine.resume(co, v + 1)
+	assert(ok and v == 6)
+end)
+
+testCall(function()
+	local zero = 0
+	local negzero = -zero
+	assert(1 / negzero < 0)
+	assert(1 / zero > 0)
+end)
+
+testCall(function()
+	local ok, err = pcall(function()
+		local n = 1 + 1
+		n()
+	end)
+	assert(not ok)
+end)
+
+testCall(function()
+	local x = 5
+	local y = x
+	x = x + 1
+	assert(y == 5)
+	assert(x == 6)
+	local len = #{1, 2, 3}
+	assert(len + 1 == 4)
+	assert(len == 3)
+end)
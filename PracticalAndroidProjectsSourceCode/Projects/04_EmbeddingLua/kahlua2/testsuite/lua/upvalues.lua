@@ -69,3 +69,33 @@ do
    testAssert(v == 10)
 end
 
+
+do
+   -- capture locals out of stack order so upvalues are inserted in the middle of the open list
+   local a, b, c = 1, 2, 3
+   local getc = function() return c end
+   local geta = function() return a end
+   local getb = function() return b end
+   local setall = function(x) a, b, c = x, x + 1, x + 2 end
+   setall(10)
+   testAssert(geta() == 10 and getb() == 11 and getc() == 12)
+   testAssert(a == 10 and b == 11 and c == 12)
+end
+
+do
+   -- each iteration gets fresh upvalues, closed at the end of the iteration
+   local getters, setters = {}, {}
+   for i = 1, 100 do
+      local x = i
+      getters[i] = function() return x end
+      setters[i] = function(v) x = v end
+   end
+   setters[50](-1)
+   for i = 1, 100 do
+      if i == 50 then
+         testAssert(getters[i]() == -1)
+      else
+         testAssert(getters[i]() == i)
+      end
+   end
+end
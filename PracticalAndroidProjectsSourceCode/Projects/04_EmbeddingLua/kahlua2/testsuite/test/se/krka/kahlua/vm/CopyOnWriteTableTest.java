@@ -0,0 +1,128 @@
+package se.krka.kahlua.vm;
+
+import org.junit.Test;
+import se.krka.kahlua.j2se.J2SEPlatform;
+import se.krka.kahlua.luaj.compiler.LuaCompiler;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CopyOnWriteTableTest {
+
+	private static Object run(Platform platform, KahluaTable env, String source) throws IOException {
+		KahluaThread thread = new KahluaThread(platform, env);
+		Object[] res = thread.pcall(LuaCompiler.loadstring(source, "fork", env));
+		assertEquals(res.length > 1 ? String.valueOf(res[1]) : "", Boolean.TRUE, res[0]);
+		return res.length > 1 ? res[1] : null;
+	}
+
+	@Test
+	public void testLibrariesAreShared() throws IOException {
+		Platform platform = new J2SEPlatform();
+		KahluaTable env = platform.newEnvironment();
+		KahluaTable child = CopyOnWriteTable.fork(platform, env);
+		assertSame(child, child.rawget("_G"));
+		CopyOnWriteTable string = (CopyOnWriteTable) child.rawget("string");
+		assertSame(string, child.rawget("string"));
+		assertSame(((KahluaTable) env.rawget("string")).rawget("upper"), string.rawget("upper"));
+
+		assertEquals("ABC", run(platform, child, "return string.upper('abc') .. ('x'):sub(2)"));
+		assertEquals(3.0, run(platform, child, "local t = {} table.insert(t, 3) return math.max(t[1], 1)"));
+		assertEquals(Boolean.TRUE, run(platform, child, "return getmetatable('').__index == string"));
+		assertFalse(string.isCopied());
+	}
+
+	@Test
+	public void testWritesAreIsolated() throws IOException {
+		Platform platform = new J2SEPlatform();
+		KahluaTable env = platform.newEnvironment();
+		KahluaTable child1 = CopyOnWriteTable.fork(platform, env);
+		KahluaTable child2 = CopyOnWriteTable.fork(platform, env);
+
+		run(platform, child1, "x = 1 string.shout = function(s) return s:upper() .. '!' end");
+		assertEquals("HI!", run(platform, child1, "return ('hi'):shout()"));
+		assertTrue(((CopyOnWriteTable) child1.rawget("string")).isCopied());
+		assertEquals(Boolean.TRUE, run(platform, child1, "return getmetatable('').__index == string"));
+
+		assertNull(env.rawget("x"));
+		assertNull(((KahluaTable) env.rawget("string")).rawget("shout"));
+		assertEquals(Boolean.TRUE, run(platform, child2, "return x == nil and string.shout == nil"));
+		assertFalse(((CopyOnWriteTable) child2.rawget("string")).isCopied());
+
+		run(platform, child2, "math.pi = 3 table.insert = nil");
+		assertEquals(3.0, run(platform, child2, "return math.pi"));
+		assertEquals(Math.PI, run(platform, child1, "return math.pi"));
+		assertEquals(Boolean.TRUE, run(platform, env, "return table.insert ~= nil"));
+	}
+
+	@Test
+	public void testIteration() throws IOException {
+		Platform platform = new J2SEPlatform();
+		KahluaTable env = platform.newEnvironment();
+		KahluaTable child = CopyOnWriteTable.fork(platform, env);
+		Object count = run(platform, env, "local n = 0 for k, v in pairs(math) do n = n + 1 end return n");
+		assertEquals(count, run(platform, child, "local n = 0 for k, v in pairs(math) do n = n + 1 end return n"));
+		assertEquals(count, run(platform, child,
+				"math.extra = 1 math.extra = nil local n = 0 for k, v in pairs(math) do n = n + 1 end return n"));
+	}
+
+	@Test
+	public void testWritesDuringIteration() throws IOException {
+		Platform platform = new J2SEPlatform();
+		KahluaTable env = platform.newEnvironment();
+		run(platform, env, "data = {} for i = 1, 20 do data['k' .. i] = i end");
+		String script =
+				"local visited = 0 " +
+				"for k in pairs(data) do " +
+				"  visited = visited + 1 " +
+				"  for other in pairs(data) do if other ~= k then data[other] = nil end end " +
+				"end " +
+				"return visited";
+		KahluaTable child = CopyOnWriteTable.fork(platform, env);
+		assertEquals(1.0, run(platform, child, script));
+		assertEquals(Boolean.TRUE, run(platform, env, "return data.k20 == 20"));
+
+		child = CopyOnWriteTable.fork(platform, env);
+		assertEquals(Boolean.TRUE, run(platform, child,
+				"local seen = 0 " +
+				"for k, v in pairs(data) do seen = seen + 1 data[k] = v + 1 end " +
+				"local sum = 0 for k, v in pairs(data) do sum = sum + v end " +
+				"return seen == 20 and sum == 230"));
+		assertEquals(Boolean.TRUE, run(platform, env, "return data.k1 == 1"));
+	}
+
+	@Test
+	public void testTableKeysAreWrapped() throws IOException {
+		Platform platform = new J2SEPlatform();
+		KahluaTable env = platform.newEnvironment();
+		run(platform, env, "key = {} lookup = {[key] = 'found'}");
+		KahluaTable child = CopyOnWriteTable.fork(platform, env);
+
+		assertEquals("found", run(platform, child, "return lookup[key]"));
+		run(platform, child, "for k in pairs(lookup) do k.mutated = true end");
+		assertEquals(Boolean.TRUE, run(platform, child, "return key.mutated"));
+		assertNull(((KahluaTable) env.rawget("key")).rawget("mutated"));
+
+		run(platform, child, "lookup.other = 1");
+		assertEquals("found", run(platform, child, "return lookup[key]"));
+		assertEquals(Boolean.TRUE, run(platform, env, "return lookup.other == nil and key.mutated == nil"));
+	}
+
+	@Test
+	public void testFunctionsAreRebound() throws IOException {
+		Platform platform = new J2SEPlatform();
+		KahluaTable env = platform.newEnvironment();
+		run(platform, env, "counter = 0 function bump() counter = counter + 1 end");
+		KahluaTable child = CopyOnWriteTable.fork(platform, env);
+
+		assertEquals(1.0, run(platform, child, "bump() return counter"));
+		assertEquals(0.0, env.rawget("counter"));
+		assertEquals(Boolean.TRUE, run(platform, child, "return bump == bump and getfenv(bump) == _G"));
+		assertSame(env, ((LuaClosure) env.rawget("bump")).env);
+	}
+}
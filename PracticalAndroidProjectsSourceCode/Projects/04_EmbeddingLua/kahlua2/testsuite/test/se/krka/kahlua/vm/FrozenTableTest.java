@@ -0,0 +1,94 @@
+package se.krka.kahlua.vm;
+
+import org.junit.Test;
+import se.krka.kahlua.j2se.J2SEPlatform;
+import se.krka.kahlua.luaj.compiler.LuaCompiler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FrozenTableTest {
+
+	private static FrozenTable createConfig(Platform platform) {
+		KahluaTable config = platform.newTable();
+		for (int i = 1; i <= 100; i++) {
+			KahluaTable entry = platform.newTable();
+			entry.rawset("id", KahluaUtil.toDouble(i));
+			entry.rawset("name", "entry" + i);
+			config.rawset(i, entry);
+		}
+		config.rawset("count", KahluaUtil.toDouble(100));
+		return FrozenTable.freeze(config);
+	}
+
+	@Test
+	public void testWritesFail() {
+		FrozenTable config = createConfig(new J2SEPlatform());
+		assertEquals(100, config.len());
+		assertEquals("entry7", ((KahluaTable) config.rawget(7)).rawget("name"));
+		try {
+			config.rawset("count", null);
+			fail();
+		} catch (KahluaException e) {
+		}
+		try {
+			((KahluaTable) config.rawget(1)).rawset(1, "x");
+			fail();
+		} catch (KahluaException e) {
+		}
+		assertEquals(100.0, config.rawget("count"));
+	}
+
+	@Test
+	public void testConcurrentReads() throws Exception {
+		final J2SEPlatform platform = new J2SEPlatform(true);
+		final FrozenTable config = createConfig(platform);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Object>> results = new ArrayList<Future<Object>>();
+			for (int i = 0; i < 8; i++) {
+				results.add(executor.submit(new Callable<Object>() {
+					public Object call() throws Exception {
+						KahluaTable env = platform.newEnvironment();
+						env.rawset("config", config);
+						KahluaThread thread = new KahluaThread(platform, env);
+						Object[] res = thread.pcall(LuaCompiler.loadstring(
+								"local sum = 0 " +
+								"for n = 1, 100 do " +
+								"  for i, entry in ipairs(config) do sum = sum + entry.id end " +
+								"  for k, v in pairs(config) do end " +
+								"end " +
+								"return sum", "reader", env));
+						assertEquals(String.valueOf(res.length > 1 ? res[1] : null), Boolean.TRUE, res[0]);
+						return res[1];
+					}
+				}));
+			}
+			for (Future<Object> result : results) {
+				assertEquals(505000.0, result.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testForksShareFrozenTables() {
+		Platform platform = new J2SEPlatform();
+		KahluaTable env = platform.newEnvironment();
+		FrozenTable config = createConfig(platform);
+		env.rawset("config", config);
+		KahluaTable child = CopyOnWriteTable.fork(platform, env);
+		assertSame(config, child.rawget("config"));
+		assertTrue(child.rawget("string") instanceof CopyOnWriteTable);
+	}
+}
@@ -0,0 +1,108 @@
+package se.krka.kahlua.vm;
+
+import org.junit.Test;
+import se.krka.kahlua.j2se.J2SEPlatform;
+import se.krka.kahlua.luaj.compiler.LuaCompiler;
+import se.krka.kahlua.stdlib.CoroutineLib;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class InstructionBudgetTest {
+
+	private static Object[] run(KahluaThread thread, String source) throws IOException {
+		return thread.pcall(LuaCompiler.loadstring(source, "budget", thread.getEnvironment()));
+	}
+
+	@Test
+	public void testRunawayLoopFails() throws IOException {
+		Platform platform = new J2SEPlatform();
+		KahluaThread thread = new KahluaThread(platform, platform.newEnvironment());
+		thread.setInstructionBudget(10000);
+		Object[] res = run(thread, "while true do end");
+		assertEquals(Boolean.FALSE, res[0]);
+		assertEquals("instruction budget exceeded", res[1]);
+
+		res = run(thread, "local function f() return f() end return f()");
+		assertEquals(Boolean.FALSE, res[0]);
+
+		// pcall in Lua can't keep the script running
+		res = run(thread, "while true do pcall(function() while true do end end) end");
+		assertEquals(Boolean.FALSE, res[0]);
+		assertEquals("instruction budget exceeded", res[1]);
+	}
+
+	@Test
+	public void testBudgetIsPerCall() throws IOException {
+		Platform platform = new J2SEPlatform();
+		KahluaThread thread = new KahluaThread(platform, platform.newEnvironment());
+		thread.setInstructionBudget(1000);
+		for (int i = 0; i < 10; i++) {
+			Object[] res = run(thread, "local n = 0 for i = 1, 500 do n = n + i end return n");
+			assertEquals(Boolean.TRUE, res[0]);
+			assertEquals(125250.0, res[1]);
+		}
+
+		thread.setInstructionBudget(0);
+		Object[] res = run(thread, "local n = 0 for i = 1, 100000 do n = n + 1 end return n");
+		assertEquals(Boolean.TRUE, res[0]);
+		assertEquals(100000.0, res[1]);
+	}
+
+	@Test
+	public void testBudgetIsResetForJavaFunctions() throws IOException {
+		Platform platform = new J2SEPlatform();
+		KahluaTable env = platform.newEnvironment();
+		KahluaThread thread = new KahluaThread(platform, env);
+		thread.setInstructionBudget(1000);
+		assertEquals(Boolean.FALSE, run(thread, "while true do end")[0]);
+
+		final LuaClosure loop = LuaCompiler.loadstring("local n = 0 for i = 1, 10 do n = n + i end return n", "loop", env);
+		JavaFunction callback = new JavaFunction() {
+			public int call(LuaCallFrame callFrame, int nArguments) {
+				return callFrame.push(callFrame.getThread().call(loop, null));
+			}
+		};
+		Object[] res = thread.pcall(callback);
+		assertEquals(Boolean.TRUE, res[0]);
+		assertEquals(55.0, res[1]);
+	}
+
+	@Test
+	public void testPreemptibleCoroutine() throws IOException {
+		Platform platform = new J2SEPlatform();
+		KahluaTable env = platform.newEnvironment();
+		KahluaThread thread = new KahluaThread(platform, env);
+		LuaClosure script = LuaCompiler.loadstring(
+				"local function add(a, b) return a + b end " +
+				"local n = 0 " +
+				"for i = 1, 10000 do n = add(n, i) end " +
+				"result = n " +
+				"return 'done'", "script", env);
+		Coroutine coroutine = CoroutineLib.create(platform, env, script);
+		coroutine.preemptible = true;
+		JavaFunction slice = CoroutineLib.wrap(coroutine);
+
+		thread.setInstructionBudget(1000);
+		int slices = 0;
+		Object[] res;
+		do {
+			assertEquals("suspended", coroutine.getStatus());
+			res = thread.pcall(slice);
+			assertEquals(Boolean.TRUE, res[0]);
+			slices++;
+		} while (!coroutine.isDead());
+		assertEquals("done", res[1]);
+		assertEquals(50005000.0, env.rawget("result"));
+		assertTrue(slices >= 20);
+
+		// Coroutines that aren't preemptible fail like anything else
+		Object[] failed = run(thread, "local co = coroutine.create(function() while true do end end) " +
+				"local ok, err = coroutine.resume(co) return ok, err");
+		assertEquals(Boolean.TRUE, failed[0]);
+		assertEquals(Boolean.FALSE, failed[1]);
+		assertEquals("instruction budget exceeded", failed[2]);
+	}
+}
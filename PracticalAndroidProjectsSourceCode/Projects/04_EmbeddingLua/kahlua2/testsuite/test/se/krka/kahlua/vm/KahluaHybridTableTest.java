@@ -0,0 +1,182 @@
+package se.krka.kahlua.vm;
+
+import org.junit.Test;
+import se.krka.kahlua.j2se.J2SEPlatform;
+import se.krka.kahlua.luaj.compiler.LuaCompiler;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class KahluaHybridTableTest {
+
+	@Test
+	public void testArrayAppend() {
+		KahluaHybridTable t = new KahluaHybridTable();
+		assertTrue(t.isEmpty());
+		assertEquals(0, t.len());
+		for (int i = 1; i <= 1000; i++) {
+			t.rawset(i, "v" + i);
+			assertEquals(i, t.len());
+		}
+		assertEquals("v500", t.rawget(500));
+		assertEquals("v500", t.rawget(KahluaUtil.toDouble(500)));
+		assertFalse(t.isEmpty());
+	}
+
+	@Test
+	public void testBorder() {
+		KahluaHybridTable t = new KahluaHybridTable(8, 0);
+		t.rawset(1, "a");
+		t.rawset(2, "b");
+		t.rawset(4, "d");
+		assertEquals(2, t.len());
+		t.rawset(3, "c");
+		assertEquals(4, t.len());
+		t.rawset(2, null);
+		assertEquals(1, t.len());
+		t.rawset(1, null);
+		assertEquals(0, t.len());
+	}
+
+	@Test
+	public void testSequenceContinuesInHash() {
+		KahluaHybridTable t = new KahluaHybridTable(2, 4);
+		t.rawset("x", "y");
+		t.rawset(1, "a");
+		t.rawset(2, "b");
+		t.rawset(3, "c");
+		t.rawset(4, "d");
+		assertEquals(4, t.len());
+	}
+
+	@Test
+	public void testMixedKeys() {
+		KahluaHybridTable t = new KahluaHybridTable();
+		Map<Object, Object> expected = new HashMap<Object, Object>();
+		for (int i = 0; i < 500; i++) {
+			Object key = (i % 3 == 0) ? (Object) ("key" + i) : KahluaUtil.toDouble(i * 7 % 101 - 10.5 + (i % 2) * 10.5);
+			Object value = "value" + i;
+			t.rawset(key, value);
+			expected.put(key, value);
+		}
+		for (int i = 0; i < 500; i += 4) {
+			Object key = "key" + (i * 3);
+			t.rawset(key, null);
+			expected.remove(key);
+		}
+		for (Map.Entry<Object, Object> entry : expected.entrySet()) {
+			assertEquals(entry.getValue(), t.rawget(entry.getKey()));
+		}
+
+		Map<Object, Object> seen = new HashMap<Object, Object>();
+		KahluaTableIterator iterator = t.iterator();
+		while (iterator.advance()) {
+			assertNull(seen.put(iterator.getKey(), iterator.getValue()));
+		}
+		assertEquals(expected, seen);
+	}
+
+	@Test
+	public void testArrayInsertRemove() {
+		KahluaHybridTable t = new KahluaHybridTable();
+		for (int i = 1; i <= 4; i++) {
+			assertTrue(t.arrayInsert(i, "v" + i));
+		}
+		assertTrue(t.arrayInsert(1, "first"));
+		assertTrue(t.arrayInsert(3, "middle"));
+		assertEquals(6, t.len());
+		assertEquals("first", t.rawget(1));
+		assertEquals("v1", t.rawget(2));
+		assertEquals("middle", t.rawget(3));
+		assertEquals("v4", t.rawget(6));
+
+		assertTrue(t.arrayRemove(1));
+		assertTrue(t.arrayRemove(2));
+		assertEquals(4, t.len());
+		assertEquals("v1", t.rawget(1));
+		assertEquals("v2", t.rawget(2));
+		assertEquals("v4", t.rawget(4));
+		assertNull(t.rawget(5));
+
+		assertFalse(t.arrayInsert(7, "x"));
+		assertFalse(t.arrayInsert(1, null));
+		assertFalse(t.arrayRemove(5));
+		assertEquals(4, t.len());
+	}
+
+	@Test
+	public void testArrayInsertJoinsBorder() {
+		KahluaHybridTable t = new KahluaHybridTable(8, 0);
+		t.rawset(1, "a");
+		t.rawset(3, "c");
+		t.rawset(4, "d");
+		assertEquals(1, t.len());
+		assertTrue(t.arrayInsert(1, "x"));
+		assertEquals(4, t.len());
+		assertEquals("a", t.rawget(2));
+	}
+
+	@Test
+	public void testSlots() {
+		KahluaHybridTable t = new KahluaHybridTable(4, 4);
+		t.rawset(1, "a");
+		t.rawset(3, "c");
+		t.rawset("x", "hash");
+
+		int slot = t.nextSlot(0);
+		assertEquals(0, slot);
+		assertNull(t.getSlotKey(slot));
+		assertEquals("a", t.getSlotValue(slot));
+
+		slot = t.nextSlot(slot + 1);
+		assertEquals(2, slot);
+		assertNull(t.getSlotKey(slot));
+		assertEquals("c", t.getSlotValue(slot));
+
+		slot = t.nextSlot(slot + 1);
+		assertEquals("x", t.getSlotKey(slot));
+		assertEquals("hash", t.getSlotValue(slot));
+		assertEquals(slot, t.getSlot("x"));
+		assertEquals(2, t.getSlot(KahluaUtil.toDouble(3)));
+		assertEquals(-1, t.getSlot("y"));
+
+		// Removing the current entry keeps the slots of the others
+		t.rawset("x", null);
+		assertEquals(slot, t.getSlot("x"));
+		assertEquals(-1, t.nextSlot(slot));
+	}
+
+	@Test
+	public void testNilKey() {
+		KahluaHybridTable t = new KahluaHybridTable();
+		assertNull(t.rawget(null));
+		try {
+			t.rawset(null, "x");
+		} catch (RuntimeException e) {
+			assertEquals("table index is nil", e.getMessage());
+			return;
+		}
+		throw new AssertionError("expected failure");
+	}
+
+	@Test
+	public void testLua() throws IOException {
+		Platform platform = new J2SEPlatform(true);
+		KahluaTable env = platform.newEnvironment();
+		KahluaThread thread = new KahluaThread(platform, env);
+		LuaClosure closure = LuaCompiler.loadstring(
+				"local t = {1, 2, 3, x = 1, y = 2}\n" +
+				"for i = 4, 100 do t[#t + 1] = i end\n" +
+				"local sum = 0\n" +
+				"for k, v in pairs(t) do sum = sum + v end\n" +
+				"table.sort(t, function(a, b) return a > b end)\n" +
+				"return #t .. ':' .. sum .. ':' .. t[1]", "test", env);
+		assertEquals("100:5053:100", thread.call(closure, null));
+	}
+}
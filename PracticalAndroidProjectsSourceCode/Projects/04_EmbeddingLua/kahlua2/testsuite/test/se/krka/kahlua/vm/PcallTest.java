@@ -0,0 +1,40 @@
+package se.krka.kahlua.vm;
+
+import org.junit.Test;
+import se.krka.kahlua.j2se.J2SEPlatform;
+import se.krka.kahlua.luaj.compiler.LuaCompiler;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PcallTest {
+
+	@Test
+	public void testStackTraceIsAString() throws IOException {
+		Platform platform = new J2SEPlatform();
+		KahluaTable env = platform.newEnvironment();
+		KahluaThread thread = new KahluaThread(platform, env);
+		LuaClosure closure = LuaCompiler.loadstring(
+				"local function f() error('boom') end\n" +
+				"f()", "trace", env);
+
+		Coroutine coroutine = thread.currentCoroutine;
+		int top = coroutine.getTop();
+		coroutine.setTop(top + 1);
+		coroutine.objectStack[top] = closure;
+		assertEquals(4, thread.pcall(0));
+		assertEquals(Boolean.FALSE, coroutine.objectStack[top]);
+		assertEquals("boom", coroutine.objectStack[top + 1]);
+		Object trace = coroutine.objectStack[top + 2];
+		assertTrue(trace instanceof String);
+		assertTrue(((String) trace).indexOf("at trace:1") >= 0);
+		coroutine.setTop(top);
+
+		Object[] res = thread.pcall(closure);
+		assertEquals(Boolean.FALSE, res[0]);
+		assertTrue(res[2] instanceof String);
+		assertEquals("", coroutine.getStackTrace());
+	}
+}
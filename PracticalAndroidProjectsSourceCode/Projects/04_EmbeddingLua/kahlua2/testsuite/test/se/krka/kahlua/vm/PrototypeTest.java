@@ -0,0 +1,61 @@
+package se.krka.kahlua.vm;
+
+import org.junit.Test;
+import se.krka.kahlua.j2se.J2SEPlatform;
+import se.krka.kahlua.luaj.compiler.LuaCompiler;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PrototypeTest {
+
+	@Test
+	public void testCopy() throws IOException {
+		Platform platform = new J2SEPlatform();
+		KahluaTable env = platform.newEnvironment();
+		LuaClosure closure = LuaCompiler.loadstring(
+				"local n = 0 " +
+				"for i = 1, 100 do n = n + (function(x) return x * 2 end)(i) end " +
+				"return n", "copy", env);
+		Prototype prototype = closure.prototype;
+		Prototype copy = prototype.copy();
+		assertSame(prototype.code, copy.code);
+		assertSame(prototype.constants, copy.constants);
+		assertEquals(1, copy.prototypes.length);
+		assertNotSame(prototype.prototypes[0], copy.prototypes[0]);
+		assertSame(prototype.prototypes[0].code, copy.prototypes[0].code);
+
+		KahluaThread thread = new KahluaThread(platform, env);
+		Object[] res = thread.pcall(new LuaClosure(copy, env));
+		assertEquals(Boolean.TRUE, res[0]);
+		assertEquals(10100.0, res[1]);
+		assertNull(prototype.quickCode);
+		assertNull(prototype.prototypes[0].globalCells);
+	}
+
+	@Test
+	public void testEnvironmentsAreIndependent() throws IOException {
+		Platform platform = new J2SEPlatform();
+		KahluaTable env1 = platform.newEnvironment();
+		KahluaTable env2 = platform.newEnvironment();
+		assertTrue(env1.rawget("assert") instanceof LuaClosure);
+		assertTrue(env1.rawget("serialize") instanceof LuaClosure);
+		assertNotSame(env1.rawget("assert"), env2.rawget("assert"));
+
+		KahluaThread thread = new KahluaThread(platform, env1);
+		LuaClosure closure = LuaCompiler.loadstring(
+				"local t = {} " +
+				"for i, v in ipairs({1, 2, 3}) do t[i] = v end " +
+				"return deserialize(serialize(t))[3]", "env1", env1);
+		Object[] res = thread.pcall(closure);
+		assertEquals(Boolean.TRUE, res[0]);
+		assertEquals(3.0, res[1]);
+		assertSame(env1, ((LuaClosure) env1.rawget("assert")).env);
+		assertSame(env2, ((LuaClosure) env2.rawget("assert")).env);
+	}
+}